@@ -1,23 +1,76 @@
 package wntiv;
 
 import wntiv.class_parser.JarHandler;
+import wntiv.class_parser.LibraryIndex;
+import wntiv.class_parser.MethodCache;
+import wntiv.class_parser.MappedJarReader;
+import wntiv.ir.PassManager;
+import wntiv.wasm_output.WasmModule;
 
+import java.io.Closeable;
+import java.io.DataOutputStream;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
 import java.util.jar.JarInputStream;
+import java.util.zip.ZipFile;
 
 public class Main {
 	public static void main(String[] args) {
 		String jarLocation = null;
+		boolean parallel = false;
+		boolean mapped = false;
+		boolean streaming = false;
+		boolean reachable = false;
+		JarHandler.AssetMode assets = JarHandler.AssetMode.ZIP;
+		List<String> roots = new ArrayList<>();
+		List<String> libraries = new ArrayList<>();
+		Path indexCache = Path.of("./out/index");
+		Path methodCache = null;
+		// Alongside ./out/assets.zip
+		Path output = Path.of("./out/module.wasm");
+		// Off at -O0, where every method's ops are written as they are
+		boolean optimise = true;
+		// Applied once all the options are in, so -O0 & -O1 can come before or after
+		List<String> disabledPasses = new ArrayList<>();
+		boolean timePasses = false;
+		boolean passReports = false;
 
 		Iterator<String> arg_stack = Arrays.stream(args).iterator();
 		String arg;
 		while (arg_stack.hasNext())
 			switch (arg = arg_stack.next()) {
 				case "-h", "--help" -> System.out.println("help goes here");
+				case "-p", "--parallel" -> parallel = true;
+				case "-m", "--mmap" -> mapped = true;
+				case "-s", "--streaming" -> streaming = true;
+				case "-r", "--reachable" -> reachable = true;
+				case "-e", "--embed-assets" -> assets = JarHandler.AssetMode.EMBED;
+				case "--root" -> {
+					// Implies reachable, can be given more than once
+					reachable = true;
+					roots.add(optionValue(arg_stack, arg));
+				}
+				case "-l", "--library" -> libraries.add(optionValue(arg_stack, arg));
+				case "--index-cache" -> indexCache = Path.of(optionValue(arg_stack, arg));
+				case "-c", "--cache" -> methodCache = Path.of(optionValue(arg_stack, arg));
+				case "-o", "--output" -> output = Path.of(optionValue(arg_stack, arg));
+				case "-O0" -> optimise = false;
+				case "-O1" -> optimise = true;
+				// Can be given more than once
+				case "--disable-pass" -> disabledPasses.add(optionValue(arg_stack, arg));
+				case "--time-passes" -> timePasses = true;
+				// What passes decided, e.g. which calls were inlined & why not
+				case "--pass-reports" -> passReports = true;
 				default -> jarLocation = arg;
 			}
 		if (jarLocation == null) {
@@ -25,11 +78,62 @@ public class Main {
 			System.out.println("error goes here");
 			System.exit(1);
 		}
+		// null at -O0
+		PassManager passes = optimise ? PassManager.standard() : null;
+		Set<String> passNames = PassManager.standard().passNames();
+		for (String pass : disabledPasses) {
+			if (!passNames.contains(pass)) {
+				// User error
+				System.out.println("Unknown pass " + pass + ", expected one of " + passNames);
+				System.exit(1);
+			}
+			if (passes != null) passes.setEnabled(pass, false);
+		}
+		// Read from until the module is written, and closed after
+		List<Closeable> inputs = new ArrayList<>();
 		try {
 			System.out.println(jarLocation);
-			FileInputStream f = new FileInputStream(jarLocation);
-			JarInputStream j = new JarInputStream(f);
-			JarHandler handler = new JarHandler(j);
+			JarHandler handler;
+			if (reachable) {
+				// Only what's reachable from roots (or the manifest's Main-Class) is parsed
+				handler = JarHandler.reachable(map(jarLocation, inputs), roots, ForkJoinPool.commonPool(),
+						assets);
+			} else if (streaming) {
+				// Less memory: classes are re-read from the mapping for each pass, not kept parsed
+				handler = JarHandler.streaming(map(jarLocation, inputs), assets);
+			} else if (mapped || assets == JarHandler.AssetMode.EMBED) {
+				// Memory mapped, stored classes are parsed in place
+				handler = new JarHandler(map(jarLocation, inputs), ForkJoinPool.commonPool(), assets);
+			} else if (parallel) {
+				// Random access through the central directory, classes parsed on all cores. Every entry is read by
+				// the time the handler is made
+				try (ZipFile zip = new ZipFile(jarLocation)) {
+					handler = new JarHandler(zip, ForkJoinPool.commonPool());
+				}
+			} else {
+				try (JarInputStream j = new JarInputStream(new FileInputStream(jarLocation))) {
+					handler = new JarHandler(j);
+				}
+			}
+			handler.setPassManager(passes);
+			if (methodCache != null) {
+				// Which passes run is all that changes codegen so far
+				handler.setMethodCache(new MethodCache(methodCache, passes == null ? "passes=none" : passes.describe()));
+			}
+			for (String library : libraries) {
+				// Indexed once per jar version, later runs only map the index
+				handler.addLibraryJar(LibraryIndex.open(map(library, inputs), indexCache,
+						ForkJoinPool.commonPool()));
+			}
+			WasmModule module = handler.transpile();
+			Files.createDirectories(output.toAbsolutePath().getParent());
+			try (DataOutputStream out = new DataOutputStream(new FileOutputStream(output.toFile()))) {
+				module.write(out);
+			}
+			// Only filled in by transpile()
+			if (timePasses && passes != null) System.out.print(passes.report());
+			if (passReports && passes != null) System.out.print(passes.passReports());
+			if (passReports) System.out.print(handler.treeShakingReport());
 		} catch (FileNotFoundException e) {
 			// User error
 			throw new RuntimeException(e);
@@ -38,6 +142,29 @@ public class Main {
 			throw new RuntimeException(e);
 		} catch (Exception e) {
 			e.printStackTrace();
+		} finally {
+			for (Closeable input : inputs) {
+				try {
+					input.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	private static MappedJarReader map(String location, List<Closeable> inputs) throws IOException {
+		MappedJarReader jar = new MappedJarReader(Path.of(location));
+		inputs.add(jar);
+		return jar;
+	}
+
+	// The value following an option, a user error if there isn't one
+	private static String optionValue(Iterator<String> args, String option) {
+		if (!args.hasNext()) {
+			System.out.println("Missing value for " + option);
+			System.exit(1);
 		}
+		return args.next();
 	}
 }
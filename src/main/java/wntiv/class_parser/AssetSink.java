@@ -0,0 +1,17 @@
+package wntiv.class_parser;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
+
+// Where a jar's non-class entries end up. Both methods return false for a name that was already added,
+// the first one wins as on a classpath
+interface AssetSink extends Closeable {
+	boolean copyRaw(MappedJarReader source, MappedJarReader.Entry entry) throws IOException;
+
+	boolean addStored(String name, byte[] data, int dosTime) throws IOException;
+
+	void flush(@Nullable ForkJoinPool pool) throws IOException;
+}
@@ -0,0 +1,191 @@
+package wntiv.class_parser;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.CRC32;
+import java.util.zip.ZipException;
+
+// Minimal zip writer for assets. Entries from a MappedJarReader are copied byte for byte, still compressed
+// & with their original CRC, so nothing is ever inflated or deflated. Each entry's place in the file is
+// decided when it's added, which lets the copies themselves run in parallel as positional writes.
+// https://pkware.cachefly.net/webdocs/casestudies/APPNOTE.TXT
+public class AssetZipWriter implements AssetSink {
+	private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+	private static final int LOCAL_HEADER_SIZE = 30;
+	private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+	private static final int CENTRAL_HEADER_SIZE = 46;
+	private static final int END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06054b50;
+	private static final int END_OF_CENTRAL_DIRECTORY_SIZE = 22;
+	private static final int FLAG_DATA_DESCRIPTOR = 0x08; // Sizes & CRC follow the data, we always know them up front
+	private static final int FLAG_UTF8 = 0x800;
+
+	private record Header(String name, byte[] encodedName, int flags, int method, int dosTime, int crc,
+	                      int compressedSize, int size, int offset) {}
+	private record PendingCopy(long position, ByteBuffer data) {}
+
+	private final FileChannel channel;
+	private final List<Header> headers = new ArrayList<>();
+	private final Set<String> names = new HashSet<>();
+	private final List<PendingCopy> pending = new ArrayList<>();
+	private long position = 0;
+
+	public AssetZipWriter(Path path) throws IOException {
+		channel = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING);
+	}
+
+	/**
+	 * Copies entry verbatim. The data is only queued here, it's written by the next {@link #flush} (or
+	 * close()), so source must stay open until then.
+	 */
+	@Override
+	public synchronized boolean copyRaw(MappedJarReader source, MappedJarReader.Entry entry) throws IOException {
+		if (!names.add(entry.name())) return false;
+		ByteBuffer data = source.rawData(entry);
+		long dataStart = reserve(entry.name(), entry.flags(), entry.method(), entry.dosTime(), entry.crc(),
+				entry.compressedSize(), entry.size());
+		pending.add(new PendingCopy(dataStart, data));
+		return true;
+	}
+
+	/**
+	 * Adds data uncompressed, for sources that only hand out inflated bytes. Costs a CRC, never a deflate.
+	 */
+	@Override
+	public synchronized boolean addStored(String name, byte[] data, int dosTime) throws IOException {
+		if (!names.add(name)) return false;
+		CRC32 crc = new CRC32();
+		crc.update(data);
+		long dataStart = reserve(name, 0, MappedJarReader.STORED, dosTime, (int) crc.getValue(),
+				data.length, data.length);
+		writeFully(ByteBuffer.wrap(data), dataStart);
+		return true;
+	}
+
+	// Writes the local header for an entry and returns where its data goes
+	private long reserve(String name, int flags, int method, int dosTime, int crc, int compressedSize, int size)
+			throws IOException {
+		if (headers.size() == 0xFFFF || position + compressedSize >= 0xFFFFFFFFL)
+			throw new ZipException("Too many or too large assets, Zip64 is not supported");
+		byte[] encodedName = name.getBytes(StandardCharsets.UTF_8);
+		if (encodedName.length != name.length()) flags |= FLAG_UTF8;
+		Header header = new Header(name, encodedName, flags & ~FLAG_DATA_DESCRIPTOR, method, dosTime, crc,
+				compressedSize, size, (int) position);
+		headers.add(header);
+		ByteBuffer local = ByteBuffer.allocate(LOCAL_HEADER_SIZE + encodedName.length).order(ByteOrder.LITTLE_ENDIAN);
+		local.putInt(LOCAL_HEADER_SIGNATURE);
+		local.putShort((short) versionNeeded(method));
+		local.putShort((short) header.flags());
+		local.putShort((short) method);
+		local.putInt(dosTime);
+		local.putInt(crc);
+		local.putInt(compressedSize);
+		local.putInt(size);
+		local.putShort((short) encodedName.length);
+		local.putShort((short) 0); // extra field length
+		local.put(encodedName);
+		writeFully(local.flip(), position);
+		long dataStart = position + local.limit();
+		position = dataStart + compressedSize;
+		return dataStart;
+	}
+
+	// MS-DOS date & time as stored in zip headers, from ZipEntry.getTime() (-1 if unknown)
+	public static int dosTime(long javaTime) {
+		if (javaTime == -1) return 0x00210000; // 1980-01-01 00:00
+		LocalDateTime time = LocalDateTime.ofInstant(Instant.ofEpochMilli(javaTime), ZoneId.systemDefault());
+		if (time.getYear() < 1980) return 0x00210000;
+		return (time.getYear() - 1980) << 25 | time.getMonthValue() << 21 | time.getDayOfMonth() << 16
+				| time.getHour() << 11 | time.getMinute() << 5 | time.getSecond() >> 1;
+	}
+
+	private static int versionNeeded(int method) {
+		return method == MappedJarReader.DEFLATED ? 20 : 10;
+	}
+
+	/**
+	 * Writes out all queued copies, on pool if given. Ordering doesn't matter, every copy already has its
+	 * own region of the file.
+	 */
+	@Override
+	public void flush(@Nullable ForkJoinPool pool) throws IOException {
+		List<PendingCopy> copies;
+		synchronized (this) {
+			copies = new ArrayList<>(pending);
+			pending.clear();
+		}
+		if (pool == null) {
+			for (PendingCopy copy : copies) writeFully(copy.data(), copy.position());
+			return;
+		}
+		try {
+			pool.submit(() -> copies.parallelStream().forEach(copy -> {
+				try {
+					writeFully(copy.data(), copy.position());
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			})).join();
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+	}
+
+	private void writeFully(ByteBuffer data, long at) throws IOException {
+		data = data.duplicate();
+		while (data.hasRemaining()) at += channel.write(data, at);
+	}
+
+	// Writes anything still queued, then the central directory
+	@Override
+	public synchronized void close() throws IOException {
+		flush(null);
+		int directorySize = 0;
+		for (Header header : headers) directorySize += CENTRAL_HEADER_SIZE + header.encodedName().length;
+		ByteBuffer directory = ByteBuffer.allocate(directorySize + END_OF_CENTRAL_DIRECTORY_SIZE)
+				.order(ByteOrder.LITTLE_ENDIAN);
+		for (Header header : headers) {
+			directory.putInt(CENTRAL_HEADER_SIGNATURE);
+			directory.putShort((short) 20); // version made by: MS-DOS, 2.0
+			directory.putShort((short) versionNeeded(header.method()));
+			directory.putShort((short) header.flags());
+			directory.putShort((short) header.method());
+			directory.putInt(header.dosTime());
+			directory.putInt(header.crc());
+			directory.putInt(header.compressedSize());
+			directory.putInt(header.size());
+			directory.putShort((short) header.encodedName().length);
+			directory.putShort((short) 0); // extra field length
+			directory.putShort((short) 0); // comment length
+			directory.putShort((short) 0); // disk number start
+			directory.putShort((short) 0); // internal attributes
+			directory.putInt(0); // external attributes
+			directory.putInt(header.offset());
+			directory.put(header.encodedName());
+		}
+		directory.putInt(END_OF_CENTRAL_DIRECTORY_SIGNATURE);
+		directory.putShort((short) 0); // this disk
+		directory.putShort((short) 0); // disk with central directory
+		directory.putShort((short) headers.size());
+		directory.putShort((short) headers.size());
+		directory.putInt(directorySize);
+		directory.putInt((int) position);
+		directory.putShort((short) 0); // comment length
+		writeFully(directory.flip(), position);
+		channel.truncate(position + directory.limit());
+		channel.close();
+	}
+}
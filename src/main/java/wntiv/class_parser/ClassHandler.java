@@ -8,8 +8,10 @@ import wntiv.wasm_output.WasmModule;
 import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.function.Predicate;
 
 public class ClassHandler {
 	private static String hexByte(byte value) {
@@ -17,6 +19,20 @@ public class ClassHandler {
 		int unsigned = Byte.toUnsignedInt(value);
 		return alphabet[unsigned/16] + alphabet[unsigned%16];
 	}
+	// Class files are big endian, same as ByteBuffer's default order
+	static int readUnsignedByte(ByteBuffer in) {
+		return Byte.toUnsignedInt(in.get());
+	}
+	static int readUnsignedShort(ByteBuffer in) {
+		return Short.toUnsignedInt(in.getShort());
+	}
+	static byte[] readNBytes(ByteBuffer in, int length) {
+		byte[] result = new byte[length];
+		in.get(result);
+		return result;
+	}
+	// Whole class file, shared with the constant pool rather than copied
+	private final ByteBuffer classFile;
 	public final byte[] magic;
 	public final @Unsigned short minor_version;
 	public final @Unsigned short major_version;
@@ -64,33 +80,38 @@ public class ClassHandler {
 	public final List<MethodInfo> methods = new ArrayList<>();
 	public final Attributes attributes;
 
-	public ClassHandler(DataInputStream in) throws IOException {
-		magic = in.readNBytes(4);
-		minor_version = in.readShort();
-		major_version = in.readShort();
-		int constant_pool_count = in.readUnsignedShort();
+	/**
+	 * @param in the whole class file, read from its current position. May be a slice straight out of a
+	 *           memory mapped jar, nothing is copied except the pieces we keep (strings, code, ...)
+	 */
+	public ClassHandler(ByteBuffer in) {
+		classFile = in.slice();
+		magic = readNBytes(in, 4);
+		minor_version = in.getShort();
+		major_version = in.getShort();
+		int constant_pool_count = readUnsignedShort(in);
 		constant_pool = new ConstantPool(in, constant_pool_count);
-		access_flags = in.readShort();
-		if(!(constant_pool.get(in.readUnsignedShort()) instanceof ConstantClassInfo this_cls))
+		access_flags = in.getShort();
+		if(!(constant_pool.get(readUnsignedShort(in)) instanceof ConstantClassInfo this_cls))
 			throw new RuntimeException("Invalid this_class");
 		this_class = this_cls;
-		int super_class_index = in.readUnsignedShort();
+		int super_class_index = readUnsignedShort(in);
 		if (super_class_index == 0) {
 			super_class = null;
 		} else if(constant_pool.get(super_class_index) instanceof ConstantClassInfo super_cls) {
 			super_class = super_cls;
 		} else throw new RuntimeException("Invalid super_class");
-		int interfaces_count = in.readUnsignedShort();
+		int interfaces_count = readUnsignedShort(in);
 		while (interfaces_count --> 0) {
-			if(!(constant_pool.get(in.readUnsignedShort()) instanceof ConstantClassInfo interface_cls))
+			if(!(constant_pool.get(readUnsignedShort(in)) instanceof ConstantClassInfo interface_cls))
 				throw new RuntimeException("Invalid interface");
 			interfaces.add(interface_cls);
 		}
-		int fields_count = in.readUnsignedShort();
+		int fields_count = readUnsignedShort(in);
 		while(fields_count --> 0) {
 			fields.add(FieldInfo.readFrom(in, constant_pool));
 		}
-		int methods_count = in.readUnsignedShort();
+		int methods_count = readUnsignedShort(in);
 		while(methods_count --> 0) {
 			methods.add(MethodInfo.readFrom(this, in, constant_pool));
 		}
@@ -131,145 +152,209 @@ public class ClassHandler {
 		return result.toString().replaceAll("\\[[\r\n\t ]*]", "[]");
 	}
 
-	public Map<ConstantNameAndTypeInfo, IntermediaryMethod> prepareFunctions(WasmModule module, JarHandler binding) {
-		Map<ConstantNameAndTypeInfo, IntermediaryMethod> result = new HashMap<>();
+	public ByteBuffer getClassFile() {
+		return classFile.asReadOnlyBuffer();
+	}
+
+	public Map<ConstantNameAndTypeInfo, IntermediaryMethod> prepareFunctions(WasmModule module, JarHandler binding,
+	                                                                        Predicate<MethodInfo> include) {
+		// Declaration order, function indices are handed out in this order
+		Map<ConstantNameAndTypeInfo, IntermediaryMethod> result = new LinkedHashMap<>();
 		for (MethodInfo method : methods) {
+			if (!method.hasCode()) continue; // Abstract & native methods get no function, nothing calls them directly
+			if (!include.test(method)) continue;
 			result.put(method.getNameAndType(), method.prepareFunction(module, binding));
 		}
 		return result;
 	}
 
+	// Lazy: construction only scans the pool to find where each slot starts, entries are decoded
+	// (and cached) on first get(). Classes that never get translated cost a scan, not an allocation per slot
 	public static class ConstantPool {
-		private final DataInputStream data;
-		private final List<ConstantPoolItem> pool = new ArrayList<>();
-		private final List<ConstantClassInfo> dependencies = new ArrayList<>();
+		private final ByteBuffer data;
+		private final int[] offsets; // Of each slot's payload, i.e. just past the tag
+		private final byte[] tags; // 0 for slot 0 and the unusable slot following a long/double
+		private final ConstantPoolItem[] items;
+		private @Nullable List<ConstantClassInfo> dependencies = null;
 
-		ConstantPool(DataInputStream in, int len) throws IOException {
+		ConstantPool(ByteBuffer in, int len) {
 			data = in;
-			while(pool.size() < len - 1) {
-				ConstantPoolItem.readFrom(data, this);
+			offsets = new int[len];
+			tags = new byte[len];
+			items = new ConstantPoolItem[len];
+			for (int i = 1; i < len; i++) {
+				byte tag = in.get();
+				tags[i] = tag;
+				offsets[i] = in.position();
+				in.position(in.position() + ConstantPoolItem.payloadSize(tag, in));
+				// Long & Double take up two slots
+				if (tag == ConstantLongInfo.TYPE || tag == ConstantDoubleInfo.TYPE) i++;
 			}
 		}
 
-		public ConstantPoolItem await(int index) throws IOException {
-			while(pool.size() < index) {
-				ConstantPoolItem.readFrom(data, this);
-			}
-			return get(index);
-		}
 		public ConstantPoolItem get(int index) {
-			return pool.get(index - 1);
+			// Racing threads may both decode a slot, but items are immutable so either result is fine
+			ConstantPoolItem item = items[index];
+			if (item == null) {
+				if (tags[index] == 0) throw new IllegalArgumentException("Invalid constant pool index " + index);
+				item = ConstantPoolItem.readFrom(tags[index], data.duplicate().position(offsets[index]), this);
+				items[index] = item;
+			}
+			return item;
 		}
 
-		public void add(ConstantPoolItem item) {
-			pool.add(item);
-		}
-		public void add(ConstantClassInfo item) {
-			dependencies.add(item);
-			pool.add(item);
+		public int size() {
+			return tags.length;
 		}
+
 		public List<ConstantClassInfo> getDependencies() {
+			if (dependencies == null) {
+				List<ConstantClassInfo> result = new ArrayList<>();
+				for (int i = 1; i < tags.length; i++) {
+					if (tags[i] == ConstantClassInfo.TYPE) result.add((ConstantClassInfo) get(i));
+				}
+				dependencies = result;
+			}
 			return dependencies;
 		}
 
 		@Override
 		public String toString() {
 			StringBuilder result = new StringBuilder();
-			for (ConstantPoolItem elem : pool) {
+			for (int i = 1; i < tags.length; i++) {
+				if (tags[i] == 0) continue;
 				if(result.isEmpty()) result.append("[");
 				else result.append(",");
 				result.append("\n\t");
-				result.append(elem);
+				result.append(get(i));
 			}
 			result.append("\n]");
 			return result.toString();
 		}
 	}
 
+	// Attributes are only sliced out of the class at load time, each one is decoded the first time
+	// its getter is called. Methods that are never translated never decode their Code/StackMapTable,
+	// and debug info & annotations are never touched unless asked for
 	static class Attributes {
-		private final Map<String, byte[]> unknownAttributes = new HashMap<>();
-		private final List<String> availableAttributes = new ArrayList<>();
-		public @Nullable ConstantValueAttribute constantValue = null;
-		public @Nullable CodeAttribute code = null;
-		public @Nullable StackMapTableAttribute stackMapTable = null;
-		public @Nullable ExceptionsAttribute exceptions = null;
-		public @Nullable InnerClassesAttribute innerClasses = null;
-		public @Nullable EnclosingMethodAttribute enclosingMethod = null;
-		public boolean synthetic = false;
-		public @Nullable SignatureAttribute signature = null;
-		public @Nullable SourceFileAttribute sourceFile = null;
-		public @Nullable LineNumberTableAttribute lineNumberTable = null;
-		public @Nullable LocalVariableTableAttribute localVariableTable = null;
-		public @Nullable LocalVariableTypeTableAttribute localVariableTypeTable = null;
-		public boolean deprecated = false;
-		public @Nullable RuntimeVisibleAnnotationsAttribute runtimeVisibleAnnotations = null;
-		public @Nullable RuntimeInvisibleAnnotationsAttribute runtimeInvisibleAnnotations = null;
-		public @Nullable RuntimeVisibleParameterAnnotationsAttribute runtimeVisibleParameterAnnotations = null;
-		public @Nullable RuntimeInvisibleParameterAnnotationsAttribute runtimeInvisibleParameterAnnotations = null;
-		public @Nullable AnnotationDefaultAttribute annotationDefault = null;
-		public @Nullable BootstrapMethodsAttribute bootstrapMethods = null;
-		Attributes(DataInputStream in, ConstantPool constantPool) throws IOException {
-			int attributes_count = in.readUnsignedShort();
+		private final Map<String, ByteBuffer> rawAttributes = new LinkedHashMap<>();
+		private final Map<String, Object> decoded = new HashMap<>();
+		private final ConstantPool constantPool;
+		Attributes(ByteBuffer in, ConstantPool constantPool) {
+			this.constantPool = constantPool;
+			int attributes_count = readUnsignedShort(in);
 			while(attributes_count --> 0) {
-				if(!(constantPool.get(in.readUnsignedShort()) instanceof ConstantUtf8Info attr_name))
+				if(!(constantPool.get(readUnsignedShort(in)) instanceof ConstantUtf8Info attr_name))
 					throw new RuntimeException("Invalid attribute name");
-				availableAttributes.add(attr_name.value);
-				long length = Integer.toUnsignedLong(in.readInt());
-				switch (attr_name.value) {
-					case ConstantValueAttribute.ATTR_NAME -> constantValue = new ConstantValueAttribute(in, constantPool, length);
-					case CodeAttribute.ATTR_NAME -> code = new CodeAttribute(in, constantPool, length);
-					case StackMapTableAttribute.ATTR_NAME -> stackMapTable = new StackMapTableAttribute(in, constantPool, length);
-					case ExceptionsAttribute.ATTR_NAME -> exceptions = new ExceptionsAttribute(in, constantPool, length);
-					case InnerClassesAttribute.ATTR_NAME -> innerClasses = new InnerClassesAttribute(in, constantPool, length);
-					case EnclosingMethodAttribute.ATTR_NAME -> enclosingMethod = new EnclosingMethodAttribute(in, constantPool, length);
-					case "Synthetic" -> synthetic = true;
-					case SignatureAttribute.ATTR_NAME -> signature = new SignatureAttribute(in, constantPool, length);
-					case SourceFileAttribute.ATTR_NAME -> sourceFile = new SourceFileAttribute(in, constantPool, length);
-					// TODO: SourceDebugExtension
-					case LineNumberTableAttribute.ATTR_NAME -> lineNumberTable = new LineNumberTableAttribute(in, constantPool, length);
-					case LocalVariableTableAttribute.ATTR_NAME -> localVariableTable = new LocalVariableTableAttribute(in, constantPool, length);
-					case LocalVariableTypeTableAttribute.ATTR_NAME -> localVariableTypeTable = new LocalVariableTypeTableAttribute(in, constantPool, length);
-					case "Deprecated" -> deprecated = true;
-					case RuntimeVisibleAnnotationsAttribute.ATTR_NAME -> runtimeVisibleAnnotations = new RuntimeVisibleAnnotationsAttribute(in, constantPool, length);
-					case RuntimeInvisibleAnnotationsAttribute.ATTR_NAME -> runtimeInvisibleAnnotations = new RuntimeInvisibleAnnotationsAttribute(in, constantPool, length);
-					case RuntimeVisibleParameterAnnotationsAttribute.ATTR_NAME -> runtimeVisibleParameterAnnotations = new RuntimeVisibleParameterAnnotationsAttribute(in, constantPool, length);
-					case RuntimeInvisibleParameterAnnotationsAttribute.ATTR_NAME -> runtimeInvisibleParameterAnnotations = new RuntimeInvisibleParameterAnnotationsAttribute(in, constantPool, length);
-					case AnnotationDefaultAttribute.ATTR_NAME -> annotationDefault = new AnnotationDefaultAttribute(in, constantPool, length);
-					case BootstrapMethodsAttribute.ATTR_NAME -> bootstrapMethods = new BootstrapMethodsAttribute(in, constantPool, length);
-					default -> unknownAttributes.put(attr_name.value, in.readNBytes((int) length)); // TODO: dangerous!!
-				}
+				// TODO: attributes longer than 2GB
+				int length = in.getInt();
+				rawAttributes.put(attr_name.value, in.slice(in.position(), length));
+				in.position(in.position() + length);
 			}
 		}
 
+		interface AttributeReader<T extends AttributeValue> {
+			T read(ByteBuffer in, ConstantPool constantPool, long length);
+		}
+		@SuppressWarnings("unchecked")
+		private <T extends AttributeValue> @Nullable T decode(String name, AttributeReader<T> reader) {
+			ByteBuffer raw = rawAttributes.get(name);
+			if (raw == null) return null;
+			return (T) decoded.computeIfAbsent(name,
+					x -> reader.read(raw.duplicate(), constantPool, raw.remaining()));
+		}
+
+		public boolean has(String name) {
+			return rawAttributes.containsKey(name);
+		}
+		public @Nullable ConstantValueAttribute getConstantValue() {
+			return decode(ConstantValueAttribute.ATTR_NAME, ConstantValueAttribute::new);
+		}
+		public @Nullable CodeAttribute getCode() {
+			return decode(CodeAttribute.ATTR_NAME, CodeAttribute::new);
+		}
+		public @Nullable StackMapTableAttribute getStackMapTable() {
+			return decode(StackMapTableAttribute.ATTR_NAME, StackMapTableAttribute::new);
+		}
+		public @Nullable ExceptionsAttribute getExceptions() {
+			return decode(ExceptionsAttribute.ATTR_NAME, ExceptionsAttribute::new);
+		}
+		public @Nullable InnerClassesAttribute getInnerClasses() {
+			return decode(InnerClassesAttribute.ATTR_NAME, InnerClassesAttribute::new);
+		}
+		public @Nullable EnclosingMethodAttribute getEnclosingMethod() {
+			return decode(EnclosingMethodAttribute.ATTR_NAME, EnclosingMethodAttribute::new);
+		}
+		public boolean isSynthetic() {
+			return has("Synthetic");
+		}
+		public @Nullable SignatureAttribute getSignature() {
+			return decode(SignatureAttribute.ATTR_NAME, SignatureAttribute::new);
+		}
+		public @Nullable SourceFileAttribute getSourceFile() {
+			return decode(SourceFileAttribute.ATTR_NAME, SourceFileAttribute::new);
+		}
+		// TODO: SourceDebugExtension
+		public @Nullable LineNumberTableAttribute getLineNumberTable() {
+			return decode(LineNumberTableAttribute.ATTR_NAME, LineNumberTableAttribute::new);
+		}
+		public @Nullable LocalVariableTableAttribute getLocalVariableTable() {
+			return decode(LocalVariableTableAttribute.ATTR_NAME, LocalVariableTableAttribute::new);
+		}
+		public @Nullable LocalVariableTypeTableAttribute getLocalVariableTypeTable() {
+			return decode(LocalVariableTypeTableAttribute.ATTR_NAME, LocalVariableTypeTableAttribute::new);
+		}
+		public boolean isDeprecated() {
+			return has("Deprecated");
+		}
+		public @Nullable RuntimeVisibleAnnotationsAttribute getRuntimeVisibleAnnotations() {
+			return decode(RuntimeVisibleAnnotationsAttribute.ATTR_NAME, RuntimeVisibleAnnotationsAttribute::new);
+		}
+		public @Nullable RuntimeInvisibleAnnotationsAttribute getRuntimeInvisibleAnnotations() {
+			return decode(RuntimeInvisibleAnnotationsAttribute.ATTR_NAME, RuntimeInvisibleAnnotationsAttribute::new);
+		}
+		public @Nullable RuntimeVisibleParameterAnnotationsAttribute getRuntimeVisibleParameterAnnotations() {
+			return decode(RuntimeVisibleParameterAnnotationsAttribute.ATTR_NAME, RuntimeVisibleParameterAnnotationsAttribute::new);
+		}
+		public @Nullable RuntimeInvisibleParameterAnnotationsAttribute getRuntimeInvisibleParameterAnnotations() {
+			return decode(RuntimeInvisibleParameterAnnotationsAttribute.ATTR_NAME, RuntimeInvisibleParameterAnnotationsAttribute::new);
+		}
+		public @Nullable AnnotationDefaultAttribute getAnnotationDefault() {
+			return decode(AnnotationDefaultAttribute.ATTR_NAME, AnnotationDefaultAttribute::new);
+		}
+		public @Nullable BootstrapMethodsAttribute getBootstrapMethods() {
+			return decode(BootstrapMethodsAttribute.ATTR_NAME, BootstrapMethodsAttribute::new);
+		}
+
 		private Object getAttributeValue(String name) {
 			return switch (name) {
-				case ConstantValueAttribute.ATTR_NAME -> constantValue;
-				case CodeAttribute.ATTR_NAME -> code;
-				case StackMapTableAttribute.ATTR_NAME -> stackMapTable;
-				case ExceptionsAttribute.ATTR_NAME -> exceptions;
-				case InnerClassesAttribute.ATTR_NAME -> innerClasses;
-				case EnclosingMethodAttribute.ATTR_NAME -> enclosingMethod;
-				case "Synthetic" -> synthetic;
-				case SignatureAttribute.ATTR_NAME -> signature;
-				case SourceFileAttribute.ATTR_NAME -> sourceFile;
-				case LineNumberTableAttribute.ATTR_NAME -> lineNumberTable;
-				case LocalVariableTableAttribute.ATTR_NAME -> localVariableTable;
-				case LocalVariableTypeTableAttribute.ATTR_NAME -> localVariableTypeTable;
-				case "Deprecated" -> deprecated = true;
-				case RuntimeVisibleAnnotationsAttribute.ATTR_NAME -> runtimeVisibleAnnotations;
-				case RuntimeInvisibleAnnotationsAttribute.ATTR_NAME -> runtimeInvisibleAnnotations;
-				case RuntimeVisibleParameterAnnotationsAttribute.ATTR_NAME -> runtimeVisibleParameterAnnotations;
-				case RuntimeInvisibleParameterAnnotationsAttribute.ATTR_NAME -> runtimeInvisibleParameterAnnotations;
-				case AnnotationDefaultAttribute.ATTR_NAME -> annotationDefault;
-				case BootstrapMethodsAttribute.ATTR_NAME -> bootstrapMethods;
-				default -> unknownAttributes.get(name); // TODO: dangerous!!
+				case ConstantValueAttribute.ATTR_NAME -> getConstantValue();
+				case CodeAttribute.ATTR_NAME -> getCode();
+				case StackMapTableAttribute.ATTR_NAME -> getStackMapTable();
+				case ExceptionsAttribute.ATTR_NAME -> getExceptions();
+				case InnerClassesAttribute.ATTR_NAME -> getInnerClasses();
+				case EnclosingMethodAttribute.ATTR_NAME -> getEnclosingMethod();
+				case "Synthetic" -> isSynthetic();
+				case SignatureAttribute.ATTR_NAME -> getSignature();
+				case SourceFileAttribute.ATTR_NAME -> getSourceFile();
+				case LineNumberTableAttribute.ATTR_NAME -> getLineNumberTable();
+				case LocalVariableTableAttribute.ATTR_NAME -> getLocalVariableTable();
+				case LocalVariableTypeTableAttribute.ATTR_NAME -> getLocalVariableTypeTable();
+				case "Deprecated" -> isDeprecated();
+				case RuntimeVisibleAnnotationsAttribute.ATTR_NAME -> getRuntimeVisibleAnnotations();
+				case RuntimeInvisibleAnnotationsAttribute.ATTR_NAME -> getRuntimeInvisibleAnnotations();
+				case RuntimeVisibleParameterAnnotationsAttribute.ATTR_NAME -> getRuntimeVisibleParameterAnnotations();
+				case RuntimeInvisibleParameterAnnotationsAttribute.ATTR_NAME -> getRuntimeInvisibleParameterAnnotations();
+				case AnnotationDefaultAttribute.ATTR_NAME -> getAnnotationDefault();
+				case BootstrapMethodsAttribute.ATTR_NAME -> getBootstrapMethods();
+				default -> readNBytes(rawAttributes.get(name).duplicate(), rawAttributes.get(name).remaining());
 			};
 		}
 
 		@Override
 		public String toString() {
 			StringBuilder result = new StringBuilder();
-			for (String attribute : availableAttributes) {
+			for (String attribute : rawAttributes.keySet()) {
 				if (result.isEmpty()) result.append("{\n\t");
 				else result.append(",\n\t");
 				result.append(attribute);
@@ -285,14 +370,14 @@ public class ClassHandler {
 			@Override
 			String toString();
 			// Maybe reinstate this as public static factory method?
-//			AttributeValue(DataInputStream in, ConstantPool constantPool, long length) throws IOException {}
+//			AttributeValue(ByteBuffer in, ConstantPool constantPool, long length) {}
 		}
 		static class ConstantValueAttribute implements AttributeValue {
 			public static final String ATTR_NAME = "ConstantValue";
 			public final ConstantPoolItem value;
-			ConstantValueAttribute(DataInputStream in, ConstantPool constantPool, long length) throws IOException {
+			ConstantValueAttribute(ByteBuffer in, ConstantPool constantPool, long length) {
 				assert length == Short.BYTES;
-				value = constantPool.get(in.readUnsignedShort());
+				value = constantPool.get(readUnsignedShort(in));
 				assert value instanceof ConstantStringInfo
 					|| value instanceof ConstantIntegerInfo
 					|| value instanceof ConstantFloatInfo
@@ -315,11 +400,11 @@ public class ClassHandler {
 				public final @Unsigned short end_pc;
 				public final @Unsigned short handler_pc;
 				public final @Nullable ConstantClassInfo catch_type;
-				ExceptionHandle(DataInputStream in, ConstantPool constantPool) throws IOException {
-					start_pc = in.readShort();
-					end_pc = in.readShort();
-					handler_pc = in.readShort();
-					int catch_type_index = in.readUnsignedShort();
+				ExceptionHandle(ByteBuffer in, ConstantPool constantPool) {
+					start_pc = in.getShort();
+					end_pc = in.getShort();
+					handler_pc = in.getShort();
+					int catch_type_index = readUnsignedShort(in);
 					if (catch_type_index == 0) {
 						catch_type = null;
 					} else if (constantPool.get(catch_type_index) instanceof ConstantClassInfo cls) {
@@ -336,12 +421,12 @@ public class ClassHandler {
 			public final List<ExceptionHandle> exception_table;
 			public final Attributes attributes;
 			public final ConstantPool pool;
-			CodeAttribute(DataInputStream in, ConstantPool constantPool, long length) throws IOException {
-				max_stack = in.readShort();
-				max_locals = in.readShort();
+			CodeAttribute(ByteBuffer in, ConstantPool constantPool, long length) {
+				max_stack = in.getShort();
+				max_locals = in.getShort();
 				// TODO: read longer byte[]
-				code = in.readNBytes((int) Integer.toUnsignedLong(in.readInt()));
-				int exception_table_length = in.readUnsignedShort();
+				code = readNBytes(in, (int) Integer.toUnsignedLong(in.getInt()));
+				int exception_table_length = readUnsignedShort(in);
 				exception_table = new ArrayList<>(exception_table_length);
 				while (exception_table_length --> 0) {
 					exception_table.add(new ExceptionHandle(in, constantPool));
@@ -629,8 +714,8 @@ public class ClassHandler {
 		}
 		static class StackMapTableAttribute extends ArrayList<StackMapTableAttribute.StackMapFrame> implements AttributeValue {
 			public static final String ATTR_NAME = "StackMapTable";
-			StackMapTableAttribute(DataInputStream in, ConstantPool constantPool, long length) throws IOException {
-				int num_entries = in.readUnsignedShort();
+			StackMapTableAttribute(ByteBuffer in, ConstantPool constantPool, long length) {
+				int num_entries = readUnsignedShort(in);
 				ensureCapacity(num_entries); // Wish this could be super()
 				List<VerificationTypeInfo> previousLocals = List.of();
 				while (num_entries --> 0) {
@@ -656,15 +741,15 @@ public class ClassHandler {
 				public final @Unsigned byte tag;
 				public final @Nullable ConstantClassInfo type;
 				public final @Unsigned short offset;
-				VerificationTypeInfo(DataInputStream in, ConstantPool constantPool) throws IOException {
-					tag = in.readByte();
+				VerificationTypeInfo(ByteBuffer in, ConstantPool constantPool) {
+					tag = in.get();
 					if (tag == ITEM_Object) {
-						if(!(constantPool.get(in.readUnsignedShort()) instanceof ConstantClassInfo cls))
+						if(!(constantPool.get(readUnsignedShort(in)) instanceof ConstantClassInfo cls))
 							throw new RuntimeException("Invalid object type");
 						type = cls;
 					} else type = null;
 					if (tag ==  ITEM_Uninitialized) {
-						offset = in.readShort();
+						offset = in.getShort();
 					} else offset = -1;
 				}
 
@@ -689,8 +774,8 @@ public class ClassHandler {
 				public final @Unsigned short offset_delta;
 				public final List<VerificationTypeInfo> locals;
 				public final List<VerificationTypeInfo> stack;
-				public StackMapFrame(DataInputStream in, ConstantPool constantPool,
-				                     List<VerificationTypeInfo> previousLocals) throws IOException {
+				public StackMapFrame(ByteBuffer in, ConstantPool constantPool,
+				                     List<VerificationTypeInfo> previousLocals) {
 					// TYPES:                       offset_delta     locals            stack
 					// 0-63:            same_frame: (ty)             prev              [0]
 					// 64-127: same_locals_1_stack: (ty - 64)        prev              [1]
@@ -700,14 +785,14 @@ public class ClassHandler {
 					// 251:          same_frame_ex: offset_delta     prev              [0]
 					// 252-254:       append_frame: offset_delta     prev + [ty - 251] [0]
 					// 255:             full_frame: offset_delta <n> locals[n]     <m> [m]
-					frame_type = in.readByte();
+					frame_type = in.get();
 					if (frame_type >= 0 /* 0 - 127 */) {
 						offset_delta = (short) (frame_type % 64);
 					} else {
-						offset_delta = in.readShort();
+						offset_delta = in.getShort();
 					}
 					if (frame_type == (byte) 255) {
-						int number_of_locals = in.readUnsignedShort();
+						int number_of_locals = readUnsignedShort(in);
 						locals = new ArrayList<>(number_of_locals);
 						while (number_of_locals --> 0) {
 							locals.add(new VerificationTypeInfo(in, constantPool));
@@ -728,7 +813,7 @@ public class ClassHandler {
 						locals = List.copyOf(previousLocals);
 					}
 					if (frame_type == (byte) 255) {
-						int number_of_stack_items = in.readUnsignedShort();
+						int number_of_stack_items = readUnsignedShort(in);
 						stack = new ArrayList<>(number_of_stack_items);
 						while (number_of_stack_items --> 0) {
 							stack.add(new VerificationTypeInfo(in, constantPool));
@@ -752,11 +837,11 @@ public class ClassHandler {
 		}
 		static class ExceptionsAttribute extends ArrayList<ConstantClassInfo> implements AttributeValue {
 			public static final String ATTR_NAME = "Exceptions";
-			ExceptionsAttribute(DataInputStream in, ConstantPool constantPool, long length) throws IOException {
-				int numEntries = in.readUnsignedShort();
+			ExceptionsAttribute(ByteBuffer in, ConstantPool constantPool, long length) {
+				int numEntries = readUnsignedShort(in);
 				assert numEntries == length * Short.BYTES;
 				while (numEntries --> 0) {
-					if(!(constantPool.get(in.readUnsignedShort()) instanceof ConstantClassInfo cls))
+					if(!(constantPool.get(readUnsignedShort(in)) instanceof ConstantClassInfo cls))
 						throw new RuntimeException("Invalid exception class");
 					add(cls);
 				}
@@ -781,26 +866,26 @@ public class ClassHandler {
 				public final @Nullable String innerName;
 				public final @Unsigned short access_flags;
 
-				InnerClass(DataInputStream in, ConstantPool constantPool) throws IOException {
-					if(!(constantPool.get(in.readUnsignedShort()) instanceof ConstantClassInfo inner_class))
+				InnerClass(ByteBuffer in, ConstantPool constantPool) {
+					if(!(constantPool.get(readUnsignedShort(in)) instanceof ConstantClassInfo inner_class))
 						throw new RuntimeException("Invalid inner class");
 					innerClass = inner_class;
 
-					int outer_class_index = in.readUnsignedShort();
+					int outer_class_index = readUnsignedShort(in);
 					if(outer_class_index == 0) {
 						outerClass = null;
 					} else if(constantPool.get(outer_class_index) instanceof ConstantClassInfo outer_class) {
 						outerClass = outer_class;
 					} else throw new RuntimeException("Invalid outer class");
 
-					int inner_name_index = in.readUnsignedShort();
+					int inner_name_index = readUnsignedShort(in);
 					if(inner_name_index == 0) {
 						innerName = null;
 					} else if(constantPool.get(inner_name_index) instanceof ConstantUtf8Info name) {
 						innerName = name.value;
 					} else throw new RuntimeException("Invalid inner class name");
 
-					access_flags = in.readShort();
+					access_flags = in.getShort();
 				}
 
 				@Override
@@ -819,8 +904,8 @@ public class ClassHandler {
 					return result.toString();
 				}
 			}
-			InnerClassesAttribute(DataInputStream in, ConstantPool constantPool, long length) throws IOException {
-				int num_entries = in.readUnsignedShort();
+			InnerClassesAttribute(ByteBuffer in, ConstantPool constantPool, long length) {
+				int num_entries = readUnsignedShort(in);
 				assert length == Short.BYTES + num_entries * (Short.BYTES * 4);
 				while (num_entries --> 0) {
 					add(new InnerClass(in, constantPool));
@@ -840,13 +925,13 @@ public class ClassHandler {
 			public static final String ATTR_NAME = "EnclosingMethod";
 			public final ConstantClassInfo enclosingClass;
 			public final @Nullable ConstantNameAndTypeInfo enclosingMethod;
-			EnclosingMethodAttribute(DataInputStream in, ConstantPool constantPool, long length) throws IOException {
+			EnclosingMethodAttribute(ByteBuffer in, ConstantPool constantPool, long length) {
 				assert length == Short.BYTES * 2;
-				if(!(constantPool.get(in.readUnsignedShort()) instanceof ConstantClassInfo cls))
+				if(!(constantPool.get(readUnsignedShort(in)) instanceof ConstantClassInfo cls))
 					throw new RuntimeException("Invalid enclosing class");
 				enclosingClass = cls;
 
-				int method_index = in.readUnsignedShort();
+				int method_index = readUnsignedShort(in);
 				if(method_index == 0) {
 					enclosingMethod = null;
 				} else if(constantPool.get(method_index) instanceof ConstantNameAndTypeInfo outer_class) {
@@ -868,9 +953,9 @@ public class ClassHandler {
 		static class SignatureAttribute implements AttributeValue {
 			public static final String ATTR_NAME = "Signature";
 			public final String value;
-			SignatureAttribute(DataInputStream in, ConstantPool constantPool, long length) throws IOException {
+			SignatureAttribute(ByteBuffer in, ConstantPool constantPool, long length) {
 				assert length == Short.BYTES;
-				if(!(constantPool.get(in.readUnsignedShort()) instanceof ConstantUtf8Info signature))
+				if(!(constantPool.get(readUnsignedShort(in)) instanceof ConstantUtf8Info signature))
 					throw new RuntimeException("Invalid enclosing class");
 				value = signature.value;
 			}
@@ -883,9 +968,9 @@ public class ClassHandler {
 		static class SourceFileAttribute implements AttributeValue {
 			public static final String ATTR_NAME = "SourceFile";
 			public final String value;
-			SourceFileAttribute(DataInputStream in, ConstantPool constantPool, long length) throws IOException {
+			SourceFileAttribute(ByteBuffer in, ConstantPool constantPool, long length) {
 				assert length == Short.BYTES;
-				if(!(constantPool.get(in.readUnsignedShort()) instanceof ConstantUtf8Info source_file))
+				if(!(constantPool.get(readUnsignedShort(in)) instanceof ConstantUtf8Info source_file))
 					throw new RuntimeException("Invalid enclosing class");
 				value = source_file.value;
 			}
@@ -897,8 +982,8 @@ public class ClassHandler {
 		}
 		static class LineNumberTableAttribute extends ArrayList<LineNumberTableAttribute.LineNumber> implements AttributeValue {
 			public static final String ATTR_NAME = "LineNumberTable";
-			LineNumberTableAttribute(DataInputStream in, ConstantPool constantPool, long length) throws IOException {
-				int line_number_table_length = in.readUnsignedShort();
+			LineNumberTableAttribute(ByteBuffer in, ConstantPool constantPool, long length) {
+				int line_number_table_length = readUnsignedShort(in);
 				ensureCapacity(line_number_table_length);
 				assert length == Short.BYTES + line_number_table_length + (2 * Short.BYTES);
 				while (line_number_table_length --> 0) {
@@ -908,9 +993,9 @@ public class ClassHandler {
 			static class LineNumber {
 				public final @Unsigned short start_pc;
 				public final @Unsigned short line_number;
-				LineNumber(DataInputStream in, ConstantPool constantPool) throws IOException {
-					start_pc = in.readShort();
-					line_number = in.readShort();
+				LineNumber(ByteBuffer in, ConstantPool constantPool) {
+					start_pc = in.getShort();
+					line_number = in.getShort();
 				}
 				@Override
 				public String toString() {
@@ -920,8 +1005,8 @@ public class ClassHandler {
 		}
 		static class LocalVariableTableAttribute extends ArrayList<LocalVariableTableAttribute.LocalVariable> implements AttributeValue {
 			public static final String ATTR_NAME = "LocalVariableTable";
-			LocalVariableTableAttribute(DataInputStream in, ConstantPool constantPool, long length) throws IOException {
-				int local_variable_table_length = in.readUnsignedShort();
+			LocalVariableTableAttribute(ByteBuffer in, ConstantPool constantPool, long length) {
+				int local_variable_table_length = readUnsignedShort(in);
 				ensureCapacity(local_variable_table_length);
 				assert length == Short.BYTES + local_variable_table_length + (5 * Short.BYTES);
 				while (local_variable_table_length --> 0) {
@@ -944,16 +1029,16 @@ public class ClassHandler {
 				public final String name;
 				public final String descriptor;
 				public final @Unsigned short index;
-				LocalVariable(DataInputStream in, ConstantPool constantPool) throws IOException {
-					start_pc = in.readShort();
-					length = in.readShort();
-					if (!(constantPool.get(in.readUnsignedShort()) instanceof ConstantUtf8Info name_str))
+				LocalVariable(ByteBuffer in, ConstantPool constantPool) {
+					start_pc = in.getShort();
+					length = in.getShort();
+					if (!(constantPool.get(readUnsignedShort(in)) instanceof ConstantUtf8Info name_str))
 						throw new RuntimeException("Invalid local variable name");
-					if (!(constantPool.get(in.readUnsignedShort()) instanceof ConstantUtf8Info descriptor_str))
+					if (!(constantPool.get(readUnsignedShort(in)) instanceof ConstantUtf8Info descriptor_str))
 						throw new RuntimeException("Invalid local variable descriptor");
 					name = name_str.value;
 					descriptor = descriptor_str.value;
-					index = in.readShort();
+					index = in.getShort();
 				}
 				@Override
 				public String toString() {
@@ -964,8 +1049,8 @@ public class ClassHandler {
 		}
 		static class LocalVariableTypeTableAttribute extends ArrayList<LocalVariableTypeTableAttribute.LocalVariableType> implements AttributeValue {
 			public static final String ATTR_NAME = "LocalVariableTypeTable";
-			LocalVariableTypeTableAttribute(DataInputStream in, ConstantPool constantPool, long length) throws IOException {
-				int local_variable_table_length = in.readUnsignedShort();
+			LocalVariableTypeTableAttribute(ByteBuffer in, ConstantPool constantPool, long length) {
+				int local_variable_table_length = readUnsignedShort(in);
 				ensureCapacity(local_variable_table_length);
 				assert length == Short.BYTES + local_variable_table_length + (5 * Short.BYTES);
 				while (local_variable_table_length --> 0) {
@@ -988,16 +1073,16 @@ public class ClassHandler {
 				public final String name;
 				public final String signature;
 				public final @Unsigned short index;
-				LocalVariableType(DataInputStream in, ConstantPool constantPool) throws IOException {
-					start_pc = in.readShort();
-					length = in.readShort();
-					if (!(constantPool.get(in.readUnsignedShort()) instanceof ConstantUtf8Info name_str))
+				LocalVariableType(ByteBuffer in, ConstantPool constantPool) {
+					start_pc = in.getShort();
+					length = in.getShort();
+					if (!(constantPool.get(readUnsignedShort(in)) instanceof ConstantUtf8Info name_str))
 						throw new RuntimeException("Invalid local variable name");
-					if (!(constantPool.get(in.readUnsignedShort()) instanceof ConstantUtf8Info signature_str))
+					if (!(constantPool.get(readUnsignedShort(in)) instanceof ConstantUtf8Info signature_str))
 						throw new RuntimeException("Invalid local variable signature");
 					name = name_str.value;
 					signature = signature_str.value;
-					index = in.readShort();
+					index = in.getShort();
 				}
 				@Override
 				public String toString() {
@@ -1024,8 +1109,8 @@ public class ClassHandler {
 			protected ElementValue(char type) {
 				tag = type;
 			}
-			public static ElementValue read(DataInputStream in, ConstantPool constantPool) throws IOException {
-				char tag = (char) in.readByte();
+			public static ElementValue read(ByteBuffer in, ConstantPool constantPool) {
+				char tag = (char) in.get();
 				return switch (tag) {
 					case BYTE, CHAR, DOUBLE, FLOAT, INTEGER, LONG, SHORT, BOOLEAN, STRING
 						-> new ConstantValue(tag, in, constantPool);
@@ -1041,9 +1126,9 @@ public class ClassHandler {
 			public abstract String toString();
 			public static class ConstantValue extends ElementValue {
 				public final ConstantPoolItem value;
-				ConstantValue(char tag, DataInputStream in, ConstantPool constantPool) throws IOException {
+				ConstantValue(char tag, ByteBuffer in, ConstantPool constantPool) {
 					super(tag);
-					value = constantPool.get(in.readUnsignedShort());
+					value = constantPool.get(readUnsignedShort(in));
 					assert value instanceof ConstantIntegerInfo
 						|| value instanceof ConstantFloatInfo
 						|| value instanceof ConstantLongInfo
@@ -1059,11 +1144,11 @@ public class ClassHandler {
 			public static class EnumValue extends ElementValue {
 				public final String type_name;
 				public final String value_name;
-				EnumValue(DataInputStream in, ConstantPool constantPool) throws IOException {
+				EnumValue(ByteBuffer in, ConstantPool constantPool) {
 					super(ENUM);
-					if (!(constantPool.get(in.readUnsignedShort()) instanceof ConstantUtf8Info cls))
+					if (!(constantPool.get(readUnsignedShort(in)) instanceof ConstantUtf8Info cls))
 						throw new RuntimeException("Invalid enum classname");
-					if (!(constantPool.get(in.readUnsignedShort()) instanceof ConstantUtf8Info val))
+					if (!(constantPool.get(readUnsignedShort(in)) instanceof ConstantUtf8Info val))
 						throw new RuntimeException("Invalid enum const name");
 					type_name = cls.value;
 					value_name = val.value;
@@ -1076,9 +1161,9 @@ public class ClassHandler {
 			}
 			public static class ClassValue extends ElementValue {
 				public final String class_name;
-				ClassValue(DataInputStream in, ConstantPool constantPool) throws IOException {
+				ClassValue(ByteBuffer in, ConstantPool constantPool) {
 					super(CLASS);
-					if (!(constantPool.get(in.readUnsignedShort()) instanceof ConstantUtf8Info cls))
+					if (!(constantPool.get(readUnsignedShort(in)) instanceof ConstantUtf8Info cls))
 						throw new RuntimeException("Invalid classname");
 					class_name = cls.value;
 				}
@@ -1090,7 +1175,7 @@ public class ClassHandler {
 			}
 			public static class AnnotationValue extends ElementValue {
 				public final Annotation value;
-				AnnotationValue(DataInputStream in, ConstantPool constantPool) throws IOException {
+				AnnotationValue(ByteBuffer in, ConstantPool constantPool) {
 					super(ANNOTATION);
 					value = new Annotation(in, constantPool);
 				}
@@ -1102,9 +1187,9 @@ public class ClassHandler {
 			}
 			public static class ArrayValue extends ElementValue {
 				public final List<ElementValue> values;
-				ArrayValue(DataInputStream in, ConstantPool constantPool) throws IOException {
+				ArrayValue(ByteBuffer in, ConstantPool constantPool) {
 					super(ARRAY);
-					int length = in.readUnsignedShort();
+					int length = readUnsignedShort(in);
 					values = new ArrayList<>(length);
 					while (length --> 0)  {
 						values.add(ElementValue.read(in, constantPool));
@@ -1120,13 +1205,13 @@ public class ClassHandler {
 		static class Annotation {
 			public final String type;
 			public final Map<String, ElementValue> element_values = new HashMap<>();
-			Annotation(DataInputStream in, ConstantPool constantPool) throws IOException {
-				if (!(constantPool.get(in.readUnsignedShort()) instanceof ConstantUtf8Info type_desc))
+			Annotation(ByteBuffer in, ConstantPool constantPool) {
+				if (!(constantPool.get(readUnsignedShort(in)) instanceof ConstantUtf8Info type_desc))
 					throw new RuntimeException("Invalid annotation field type");
 				type = type_desc.value;
-				int length = in.readUnsignedShort();
+				int length = readUnsignedShort(in);
 				while (length --> 0) {
-					if (!(constantPool.get(in.readUnsignedShort()) instanceof ConstantUtf8Info element_name))
+					if (!(constantPool.get(readUnsignedShort(in)) instanceof ConstantUtf8Info element_name))
 						throw new RuntimeException("Invalid annotation element name");
 					element_values.put(element_name.value, ElementValue.read(in, constantPool));
 				}
@@ -1150,8 +1235,8 @@ public class ClassHandler {
 		}
 		static class RuntimeVisibleAnnotationsAttribute extends ArrayList<Annotation> implements AttributeValue {
 			public static final String ATTR_NAME = "RuntimeVisibleAnnotations";
-			RuntimeVisibleAnnotationsAttribute(DataInputStream in, ConstantPool constantPool, long length) throws IOException {
-				int num_attributes = in.readUnsignedShort();
+			RuntimeVisibleAnnotationsAttribute(ByteBuffer in, ConstantPool constantPool, long length) {
+				int num_attributes = readUnsignedShort(in);
 				ensureCapacity(num_attributes);
 				while (num_attributes --> 0) {
 					add(new Annotation(in, constantPool));
@@ -1160,8 +1245,8 @@ public class ClassHandler {
 		}
 		static class RuntimeInvisibleAnnotationsAttribute extends ArrayList<Annotation> implements AttributeValue {
 			public static final String ATTR_NAME = "RuntimeInvisibleAnnotations";
-			RuntimeInvisibleAnnotationsAttribute(DataInputStream in, ConstantPool constantPool, long length) throws IOException {
-				int num_attributes = in.readUnsignedShort();
+			RuntimeInvisibleAnnotationsAttribute(ByteBuffer in, ConstantPool constantPool, long length) {
+				int num_attributes = readUnsignedShort(in);
 				ensureCapacity(num_attributes);
 				while (num_attributes --> 0) {
 					add(new Annotation(in, constantPool));
@@ -1169,8 +1254,8 @@ public class ClassHandler {
 			}
 		}
 		static class ParameterAnnotations extends ArrayList<Annotation> {
-			ParameterAnnotations(DataInputStream in, ConstantPool constantPool) throws IOException {
-				int length = in.readUnsignedShort();
+			ParameterAnnotations(ByteBuffer in, ConstantPool constantPool) {
+				int length = readUnsignedShort(in);
 				ensureCapacity(length);
 				while (length --> 0) {
 					add(new Annotation(in, constantPool));
@@ -1179,8 +1264,8 @@ public class ClassHandler {
 		}
 		static class RuntimeVisibleParameterAnnotationsAttribute extends ArrayList<ParameterAnnotations> implements AttributeValue {
 			public static final String ATTR_NAME = "RuntimeVisibleParameterAnnotations";
-			RuntimeVisibleParameterAnnotationsAttribute(DataInputStream in, ConstantPool constantPool, long length) throws IOException {
-				int num_parameters = in.readUnsignedByte();
+			RuntimeVisibleParameterAnnotationsAttribute(ByteBuffer in, ConstantPool constantPool, long length) {
+				int num_parameters = readUnsignedByte(in);
 				ensureCapacity(num_parameters);
 				while (num_parameters --> 0) {
 					add(new ParameterAnnotations(in, constantPool));
@@ -1189,8 +1274,8 @@ public class ClassHandler {
 		}
 		static class RuntimeInvisibleParameterAnnotationsAttribute extends ArrayList<ParameterAnnotations> implements AttributeValue {
 			public static final String ATTR_NAME = "RuntimeInvisibleParameterAnnotations";
-			RuntimeInvisibleParameterAnnotationsAttribute(DataInputStream in, ConstantPool constantPool, long length) throws IOException {
-				int num_parameters = in.readUnsignedByte();
+			RuntimeInvisibleParameterAnnotationsAttribute(ByteBuffer in, ConstantPool constantPool, long length) {
+				int num_parameters = readUnsignedByte(in);
 				ensureCapacity(num_parameters);
 				while (num_parameters --> 0) {
 					add(new ParameterAnnotations(in, constantPool));
@@ -1200,7 +1285,7 @@ public class ClassHandler {
 		static class AnnotationDefaultAttribute implements AttributeValue {
 			public static final String ATTR_NAME = "AnnotationDefault";
 			public final ElementValue value;
-			AnnotationDefaultAttribute(DataInputStream in, ConstantPool constantPool, long length) throws IOException {
+			AnnotationDefaultAttribute(ByteBuffer in, ConstantPool constantPool, long length) {
 				value = ElementValue.read(in, constantPool);
 			}
 
@@ -1211,8 +1296,8 @@ public class ClassHandler {
 		}
 		static class BootstrapMethodsAttribute extends ArrayList<BootstrapMethodsAttribute.BootstrapMethod> implements AttributeValue {
 			public static final String ATTR_NAME = "BootstrapMethods";
-			BootstrapMethodsAttribute(DataInputStream in, ConstantPool constantPool, long length) throws IOException {
-				int num_bootstrap_methods = in.readUnsignedShort();
+			BootstrapMethodsAttribute(ByteBuffer in, ConstantPool constantPool, long length) {
+				int num_bootstrap_methods = readUnsignedShort(in);
 				ensureCapacity(num_bootstrap_methods);
 				while (num_bootstrap_methods --> 0) {
 					add(new BootstrapMethod(in, constantPool));
@@ -1226,14 +1311,14 @@ public class ClassHandler {
 			static class BootstrapMethod {
 				public final ConstantMethodHandleInfo bootstrap_method;
 				public final List<ConstantPoolItem> bootstrap_arguments;
-				BootstrapMethod(DataInputStream in, ConstantPool constantPool) throws IOException {
-					if (!(constantPool.get(in.readUnsignedShort()) instanceof ConstantMethodHandleInfo method_handle))
+				BootstrapMethod(ByteBuffer in, ConstantPool constantPool) {
+					if (!(constantPool.get(readUnsignedShort(in)) instanceof ConstantMethodHandleInfo method_handle))
 						throw new RuntimeException("Invalid bootstrap method ref");
 					bootstrap_method = method_handle;
-					int length = in.readUnsignedShort();
+					int length = readUnsignedShort(in);
 					bootstrap_arguments = new ArrayList<>(length);
 					while (length --> 0) {
-						ConstantPoolItem bootstrap_arg = constantPool.get(in.readUnsignedShort());
+						ConstantPoolItem bootstrap_arg = constantPool.get(readUnsignedShort(in));
 						assert bootstrap_arg instanceof ConstantIntegerInfo
 							|| bootstrap_arg instanceof ConstantFloatInfo
 							|| bootstrap_arg instanceof ConstantLongInfo
@@ -1266,22 +1351,24 @@ public class ClassHandler {
 		final @Unsigned short access_flags;
 		final String name;
 		final String descriptor;
+		private final ConstantNameAndTypeInfo nameAndType;
 		final Attributes attributes;
 		public final ClassHandler ownerClass;
 
-		private MethodInfo(ClassHandler classHandler, DataInputStream in, ConstantPool constantPool) throws IOException {
+		private MethodInfo(ClassHandler classHandler, ByteBuffer in, ConstantPool constantPool) {
 			ownerClass = classHandler;
-			access_flags = in.readShort();
-			if(!(constantPool.get(in.readUnsignedShort()) instanceof ConstantUtf8Info method_name))
+			access_flags = in.getShort();
+			if(!(constantPool.get(readUnsignedShort(in)) instanceof ConstantUtf8Info method_name))
 				throw new RuntimeException("Invalid method name");
-			if(!(constantPool.get(in.readUnsignedShort()) instanceof ConstantUtf8Info method_desc))
+			if(!(constantPool.get(readUnsignedShort(in)) instanceof ConstantUtf8Info method_desc))
 				throw new RuntimeException("Invalid method descriptor");
-			name = method_name.value;
-			descriptor = method_desc.value;
+			nameAndType = SymbolTable.nameAndType(method_name.value, method_desc.value);
+			name = nameAndType.name();
+			descriptor = nameAndType.descriptor();
 			attributes = new Attributes(in, constantPool);
 		}
 
-		public static MethodInfo readFrom(ClassHandler classHandler, DataInputStream in, ConstantPool constantPool) throws IOException {
+		public static MethodInfo readFrom(ClassHandler classHandler, ByteBuffer in, ConstantPool constantPool) {
 			return new MethodInfo(classHandler, in, constantPool);
 		}
 
@@ -1313,7 +1400,19 @@ public class ClassHandler {
 		}
 
 		public ConstantNameAndTypeInfo getNameAndType() {
-			return new ConstantNameAndTypeInfo(name, descriptor);
+			return nameAndType;
+		}
+
+		public boolean isStatic() {
+			return (access_flags & ACC_STATIC) != 0;
+		}
+
+		public boolean hasCode() {
+			return attributes.getCode() != null;
+		}
+
+		public MethodDescriptor getDescriptor() {
+			return MethodDescriptor.parse(descriptor);
 		}
 	}
 
@@ -1330,20 +1429,22 @@ public class ClassHandler {
 		final @Unsigned short access_flags;
 		final String name;
 		final String descriptor;
+		private final ConstantNameAndTypeInfo nameAndType;
 		final Attributes attributes;
-		private FieldInfo(DataInputStream in, ConstantPool constantPool) throws IOException {
-			access_flags = in.readShort();
+		private FieldInfo(ByteBuffer in, ConstantPool constantPool) {
+			access_flags = in.getShort();
 
-			if(!(constantPool.get(in.readUnsignedShort()) instanceof ConstantUtf8Info field_name))
+			if(!(constantPool.get(readUnsignedShort(in)) instanceof ConstantUtf8Info field_name))
 				throw new RuntimeException("Invalid field name");
-			if(!(constantPool.get(in.readUnsignedShort()) instanceof ConstantUtf8Info field_desc))
+			if(!(constantPool.get(readUnsignedShort(in)) instanceof ConstantUtf8Info field_desc))
 				throw new RuntimeException("Invalid field descriptor");
-			name = field_name.value;
-			descriptor = field_desc.value;
+			nameAndType = SymbolTable.nameAndType(field_name.value, field_desc.value);
+			name = nameAndType.name();
+			descriptor = nameAndType.descriptor();
 			attributes = new Attributes(in, constantPool);
 		}
 
-		public static FieldInfo readFrom(DataInputStream in, ConstantPool constantPool) throws IOException {
+		public static FieldInfo readFrom(ByteBuffer in, ConstantPool constantPool) {
 			return new FieldInfo(in, constantPool);
 		}
 
@@ -1368,13 +1469,27 @@ public class ClassHandler {
 		}
 
 		public ConstantNameAndTypeInfo getNameAndType() {
-			return new ConstantNameAndTypeInfo(name, descriptor);
+			return nameAndType;
 		}
 	}
 
 	interface ConstantPoolItem {
-		static void readFrom(DataInputStream in, ConstantPool constantPool) throws IOException {
-			constantPool.add(switch (in.readByte()) {
+		// Size of the entry following its tag, in (which is positioned just past the tag) is not moved
+		static int payloadSize(byte tag, ByteBuffer in) {
+			return switch (tag) {
+				case ConstantUtf8Info.TYPE -> Short.BYTES + Short.toUnsignedInt(in.getShort(in.position()));
+				case ConstantIntegerInfo.TYPE, ConstantFloatInfo.TYPE -> Integer.BYTES;
+				case ConstantLongInfo.TYPE, ConstantDoubleInfo.TYPE -> Long.BYTES;
+				case ConstantClassInfo.TYPE, ConstantStringInfo.TYPE, ConstantMethodTypeInfo.TYPE,
+				     19 /* Module */, 20 /* Package */ -> Short.BYTES;
+				case ConstantFieldRefInfo.TYPE, ConstantMethodRefInfo.TYPE, ConstantInterfaceMethodRefInfo.TYPE,
+				     ConstantNameAndTypeInfo.TYPE, ConstantInvokeDynamicInfo.TYPE, 17 /* Dynamic */ -> Short.BYTES * 2;
+				case ConstantMethodHandleInfo.TYPE -> Byte.BYTES + Short.BYTES;
+				default -> throw new IllegalStateException("Unexpected constant pool tag: " + tag);
+			};
+		}
+		static ConstantPoolItem readFrom(byte tag, ByteBuffer in, ConstantPool constantPool) {
+			return switch (tag) {
 				case ConstantClassInfo.TYPE -> ConstantClassInfo.readFrom(in, constantPool);
 				case ConstantFieldRefInfo.TYPE -> ConstantFieldRefInfo.readFrom(in, constantPool);
 				case ConstantMethodRefInfo.TYPE -> ConstantMethodRefInfo.readFrom(in, constantPool);
@@ -1390,17 +1505,38 @@ public class ClassHandler {
 				case ConstantMethodTypeInfo.TYPE -> ConstantMethodTypeInfo.readFrom(in, constantPool);
 				case ConstantInvokeDynamicInfo.TYPE -> ConstantInvokeDynamicInfo.readFrom(in, constantPool);
 				default -> throw new IllegalStateException("Unexpected value");
-			});
+			};
 		}
 	}
 
-	record ConstantClassInfo(String name) implements ConstantPoolItem {
+	// Canonical, only ever created by SymbolTable: equality is identity and the hash is the symbol id
+	static final class ConstantClassInfo implements ConstantPoolItem {
 		static final byte TYPE = 7;
+		private final String name;
+		private final int id;
 
-		static ConstantClassInfo readFrom(DataInputStream in, ConstantPool constantPool) throws IOException {
-			if(!(constantPool.await(in.readUnsignedShort()) instanceof ConstantUtf8Info cls_name))
+		ConstantClassInfo(String name, int id) {
+			this.name = name;
+			this.id = id;
+		}
+
+		public String name() {
+			return name;
+		}
+
+		public int id() {
+			return id;
+		}
+
+		static ConstantClassInfo readFrom(ByteBuffer in, ConstantPool constantPool) {
+			if(!(constantPool.get(readUnsignedShort(in)) instanceof ConstantUtf8Info cls_name))
 				throw new RuntimeException("Invalid class_name");
-			return new ConstantClassInfo(cls_name.value);
+			return SymbolTable.classInfo(cls_name.value);
+		}
+
+		@Override
+		public int hashCode() {
+			return id;
 		}
 
 		@Override
@@ -1425,12 +1561,12 @@ public class ClassHandler {
 			signature = member;
 		}
 
-		protected ConstantMemberRefInfo(DataInputStream in, ConstantPool constantPool) throws IOException {
-			int class_index = in.readUnsignedShort();
-			int name_and_type_index = in.readUnsignedShort();
-			if(!(constantPool.await(class_index) instanceof ConstantClassInfo cls_info))
+		protected ConstantMemberRefInfo(ByteBuffer in, ConstantPool constantPool) {
+			int class_index = readUnsignedShort(in);
+			int name_and_type_index = readUnsignedShort(in);
+			if(!(constantPool.get(class_index) instanceof ConstantClassInfo cls_info))
 				throw new RuntimeException("Invalid class");
-			if(!(constantPool.await(name_and_type_index) instanceof ConstantNameAndTypeInfo name_type))
+			if(!(constantPool.get(name_and_type_index) instanceof ConstantNameAndTypeInfo name_type))
 				throw new RuntimeException("Invalid signature");
 			cls = cls_info;
 			signature = name_type;
@@ -1462,41 +1598,41 @@ public class ClassHandler {
 	public static class ConstantFieldRefInfo extends ConstantMemberRefInfo {
 		static final byte TYPE = 9;
 
-		private ConstantFieldRefInfo(DataInputStream in, ConstantPool constantPool) throws IOException {
+		private ConstantFieldRefInfo(ByteBuffer in, ConstantPool constantPool) {
 			super(in, constantPool);
 		}
 
-		static ConstantFieldRefInfo readFrom(DataInputStream in, ConstantPool constantPool) throws IOException {
+		static ConstantFieldRefInfo readFrom(ByteBuffer in, ConstantPool constantPool) {
 			return new ConstantFieldRefInfo(in, constantPool);
 		}
 	}
 	public static class ConstantMethodRefInfo extends ConstantMemberRefInfo {
 		static final byte TYPE = 10;
 
-		private ConstantMethodRefInfo(DataInputStream in, ConstantPool constantPool) throws IOException {
+		private ConstantMethodRefInfo(ByteBuffer in, ConstantPool constantPool) {
 			super(in, constantPool);
 		}
 
-		static ConstantMethodRefInfo readFrom(DataInputStream in, ConstantPool constantPool) throws IOException {
+		static ConstantMethodRefInfo readFrom(ByteBuffer in, ConstantPool constantPool) {
 			return new ConstantMethodRefInfo(in, constantPool);
 		}
 	}
 	public static class ConstantInterfaceMethodRefInfo extends ConstantMemberRefInfo {
 		static final byte TYPE = 11;
 
-		private ConstantInterfaceMethodRefInfo(DataInputStream in, ConstantPool constantPool) throws IOException {
+		private ConstantInterfaceMethodRefInfo(ByteBuffer in, ConstantPool constantPool) {
 			super(in, constantPool);
 		}
 
-		static ConstantInterfaceMethodRefInfo readFrom(DataInputStream in, ConstantPool constantPool) throws IOException {
+		static ConstantInterfaceMethodRefInfo readFrom(ByteBuffer in, ConstantPool constantPool) {
 			return new ConstantInterfaceMethodRefInfo(in, constantPool);
 		}
 	}
 	record ConstantStringInfo(String value) implements ConstantPoolItem {
 		static final byte TYPE = 8;
 
-		static ConstantStringInfo readFrom(DataInputStream in, ConstantPool constantPool) throws IOException {
-			if(!(constantPool.await(in.readUnsignedShort()) instanceof ConstantUtf8Info str))
+		static ConstantStringInfo readFrom(ByteBuffer in, ConstantPool constantPool) {
+			if(!(constantPool.get(readUnsignedShort(in)) instanceof ConstantUtf8Info str))
 				throw new RuntimeException("Invalid string value");
 			return new ConstantStringInfo(str.value);
 		}
@@ -1509,8 +1645,8 @@ public class ClassHandler {
 	record ConstantIntegerInfo(int value) implements ConstantPoolItem {
 		static final byte TYPE = 3;
 
-		static ConstantIntegerInfo readFrom(DataInputStream in, ConstantPool constantPool) throws IOException {
-			return new ConstantIntegerInfo(in.readInt());
+		static ConstantIntegerInfo readFrom(ByteBuffer in, ConstantPool constantPool) {
+			return new ConstantIntegerInfo(in.getInt());
 		}
 
 		@Override
@@ -1521,8 +1657,8 @@ public class ClassHandler {
 	record ConstantFloatInfo(float value) implements ConstantPoolItem {
 		static final byte TYPE = 4;
 
-		static ConstantFloatInfo readFrom(DataInputStream in, ConstantPool constantPool) throws IOException {
-			return new ConstantFloatInfo(in.readFloat());
+		static ConstantFloatInfo readFrom(ByteBuffer in, ConstantPool constantPool) {
+			return new ConstantFloatInfo(in.getFloat());
 		}
 
 		@Override
@@ -1533,10 +1669,8 @@ public class ClassHandler {
 	record ConstantLongInfo(long value) implements ConstantPoolItem {
 		static final byte TYPE = 5;
 
-		static ConstantLongInfo readFrom(DataInputStream in, ConstantPool constantPool) throws IOException {
-			ConstantLongInfo result = new ConstantLongInfo(in.readLong());
-			constantPool.add(result); // Long & Double take up two slots
-			return result;
+		static ConstantLongInfo readFrom(ByteBuffer in, ConstantPool constantPool) {
+			return new ConstantLongInfo(in.getLong());
 		}
 
 		@Override
@@ -1547,10 +1681,8 @@ public class ClassHandler {
 	record ConstantDoubleInfo(double value) implements ConstantPoolItem {
 		static final byte TYPE = 6;
 
-		static ConstantDoubleInfo readFrom(DataInputStream in, ConstantPool constantPool) throws IOException {
-			ConstantDoubleInfo result = new ConstantDoubleInfo(in.readDouble());
-			constantPool.add(result); // Long & Double take up two slots
-			return result;
+		static ConstantDoubleInfo readFrom(ByteBuffer in, ConstantPool constantPool) {
+			return new ConstantDoubleInfo(in.getDouble());
 		}
 
 		@Override
@@ -1558,17 +1690,44 @@ public class ClassHandler {
 			return Double.toString(value);
 		}
 	}
-	record ConstantNameAndTypeInfo(String name, String descriptor) implements ConstantPoolItem {
+	// Canonical, only ever created by SymbolTable: equality is identity and the hash is the symbol id
+	static final class ConstantNameAndTypeInfo implements ConstantPoolItem {
 		static final byte TYPE = 12;
+		private final String name;
+		private final String descriptor;
+		private final int id;
+
+		ConstantNameAndTypeInfo(String name, String descriptor, int id) {
+			this.name = name;
+			this.descriptor = descriptor;
+			this.id = id;
+		}
+
+		public String name() {
+			return name;
+		}
 
-		static ConstantNameAndTypeInfo readFrom(DataInputStream in, ConstantPool constantPool) throws IOException {
-			int name_index = in.readUnsignedShort();
-			int type_index = in.readUnsignedShort();
-			if(!(constantPool.await(name_index) instanceof ConstantUtf8Info name))
+		public String descriptor() {
+			return descriptor;
+		}
+
+		public int id() {
+			return id;
+		}
+
+		static ConstantNameAndTypeInfo readFrom(ByteBuffer in, ConstantPool constantPool) {
+			int name_index = readUnsignedShort(in);
+			int type_index = readUnsignedShort(in);
+			if(!(constantPool.get(name_index) instanceof ConstantUtf8Info name))
 				throw new RuntimeException("Invalid value name");
-			if(!(constantPool.await(type_index) instanceof ConstantUtf8Info type))
+			if(!(constantPool.get(type_index) instanceof ConstantUtf8Info type))
 				throw new RuntimeException("Invalid value descriptor");
-			return new ConstantNameAndTypeInfo(name.value, type.value);
+			return SymbolTable.nameAndType(name.value, type.value);
+		}
+
+		@Override
+		public int hashCode() {
+			return id;
 		}
 
 		@Override
@@ -1579,11 +1738,11 @@ public class ClassHandler {
 	record ConstantUtf8Info(String value) implements ConstantPoolItem {
 		static final byte TYPE = 1;
 
-		static ConstantUtf8Info readFrom(DataInputStream in, ConstantPool constantPool) throws IOException {
-			int length = in.readUnsignedShort();
+		static ConstantUtf8Info readFrom(ByteBuffer in, ConstantPool constantPool) {
+			int length = readUnsignedShort(in);
 			// TODO: fucking java uses weird "modified" UTF8
 			// see: https://docs.oracle.com/javase/specs/jvms/se7/html/jvms-4.html#jvms-4.4.7
-			return new ConstantUtf8Info(new String(in.readNBytes(length), StandardCharsets.UTF_8));
+			return new ConstantUtf8Info(new String(readNBytes(in, length), StandardCharsets.UTF_8));
 		}
 
 		@Override
@@ -1603,9 +1762,9 @@ public class ClassHandler {
 		static final byte REF_invokeInterface = (byte)9; // invokeinterface C.m:(A*)T
 		static final byte TYPE = 15;
 
-		static ConstantMethodHandleInfo readFrom(DataInputStream in, ConstantPool constantPool) throws IOException {
-			byte referenceType = in.readByte();
-			ConstantPoolItem ref = constantPool.await(in.readUnsignedShort());
+		static ConstantMethodHandleInfo readFrom(ByteBuffer in, ConstantPool constantPool) {
+			byte referenceType = in.get();
+			ConstantPoolItem ref = constantPool.get(readUnsignedShort(in));
 			if(!switch (referenceType) {
 				case REF_getField, REF_getStatic, REF_putField, REF_putStatic
 						-> ref instanceof ConstantFieldRefInfo;
@@ -1637,8 +1796,8 @@ public class ClassHandler {
 	record ConstantMethodTypeInfo(String descriptor) implements ConstantPoolItem {
 		static final byte TYPE = 16;
 
-		static ConstantMethodTypeInfo readFrom(DataInputStream in, ConstantPool constantPool) throws IOException {
-			if(!(constantPool.await(in.readUnsignedShort()) instanceof ConstantUtf8Info desc))
+		static ConstantMethodTypeInfo readFrom(ByteBuffer in, ConstantPool constantPool) {
+			if(!(constantPool.get(readUnsignedShort(in)) instanceof ConstantUtf8Info desc))
 				throw new RuntimeException("Invalid descriptor");
 			return new ConstantMethodTypeInfo(desc.value);
 		}
@@ -1651,9 +1810,9 @@ public class ClassHandler {
 	record ConstantInvokeDynamicInfo(@Unsigned short bootstrapMethodAddrIndex, ConstantNameAndTypeInfo signature) implements ConstantPoolItem {
 		static final byte TYPE = 18;
 
-		static ConstantInvokeDynamicInfo readFrom(DataInputStream in, ConstantPool constantPool) throws IOException {
-			short bootstrapIdx = in.readShort();
-			if(!(constantPool.await(in.readUnsignedShort()) instanceof ConstantNameAndTypeInfo name_type))
+		static ConstantInvokeDynamicInfo readFrom(ByteBuffer in, ConstantPool constantPool) {
+			short bootstrapIdx = in.getShort();
+			if(!(constantPool.get(readUnsignedShort(in)) instanceof ConstantNameAndTypeInfo name_type))
 				throw new RuntimeException("Invalid signature");
 			return new ConstantInvokeDynamicInfo(bootstrapIdx, name_type);
 		}
@@ -0,0 +1,691 @@
+package wntiv.class_parser;
+
+import org.jetbrains.annotations.Nullable;
+import wntiv.wasm_output.types.FunctionType;
+import wntiv.wasm_output.types.NumericType;
+import wntiv.wasm_output.types.ResultType;
+import wntiv.wasm_output.types.ValueType;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.function.Predicate;
+
+/**
+ * Every loaded class's place in the hierarchy, for binding instance calls. Narrowed by rapid type analysis
+ * (Bacon & Sweeney, OOPSLA '96): a receiver can only be of a class that some reachable code creates with
+ * {@code new}, so a call's possible targets are the bodies those classes (if below the named owner) run for
+ * it, usually far fewer than every override. That needs the whole program, so every class is added before
+ * any is translated, and only a summary of each is kept, for streaming mode.
+ * <p>
+ * Reachable code is found along with the classes created, from the roots (what the host calls) by a mark
+ * phase: a method is reached if reachable code calls it directly, or it's what an instance call it makes
+ * runs for a class created so far, and a class if reachable code uses it at all (its {@code <clinit>} then
+ * counts as called). Only what's reached is translated, see {@link #isReachable}, and only what it uses
+ * gets an id or a host function, which {@link #report()} lists the rest of.
+ * <p>
+ * Objects are kept by the host, code only holds references to them, and works on them through the functions
+ * {@link #hostFunctions()} lists: {@link #NEW} makes an object of a class (by the ids given out here, in the
+ * order classes are added), {@link #CLASS_ID} tells which class an object is, when a call has to pick
+ * between targets, and a getter & setter per field type reads & writes a field (by the ids given out here, for
+ * each class's instance fields in turn). A field the host hasn't been given a value for reads as zero (or null).
+ * <p>
+ * Arrays too: {@link #NEW_ARRAY} makes one (of zeroes or nulls) given its length & element kind, see
+ * {@link Operation.NewArray}, and a getter & setter per element type reads & writes an element, narrowing &
+ * widening for boolean, byte, char & short arrays. Bounds are checked before each access, against
+ * {@link #ARRAY_LENGTH}, and the host's {@link #INDEX_OUT_OF_BOUNDS} is called to throw when they're broken.
+ * <p>
+ * Strings & enums are the host's as well: the few methods of String, Enum & arrays in {@link #HOST_METHODS}
+ * are host functions, where what they'd run isn't loaded (see {@link #hostMethod}), and each string constant
+ * ldc pushes is imported by its value, see {@link #stringConstants()}. A class constant is {@link #CLASS} of
+ * its class id.
+ */
+final class ClassHierarchy {
+	static final String CLASS_ID = "class_id";
+	static final String NEW = "new";
+	static final String NEW_ARRAY = "new_array";
+	static final String ARRAY_LENGTH = "array_length";
+	static final String INDEX_OUT_OF_BOUNDS = "array_index_out_of_bounds";
+	static final String CLASS = "class";
+	static final String STRING = "java/lang/String";
+	static final String ENUM = "java/lang/Enum";
+	// A call with more class ids than this to test goes through the dispatch table instead
+	static final int MAX_TYPE_TESTS = 4;
+
+	private static final class Node {
+		// Given out once sealed, to reachable classes only
+		int id = -1;
+		final ClassHandler.ConstantClassInfo name;
+		final @Nullable ClassHandler.ConstantClassInfo superClass;
+		final List<ClassHandler.ConstantClassInfo> interfaces;
+		final boolean isInterface;
+		// Access flags of each method declared here
+		final Map<ClassHandler.ConstantNameAndTypeInfo, Integer> methods = new HashMap<>();
+		// Instance fields declared here, in order
+		final List<ClassHandler.ConstantNameAndTypeInfo> fields = new ArrayList<>();
+		final Set<ClassHandler.ConstantNameAndTypeInfo> staticFields = new LinkedHashSet<>();
+		// What the code of each method with any refers to, null once the mark phase has taken it in
+		final Map<ClassHandler.ConstantNameAndTypeInfo, @Nullable Uses> bodies = new HashMap<>();
+		// Itself, and everything it extends or implements (loaded or not)
+		final Set<ClassHandler.ConstantClassInfo> supertypes = new LinkedHashSet<>();
+
+		Node(ClassHandler cls) {
+			name = cls.this_class;
+			superClass = cls.super_class;
+			interfaces = List.copyOf(cls.interfaces);
+			isInterface = (cls.access_flags & ClassHandler.AccessFlags.ACC_INTERFACE) != 0;
+		}
+	}
+
+	// A body an instance call can run, for receivers of the classes with these ids
+	record Target(ClassHandler.ConstantClassInfo owner, ClassHandler.ConstantNameAndTypeInfo method, int[] classIds) {}
+
+	/**
+	 * Where an instance call goes: nowhere when no receiver it accepts is ever created (so it's never
+	 * reached), straight to its only target, or to one of several picked by the receiver's class id, by
+	 * testing it against each target's ids in turn or, for tableOffset >= 0, through the dispatch table.
+	 */
+	record Dispatch(List<Target> targets, int tableOffset) {
+		boolean needsClassId() {
+			return targets.size() > 1;
+		}
+	}
+
+	private record Selector(ClassHandler.ConstantClassInfo owner, ClassHandler.ConstantNameAndTypeInfo method) {}
+	// A field, by the class that declares it
+	record Field(ClassHandler.ConstantClassInfo owner, ClassHandler.ConstantNameAndTypeInfo field) {}
+	record HostFunction(String name, FunctionType type) {}
+
+	// What code refers to, as scan() finds it: kept for each method, and merged over those reached once sealed
+	private static final class Uses {
+		final Set<ClassHandler.ConstantClassInfo> instantiated = new LinkedHashSet<>();
+		boolean allocates = false;
+		final Set<Selector> virtualCalls = new LinkedHashSet<>();
+		// invokespecial & invokestatic
+		final Set<Selector> directCalls = new LinkedHashSet<>();
+		// As named, which may be through a subclass of the one declaring them
+		final Set<Field> fields = new LinkedHashSet<>();
+		final Set<Field> staticFields = new LinkedHashSet<>();
+		final Set<ClassHandler.ConstantClassInfo> classConstants = new LinkedHashSet<>();
+		// Types of the fields read & written
+		final Set<ValueType> loadedTypes = new LinkedHashSet<>();
+		final Set<ValueType> storedTypes = new LinkedHashSet<>();
+		// Likewise for arrays
+		boolean allocatesArrays = false;
+		boolean readsLengths = false;
+		final Set<ValueType> arrayLoadedTypes = new LinkedHashSet<>();
+		final Set<ValueType> arrayStoredTypes = new LinkedHashSet<>();
+		// Constants pushed by ldc
+		final Set<String> strings = new LinkedHashSet<>();
+
+		// All but instantiated & virtualCalls, which the mark phase takes one at a time
+		void addAll(Uses other) {
+			allocates |= other.allocates;
+			directCalls.addAll(other.directCalls);
+			fields.addAll(other.fields);
+			staticFields.addAll(other.staticFields);
+			classConstants.addAll(other.classConstants);
+			loadedTypes.addAll(other.loadedTypes);
+			storedTypes.addAll(other.storedTypes);
+			allocatesArrays |= other.allocatesArrays;
+			readsLengths |= other.readsLengths;
+			arrayLoadedTypes.addAll(other.arrayLoadedTypes);
+			arrayStoredTypes.addAll(other.arrayStoredTypes);
+			strings.addAll(other.strings);
+		}
+	}
+
+	// Takes the call's operands, receiver (if any) first
+	private record HostMethod(String name, boolean isStatic) {}
+	// The methods the host stands in for, by owner (any array type as "[") then name & descriptor
+	private static final Map<String, Map<String, HostMethod>> HOST_METHODS = Map.of(
+			STRING, Map.of(
+					"hashCode()I", new HostMethod("string_hash_code", false),
+					"equals(Ljava/lang/Object;)Z", new HostMethod("string_equals", false),
+					"length()I", new HostMethod("string_length", false)),
+			ENUM, Map.of(
+					"<init>(Ljava/lang/String;I)V", new HostMethod("enum_init", false),
+					"ordinal()I", new HostMethod("enum_ordinal", false),
+					"name()Ljava/lang/String;", new HostMethod("enum_name", false),
+					"valueOf(Ljava/lang/Class;Ljava/lang/String;)Ljava/lang/Enum;", new HostMethod("enum_value_of", true)),
+			"[", Map.of(
+					"clone()Ljava/lang/Object;", new HostMethod("array_clone", false)));
+	// What each string constant's import is
+	private static final FunctionType STRING_CONSTANT = functionType(List.of(), Operation.REFERENCE);
+
+	// Length of each fixed size instruction, opcode included
+	private static final byte[] LENGTHS = new byte[256];
+	static {
+		Arrays.fill(LENGTHS, (byte) 1);
+		for (int opcode : new int[]{0x10, 0x12, 0x15, 0x16, 0x17, 0x18, 0x19, 0x36, 0x37, 0x38, 0x39, 0x3a, 0xa9,
+				0xbc}) LENGTHS[opcode] = 2;
+		for (int opcode = 0x99; opcode <= 0xa8; opcode++) LENGTHS[opcode] = 3; // if<cond>, goto, jsr
+		for (int opcode = 0xb2; opcode <= 0xb8; opcode++) LENGTHS[opcode] = 3; // field access, invokes
+		for (int opcode : new int[]{0x11, 0x13, 0x14, 0x84, 0xbb, 0xbd, 0xc0, 0xc1, 0xc6, 0xc7}) LENGTHS[opcode] = 3;
+		LENGTHS[0xc5] = 4;
+		for (int opcode : new int[]{0xb9, 0xba, 0xc8, 0xc9}) LENGTHS[opcode] = 5;
+	}
+
+	private final Map<ClassHandler.ConstantClassInfo, Node> nodes = new LinkedHashMap<>();
+	// Methods the host calls
+	private final Set<Selector> roots = new LinkedHashSet<>();
+	// Filled in by seal(), read only after: what reachable code uses, all of it & the host functions called for
+	// methods by name, what's reachable, & ids for the classes & instance fields it uses
+	private final Uses used = new Uses();
+	private final Map<String, HostFunction> hostMethods = new LinkedHashMap<>();
+	private final Set<ClassHandler.ConstantClassInfo> reachableClasses = new LinkedHashSet<>();
+	private final Set<Selector> reachableMethods = new HashSet<>();
+	private final Set<Field> reachableStatics = new HashSet<>();
+	private final Set<Field> foldedStatics = new HashSet<>();
+	private final List<Node> ids = new ArrayList<>();
+	private final Map<Field, Integer> fieldIds = new HashMap<>();
+	private final Map<Selector, Dispatch> dispatches = new HashMap<>();
+	private final Map<Selector, String> unbound = new HashMap<>();
+	private final List<Dispatch> tableRows = new ArrayList<>();
+	private boolean sealed = false;
+
+	void add(ClassHandler cls) {
+		if (sealed) throw new IllegalStateException("Class hierarchy is already complete");
+		Node node = new Node(cls);
+		if (nodes.putIfAbsent(cls.this_class, node) != null) return; // first definition wins, as on a classpath
+		for (ClassHandler.MethodInfo method : cls.methods) node.methods.put(method.getNameAndType(), (int) method.access_flags);
+		for (ClassHandler.FieldInfo field : cls.fields) {
+			if ((field.access_flags & ClassHandler.FieldInfo.ACC_STATIC) == 0) node.fields.add(field.getNameAndType());
+			else node.staticFields.add(field.getNameAndType());
+		}
+		for (ClassHandler.MethodInfo method : cls.methods) {
+			var code = method.attributes.getCode();
+			if (code != null) node.bodies.put(method.getNameAndType(), scan(code.code, cls.constant_pool));
+		}
+	}
+
+	// A method the host calls, so everything it can reach is kept
+	void addRoot(ClassHandler.ConstantClassInfo owner, ClassHandler.ConstantNameAndTypeInfo method) {
+		if (sealed) throw new IllegalStateException("Class hierarchy is already complete");
+		roots.add(new Selector(owner, method));
+	}
+
+	// Element types of x{a}load & x{a}store, from iaload/iastore on
+	private static final ValueType[] ARRAY_ELEMENT_TYPES = {NumericType.I32, NumericType.I64, NumericType.F32,
+			NumericType.F64, Operation.REFERENCE, NumericType.I32, NumericType.I32, NumericType.I32};
+
+	// The classes instantiated & used, the fields & methods referred to, the types of fields & arrays accessed &
+	// the string constants pushed by code
+	private static Uses scan(byte[] code, ClassHandler.ConstantPool pool) {
+		Uses uses = new Uses();
+		for (int i = 0; i < code.length; i += instructionLength(code, i)) {
+			int opcode = Byte.toUnsignedInt(code[i]);
+			if (opcode == 0x12 /* ldc */ || opcode == 0x13 /* ldc_w */) {
+				int index = opcode == 0x12 ? Byte.toUnsignedInt(code[i + 1]) : u2(code, i + 1);
+				if (pool.get(index) instanceof ClassHandler.ConstantStringInfo string && importable(string.value())) {
+					uses.strings.add(string.value());
+				} else if (pool.get(index) instanceof ClassHandler.ConstantClassInfo cls) {
+					uses.classConstants.add(cls);
+				}
+			} else if (opcode == 0xbb /* new */ && pool.get(u2(code, i + 1)) instanceof ClassHandler.ConstantClassInfo cls) {
+				uses.instantiated.add(cls);
+				uses.allocates = true;
+			} else if ((opcode == 0xb4 /* getfield */ || opcode == 0xb5 /* putfield */)
+					&& pool.get(u2(code, i + 1)) instanceof ClassHandler.ConstantFieldRefInfo field) {
+				(opcode == 0xb4 ? uses.loadedTypes : uses.storedTypes)
+						.add(MethodDescriptor.fieldType(field.getSignature().descriptor().charAt(0)));
+				uses.fields.add(new Field(field.getCls(), field.getSignature()));
+			} else if ((opcode == 0xb2 /* getstatic */ || opcode == 0xb3 /* putstatic */)
+					&& pool.get(u2(code, i + 1)) instanceof ClassHandler.ConstantFieldRefInfo field) {
+				uses.staticFields.add(new Field(field.getCls(), field.getSignature()));
+			} else if ((opcode == 0xb6 /* invokevirtual */ || opcode == 0xb9 /* invokeinterface */)
+					&& pool.get(u2(code, i + 1)) instanceof ClassHandler.ConstantMemberRefInfo method) {
+				uses.virtualCalls.add(new Selector(method.getCls(), method.getSignature()));
+			} else if ((opcode == 0xb7 /* invokespecial */ || opcode == 0xb8 /* invokestatic */)
+					&& pool.get(u2(code, i + 1)) instanceof ClassHandler.ConstantMemberRefInfo method) {
+				uses.directCalls.add(new Selector(method.getCls(), method.getSignature()));
+			} else if (opcode >= 0x2e /* iaload */ && opcode <= 0x35 /* saload */) {
+				uses.arrayLoadedTypes.add(ARRAY_ELEMENT_TYPES[opcode - 0x2e]);
+			} else if (opcode >= 0x4f /* iastore */ && opcode <= 0x56 /* sastore */) {
+				uses.arrayStoredTypes.add(ARRAY_ELEMENT_TYPES[opcode - 0x4f]);
+			} else if (opcode == 0xbc /* newarray */ || opcode == 0xbd /* anewarray */) {
+				uses.allocatesArrays = true;
+			} else if (opcode == 0xbe /* arraylength */) {
+				uses.readsLengths = true;
+			}
+		}
+		return uses;
+	}
+
+	static int instructionLength(byte[] code, int i) {
+		int opcode = Byte.toUnsignedInt(code[i]);
+		if (opcode == 0xc4 /* wide */) return code[i + 1] == (byte) 0x84 /* iinc */ ? 6 : 4;
+		if (opcode != 0xaa && opcode != 0xab) return LENGTHS[opcode];
+		// Operands start 4 byte aligned (from the start of the code), after the default
+		int operands = (i + 4) & ~3;
+		if (opcode == 0xaa /* tableswitch */) {
+			return operands + 12 + (s4(code, operands + 8) - s4(code, operands + 4) + 1) * 4 - i;
+		}
+		return operands + 8 + s4(code, operands + 4) * 8 - i; // lookupswitch
+	}
+
+	static int u2(byte[] code, int i) {
+		return (Byte.toUnsignedInt(code[i]) << 8) | Byte.toUnsignedInt(code[i + 1]);
+	}
+
+	private static int s4(byte[] code, int i) {
+		return (u2(code, i) << 16) | u2(code, i + 2);
+	}
+
+	/**
+	 * Finds what's reachable from the roots, and binds every instance call it makes, once all classes are in.
+	 * @param excluded classes left out of the module, which nothing translated refers to
+	 * @param folded static fields every access to is translated as a constant (or a drop), so needn't be kept
+	 */
+	void seal(Predicate<ClassHandler.ConstantClassInfo> excluded, Predicate<Field> folded) {
+		if (sealed) return;
+		for (Node node : nodes.values()) collectSupertypes(node.name, node.supertypes);
+		mark(excluded, folded);
+		// Only which methods have code is wanted from here on, so the uses (a whole program's worth) can go
+		for (Node node : nodes.values()) node.bodies.replaceAll((method, uses) -> null);
+		Set<Field> accessed = new HashSet<>();
+		for (Field field : used.fields) accessed.add(declaredField(field.owner(), field.field()));
+		// In the order classes were added, instance fields in declaration order
+		for (Node node : nodes.values()) {
+			if (!reachableClasses.contains(node.name)) continue;
+			node.id = ids.size();
+			ids.add(node);
+			for (ClassHandler.ConstantNameAndTypeInfo field : node.fields) {
+				if (accessed.contains(new Field(node.name, field))) fieldIds.put(new Field(node.name, field), fieldIds.size());
+			}
+		}
+		for (Selector call : used.virtualCalls) bind(call);
+		for (Selector call : used.directCalls) {
+			HostFunction host = hostMethod(call.owner(), call.method());
+			if (host != null) hostMethods.put(host.name(), host);
+		}
+		sealed = true;
+	}
+
+	// Worklist over the methods reached, each taking in what its code uses. A class created makes every instance
+	// call made so far reach its body for it, and an instance call every body it runs for a class created so far
+	private void mark(Predicate<ClassHandler.ConstantClassInfo> excluded, Predicate<Field> folded) {
+		Deque<Selector> pending = new ArrayDeque<>(roots);
+		while (!pending.isEmpty()) {
+			Selector method = pending.pop();
+			if (!reachableMethods.add(method)) continue;
+			markClass(method.owner(), excluded, pending);
+			Node node = nodes.get(method.owner());
+			Uses uses = node == null ? null : node.bodies.get(method.method());
+			if (uses == null) continue;
+			used.addAll(uses);
+			for (Selector call : uses.directCalls) {
+				Selector target = directTarget(call.owner(), call.method());
+				if (target != null) pending.add(target);
+			}
+			for (ClassHandler.ConstantClassInfo cls : uses.instantiated) {
+				if (!used.instantiated.add(cls)) continue;
+				markClass(cls, excluded, pending);
+				for (Selector call : used.virtualCalls) reachFor(cls, call, pending);
+			}
+			for (Selector call : uses.virtualCalls) {
+				if (!used.virtualCalls.add(call)) continue;
+				// Bound straight to the owner's body, see bind()
+				Integer flags = nodes.containsKey(call.owner()) ? nodes.get(call.owner()).methods.get(call.method()) : null;
+				if (flags != null && (flags & ClassHandler.MethodInfo.ACC_PRIVATE) != 0) pending.add(call);
+				for (ClassHandler.ConstantClassInfo cls : used.instantiated) reachFor(cls, call, pending);
+			}
+			for (Field field : uses.staticFields) {
+				Field declared = declaredStatic(field.owner(), field.field());
+				if (declared == null || excluded.test(declared.owner())) continue;
+				if (folded.test(declared)) {
+					foldedStatics.add(declared);
+					continue;
+				}
+				reachableStatics.add(declared);
+				markClass(declared.owner(), excluded, pending);
+			}
+			for (ClassHandler.ConstantClassInfo cls : uses.classConstants) markClass(cls, excluded, pending);
+		}
+	}
+
+	// A class is used, so is everything it extends or implements, and its initialiser runs
+	private void markClass(ClassHandler.ConstantClassInfo cls, Predicate<ClassHandler.ConstantClassInfo> excluded,
+	                       Deque<Selector> pending) {
+		Node node = nodes.get(cls);
+		if (node == null || excluded.test(cls) || !reachableClasses.add(cls)) return;
+		ClassHandler.ConstantNameAndTypeInfo initialiser = SymbolTable.nameAndType("<clinit>", "()V");
+		if (node.methods.containsKey(initialiser)) pending.add(new Selector(cls, initialiser));
+		if (node.superClass != null) markClass(node.superClass, excluded, pending);
+		for (ClassHandler.ConstantClassInfo implemented : node.interfaces) markClass(implemented, excluded, pending);
+	}
+
+	// The body an instance call runs for an instance of cls, if cls can be its receiver
+	private void reachFor(ClassHandler.ConstantClassInfo cls, Selector call, Deque<Selector> pending) {
+		Node node = nodes.get(cls);
+		if (node == null || node.isInterface || !node.supertypes.contains(call.owner())) return;
+		ClassHandler.ConstantClassInfo implementation = implementation(cls, call.method());
+		if (implementation != null) pending.add(new Selector(implementation, call.method()));
+	}
+
+	/**
+	 * The class whose body invokestatic of owner's method runs, which may be one owner inherits it from, as the
+	 * mark phase resolves it. Usable once every class is added.
+	 * @return null if that's somewhere not loaded
+	 */
+	@Nullable ClassHandler.ConstantClassInfo directOwner(ClassHandler.ConstantClassInfo owner,
+	                                                    ClassHandler.ConstantNameAndTypeInfo method) {
+		Selector target = directTarget(owner, method);
+		return target == null ? null : target.owner();
+	}
+
+	// What invokestatic or invokespecial of method on owner runs: the nearest declaration with a body, looking up
+	// from owner, else a default method
+	private @Nullable Selector directTarget(ClassHandler.ConstantClassInfo owner, ClassHandler.ConstantNameAndTypeInfo method) {
+		for (Node node = nodes.get(owner); node != null; node = node.superClass == null ? null : nodes.get(node.superClass)) {
+			Integer flags = node.methods.get(method);
+			if (flags != null && (flags & ClassHandler.MethodInfo.ACC_ABSTRACT) == 0) return new Selector(node.name, method);
+		}
+		ClassHandler.ConstantClassInfo implementation = implementation(owner, method);
+		return implementation == null ? null : new Selector(implementation, method);
+	}
+
+	/**
+	 * The static field a getstatic or putstatic of owner's field names: declared there, in a superinterface or a
+	 * superclass. Usable once every class is added.
+	 * @return null if that's somewhere not loaded
+	 */
+	@Nullable Field declaredStatic(ClassHandler.ConstantClassInfo owner, ClassHandler.ConstantNameAndTypeInfo field) {
+		Node node = nodes.get(owner);
+		if (node == null) return null;
+		if (node.staticFields.contains(field)) return new Field(owner, field);
+		for (ClassHandler.ConstantClassInfo implemented : node.interfaces) {
+			Field declared = declaredStatic(implemented, field);
+			if (declared != null) return declared;
+		}
+		return node.superClass == null ? null : declaredStatic(node.superClass, field);
+	}
+
+	private void collectSupertypes(ClassHandler.ConstantClassInfo type, Set<ClassHandler.ConstantClassInfo> to) {
+		if (!to.add(type)) return;
+		Node node = nodes.get(type);
+		if (node == null) return;
+		if (node.superClass != null) collectSupertypes(node.superClass, to);
+		for (ClassHandler.ConstantClassInfo implemented : node.interfaces) collectSupertypes(implemented, to);
+	}
+
+	private void bind(Selector call) {
+		HostFunction host = hostMethod(call.owner(), call.method());
+		if (host != null) {
+			hostMethods.put(host.name(), host);
+			return;
+		}
+		Node owner = nodes.get(call.owner());
+		if (owner == null) {
+			unbound.put(call, call.owner().name() + " isn't loaded");
+			return;
+		}
+		// Private methods aren't overridden
+		Integer flags = owner.methods.get(call.method());
+		if (flags != null && (flags & ClassHandler.MethodInfo.ACC_PRIVATE) != 0) {
+			dispatches.put(call, new Dispatch(List.of(new Target(owner.name, call.method(), new int[0])), -1));
+			return;
+		}
+		Map<ClassHandler.ConstantClassInfo, List<Integer>> classesByTarget = new LinkedHashMap<>();
+		for (ClassHandler.ConstantClassInfo cls : used.instantiated) {
+			Node node = nodes.get(cls);
+			if (node == null || node.isInterface || !node.supertypes.contains(call.owner())) continue;
+			ClassHandler.ConstantClassInfo implementation = implementation(cls, call.method());
+			if (implementation == null) {
+				unbound.put(call, "the body " + cls.name() + " runs isn't loaded");
+				return;
+			}
+			classesByTarget.computeIfAbsent(implementation, x -> new ArrayList<>()).add(node.id);
+		}
+		List<Target> targets = new ArrayList<>();
+		for (var entry : classesByTarget.entrySet()) {
+			targets.add(new Target(entry.getKey(), call.method(),
+					entry.getValue().stream().mapToInt(Integer::intValue).toArray()));
+		}
+		// The last target is what's left when every other test fails, so it may as well be the one with the most classes
+		targets.sort(Comparator.comparingInt(target -> target.classIds().length));
+		int tests = 0;
+		for (int i = 0; i < targets.size() - 1; i++) tests += targets.get(i).classIds().length;
+		int tableOffset = -1;
+		Dispatch dispatch;
+		if (tests > MAX_TYPE_TESTS) {
+			tableOffset = tableRows.size() * ids.size();
+			dispatch = new Dispatch(List.copyOf(targets), tableOffset);
+			tableRows.add(dispatch);
+		} else dispatch = new Dispatch(List.copyOf(targets), tableOffset);
+		dispatches.put(call, dispatch);
+	}
+
+	/**
+	 * The class whose body of method runs for an instance of cls: its own or its nearest superclass's, else
+	 * a default method from an interface.
+	 * @return null if that's somewhere not loaded
+	 */
+	@Nullable ClassHandler.ConstantClassInfo implementation(ClassHandler.ConstantClassInfo cls,
+	                                                       ClassHandler.ConstantNameAndTypeInfo method) {
+		Node node = nodes.get(cls);
+		for (Node current = node; current != null;
+		     current = current.superClass == null ? null : nodes.get(current.superClass)) {
+			Integer flags = current.methods.get(method);
+			if (flags != null && (flags & (ClassHandler.MethodInfo.ACC_STATIC | ClassHandler.MethodInfo.ACC_ABSTRACT)) == 0) {
+				return current.name;
+			}
+		}
+		if (node == null) return null;
+		for (ClassHandler.ConstantClassInfo type : node.supertypes) {
+			Node implemented = nodes.get(type);
+			if (implemented == null || !implemented.isInterface) continue;
+			Integer flags = implemented.methods.get(method);
+			if (flags != null && (flags & (ClassHandler.MethodInfo.ACC_STATIC | ClassHandler.MethodInfo.ACC_ABSTRACT
+					| ClassHandler.MethodInfo.ACC_PRIVATE)) == 0) return implemented.name;
+		}
+		return null;
+	}
+
+	boolean isReachable(ClassHandler.ConstantClassInfo cls) {
+		return reachableClasses.contains(cls);
+	}
+
+	boolean isReachable(ClassHandler.ConstantClassInfo owner, ClassHandler.ConstantNameAndTypeInfo method) {
+		return reachableMethods.contains(new Selector(owner, method));
+	}
+
+	boolean isReachableStatic(ClassHandler.ConstantClassInfo owner, ClassHandler.ConstantNameAndTypeInfo field) {
+		return reachableStatics.contains(new Field(owner, field));
+	}
+
+	/**
+	 * What the mark phase left out, and why: unused classes as a whole, then the methods & static fields of
+	 * the rest that aren't.
+	 */
+	String report() {
+		int methods = 0, keptMethods = 0, statics = 0;
+		StringBuilder removed = new StringBuilder();
+		for (Node node : nodes.values()) {
+			int bodies = node.bodies.size();
+			methods += bodies;
+			statics += node.staticFields.size();
+			if (!reachableClasses.contains(node.name)) {
+				removed.append(String.format("  class %s (%d methods, %d static fields): never used by reachable code%n",
+						node.name.name(), bodies, node.staticFields.size()));
+				continue;
+			}
+			for (ClassHandler.ConstantNameAndTypeInfo method : node.bodies.keySet()) {
+				if (reachableMethods.contains(new Selector(node.name, method))) {
+					keptMethods++;
+					continue;
+				}
+				boolean called = false;
+				for (Selector call : used.virtualCalls) {
+					called |= call.method() == method && node.supertypes.contains(call.owner());
+				}
+				removed.append(String.format("  method %s.%s%s: %s%n", node.name.name(), method.name(), method.descriptor(),
+						called ? "only called on instances of classes never created" : "never called"));
+			}
+			for (ClassHandler.ConstantNameAndTypeInfo field : node.staticFields) {
+				if (reachableStatics.contains(new Field(node.name, field))) continue;
+				Field unused = new Field(node.name, field);
+				removed.append(String.format("  static field %s.%s: %s%n", node.name.name(), field.name(),
+						foldedStatics.contains(unused) ? "constant, read as its value" : "never read or written"));
+			}
+		}
+		return String.format("Tree shaking: kept %d of %d classes, %d of %d methods, %d of %d static fields%n",
+				reachableClasses.size(), nodes.size(), keptMethods, methods, reachableStatics.size(), statics) + removed;
+	}
+
+	// For invokevirtual & invokeinterface
+	Dispatch dispatch(ClassHandler.ConstantMemberRefInfo method) {
+		Selector call = new Selector(method.getCls(), method.getSignature());
+		Dispatch dispatch = dispatches.get(call);
+		if (dispatch != null) return dispatch;
+		String reason = unbound.get(call);
+		throw new RuntimeException("Can't bind call to " + method.getCls().name() + "." + method.getSignature().name()
+				+ method.getSignature().descriptor() + (reason != null ? ": " + reason : ", it wasn't seen in any class"));
+	}
+
+	/**
+	 * The host function a call to method is, if it would run code of a class that isn't loaded (the first
+	 * one up from owner) which the host stands in for, see the class comment.
+	 * @return null if it isn't one, or runs loaded code
+	 */
+	@Nullable HostFunction hostMethod(ClassHandler.ConstantClassInfo owner, ClassHandler.ConstantNameAndTypeInfo method) {
+		ClassHandler.ConstantClassInfo cls = owner;
+		for (Node node; (node = nodes.get(cls)) != null; cls = node.superClass) {
+			Integer flags = node.methods.get(method);
+			if (flags != null && (flags & ClassHandler.MethodInfo.ACC_ABSTRACT) == 0 || node.superClass == null) return null;
+		}
+		Map<String, HostMethod> methods = HOST_METHODS.get(cls.name().startsWith("[") ? "[" : cls.name());
+		HostMethod host = methods == null ? null : methods.get(method.name() + method.descriptor());
+		if (host == null) return null;
+		return new HostFunction(host.name(), MethodDescriptor.parse(method.descriptor()).functionType(host.isStatic()));
+	}
+
+	@Nullable HostFunction hostMethod(ClassHandler.ConstantMemberRefInfo method) {
+		return hostMethod(method.getCls(), method.getSignature());
+	}
+
+	// Import names are UTF-8, which strings with unpaired surrogates can't be written in
+	static boolean importable(String value) {
+		return StandardCharsets.UTF_8.newEncoder().canEncode(value);
+	}
+
+	/**
+	 * For invokespecial, which names the class to look from (a superclass for super calls).
+	 * @return null if the body isn't loaded
+	 */
+	@Nullable Dispatch special(ClassHandler.ConstantMemberRefInfo method) {
+		ClassHandler.ConstantClassInfo implementation = implementation(method.getCls(), method.getSignature());
+		if (implementation == null) return null;
+		return new Dispatch(List.of(new Target(implementation, method.getSignature(), new int[0])), -1);
+	}
+
+	/**
+	 * The instance field a getfield or putfield of this names: declared there or in a superclass.
+	 * @throws RuntimeException if it isn't in a loaded class
+	 */
+	Field resolveField(ClassHandler.ConstantClassInfo owner, ClassHandler.ConstantNameAndTypeInfo field) {
+		Field declared = declaredField(owner, field);
+		if (declared == null) throw new RuntimeException("No instance field " + owner.name() + "." + field.name() + " in loaded classes");
+		return declared;
+	}
+
+	private @Nullable Field declaredField(ClassHandler.ConstantClassInfo owner, ClassHandler.ConstantNameAndTypeInfo field) {
+		for (Node node = nodes.get(owner); node != null; node = node.superClass == null ? null : nodes.get(node.superClass)) {
+			if (node.fields.contains(field)) return new Field(node.name, field);
+		}
+		return null;
+	}
+
+	int fieldId(ClassHandler.ConstantClassInfo owner, ClassHandler.ConstantNameAndTypeInfo field) {
+		return fieldIds.get(resolveField(owner, field));
+	}
+
+	int classId(ClassHandler.ConstantClassInfo cls) {
+		Node node = nodes.get(cls);
+		if (node == null) throw new RuntimeException("Class " + cls.name() + " isn't loaded");
+		if (node.id < 0) throw new RuntimeException("Class " + cls.name() + " isn't reachable");
+		if (node.isInterface) throw new RuntimeException("Can't instantiate interface " + cls.name());
+		return node.id;
+	}
+
+	// Getter & setter names by field type
+	static String getter(ValueType type) {
+		return "get_" + typeName(type);
+	}
+
+	static String setter(ValueType type) {
+		return "set_" + typeName(type);
+	}
+
+	static String arrayGetter(ValueType type) {
+		return "array_get_" + typeName(type);
+	}
+
+	static String arraySetter(ValueType type) {
+		return "array_set_" + typeName(type);
+	}
+
+	private static String typeName(ValueType type) {
+		return type instanceof NumericType numeric ? numeric.name().toLowerCase() : "ref";
+	}
+
+	// What the host has to provide for the code seen, see the class comment
+	List<HostFunction> hostFunctions() {
+		List<HostFunction> result = new ArrayList<>();
+		boolean needsClassId = false;
+		for (Dispatch dispatch : dispatches.values()) needsClassId |= dispatch.needsClassId();
+		if (needsClassId) result.add(new HostFunction(CLASS_ID, functionType(List.of(Operation.REFERENCE), NumericType.I32)));
+		if (used.allocates) result.add(new HostFunction(NEW, functionType(List.of(NumericType.I32), Operation.REFERENCE)));
+		for (ValueType type : used.loadedTypes) {
+			result.add(new HostFunction(getter(type), functionType(List.of(Operation.REFERENCE, NumericType.I32), type)));
+		}
+		for (ValueType type : used.storedTypes) {
+			result.add(new HostFunction(setter(type), functionType(List.of(Operation.REFERENCE, type, NumericType.I32), null)));
+		}
+		if (used.allocatesArrays) {
+			result.add(new HostFunction(NEW_ARRAY, functionType(List.of(NumericType.I32, NumericType.I32), Operation.REFERENCE)));
+		}
+		boolean accessesArrays = !used.arrayLoadedTypes.isEmpty() || !used.arrayStoredTypes.isEmpty();
+		if (accessesArrays || used.readsLengths) {
+			result.add(new HostFunction(ARRAY_LENGTH, functionType(List.of(Operation.REFERENCE), NumericType.I32)));
+		}
+		if (accessesArrays) result.add(new HostFunction(INDEX_OUT_OF_BOUNDS, functionType(List.of(), null)));
+		for (ValueType type : used.arrayLoadedTypes) {
+			result.add(new HostFunction(arrayGetter(type), functionType(List.of(Operation.REFERENCE, NumericType.I32), type)));
+		}
+		for (ValueType type : used.arrayStoredTypes) {
+			result.add(new HostFunction(arraySetter(type), functionType(List.of(Operation.REFERENCE, NumericType.I32, type), null)));
+		}
+		if (!used.classConstants.isEmpty()) result.add(new HostFunction(CLASS, functionType(List.of(NumericType.I32), Operation.REFERENCE)));
+		result.addAll(hostMethods.values());
+		return result;
+	}
+
+	// One function returning each string constant, named by its value, for the host to import them from
+	List<HostFunction> stringConstants() {
+		List<HostFunction> result = new ArrayList<>();
+		for (String value : used.strings) result.add(new HostFunction(value, STRING_CONSTANT));
+		return result;
+	}
+
+	private static FunctionType functionType(List<ValueType> parameters, @Nullable ValueType result) {
+		ResultType arguments = new ResultType();
+		arguments.addAll(parameters);
+		ResultType results = new ResultType();
+		if (result != null) results.add(result);
+		return new FunctionType(arguments, results);
+	}
+
+	int classCount() {
+		return ids.size();
+	}
+
+	// Each a block of classCount() entries, indexed by class id, at its tableOffset
+	List<Dispatch> tableRows() {
+		return Collections.unmodifiableList(tableRows);
+	}
+
+	// In class id order
+	List<ClassHandler.ConstantClassInfo> classes() {
+		return ids.stream().map(node -> node.name).toList();
+	}
+}
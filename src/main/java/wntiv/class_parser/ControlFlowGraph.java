@@ -0,0 +1,257 @@
+package wntiv.class_parser;
+
+import org.jetbrains.annotations.Nullable;
+import wntiv.ir.IrBlock;
+import wntiv.ir.IrFunction;
+import wntiv.wasm_output.types.ValueType;
+
+import java.util.*;
+
+/**
+ * Basic blocks of a method, with their dominator tree. Blocks are numbered in reverse postorder, so an edge
+ * to a block with an equal or lower number is a back edge (a loop). Blocks unreachable from the entry
+ * (for now that includes exception handlers) are left out.
+ * <p>
+ * Only reducible graphs are accepted, i.e. every loop is entered through a single header that dominates
+ * it. javac never emits anything else, and it's what lets {@link Stackifier} use plain wasm loops.
+ * <p>
+ * A graph can also be built over an {@link IrFunction}, once passes have changed its shape, to lay that out.
+ */
+final class ControlFlowGraph {
+	static final class Block {
+		// Instruction indices, [start, end). Both 0 when built from IR
+		final int start, end;
+		// The IR block this stands for, in a graph built from an IrFunction
+		final @Nullable IrBlock ir;
+		// How control leaves the block, which decides what the Stackifier writes after it
+		IrBlock.Exit exit = IrBlock.Exit.JUMP;
+		// For a branch, its targets in the order Branch.targets() gives them, then the fall through (if any)
+		final List<Block> successors = new ArrayList<>();
+		final List<Block> predecessors = new ArrayList<>();
+		// Children in the dominator tree
+		final List<Block> dominated = new ArrayList<>();
+		int order = -1; // reverse postorder number
+		Block dominator; // immediate dominator, the entry is its own
+		boolean loopHeader; // target of a back edge
+		boolean mergeNode; // 2 or more forward edges in, so has to be placed after a wasm block
+		// Operand stack (below any condition or switch index) on the way in & out, see assignStacks
+		List<ValueType> entryStack = List.of();
+		List<ValueType> exitStack = List.of();
+
+		private Block(int start, int end, @Nullable IrBlock ir) {
+			this.start = start;
+			this.end = end;
+			this.ir = ir;
+		}
+
+		public @Nullable Operation.Branch terminator(InstructionStore code) {
+			return code.op(end - 1) instanceof Operation.Branch branch ? branch : null;
+		}
+
+		@Override
+		public String toString() {
+			if (ir != null) return "B" + order + "(" + ir + ")";
+			return "B" + order + "[" + start + ", " + end + ")";
+		}
+	}
+
+	private final @Nullable InstructionStore code; // null when built from IR
+	private final List<Block> blocks;
+
+	ControlFlowGraph(InstructionStore code, String methodName) {
+		this.code = code;
+		if (code.size() == 0) throw new RuntimeException("No code in " + methodName);
+		Block[] blockAt = splitBlocks(methodName);
+		linkBlocks(blockAt, methodName);
+		blocks = reversePostorder(blockAt[0]);
+		for (Block block : blocks) block.predecessors.removeIf(predecessor -> predecessor.order < 0);
+		computeDominators();
+		classifyEdges(methodName);
+	}
+
+	ControlFlowGraph(IrFunction function) {
+		this.code = null;
+		Map<IrBlock, Block> blockFor = new HashMap<>();
+		for (IrBlock irBlock : function.blocks) {
+			Block block = new Block(0, 0, irBlock);
+			block.exit = irBlock.exit;
+			blockFor.put(irBlock, block);
+		}
+		for (IrBlock irBlock : function.blocks) {
+			for (IrBlock successor : irBlock.successors) link(blockFor.get(irBlock), blockFor.get(successor));
+		}
+		blocks = reversePostorder(blockFor.get(function.start()));
+		for (Block block : blocks) block.predecessors.removeIf(predecessor -> predecessor.order < 0);
+		computeDominators();
+		classifyEdges(function.name);
+	}
+
+	// Blocks indexed by their first instruction
+	private Block[] splitBlocks(String methodName) {
+		InstructionStore code = code();
+		boolean[] leaders = new boolean[code.size() + 1];
+		leaders[0] = true;
+		for (int i = 0; i < code.size(); i++) {
+			if (!(code.op(i) instanceof Operation.Branch branch)) continue;
+			for (int target : branch.targets(code.offset(i))) leaders[instructionAt(target, methodName)] = true;
+			leaders[i + 1] = true;
+		}
+		Block[] blockAt = new Block[code.size()];
+		int start = 0;
+		for (int i = 1; i <= code.size(); i++) {
+			if (!leaders[i]) continue;
+			blockAt[start] = new Block(start, i, null);
+			start = i;
+		}
+		return blockAt;
+	}
+
+	private void linkBlocks(Block[] blockAt, String methodName) {
+		InstructionStore code = code();
+		for (Block block : blockAt) {
+			if (block == null) continue;
+			Operation.Branch branch = block.terminator(code);
+			if (branch != null) {
+				for (int target : branch.targets(code.offset(block.end - 1))) {
+					link(block, blockAt[instructionAt(target, methodName)]);
+				}
+			}
+			if (branch == null || branch.fallsThrough()) {
+				if (block.end == code.size()) throw new RuntimeException("Code falls off the end of " + methodName);
+				link(block, blockAt[block.end]);
+			}
+			if (branch instanceof Operation.Conditional) block.exit = IrBlock.Exit.IF;
+			else if (branch instanceof Operation.Switch) block.exit = IrBlock.Exit.SWITCH;
+			else if (block.successors.isEmpty()) block.exit = IrBlock.Exit.RETURN;
+		}
+	}
+
+	private static void link(Block from, Block to) {
+		from.successors.add(to);
+		to.predecessors.add(from);
+	}
+
+	private int instructionAt(int offset, String methodName) {
+		int index = code().indexOf(offset);
+		if (index < 0) throw new RuntimeException("Branch to " + offset + " is not an instruction in " + methodName);
+		return index;
+	}
+
+	// Iterative, a recursive walk would overflow on long methods
+	private static List<Block> reversePostorder(Block entry) {
+		List<Block> postorder = new ArrayList<>();
+		Set<Block> visited = new HashSet<>();
+		Deque<Block> path = new ArrayDeque<>();
+		Deque<Integer> nextSuccessor = new ArrayDeque<>();
+		visited.add(entry);
+		path.push(entry);
+		nextSuccessor.push(0);
+		while (!path.isEmpty()) {
+			Block block = path.peek();
+			int next = nextSuccessor.pop();
+			if (next < block.successors.size()) {
+				nextSuccessor.push(next + 1);
+				Block successor = block.successors.get(next);
+				if (visited.add(successor)) {
+					path.push(successor);
+					nextSuccessor.push(0);
+				}
+			} else {
+				postorder.add(path.pop());
+			}
+		}
+		Collections.reverse(postorder);
+		for (int i = 0; i < postorder.size(); i++) postorder.get(i).order = i;
+		return Collections.unmodifiableList(postorder);
+	}
+
+	// Cooper, Harvey & Kennedy, "A Simple, Fast Dominance Algorithm"
+	private void computeDominators() {
+		Block entry = entry();
+		entry.dominator = entry;
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (int i = 1; i < blocks.size(); i++) {
+				Block block = blocks.get(i);
+				Block dominator = null;
+				for (Block predecessor : block.predecessors) {
+					if (predecessor.dominator == null) continue; // not processed yet
+					dominator = dominator == null ? predecessor : intersect(predecessor, dominator);
+				}
+				if (dominator != block.dominator) {
+					block.dominator = dominator;
+					changed = true;
+				}
+			}
+		}
+		for (int i = 1; i < blocks.size(); i++) blocks.get(i).dominator.dominated.add(blocks.get(i));
+	}
+
+	private static Block intersect(Block a, Block b) {
+		while (a != b) {
+			while (a.order > b.order) a = a.dominator;
+			while (b.order > a.order) b = b.dominator;
+		}
+		return a;
+	}
+
+	private void classifyEdges(String methodName) {
+		for (Block block : blocks) {
+			int forwardEdges = 0;
+			for (Block predecessor : block.predecessors) {
+				if (predecessor.order < block.order) {
+					forwardEdges++;
+				} else if (dominates(block, predecessor)) {
+					block.loopHeader = true;
+				} else {
+					throw new RuntimeException("Irreducible control flow in " + methodName + ": " + predecessor
+							+ " jumps back into a loop at " + block + " without going through its header");
+				}
+			}
+			block.mergeNode = forwardEdges >= 2;
+		}
+	}
+
+	/**
+	 * Sets each block's entry & exit stack from the stack map's, which covers every branch target. Blocks
+	 * that are only fallen into have none, but share a predecessor with a target that does, and every
+	 * successor of a block sees the same stack.
+	 * @param stacks non-empty operand stacks by bytecode offset
+	 */
+	void assignStacks(Map<Integer, List<ValueType>> stacks) {
+		if (stacks.isEmpty()) return;
+		InstructionStore code = code();
+		for (Block block : blocks) {
+			for (Block successor : block.successors) {
+				List<ValueType> stack = stacks.get(code.offset(successor.start));
+				if (stack != null) {
+					block.exitStack = stack;
+					break;
+				}
+			}
+		}
+		for (Block block : blocks) {
+			List<ValueType> stack = stacks.get(code.offset(block.start));
+			if (stack != null) block.entryStack = stack;
+			else if (!block.predecessors.isEmpty()) block.entryStack = block.predecessors.get(0).exitStack;
+		}
+	}
+
+	public boolean dominates(Block a, Block b) {
+		while (b.order > a.order) b = b.dominator;
+		return a == b;
+	}
+
+	public Block entry() {
+		return blocks.get(0);
+	}
+
+	public List<Block> blocks() {
+		return blocks;
+	}
+
+	public InstructionStore code() {
+		return Objects.requireNonNull(code, "Graph wasn't built from bytecode");
+	}
+}
@@ -0,0 +1,66 @@
+package wntiv.class_parser;
+
+import org.jetbrains.annotations.Nullable;
+import wntiv.ir.Inliner;
+import wntiv.ir.IrFunction;
+import wntiv.ir.Opaque;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Binds a method's calls with a single target (invokestatic, and instance calls {@link ClassHierarchy}
+ * narrowed to one body) to that body for the {@link Inliner}. Each target's code is decoded once, then built
+ * into fresh IR for every call site it's inlined at.
+ */
+final class DirectCallResolver implements Inliner.CallResolver {
+	final class Callee implements Inliner.Callee {
+		final ClassHandler.MethodInfo method;
+		private @Nullable IntermediaryMethod decoded;
+		private boolean undecodable;
+
+		private Callee(ClassHandler.MethodInfo method) {
+			this.method = method;
+		}
+
+		@Override
+		public String name() {
+			return method.ownerClass.this_class.name() + "." + method.name + method.descriptor;
+		}
+
+		@Override
+		public @Nullable IrFunction instantiate() {
+			if (undecodable) return null;
+			try {
+				if (decoded == null) decoded = new IntermediaryMethod(method, caller.getModule(), caller.bindings);
+				return decoded.buildIr();
+			} catch (RuntimeException e) {
+				// Uses something that isn't implemented, which its own translation reports
+				undecodable = true;
+				return null;
+			}
+		}
+	}
+
+	private final IntermediaryMethod caller;
+	private final Map<ClassHandler.MethodInfo, Callee> callees = new HashMap<>();
+
+	DirectCallResolver(IntermediaryMethod caller) {
+		this.caller = caller;
+	}
+
+	@Override
+	public @Nullable Callee resolve(Opaque call) {
+		if (!(call.payload instanceof SsaBuilder.Source source)) return null;
+		ClassHandler.MethodInfo target;
+		ClassHandler caller = this.caller.getInfo().ownerClass;
+		if (source.op() instanceof Operation.InvokeMethod invoke) {
+			var owner = this.caller.bindings.getHierarchy().directOwner(invoke.method().getCls(), invoke.method().getSignature());
+			target = owner == null ? null : this.caller.bindings.findMethod(caller, owner, invoke.method().getSignature(), true);
+		} else if (source.op() instanceof Operation.InvokeInstance invoke && invoke.dispatch().targets().size() == 1) {
+			ClassHierarchy.Target only = invoke.dispatch().targets().get(0);
+			target = this.caller.bindings.findMethod(caller, only.owner(), only.method(), false);
+		} else return null;
+		return target == null ? null : callees.computeIfAbsent(target, Callee::new);
+	}
+}
@@ -0,0 +1,241 @@
+package wntiv.class_parser;
+
+import org.jetbrains.annotations.Nullable;
+import wntiv.wasm_output.RelocatableFunction;
+import wntiv.wasm_output.Util;
+import wntiv.wasm_output.WasmModule;
+import wntiv.wasm_output.types.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Assets as passive data segments of the module itself, in place of a sidecar assets.zip. Nothing is
+ * copied into linear memory at instantiation, the exported {@code resource(id) -> address} function does
+ * that on first access to each one (then drops the segment), so startup cost doesn't grow with the number
+ * of assets.
+ * <p>
+ * Memory layout: [0, 4 * (count + 1)) holds each resource's address once loaded, 0 until then (memory starts
+ * zeroed, so this needs no initialising). Loaded resources are bump allocated after it, each as
+ * {@code u4 length; u1 bytes[length]}, 8 byte aligned.
+ * <p>
+ * Resource 0 is the name table, {@code u4 count; { u4 length; u1 utf8[length] }[count]}, naming resources
+ * 1..count in order. It's loaded the same way as any other.
+ */
+class EmbeddedAssets implements AssetSink {
+	private interface AssetSource {
+		ByteBuffer read() throws IOException;
+	}
+	private final Map<String, AssetSource> assets = new LinkedHashMap<>();
+
+	@Override
+	public synchronized boolean copyRaw(MappedJarReader source, MappedJarReader.Entry entry) {
+		if (entry.isDirectory()) return false;
+		// Only inflated when the module is written
+		return assets.putIfAbsent(entry.name(), () -> source.read(entry)) == null;
+	}
+
+	@Override
+	public synchronized boolean addStored(String name, byte[] data, int dosTime) {
+		if (name.endsWith("/")) return false;
+		return assets.putIfAbsent(name, () -> ByteBuffer.wrap(data)) == null;
+	}
+
+	@Override
+	public void flush(@Nullable ForkJoinPool pool) {}
+
+	@Override
+	public void close() {}
+
+	/**
+	 * Adds a memory, the data segments and the exported functions. Must come after every method has been
+	 * added, so the generated functions don't shift their indices.
+	 */
+	public void writeTo(WasmModule module) {
+		if (module.memoryCount() != 0) throw new RuntimeException("Embedded assets expect to own memory 0");
+		List<byte[]> contents = new ArrayList<>(assets.size() + 1);
+		contents.add(nameTable());
+		try {
+			for (AssetSource source : assets.values()) {
+				ByteBuffer data = source.read();
+				byte[] bytes = new byte[data.remaining()];
+				data.get(bytes);
+				contents.add(bytes);
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		int[] segments = new int[contents.size()];
+		for (int i = 0; i < contents.size(); i++) segments[i] = module.addPassiveData(contents.get(i));
+
+		int heapStart = align(Integer.BYTES * contents.size());
+		int memoryIndex = module.addMemory(new Limits(Math.max(1, (heapStart + 0xFFFF) >>> 16)));
+		int heapTop = module.addGlobal(heapStart, true);
+		ResultType i32 = new ResultType();
+		i32.add(NumericType.I32);
+		FunctionType type = new FunctionType(i32, i32);
+		IndexType reserve = module.addFunction(type, reserveFunction(heapTop));
+		IndexType resource = module.addFunction(type, resourceFunction(reserve, contents, segments));
+		module.exportFunction("resource", resource);
+		module.exportMemory("memory", memoryIndex);
+	}
+
+	private byte[] nameTable() {
+		ByteBuffer table = ByteBuffer.allocate(Integer.BYTES + assets.keySet().stream()
+				.mapToInt(name -> Integer.BYTES + name.getBytes(StandardCharsets.UTF_8).length).sum());
+		table.order(ByteOrder.LITTLE_ENDIAN); // Same as wasm memory
+		table.putInt(assets.size());
+		for (String name : assets.keySet()) {
+			byte[] utf8 = name.getBytes(StandardCharsets.UTF_8);
+			table.putInt(utf8.length);
+			table.put(utf8);
+		}
+		return table.array();
+	}
+
+	private static int align(int address) {
+		return (address + 7) & -8;
+	}
+
+	// reserve(length) -> address: bump allocates room for a length prefixed resource, growing memory if
+	// needed, and writes the prefix
+	private static RelocatableFunction reserveFunction(int heapTop) {
+		return function(code -> {
+			code.writeByte(0x23); Util.writeVarUInt(code, heapTop); // global.get heap_top
+			code.writeByte(0x21); Util.writeVarUInt(code, 1); // local.set address
+			// heap_top = align(address + 4 + length)
+			code.writeByte(0x20); Util.writeVarUInt(code, 1); // local.get address
+			code.writeByte(0x20); Util.writeVarUInt(code, 0); // local.get length
+			code.writeByte(0x6A); // i32.add
+			code.writeByte(0x41); Util.writeVarInt(code, Integer.BYTES + 7); // i32.const
+			code.writeByte(0x6A); // i32.add
+			code.writeByte(0x41); Util.writeVarInt(code, -8); // i32.const
+			code.writeByte(0x71); // i32.and
+			code.writeByte(0x24); Util.writeVarUInt(code, heapTop); // global.set heap_top
+			// if heap_top > memory.size * 64K, grow by the pages missing
+			code.writeByte(0x23); Util.writeVarUInt(code, heapTop); // global.get heap_top
+			writeMemoryBytes(code);
+			code.writeByte(0x4B); // i32.gt_u
+			code.writeByte(0x04); code.writeByte(0x40); // if
+			{
+				code.writeByte(0x23); Util.writeVarUInt(code, heapTop); // global.get heap_top
+				writeMemoryBytes(code);
+				code.writeByte(0x6B); // i32.sub
+				code.writeByte(0x41); Util.writeVarInt(code, 0xFFFF); // i32.const
+				code.writeByte(0x6A); // i32.add
+				code.writeByte(0x41); Util.writeVarInt(code, 16); // i32.const
+				code.writeByte(0x76); // i32.shr_u
+				code.writeByte(0x40); code.writeByte(0x00); // memory.grow 0
+				code.writeByte(0x41); Util.writeVarInt(code, -1); // i32.const
+				code.writeByte(0x46); // i32.eq
+				code.writeByte(0x04); code.writeByte(0x40); // if
+				code.writeByte(0x00); // unreachable: out of memory
+				code.writeByte(0x0B); // end
+			}
+			code.writeByte(0x0B); // end
+			code.writeByte(0x20); Util.writeVarUInt(code, 1); // local.get address
+			code.writeByte(0x20); Util.writeVarUInt(code, 0); // local.get length
+			code.writeByte(0x36); code.writeByte(0x02); code.writeByte(0x00); // i32.store align=4
+			code.writeByte(0x20); Util.writeVarUInt(code, 1); // local.get address
+		});
+	}
+
+	private static void writeMemoryBytes(DataOutputStream code) throws IOException {
+		code.writeByte(0x3F); code.writeByte(0x00); // memory.size 0
+		code.writeByte(0x41); Util.writeVarInt(code, 16); // i32.const
+		code.writeByte(0x74); // i32.shl
+	}
+
+	// resource(id) -> address, or 0 for an unknown id
+	private static RelocatableFunction resourceFunction(IndexType reserve, List<byte[]> contents, int[] segments) {
+		int count = contents.size();
+		return function(code -> {
+			// Unknown id, the table slot would be out of bounds
+			code.writeByte(0x20); Util.writeVarUInt(code, 0); // local.get id
+			code.writeByte(0x41); Util.writeVarInt(code, count); // i32.const
+			code.writeByte(0x4F); // i32.ge_u
+			code.writeByte(0x04); code.writeByte(0x40); // if
+			code.writeByte(0x41); Util.writeVarInt(code, 0); // i32.const
+			code.writeByte(0x0F); // return
+			code.writeByte(0x0B); // end
+			// Already loaded?
+			writeTableSlot(code);
+			code.writeByte(0x28); code.writeByte(0x02); code.writeByte(0x00); // i32.load align=4
+			code.writeByte(0x22); Util.writeVarUInt(code, 1); // local.tee address
+			code.writeByte(0x04); code.writeByte(0x40); // if
+			code.writeByte(0x20); Util.writeVarUInt(code, 1); // local.get address
+			code.writeByte(0x0F); // return
+			code.writeByte(0x0B); // end
+
+			// Nested blocks: $loaded { $missing { $arm_count-1 { ... $arm_0 { br_table } arm 0 } ... } }
+			code.writeByte(0x02); code.writeByte(0x40); // block $loaded
+			code.writeByte(0x02); code.writeByte(0x40); // block $missing
+			for (int i = 0; i < count; i++) {
+				code.writeByte(0x02); code.writeByte(0x40); // block $arm_i
+			}
+			code.writeByte(0x20); Util.writeVarUInt(code, 0); // local.get id
+			code.writeByte(0x0E); // br_table
+			Util.writeVarUInt(code, count);
+			for (int i = 0; i < count; i++) Util.writeVarUInt(code, i);
+			Util.writeVarUInt(code, count); // default: $missing
+			for (int i = 0; i < count; i++) {
+				code.writeByte(0x0B); // end $arm_i
+				int length = contents.get(i).length;
+				code.writeByte(0x41); Util.writeVarInt(code, length); // i32.const
+				code.writeByte(0x10); Util.writeVarUInt(code, reserve.index()); // call reserve
+				code.writeByte(0x22); Util.writeVarUInt(code, 1); // local.tee address
+				code.writeByte(0x41); Util.writeVarInt(code, Integer.BYTES); // i32.const
+				code.writeByte(0x6A); // i32.add
+				code.writeByte(0x41); Util.writeVarInt(code, 0); // i32.const (segment offset)
+				code.writeByte(0x41); Util.writeVarInt(code, length); // i32.const
+				code.writeByte(0xFC); Util.writeVarUInt(code, 8); // memory.init
+				Util.writeVarUInt(code, segments[i]);
+				code.writeByte(0x00);
+				code.writeByte(0xFC); Util.writeVarUInt(code, 9); // data.drop, never needed again
+				Util.writeVarUInt(code, segments[i]);
+				code.writeByte(0x0C); Util.writeVarUInt(code, count - i); // br $loaded
+			}
+			code.writeByte(0x0B); // end $missing
+			code.writeByte(0x41); Util.writeVarInt(code, 0); // i32.const
+			code.writeByte(0x0F); // return
+			code.writeByte(0x0B); // end $loaded
+			// Remember it for next time
+			writeTableSlot(code);
+			code.writeByte(0x20); Util.writeVarUInt(code, 1); // local.get address
+			code.writeByte(0x36); code.writeByte(0x02); code.writeByte(0x00); // i32.store align=4
+			code.writeByte(0x20); Util.writeVarUInt(code, 1); // local.get address
+		});
+	}
+
+	private static void writeTableSlot(DataOutputStream code) throws IOException {
+		code.writeByte(0x20); Util.writeVarUInt(code, 0); // local.get id
+		code.writeByte(0x41); Util.writeVarInt(code, 2); // i32.const
+		code.writeByte(0x74); // i32.shl
+	}
+
+	private interface CodeWriter {
+		void write(DataOutputStream code) throws IOException;
+	}
+	// Both functions take one i32 param (local 0) and use one i32 local (local 1)
+	private static RelocatableFunction function(CodeWriter writer) {
+		try {
+			ByteArrayOutputStream body = new ByteArrayOutputStream();
+			DataOutputStream bodyView = new DataOutputStream(body);
+			Util.writeVarUInt(bodyView, 1); // local declarations
+			Util.writeVarUInt(bodyView, 1);
+			NumericType.I32.write(bodyView);
+			writer.write(bodyView);
+			bodyView.writeByte(0x0B); // end
+			return new RelocatableFunction(body.toByteArray(), List.of());
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+}
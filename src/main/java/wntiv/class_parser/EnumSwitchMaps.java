@@ -0,0 +1,253 @@
+package wntiv.class_parser;
+
+import org.jetbrains.annotations.Nullable;
+import wntiv.wasm_output.types.NumericType;
+
+import java.util.*;
+
+/**
+ * Switches on enums, resolved at build time. An enum's constants can be reordered without recompiling the
+ * classes that switch on it, so javac switches on {@code $SwitchMap$<enum>[e.ordinal()]} instead: an int
+ * array in a synthetic class, whose {@code <clinit>} stores each constant's case number (from 1) at its
+ * ordinal. With the whole program here the ordinals are known (the order the constants are declared in), so
+ * each such switch can be on the ordinal itself, its keys mapped to ordinals: no array load & bounds check,
+ * and keys as dense as the enum, so one br_table. A synthetic class holding only switch maps, every read of
+ * which is resolved that way, needn't be translated at all.
+ * <p>
+ * Every class is added before any is translated, as for {@link ClassHierarchy}.
+ */
+final class EnumSwitchMaps {
+	private static final String PREFIX = "$SwitchMap$";
+
+	// A switch on a map, by the offsets of its getstatic, iaload & switch, and the class ordinal() is called on
+	private record Use(ClassHierarchy.Field map, ClassHandler.ConstantClassInfo enumType, int load, int index, int table) {}
+
+	/**
+	 * What becomes of one instruction of a resolved switch: the getstatic & iaload are dropped (length bytes,
+	 * opcode & operands), leaving the ordinal for the switch, whose keys are mapped to ordinals.
+	 */
+	record Rewrite(int length, @Nullable Map<Integer, Integer> ordinalsByCase) {
+		boolean dropped() {
+			return ordinalsByCase == null;
+		}
+
+		// Case numbers no constant has are never matched, so are left out
+		Operation.Switch apply(Operation.Switch table, IntermediaryMethod method) {
+			assert ordinalsByCase != null;
+			int[] keys = table.keys();
+			int[] targets = table.targets(0);
+			Map<Integer, Integer> mapping = new HashMap<>();
+			for (int i = 0; i < keys.length; i++) {
+				Integer ordinal = ordinalsByCase.get(keys[i]);
+				if (ordinal != null) mapping.put(ordinal, targets[i]);
+			}
+			return new Operation.LookupTable(mapping, targets[targets.length - 1], method.allocateScratchLocal(NumericType.I32));
+		}
+	}
+
+	// A resolved map: the enum it's for, & the ordinal each case number stands for
+	private record Resolved(ClassHandler.ConstantClassInfo enumType, Map<Integer, Integer> ordinalsByCase) {}
+
+	// Each enum's constants' ordinals, by name
+	private final Map<ClassHandler.ConstantClassInfo, Map<String, Integer>> ordinals = new HashMap<>();
+	// Each map as code names it, maybe through a subclass, until seal() resolves them
+	// What each map's <clinit> stores: the enum, & each constant's case number by name
+	private final Map<ClassHierarchy.Field, ClassHandler.ConstantClassInfo> enums = new HashMap<>();
+	private final Map<ClassHierarchy.Field, Map<String, Integer>> cases = new HashMap<>();
+	// Reads of each map outside its own class, & the enum each one found to start a switch switches on
+	private final Map<ClassHierarchy.Field, Integer> reads = new HashMap<>();
+	private final Map<ClassHierarchy.Field, List<ClassHandler.ConstantClassInfo>> switches = new HashMap<>();
+	// Synthetic classes declaring nothing but switch maps & a <clinit> filling them in
+	private final Set<ClassHandler.ConstantClassInfo> holders = new HashSet<>();
+	// Filled in by seal(), read only after: the field each map as named is declared as, & the maps resolved
+	private final Map<ClassHierarchy.Field, ClassHierarchy.Field> declared = new HashMap<>();
+	private final Map<ClassHierarchy.Field, Resolved> resolved = new HashMap<>();
+	private final Set<ClassHandler.ConstantClassInfo> dropped = new HashSet<>();
+
+	void add(ClassHandler cls) {
+		if ((cls.access_flags & ClassHandler.AccessFlags.ACC_ENUM) != 0) {
+			Map<String, Integer> constants = new HashMap<>();
+			for (ClassHandler.FieldInfo field : cls.fields) {
+				if ((field.access_flags & ClassHandler.FieldInfo.ACC_ENUM) != 0) {
+					constants.put(field.getNameAndType().name(), constants.size());
+				}
+			}
+			ordinals.put(cls.this_class, constants);
+		}
+		if ((cls.access_flags & ClassHandler.AccessFlags.ACC_SYNTHETIC) != 0 && holdsOnlyMaps(cls)) holders.add(cls.this_class);
+		for (ClassHandler.MethodInfo method : cls.methods) {
+			var code = method.attributes.getCode();
+			if (code == null) continue;
+			if (method.name.equals("<clinit>")) scanStores(code.code, cls.constant_pool);
+			for (int offset : loads(code.code, cls.constant_pool)) {
+				ClassHierarchy.Field map = field(code.code, offset, cls.constant_pool);
+				if (map.owner() != cls.this_class) reads.merge(map, 1, Integer::sum);
+			}
+			for (Use use : uses(code.code, cls.constant_pool)) {
+				if (use.map().owner() != cls.this_class) switches.computeIfAbsent(use.map(), x -> new ArrayList<>()).add(use.enumType());
+			}
+		}
+	}
+
+	/**
+	 * Resolves every map it can, once all classes are in.
+	 * @param hierarchy for the field a getstatic through a subclass reads, with every class added
+	 */
+	void seal(ClassHierarchy hierarchy) {
+		Set<ClassHierarchy.Field> named = new HashSet<>(enums.keySet());
+		named.addAll(reads.keySet());
+		named.addAll(switches.keySet());
+		for (ClassHierarchy.Field field : named) {
+			ClassHierarchy.Field declaredField = hierarchy.declaredStatic(field.owner(), field.field());
+			declared.put(field, declaredField == null ? field : declaredField);
+		}
+		for (var entry : cases.entrySet()) {
+			ClassHandler.ConstantClassInfo enumType = enums.get(entry.getKey());
+			Map<String, Integer> constants = ordinals.get(enumType);
+			if (constants == null) continue;
+			Map<Integer, Integer> ordinalsByCase = new HashMap<>();
+			for (var stored : entry.getValue().entrySet()) {
+				Integer ordinal = constants.get(stored.getKey());
+				if (ordinal == null) break;
+				ordinalsByCase.put(stored.getValue(), ordinal);
+			}
+			if (ordinalsByCase.size() == entry.getValue().size()) {
+				resolved.put(declared(entry.getKey()), new Resolved(enumType, Map.copyOf(ordinalsByCase)));
+			}
+		}
+		Map<ClassHierarchy.Field, Integer> declaredReads = new HashMap<>();
+		reads.forEach((map, count) -> declaredReads.merge(declared(map), count, Integer::sum));
+		Map<ClassHierarchy.Field, List<ClassHandler.ConstantClassInfo>> declaredSwitches = new HashMap<>();
+		switches.forEach((map, found) -> declaredSwitches.computeIfAbsent(declared(map), x -> new ArrayList<>()).addAll(found));
+		// The map's class can go once nothing reads it but resolved switches, and it holds nothing else
+		Map<ClassHandler.ConstantClassInfo, Boolean> unused = new HashMap<>();
+		for (var entry : enums.entrySet()) {
+			ClassHierarchy.Field map = declared(entry.getKey());
+			List<ClassHandler.ConstantClassInfo> found = declaredSwitches.getOrDefault(map, List.of());
+			boolean allResolved = resolved.containsKey(map) && found.size() == declaredReads.getOrDefault(map, 0)
+					&& found.stream().allMatch(enumType -> enumType == entry.getValue());
+			unused.merge(map.owner(), allResolved, Boolean::logicalAnd);
+		}
+		unused.forEach((owner, allResolved) -> {
+			if (allResolved && holders.contains(owner)) dropped.add(owner);
+		});
+	}
+
+	private ClassHierarchy.Field declared(ClassHierarchy.Field named) {
+		return declared.getOrDefault(named, named);
+	}
+
+	// Whether cls is only there for switch maps that are all resolved, so is left out of the module
+	boolean isDropped(ClassHandler.ConstantClassInfo cls) {
+		return dropped.contains(cls);
+	}
+
+	private static boolean holdsOnlyMaps(ClassHandler cls) {
+		for (ClassHandler.FieldInfo field : cls.fields) {
+			ClassHandler.ConstantNameAndTypeInfo signature = field.getNameAndType();
+			if (!signature.name().startsWith(PREFIX) || !signature.descriptor().equals("[I")) return false;
+		}
+		for (ClassHandler.MethodInfo method : cls.methods) if (!method.name.equals("<clinit>")) return false;
+		return true;
+	}
+
+	// How the instructions of code's resolved switches are rewritten, by offset
+	Map<Integer, Rewrite> rewrites(byte[] code, ClassHandler.ConstantPool pool) {
+		Map<Integer, Rewrite> result = new HashMap<>();
+		for (Use use : uses(code, pool)) {
+			Resolved map = resolved.get(declared(use.map()));
+			if (map == null || map.enumType() != use.enumType()) continue;
+			result.put(use.load(), new Rewrite(3, null));
+			result.put(use.index(), new Rewrite(1, null));
+			result.put(use.table(), new Rewrite(0, map.ordinalsByCase()));
+		}
+		return result;
+	}
+
+	// javac's stores, for each constant: getstatic map, getstatic constant, invokevirtual ordinal(), case number,
+	// iastore
+	private void scanStores(byte[] code, ClassHandler.ConstantPool pool) {
+		List<Integer> offsets = offsets(code);
+		for (int n = 0; n + 4 < offsets.size(); n++) {
+			int at = offsets.get(n);
+			if (!isMapLoad(code, at, pool) || code[offsets.get(n + 1)] != (byte) 0xb2 /* getstatic */
+					|| !isOrdinal(code, offsets.get(n + 2), pool) || code[offsets.get(n + 4)] != (byte) 0x4f /* iastore */) continue;
+			Integer value = intConstant(code, offsets.get(n + 3), pool);
+			if (value == null) continue;
+			ClassHierarchy.Field map = field(code, at, pool);
+			ClassHierarchy.Field constant = field(code, offsets.get(n + 1), pool);
+			ClassHandler.ConstantClassInfo enumType = enums.putIfAbsent(map, constant.owner());
+			if (enumType != null && enumType != constant.owner()) throw new RuntimeException("Switch map " + map + " of two enums");
+			cases.computeIfAbsent(map, x -> new HashMap<>()).put(constant.field().name(), value);
+		}
+	}
+
+	// Offsets of every getstatic of a switch map
+	private static List<Integer> loads(byte[] code, ClassHandler.ConstantPool pool) {
+		List<Integer> result = new ArrayList<>();
+		for (int at : offsets(code)) if (isMapLoad(code, at, pool)) result.add(at);
+		return result;
+	}
+
+	// The map getstatic each invokevirtual ordinal(), iaload, switch goes with: the last one not yet used, as
+	// the enum is worked out in between (with no branches, javac uses a local for anything harder)
+	private static List<Use> uses(byte[] code, ClassHandler.ConstantPool pool) {
+		List<Use> result = new ArrayList<>();
+		List<Integer> offsets = offsets(code);
+		Deque<Integer> pending = new ArrayDeque<>();
+		for (int n = 0; n < offsets.size(); n++) {
+			int at = offsets.get(n);
+			int opcode = Byte.toUnsignedInt(code[at]);
+			if (isMapLoad(code, at, pool)) {
+				pending.push(at);
+			} else if (!pending.isEmpty() && n + 2 < offsets.size() && isOrdinal(code, at, pool)
+					&& code[offsets.get(n + 1)] == (byte) 0x2e /* iaload */
+					&& (code[offsets.get(n + 2)] == (byte) 0xaa /* tableswitch */ || code[offsets.get(n + 2)] == (byte) 0xab /* lookupswitch */)) {
+				int load = pending.pop();
+				var ordinal = (ClassHandler.ConstantMemberRefInfo) pool.get(ClassHierarchy.u2(code, at + 1));
+				result.add(new Use(field(code, load, pool), ordinal.getCls(), load, offsets.get(n + 1), offsets.get(n + 2)));
+				n += 2;
+			} else if ((opcode >= 0x99 && opcode <= 0xb1) || opcode == 0xbf || opcode == 0xc6 || opcode == 0xc7 || opcode == 0xc8) {
+				pending.clear(); // branches, switches, returns & athrow
+			}
+		}
+		return result;
+	}
+
+	private static List<Integer> offsets(byte[] code) {
+		List<Integer> result = new ArrayList<>();
+		for (int i = 0; i < code.length; i += ClassHierarchy.instructionLength(code, i)) result.add(i);
+		return result;
+	}
+
+	private static boolean isMapLoad(byte[] code, int at, ClassHandler.ConstantPool pool) {
+		return code[at] == (byte) 0xb2 /* getstatic */
+				&& pool.get(ClassHierarchy.u2(code, at + 1)) instanceof ClassHandler.ConstantFieldRefInfo field
+				&& field.getSignature().name().startsWith(PREFIX) && field.getSignature().descriptor().equals("[I");
+	}
+
+	private static boolean isOrdinal(byte[] code, int at, ClassHandler.ConstantPool pool) {
+		return code[at] == (byte) 0xb6 /* invokevirtual */
+				&& pool.get(ClassHierarchy.u2(code, at + 1)) instanceof ClassHandler.ConstantMethodRefInfo method
+				&& method.getSignature().name().equals("ordinal") && method.getSignature().descriptor().equals("()I");
+	}
+
+	private static ClassHierarchy.Field field(byte[] code, int at, ClassHandler.ConstantPool pool) {
+		var field = (ClassHandler.ConstantFieldRefInfo) pool.get(ClassHierarchy.u2(code, at + 1));
+		return new ClassHierarchy.Field(field.getCls(), field.getSignature());
+	}
+
+	private static @Nullable Integer intConstant(byte[] code, int at, ClassHandler.ConstantPool pool) {
+		int opcode = Byte.toUnsignedInt(code[at]);
+		if (opcode >= 0x02 /* iconst_m1 */ && opcode <= 0x08 /* iconst_5 */) return opcode - 0x03;
+		if (opcode == 0x10 /* bipush */) return (int) code[at + 1];
+		if (opcode == 0x11 /* sipush */) return (int) (short) ClassHierarchy.u2(code, at + 1);
+		if (opcode == 0x12 /* ldc */ && pool.get(Byte.toUnsignedInt(code[at + 1])) instanceof ClassHandler.ConstantIntegerInfo value) {
+			return value.value();
+		}
+		if (opcode == 0x13 /* ldc_w */ && pool.get(ClassHierarchy.u2(code, at + 1)) instanceof ClassHandler.ConstantIntegerInfo value) {
+			return value.value();
+		}
+		return null;
+	}
+}
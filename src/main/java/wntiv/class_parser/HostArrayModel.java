@@ -0,0 +1,24 @@
+package wntiv.class_parser;
+
+import org.jetbrains.annotations.Nullable;
+import wntiv.ir.BoundsCheckElimination;
+import wntiv.ir.Opaque;
+import wntiv.ir.Value;
+
+/**
+ * Tells {@link BoundsCheckElimination} which Opaques are the length reads & bounds checks that
+ * {@link SsaBuilder} puts before each array access.
+ */
+final class HostArrayModel implements BoundsCheckElimination.ArrayModel {
+	@Override
+	public boolean checksBounds(Opaque instruction) {
+		return instruction.payload instanceof SsaBuilder.Source source && source.op() instanceof Operation.BoundsCheck;
+	}
+
+	@Override
+	public @Nullable Value lengthOf(Opaque instruction) {
+		if (!(instruction.payload instanceof SsaBuilder.Source source)
+				|| !(source.op() instanceof Operation.ArrayLength)) return null;
+		return instruction.operand(0);
+	}
+}
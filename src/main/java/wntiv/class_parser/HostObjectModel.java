@@ -0,0 +1,36 @@
+package wntiv.class_parser;
+
+import org.jetbrains.annotations.Nullable;
+import wntiv.ir.Opaque;
+import wntiv.ir.ScalarReplacement;
+
+/**
+ * Tells {@link ScalarReplacement} which Opaques make, read & write the host's objects. Fields are keyed by
+ * {@link ClassHierarchy.Field}, so a field named through a subclass is the same field.
+ */
+final class HostObjectModel implements ScalarReplacement.ObjectModel {
+	private final ClassHierarchy hierarchy;
+
+	HostObjectModel(ClassHierarchy hierarchy) {
+		this.hierarchy = hierarchy;
+	}
+
+	@Override
+	public boolean allocates(Opaque instruction) {
+		return instruction.payload instanceof SsaBuilder.Source source && source.op() instanceof Operation.NewObject;
+	}
+
+	@Override
+	public @Nullable Object loadedField(Opaque instruction) {
+		if (!(instruction.payload instanceof SsaBuilder.Source source)
+				|| !(source.op() instanceof Operation.GetField get)) return null;
+		return hierarchy.resolveField(get.field().getCls(), get.field().getSignature());
+	}
+
+	@Override
+	public @Nullable Object storedField(Opaque instruction) {
+		if (!(instruction.payload instanceof SsaBuilder.Source source)
+				|| !(source.op() instanceof Operation.PutField put)) return null;
+		return hierarchy.resolveField(put.field().getCls(), put.field().getSignature());
+	}
+}
@@ -0,0 +1,73 @@
+package wntiv.class_parser;
+
+import java.util.Arrays;
+
+/**
+ * A method's decoded instructions, in bytecode order, held as parallel primitive arrays rather than a list
+ * of boxed (offset, op) pairs. Instruction i starts at bytecode offset {@code offset(i)}; offsets only ever
+ * increase, so finding the instruction at an offset is a binary search.
+ * <p>
+ * operand holds the absolute bytecode offset a branch jumps to, or {@link #NO_TARGET}.
+ */
+final class InstructionStore {
+	public static final int NO_TARGET = -1;
+
+	private int size = 0;
+	private int[] offsets;
+	private short[] opcodes; // u1, wide is kept as 0xc4
+	private int[] operands;
+	private Operation[] ops;
+
+	InstructionStore(int capacity) {
+		capacity = Math.max(capacity, 4);
+		offsets = new int[capacity];
+		opcodes = new short[capacity];
+		operands = new int[capacity];
+		ops = new Operation[capacity];
+	}
+
+	void add(int offset, int opcode, int operand, Operation op) {
+		if (size > 0 && offset <= offsets[size - 1])
+			throw new IllegalArgumentException("Instructions must be added in bytecode order");
+		if (size == offsets.length) {
+			int capacity = size * 2;
+			offsets = Arrays.copyOf(offsets, capacity);
+			opcodes = Arrays.copyOf(opcodes, capacity);
+			operands = Arrays.copyOf(operands, capacity);
+			ops = Arrays.copyOf(ops, capacity);
+		}
+		offsets[size] = offset;
+		opcodes[size] = (short) opcode;
+		operands[size] = operand;
+		ops[size] = op;
+		size++;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public int offset(int index) {
+		return offsets[index];
+	}
+
+	public int opcode(int index) {
+		return opcodes[index];
+	}
+
+	public int operand(int index) {
+		return operands[index];
+	}
+
+	public Operation op(int index) {
+		return ops[index];
+	}
+
+	/**
+	 * Index of the instruction starting exactly at offset, or -1 if none does.
+	 */
+	public int indexOf(int offset) {
+		int found = Arrays.binarySearch(offsets, 0, size, offset);
+		return found < 0 ? -1 : found;
+	}
+}
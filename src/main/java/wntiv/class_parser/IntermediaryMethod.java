@@ -1,32 +1,59 @@
 package wntiv.class_parser;
 
-import wntiv.Pair;
-import wntiv.wasm_output.Expression;
-import wntiv.wasm_output.WasmFunction;
-import wntiv.wasm_output.WasmModule;
+import org.jetbrains.annotations.Nullable;
+import wntiv.ir.Inliner;
+import wntiv.ir.IrFunction;
+import wntiv.ir.PassManager;
+import wntiv.wasm_output.*;
+import wntiv.wasm_output.types.NumericType;
 import wntiv.wasm_output.types.ValueType;
 
 import java.io.*;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Map;
-import java.util.stream.IntStream;
-import java.util.stream.Stream;
+import java.util.*;
 
 public class IntermediaryMethod implements WasmFunction {
 	private final ClassHandler.MethodInfo info;
 	private final WasmModule module;
 	public final JarHandler bindings;
-	private final List<Operation> code = new ArrayList<>();
-	private final List<Integer> codeIndex = new ArrayList<>();
+	private final InstructionStore code;
+	private final MethodDescriptor descriptor;
+	// A JVM slot holding one type. Slots reused for several types (and long/double halves) become one wasm
+	// local per type
+	private record Local(int slot, ValueType type) {}
+	private final Map<Local, Integer> localIndices = new HashMap<>();
+	// Declared locals (not params), grouped so each type takes one entry of the declaration
+	private final Map<ValueType, Integer> declaredLocals = new LinkedHashMap<>();
+	// Extra locals the translation needs, in slots after the Java ones
+	private final List<Local> scratchLocals = new ArrayList<>();
+	private int nextScratchSlot;
+	// Operand stack on entry to each branch target, by bytecode offset. Values still on the stack at a jump
+	// are spilled to locals (one per depth & type), as wasm blocks here take no values
+	private final Map<Integer, List<ValueType>> entryStacks = new HashMap<>();
+	private final Map<Local, Integer> spillSlots = new HashMap<>(); // (depth, type) -> slot
+	private int spillConditionSlot = -1;
+	// References to other functions & globals written by the last getCode(), patched in at link time
+	private final List<Relocation> relocations = new ArrayList<>();
+	// Cleared by ops that leave state in the module (tables, ...), which a cached body wouldn't recreate
+	private boolean cacheable = true;
+	// Set up by prepare(), ssa is null when the ops are written as they are
+	private @Nullable ControlFlowGraph cfg;
+	private @Nullable SsaWriter ssa;
 
 	public IntermediaryMethod(ClassHandler.MethodInfo method, WasmModule module, JarHandler binding) {
 		this.info = method;
 		this.module = module;
 		bindings = binding;
-		assert info.attributes.code != null;
+		assert info.attributes.getCode() != null;
+		descriptor = info.getDescriptor();
+		nextScratchSlot = info.attributes.getCode().max_locals;
+		byte[] bytecode = info.attributes.getCode().code;
+		// Most instructions are 1-3 bytes long, so this rarely needs to grow
+		code = new InstructionStore(bytecode.length / 2);
+		// Switches on enums resolved to their ordinals depend on the enums' declarations
+		Map<Integer, EnumSwitchMaps.Rewrite> rewrites = bindings.getEnumSwitches().rewrites(bytecode, info.ownerClass.constant_pool);
+		if (!rewrites.isEmpty()) markUncacheable();
 		try {
-			var codeSrc = new ByteArrayInputStream(info.attributes.code.code) {
+			var codeSrc = new ByteArrayInputStream(bytecode) {
 				public int getPos() { // exposed!!!
 					return pos;
 				}
@@ -34,17 +61,78 @@ public class IntermediaryMethod implements WasmFunction {
 			DataInputStream dataView = new DataInputStream(codeSrc);
 			while (dataView.available() > 0) {
 				int pos = codeSrc.getPos();
-				Operation op = Operation.readFromStream(this, dataView, codeSrc::getPos);
-				if (op instanceof Operation.GoTo) {
-					// TODO: Special handling??
+				EnumSwitchMaps.Rewrite rewrite = rewrites.get(pos);
+				Operation op;
+				if (rewrite != null && rewrite.dropped()) {
+					dataView.skipNBytes(rewrite.length());
+					op = new Operation.DirectTranslation(0x01); // nop
 				} else {
-					codeIndex.add(pos);
-					code.add(op);
+					op = Operation.readFromStream(this, dataView, codeSrc::getPos);
+					if (rewrite != null) op = rewrite.apply((Operation.Switch) op, this);
 				}
+				int target = InstructionStore.NO_TARGET;
+				if (op instanceof Operation.Conditional branch) target = pos + branch.jumpTarget();
+				else if (op instanceof Operation.GoTo jump) target = pos + jump.jumpTarget();
+				code.add(pos, Byte.toUnsignedInt(bytecode[pos]), target, op);
 			}
 		} catch (IOException e) {
 			throw new UncheckedIOException(e); // ^-^
 		}
+		readStackMap();
+		assignLocals();
+	}
+
+	// https://docs.oracle.com/javase/specs/jvms/se21/html/jvms-4.html#jvms-4.7.4
+	// Class files from before Java 6 have no stack map, they're assumed to never branch with values on the stack
+	private void readStackMap() {
+		var stackMap = info.attributes.getCode().attributes.getStackMapTable();
+		if (stackMap == null) return;
+		int offset = -1;
+		for (var frame : stackMap) {
+			offset += Short.toUnsignedInt(frame.offset_delta) + 1;
+			if (frame.stack.isEmpty()) continue;
+			List<ValueType> stack = new ArrayList<>(frame.stack.size());
+			for (var type : frame.stack) stack.add(stackType(type));
+			entryStacks.put(offset, stack);
+			for (int depth = 0; depth < stack.size(); depth++) {
+				spillSlots.computeIfAbsent(new Local(depth, stack.get(depth)), x -> allocateScratchLocal(x.type()));
+			}
+			// For a conditional jump's condition, which sits on top of the spilled values
+			if (spillConditionSlot < 0) spillConditionSlot = allocateScratchLocal(NumericType.I32);
+		}
+	}
+
+	private static ValueType stackType(ClassHandler.Attributes.StackMapTableAttribute.VerificationTypeInfo type) {
+		return switch (type.tag) {
+			case ClassHandler.Attributes.StackMapTableAttribute.VerificationTypeInfo.ITEM_Integer -> NumericType.I32;
+			case ClassHandler.Attributes.StackMapTableAttribute.VerificationTypeInfo.ITEM_Float -> NumericType.F32;
+			case ClassHandler.Attributes.StackMapTableAttribute.VerificationTypeInfo.ITEM_Long -> NumericType.I64;
+			case ClassHandler.Attributes.StackMapTableAttribute.VerificationTypeInfo.ITEM_Double -> NumericType.F64;
+			case ClassHandler.Attributes.StackMapTableAttribute.VerificationTypeInfo.ITEM_Top ->
+					throw new RuntimeException("Unusable value on the stack at a branch target");
+			default -> Operation.REFERENCE; // Null, objects & (un)initialised this
+		};
+	}
+
+	// Params keep their places at the front, everything else is numbered after them a type at a time
+	private void assignLocals() {
+		int slot = 0;
+		if (!info.isStatic()) localIndices.put(new Local(slot++, Operation.REFERENCE), localIndices.size());
+		for (ValueType parameter : descriptor.parameters()) {
+			localIndices.put(new Local(slot, parameter), localIndices.size());
+			slot += MethodDescriptor.slotSize(parameter);
+		}
+		Map<ValueType, Set<Local>> byType = new LinkedHashMap<>();
+		for (int i = 0; i < code.size(); i++) {
+			if (!(code.op(i) instanceof Operation.LocalAccess access)) continue;
+			Local local = new Local(access.index(), access.type());
+			if (!localIndices.containsKey(local)) byType.computeIfAbsent(local.type(), x -> new LinkedHashSet<>()).add(local);
+		}
+		for (Local local : scratchLocals) byType.computeIfAbsent(local.type(), x -> new LinkedHashSet<>()).add(local);
+		for (var entry : byType.entrySet()) {
+			for (Local local : entry.getValue()) localIndices.put(local, localIndices.size());
+			declaredLocals.put(entry.getKey(), entry.getValue().size());
+		}
 	}
 
 	public ClassHandler.MethodInfo getInfo() {
@@ -55,35 +143,169 @@ public class IntermediaryMethod implements WasmFunction {
 		return module;
 	}
 
+	/**
+	 * Code with every function & global index left as a placeholder, see {@link #encode()}.
+	 */
 	@Override
 	public Expression getCode() {
+		prepare();
+		relocations.clear();
 		try {
 			ByteArrayOutputStream codeBinary = new ByteArrayOutputStream();
 			DataOutputStream codeView = new DataOutputStream(codeBinary);
-			for (int i = 0; i < code.size(); i++) {
-				Operation op = code.get(i);
-				int index = codeIndex.get(i);
-				op.writeWasm(index, this, codeView);
-			}
+			if (ssa != null) ssa.write(codeView);
+			else Stackifier.write(cfg, this, codeView);
+			// Every path has returned by now, but the validator can't tell once the last thing is an if or loop
+			if (descriptor.result() != null) codeView.writeByte(0x00); // unreachable
 			return new Expression(codeBinary.toByteArray());
 		} catch (IOException e) {
 			throw new UncheckedIOException(e); // :)
 		}
 	}
 
+	// Chooses, once, between going through the optimiser and writing the ops as they are. The two use
+	// different locals, so it has to be settled before either getLocals() or getCode()
+	private void prepare() {
+		if (cfg != null) return;
+		cfg = new ControlFlowGraph(code, getName());
+		cfg.assignStacks(entryStacks);
+		PassManager passes = bindings.getPassManager();
+		if (passes == null) return;
+		IrFunction function = SsaBuilder.build(cfg, descriptor, info.isStatic(), getName());
+		if (function == null) return; // uses something the IR can't express yet
+		function.calls = new DirectCallResolver(this);
+		function.objects = new HostObjectModel(bindings.getHierarchy());
+		function.arrays = new HostArrayModel();
+		passes.run(function);
+		for (Inliner.Callee callee : function.inlined) {
+			// Cached bodies are keyed by their own class alone, which can't tell when another class's changes
+			if (((DirectCallResolver.Callee) callee).method.ownerClass != info.ownerClass) markUncacheable();
+		}
+		ssa = new SsaWriter(function, this);
+	}
+
+	// The code as IR with no passes run, for inlining into other methods. null if the IR can't express it
+	@Nullable IrFunction buildIr() {
+		ControlFlowGraph graph = new ControlFlowGraph(code, getName());
+		graph.assignStacks(entryStacks);
+		return SsaBuilder.build(graph, descriptor, info.isStatic(), getName());
+	}
+
+	public RelocatableFunction encode() {
+		return RelocatableFunction.encode(this, relocations);
+	}
+
+	void writeFunctionIndex(DataOutputStream out, ClassHandler.ConstantMemberRefInfo method) throws IOException {
+		writeRelocation(out, Relocation.Kind.FUNCTION, method);
+	}
+
+	void writeFunctionIndex(DataOutputStream out, ClassHandler.ConstantClassInfo owner,
+	                        ClassHandler.ConstantNameAndTypeInfo method) throws IOException {
+		relocations.add(new Relocation(out.size(), Relocation.Kind.FUNCTION, owner.name(), method.name(),
+				method.descriptor()));
+		Util.writePaddedVarUInt(out, 0, Relocation.WIDTH);
+	}
+
+	// A call to one of the functions JarHandler imports from the host
+	void writeHostCall(DataOutputStream out, String name) throws IOException {
+		out.writeByte(0x10); // call
+		relocations.add(new Relocation(out.size(), Relocation.Kind.HOST, JarHandler.HOST_MODULE, name, ""));
+		Util.writePaddedVarUInt(out, 0, Relocation.WIDTH);
+	}
+
+	// A call to the function JarHandler imports a string constant as
+	void writeStringConstant(DataOutputStream out, String value) throws IOException {
+		out.writeByte(0x10); // call
+		relocations.add(new Relocation(out.size(), Relocation.Kind.HOST, JarHandler.STRING_MODULE, value, ""));
+		Util.writePaddedVarUInt(out, 0, Relocation.WIDTH);
+	}
+
+	// i32.const of the ids the host knows classes & fields by, see ClassHierarchy
+	void writeClassId(DataOutputStream out, ClassHandler.ConstantClassInfo cls) throws IOException {
+		out.writeByte(0x41); // i32.const
+		relocations.add(new Relocation(out.size(), Relocation.Kind.CLASS_ID, cls.name(), "", ""));
+		Util.writePaddedVarUInt(out, 0, Relocation.WIDTH);
+	}
+
+	void writeFieldId(DataOutputStream out, ClassHandler.ConstantFieldRefInfo field) throws IOException {
+		out.writeByte(0x41); // i32.const
+		writeRelocation(out, Relocation.Kind.FIELD_ID, field);
+	}
+
+	void writeGlobalIndex(DataOutputStream out, ClassHandler.ConstantFieldRefInfo field) throws IOException {
+		writeRelocation(out, Relocation.Kind.GLOBAL, field);
+	}
+
+	private void writeRelocation(DataOutputStream out, Relocation.Kind kind, ClassHandler.ConstantMemberRefInfo member)
+			throws IOException {
+		relocations.add(new Relocation(out.size(), kind, member.getCls().name(),
+				member.getSignature().name(), member.getSignature().descriptor()));
+		Util.writePaddedVarUInt(out, 0, Relocation.WIDTH);
+	}
+
+	void markUncacheable() {
+		cacheable = false;
+	}
+
+	public boolean isCacheable() {
+		return cacheable;
+	}
+
 	@Override
 	public Map<ValueType, Integer> getLocals() {
-		return null;
+		prepare();
+		if (ssa != null) return ssa.getLocals();
+		return Collections.unmodifiableMap(declaredLocals);
 	}
 
-	public Stream<Pair<Integer, Operation>> getOpsInRange(int i, int j) {
-		int start, end = 0;
-		while (codeIndex.get(end) < i) end++;
-		start = end;
-		while (codeIndex.get(end) <= j) end++;
-		return IntStream.range(start, end).mapToObj(x -> new Pair<>(codeIndex.get(x), code.get(x)));
+	// Wasm local for a JVM (or scratch) slot read or written as type
+	int getLocal(int slot, ValueType type) {
+		Integer index = localIndices.get(new Local(slot, type));
+		if (index == null) throw new RuntimeException("No " + type + " local for slot " + slot + " in " + getName());
+		return index;
 	}
-	public Stream<Pair<Integer, Operation>> getBlockAt(int i) {
-		// TODO: get code "block" that resides here
+
+	// Stores the values a block leaves on the stack for its successor to pick back up. keepTop leaves the
+	// condition (or switch index) above them in place
+	void writeSpill(List<ValueType> stack, boolean keepTop, DataOutputStream out) throws IOException {
+		if (keepTop) {
+			out.writeByte(0x21); // local.set
+			Util.writeVarUInt(out, getLocal(spillConditionSlot, NumericType.I32));
+		}
+		for (int depth = stack.size() - 1; depth >= 0; depth--) {
+			out.writeByte(0x21); // local.set
+			Util.writeVarUInt(out, spillLocal(depth, stack.get(depth)));
+		}
+		if (keepTop) {
+			out.writeByte(0x20); // local.get
+			Util.writeVarUInt(out, getLocal(spillConditionSlot, NumericType.I32));
+		}
+	}
+
+	void writeReload(List<ValueType> stack, DataOutputStream out) throws IOException {
+		for (int depth = 0; depth < stack.size(); depth++) {
+			out.writeByte(0x20); // local.get
+			Util.writeVarUInt(out, spillLocal(depth, stack.get(depth)));
+		}
+	}
+
+	private int spillLocal(int depth, ValueType type) {
+		Integer slot = spillSlots.get(new Local(depth, type));
+		if (slot == null) throw new RuntimeException("No stack map entry for " + type + " at depth " + depth);
+		return getLocal(slot, type);
+	}
+
+	public InstructionStore getInstructions() {
+		return code;
+	}
+
+	// Only while reading the code, locals are numbered once it's all read
+	int allocateScratchLocal(ValueType type) {
+		scratchLocals.add(new Local(nextScratchSlot, type));
+		return nextScratchSlot++;
+	}
+
+	private String getName() {
+		return info.ownerClass.this_class.name() + "." + info.name + info.descriptor;
 	}
 }
@@ -1,20 +1,37 @@
 package wntiv.class_parser;
 
+import org.jetbrains.annotations.Nullable;
+import wntiv.ir.PassManager;
+import wntiv.wasm_output.RelocatableFunction;
+import wntiv.wasm_output.Relocation;
 import wntiv.wasm_output.WasmModule;
+import wntiv.wasm_output.types.FunctionType;
+import wntiv.wasm_output.types.HeapType;
+import wntiv.wasm_output.types.IndexType;
 
-import java.io.DataInputStream;
-import java.io.File;
-import java.io.FileOutputStream;
-import java.io.IOException;
+import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.jar.Attributes;
 import java.util.jar.JarEntry;
 import java.util.jar.JarInputStream;
-import java.util.zip.ZipOutputStream;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 
 public class JarHandler {
-	private final ZipOutputStream assetsOut;
-	private final Map<ClassHandler.ConstantClassInfo, ClassHandler> classes =  new HashMap<>();
-	private final List<IntermediaryMethod> methods = new ArrayList<>();
+	// Import module of the functions the host has to provide
+	static final String HOST_MODULE = "jvm";
+	// Where string constants are imported from, each by its value
+	static final String STRING_MODULE = "jvm.strings";
+	private final AssetSink assetsOut;
+	// Insertion ordered so indices handed out in transpile() follow jar order
+	private final Map<ClassHandler.ConstantClassInfo, ClassHandler> classes = new LinkedHashMap<>();
+	// Unlinked until every class has its function ids, see link()
+	private final List<RelocatableFunction> methods = new ArrayList<>();
+	private final List<FunctionType> methodTypes = new ArrayList<>();
+	// Keys are canonical SymbolTable symbols, so these lookups hash an int and compare identity
 	private final Map<ClassHandler.ConstantClassInfo,
 						Map<ClassHandler.ConstantNameAndTypeInfo, Integer>> methodIds = new HashMap<>();
 	private final Map<ClassHandler.ConstantClassInfo,
@@ -22,94 +39,602 @@ public class JarHandler {
 	private final Map<ClassHandler.ConstantClassInfo,
 					Map<ClassHandler.ConstantNameAndTypeInfo, ClassHandler.FieldInfo>> fieldInfo = new HashMap<>();
 	private final WasmModule module = new WasmModule();
+	// Every class (by the time anything is translated), for binding instance calls
+	private final ClassHierarchy hierarchy = new ClassHierarchy();
+	// Likewise, for resolving switches on enums and leaving out the classes javac makes for them
+	private final EnumSwitchMaps enumSwitches = new EnumSwitchMaps();
+	// And for folding reads of static fields with a known value
+	private final StaticConstants staticConstants = new StaticConstants();
+	// Function indices of the imports from HOST_MODULE, by name
+	private final Map<String, Integer> hostFunctions = new HashMap<>();
+	// Likewise from STRING_MODULE, by value
+	private final Map<String, Integer> stringConstants = new HashMap<>();
+	private @Nullable MethodCache methodCache = null;
+	private @Nullable PassManager passManager = PassManager.standard();
+	// Non-null in streaming mode: classes are left in their jars and re-read for each pass of transpile()
+	private final @Nullable List<StreamedClass> streamedClasses;
+	// Non-null in reachable mode: every class on the classpath by internal name, only parsed once
+	// transpile() finds a path to it from one of the roots
+	private final @Nullable Map<String, StreamedClass> availableClasses;
+	private final List<String> roots = new ArrayList<>();
+	private final Set<String> missingClasses = new TreeSet<>();
+	private @Nullable ForkJoinPool pool = null;
+	// Indexed library jars, their classes are only parsed once something being translated references them
+	private final List<LibraryIndex> libraries = new ArrayList<>();
+	private enum LoadMode { EAGER, STREAMING, REACHABLE }
+	public enum AssetMode {
+		ZIP, // ./out/assets.zip alongside the module
+		EMBED // Passive data segments in the module itself, see EmbeddedAssets
+	}
+	private record StreamedClass(MappedJarReader source, MappedJarReader.Entry entry) {
+		ClassHandler parse() {
+			try {
+				return new ClassHandler(source.read(entry));
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+	}
+	private JarHandler(LoadMode mode) throws IOException {
+		this(mode, AssetMode.ZIP);
+	}
+	private JarHandler(LoadMode mode, AssetMode assets) throws IOException {
+		assetsOut = assets == AssetMode.EMBED ? new EmbeddedAssets() : openAssetsOut();
+		streamedClasses = mode == LoadMode.STREAMING ? new ArrayList<>() : null;
+		availableClasses = mode == LoadMode.REACHABLE ? new HashMap<>() : null;
+	}
 	public JarHandler(JarInputStream input) throws IOException {
+		this(LoadMode.EAGER);
+		parseJar(input, assetsOut);
+	}
+	public JarHandler(ZipFile input, ForkJoinPool pool) throws IOException {
+		this(LoadMode.EAGER);
+		this.pool = pool;
+		parseJar(input, pool, assetsOut);
+	}
+	public JarHandler(MappedJarReader input, ForkJoinPool pool) throws IOException {
+		this(input, pool, AssetMode.ZIP);
+	}
+	public JarHandler(MappedJarReader input, ForkJoinPool pool, AssetMode assets) throws IOException {
+		this(LoadMode.EAGER, assets);
+		this.pool = pool;
+		parseJar(input, pool, assetsOut);
+	}
+	/**
+	 * Lower memory mode: nothing is parsed here, and transpile() reads each class from the jar again for
+	 * every pass over it instead of keeping it parsed (three passes, and one more to find library classes
+	 * used). One class is parsed, or translated to IR, at a time. What's still kept for the whole jar is:
+	 * <ul>
+	 *     <li>the hierarchy's, enum switch maps' & static constants' summary of every class, including
+	 *     what each method's code refers to, until the mark phase is done with that</li>
+	 *     <li>every name interned in SymbolTable, which is never cleared</li>
+	 *     <li>every encoded function body, and the rest of the module, until it's written</li>
+	 * </ul>
+	 * So peak memory is the output module plus those summaries, rather than every class parsed at once as in
+	 * the other modes; it doesn't follow the largest class alone.
+	 */
+	public static JarHandler streaming(MappedJarReader input, AssetMode assets) throws IOException {
+		JarHandler handler = new JarHandler(LoadMode.STREAMING, assets);
+		handler.addStreamedJar(input);
+		return handler;
+	}
+	/**
+	 * Only classes transitively reachable from roots are parsed & translated, the rest of this jar and
+	 * any library jars are just indexed by name. With no roots given, the manifest's Main-Class is used.
+	 * @param roots internal (slash separated) or binary (dot separated) class names
+	 */
+	public static JarHandler reachable(MappedJarReader input, List<String> roots, ForkJoinPool pool,
+	                                   AssetMode assets) throws IOException {
+		JarHandler handler = new JarHandler(LoadMode.REACHABLE, assets);
+		handler.pool = pool;
+		if (roots.isEmpty()) {
+			Manifest manifest = input.manifest();
+			String mainClass = manifest == null ? null
+					: manifest.getMainAttributes().getValue(Attributes.Name.MAIN_CLASS);
+			if (mainClass == null) throw new RuntimeException("No root classes given and jar has no Main-Class");
+			handler.roots.add(mainClass.replace('.', '/'));
+		} else {
+			for (String root : roots) handler.roots.add(root.replace('.', '/'));
+		}
+		handler.addIndexedJar(input);
+		return handler;
+	}
+	private void addIndexedJar(MappedJarReader input) throws IOException {
+		assert availableClasses != null;
+		for (MappedJarReader.Entry entry : input.entries()) {
+			String name = entry.name();
+			if (name.endsWith(".class")) {
+				// First jar to define a class wins, same as a classpath
+				availableClasses.putIfAbsent(name.substring(0, name.length() - ".class".length()),
+						new StreamedClass(input, entry));
+			} else {
+				assetsOut.copyRaw(input, entry);
+			}
+		}
+	}
+	private void addStreamedJar(MappedJarReader input) throws IOException {
+		assert streamedClasses != null;
+		for (MappedJarReader.Entry entry : input.entries()) {
+			if (entry.name().endsWith(".class")) {
+				streamedClasses.add(new StreamedClass(input, entry));
+			} else {
+				assetsOut.copyRaw(input, entry);
+			}
+		}
+	}
+	private static AssetZipWriter openAssetsOut() throws IOException {
 		File outFile = new File("./out/assets.zip");
 		assert outFile.getParentFile().mkdirs();
 		if(!outFile.createNewFile()) {
 			System.out.println(outFile.getPath() + " already exists, overwriting");
 		}
-		assetsOut = new ZipOutputStream(new FileOutputStream(outFile));
-		parseJar(input, assetsOut);
+		return new AssetZipWriter(outFile.toPath());
 	}
-	private void parseJar(JarInputStream input, ZipOutputStream assetsOut) throws IOException {
+	private void parseJar(JarInputStream input, AssetSink assetsOut) throws IOException {
 		JarEntry entry;
 		while(Objects.nonNull(entry = input.getNextJarEntry())) {
 			if(entry.getRealName().endsWith(".class")) {
 				// Java class
-				ClassHandler handler = new ClassHandler(new DataInputStream(input));
+				ClassHandler handler = new ClassHandler(ByteBuffer.wrap(input.readAllBytes()));
 				classes.put(handler.this_class, handler);
-				System.out.println(handler);
-				System.in.read();
 			} else {
-				assetsOut.putNextEntry(entry);
-				input.transferTo(assetsOut);
+				// Stream is already inflated, so store rather than deflate it again
+				assetsOut.addStored(entry.getName(), input.readAllBytes(), AssetZipWriter.dosTime(entry.getTime()));
 			}
 			input.closeEntry();
 		}
 	}
+	private void parseJar(ZipFile input, ForkJoinPool pool, AssetSink assetsOut) throws IOException {
+		List<ZipEntry> classEntries = new ArrayList<>();
+		for (ZipEntry entry : Collections.list(input.entries())) {
+			if (entry.getName().endsWith(".class")) {
+				classEntries.add(entry);
+			} else {
+				// ZipFile only gives out inflated data, so store rather than deflate it again
+				try (InputStream entryInput = input.getInputStream(entry)) {
+					assetsOut.addStored(entry.getName(), entryInput.readAllBytes(),
+							AssetZipWriter.dosTime(entry.getTime()));
+				}
+			}
+		}
+		parseClasses(classEntries, pool, entry -> {
+			try (InputStream entryInput = input.getInputStream(entry)) {
+				return ByteBuffer.wrap(entryInput.readAllBytes());
+			}
+		});
+	}
+	private void parseJar(MappedJarReader input, ForkJoinPool pool, AssetSink assetsOut) throws IOException {
+		List<MappedJarReader.Entry> classEntries = new ArrayList<>();
+		for (MappedJarReader.Entry entry : input.entries()) {
+			if (entry.name().endsWith(".class")) {
+				classEntries.add(entry);
+			} else {
+				// Still compressed, straight from the mapping
+				assetsOut.copyRaw(input, entry);
+			}
+		}
+		assetsOut.flush(pool);
+		parseClasses(classEntries, pool, input::read);
+	}
+	private interface ClassSource<T> {
+		ByteBuffer read(T entry) throws IOException;
+	}
+	private <T> void parseClasses(List<T> classEntries, ForkJoinPool pool, ClassSource<T> source) throws IOException {
+		// Inflate + parse on the pool, ordered toList() keeps the merge in central directory order
+		// so the result matches the sequential reader regardless of scheduling
+		List<ClassHandler> parsed;
+		try {
+			parsed = pool.submit(() -> classEntries.parallelStream().map(entry -> {
+				try {
+					return new ClassHandler(source.read(entry));
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}).toList()).join();
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+		for (ClassHandler handler : parsed) {
+			classes.put(handler.this_class, handler);
+		}
+	}
 	public void addLibraryJar(JarInputStream input) throws IOException {
 		parseJar(input, assetsOut); // TODO: not use same assets file?
 	}
+	public void addLibraryJar(ZipFile input, ForkJoinPool pool) throws IOException {
+		parseJar(input, pool, assetsOut); // TODO: not use same assets file?
+	}
+	public void addLibraryJar(MappedJarReader input, ForkJoinPool pool) throws IOException {
+		// TODO: not use same assets file?
+		if (streamedClasses != null) addStreamedJar(input);
+		else if (availableClasses != null) addIndexedJar(input);
+		else parseJar(input, pool, assetsOut);
+	}
+	/**
+	 * Unlike the other overloads, nothing in library is parsed up front: its classes are pulled in by
+	 * transpile() only if a class being translated (transitively) references them.
+	 */
+	public void addLibraryJar(LibraryIndex library) throws IOException {
+		libraries.add(library);
+		MappedJarReader input = library.jar();
+		for (MappedJarReader.Entry entry : input.entries()) {
+			if (!entry.name().endsWith(".class")) assetsOut.copyRaw(input, entry);
+		}
+	}
+	// After all methods, so the functions it generates don't shift method indices
+	private void embedAssets() {
+		if (assetsOut instanceof EmbeddedAssets embedded) embedded.writeTo(module);
+	}
+	// No more jars can be added once this is done
+	private void finishAssets() {
+		try {
+			assetsOut.flush(pool);
+			assetsOut.close();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+	// Reuse translated bodies of classes that haven't changed since they were cached
+	public void setMethodCache(@Nullable MethodCache methodCache) {
+		this.methodCache = methodCache;
+	}
+	// Optimisations run over each method, null to write every method's ops as they are
+	public void setPassManager(@Nullable PassManager passManager) {
+		this.passManager = passManager;
+	}
+	public @Nullable PassManager getPassManager() {
+		return passManager;
+	}
 	public WasmModule transpile() {
+		finishAssets();
+		if (streamedClasses != null) return transpileStreaming();
+		// The host calls into the classes given, not the libraries they use
+		Set<ClassHandler.ConstantClassInfo> rootClasses = new HashSet<>(classes.keySet());
+		for (String root : roots) rootClasses.add(SymbolTable.classInfo(root));
+		if (availableClasses != null) {
+			loadReachable(roots);
+		} else if (!libraries.isEmpty()) {
+			// Everything given directly is translated, library classes only as they're referenced
+			List<String> referenced = new ArrayList<>();
+			for (ClassHandler cls : classes.values()) {
+				for (ClassHandler.ConstantClassInfo dependency : cls.constant_pool.getDependencies()) {
+					referenced.add(dependency.name());
+				}
+			}
+			loadReachable(referenced);
+		}
+		for (ClassHandler cls : classes.values()) {
+			hierarchy.add(cls);
+			enumSwitches.add(cls);
+			staticConstants.add(cls);
+			if (rootClasses.contains(cls.this_class)) addRoots(cls);
+		}
+		declareImports();
 		// Fields
 		for (var entry : classes.entrySet()) {
+			if (!hierarchy.isReachable(entry.getKey())) continue;
 			Map<ClassHandler.ConstantNameAndTypeInfo, ClassHandler.FieldInfo> fields = new HashMap<>();
-			Map<ClassHandler.ConstantNameAndTypeInfo, Integer> fieldIds = new HashMap<>();
 			for (ClassHandler.FieldInfo field : entry.getValue().fields) {
 				fields.put(field.getNameAndType(), field);
-				if ((field.access_flags & ClassHandler.FieldInfo.ACC_STATIC) == 0) continue;
-				boolean constant = (field.access_flags & ClassHandler.FieldInfo.ACC_FINAL) != 0;
-				var value = field.attributes.constantValue;
-				// Create global for static
-				switch (field.descriptor) {
-					case "I" -> // Integer
-						fieldIds.put(field.getNameAndType(),
-							module.addGlobal(
-								value == null ? 0 : ((ClassHandler.ConstantIntegerInfo) value.value).value(),
-								!constant));
-					case "F" -> // Float
-						fieldIds.put(field.getNameAndType(),
-							module.addGlobal(
-								value == null ? 0F : ((ClassHandler.ConstantFloatInfo) value.value).value(),
-								!constant));
-					case "J" -> // Long
-						fieldIds.put(field.getNameAndType(),
-							module.addGlobal(
-								value == null ? 0L : ((ClassHandler.ConstantLongInfo) value.value).value(),
-								!constant));
-					case "D" -> // Double
-						fieldIds.put(field.getNameAndType(),
-							module.addGlobal(
-								value == null ? 0D : ((ClassHandler.ConstantDoubleInfo) value.value).value(),
-								!constant));
-					default -> throw new RuntimeException("Not Implemented :(");
-				}
 			}
-			staticFieldIndices.put(entry.getKey(), fieldIds);
+			addStaticGlobals(entry.getValue());
 			fieldInfo.put(entry.getKey(), fields);
 		}
 		// Methods
 		for (var entry : classes.entrySet()) {
+			if (!hierarchy.isReachable(entry.getKey())) continue;
 			Map<ClassHandler.ConstantNameAndTypeInfo, Integer> classMethodIds = new HashMap<>();
-			var classMethods = entry.getValue().prepareFunctions(this.module, this);
-			for (var methodEntry : classMethods.entrySet()) {
-				methods.add(methodEntry.getValue());
-				classMethodIds.put(methodEntry.getKey(), methods.size() - 1);
+			var classMethods = translate(entry.getValue());
+			for (ClassHandler.MethodInfo method : entry.getValue().methods) {
+				if (!isTranslated(entry.getValue(), method)) continue;
+				methods.add(classMethods.get(method.getNameAndType()));
+				methodTypes.add(method.getDescriptor().functionType(method.isStatic()));
+				classMethodIds.put(method.getNameAndType(), methods.size() - 1);
 			}
 			methodIds.put(entry.getKey(), classMethodIds);
 		}
 		// Must do seperately so all methods are defined in method ordering
-		for (IntermediaryMethod method : methods) {
-			module.addFunction(method);
+		for (int i = 0; i < methods.size(); i++) {
+			module.addFunction(methodTypes.get(i), methods.get(i).link(this::resolve));
 		}
+		writeDispatchTable();
+		embedAssets();
 		return module;
 	}
+	// Breadth first from start (less anything already loaded), one frontier at a time so each can be parsed in
+	// parallel. The constant pool's class entries cover super, interfaces & the owners of every field & method
+	// referenced, types only named in descriptors don't need translating so aren't followed
+	private void loadReachable(Collection<String> start) {
+		Set<String> seen = new HashSet<>();
+		for (ClassHandler.ConstantClassInfo loaded : classes.keySet()) seen.add(loaded.name());
+		List<String> frontier = new ArrayList<>();
+		for (String name : start) {
+			name = elementClassName(name);
+			if (name != null && seen.add(name)) frontier.add(name);
+		}
+		ForkJoinPool pool = this.pool != null ? this.pool : ForkJoinPool.commonPool();
+		while (!frontier.isEmpty()) {
+			List<StreamedClass> found = new ArrayList<>();
+			for (String name : frontier) {
+				StreamedClass source = findClass(name);
+				if (source == null) missingClasses.add(name);
+				else found.add(source);
+			}
+			// Ordered toList() keeps discovery order, and so function indices, independent of scheduling
+			List<ClassHandler> parsed = pool.submit(() -> found.parallelStream().map(StreamedClass::parse).toList()).join();
+			frontier = new ArrayList<>();
+			for (ClassHandler cls : parsed) {
+				classes.put(cls.this_class, cls);
+				for (ClassHandler.ConstantClassInfo dependency : cls.constant_pool.getDependencies()) {
+					String name = elementClassName(dependency.name());
+					if (name != null && seen.add(name)) frontier.add(name);
+				}
+			}
+		}
+		if (!missingClasses.isEmpty()) {
+			System.out.println(missingClasses.size() + " referenced classes not found on classpath: " + missingClasses);
+		}
+	}
+	private @Nullable StreamedClass findClass(String name) {
+		if (availableClasses != null) {
+			StreamedClass source = availableClasses.get(name);
+			if (source != null) return source;
+		}
+		for (LibraryIndex library : libraries) {
+			if (library.contains(name)) return new StreamedClass(library.jar(), library.entry(name));
+		}
+		return null;
+	}
+	// Class entries can name array types, only the element class (if any) needs loading
+	private static @Nullable String elementClassName(String name) {
+		if (!name.startsWith("[")) return name;
+		int start = name.lastIndexOf('[') + 1;
+		return name.charAt(start) == 'L' ? name.substring(start + 1, name.length() - 1) : null;
+	}
+	public Set<String> getMissingClasses() {
+		return Collections.unmodifiableSet(missingClasses);
+	}
+	private WasmModule transpileStreaming() {
+		assert streamedClasses != null;
+		// The host calls into the classes given, not the libraries they use
+		int given = streamedClasses.size();
+		if (!libraries.isEmpty()) streamLibraries();
+		// Signature passes: parsing is lazy, so these are little more than scans of each class's tables. Which
+		// classes are left out is only known once all are in
+		for (int i = 0; i < streamedClasses.size(); i++) {
+			ClassHandler cls = streamedClasses.get(i).parse();
+			hierarchy.add(cls);
+			enumSwitches.add(cls);
+			staticConstants.add(cls);
+			if (i < given) addRoots(cls);
+		}
+		declareImports();
+		int functionIndex = 0;
+		for (StreamedClass source : streamedClasses) {
+			ClassHandler cls = source.parse();
+			if (!hierarchy.isReachable(cls.this_class)) continue;
+			addStaticGlobals(cls);
+			Map<ClassHandler.ConstantNameAndTypeInfo, Integer> classMethodIds = new HashMap<>();
+			for (ClassHandler.MethodInfo method : cls.methods) {
+				if (!isTranslated(cls, method)) continue;
+				classMethodIds.put(method.getNameAndType(), functionIndex++);
+			}
+			methodIds.put(cls.this_class, classMethodIds);
+		}
+		// Translation pass: same order as above so function indices line up. Each class (and the IR of
+		// its methods) is garbage as soon as its bodies are encoded, and every id is known so they're
+		// linked straight away. The module keeps the encoded bodies until it's written
+		for (StreamedClass source : streamedClasses) {
+			ClassHandler cls = source.parse();
+			if (!hierarchy.isReachable(cls.this_class)) continue;
+			var classMethods = translate(cls);
+			for (ClassHandler.MethodInfo method : cls.methods) {
+				if (!isTranslated(cls, method)) continue;
+				module.addFunction(method.getDescriptor().functionType(method.isStatic()),
+						classMethods.get(method.getNameAndType()).link(this::resolve));
+			}
+		}
+		writeDispatchTable();
+		embedAssets();
+		return module;
+	}
+	// Library classes the streamed ones refer to, transitively, are streamed after them. Each is only parsed to
+	// find what it refers to, as in loadReachable(), and dropped again
+	private void streamLibraries() {
+		assert streamedClasses != null;
+		Set<String> seen = new HashSet<>();
+		Deque<String> pending = new ArrayDeque<>();
+		for (StreamedClass source : streamedClasses) {
+			ClassHandler cls = source.parse();
+			seen.add(cls.this_class.name());
+			for (ClassHandler.ConstantClassInfo dependency : cls.constant_pool.getDependencies()) pending.add(dependency.name());
+		}
+		while (!pending.isEmpty()) {
+			String name = elementClassName(pending.poll());
+			if (name == null || !seen.add(name)) continue;
+			StreamedClass source = findClass(name);
+			if (source == null) {
+				missingClasses.add(name);
+				continue;
+			}
+			streamedClasses.add(source);
+			for (ClassHandler.ConstantClassInfo dependency : source.parse().constant_pool.getDependencies()) {
+				pending.add(dependency.name());
+			}
+		}
+		if (!missingClasses.isEmpty()) {
+			System.out.println(missingClasses.size() + " referenced classes not found on classpath: " + missingClasses);
+		}
+	}
+	// What the host can call: the public methods of a public class
+	private void addRoots(ClassHandler cls) {
+		if ((cls.access_flags & ClassHandler.AccessFlags.ACC_PUBLIC) == 0) return;
+		for (ClassHandler.MethodInfo method : cls.methods) {
+			if ((method.access_flags & ClassHandler.MethodInfo.ACC_PUBLIC) != 0) hierarchy.addRoot(cls.this_class, method.getNameAndType());
+		}
+	}
+	// Only methods the mark phase reached get a function
+	private boolean isTranslated(ClassHandler cls, ClassHandler.MethodInfo method) {
+		return method.hasCode() && hierarchy.isReachable(cls.this_class, method.getNameAndType());
+	}
+	// Once every class is in the hierarchy, and before any function is added: imports take the first indices
+	private void declareImports() {
+		enumSwitches.seal(hierarchy);
+		staticConstants.seal(hierarchy);
+		hierarchy.seal(enumSwitches::isDropped, field -> staticConstants.value(field) != null);
+		for (ClassHierarchy.HostFunction function : hierarchy.hostFunctions()) {
+			hostFunctions.put(function.name(), module.importFunction(HOST_MODULE, function.name(), function.type()).index());
+		}
+		for (ClassHierarchy.HostFunction constant : hierarchy.stringConstants()) {
+			stringConstants.put(constant.name(), module.importFunction(STRING_MODULE, constant.name(), constant.type()).index());
+		}
+	}
+	// The rows megamorphic calls index by class id, see ClassHierarchy.Dispatch
+	private void writeDispatchTable() {
+		List<ClassHierarchy.Dispatch> rows = hierarchy.tableRows();
+		if (rows.isEmpty()) return;
+		List<IndexType> entries = new ArrayList<>();
+		for (ClassHierarchy.Dispatch row : rows) {
+			IndexType[] functions = new IndexType[hierarchy.classCount()];
+			for (ClassHierarchy.Target target : row.targets()) {
+				IndexType function = new IndexType(functionIndex(target.owner(), target.method()));
+				for (int id : target.classIds()) functions[id] = function;
+			}
+			// Classes the call never sees are never looked up, but the table can't have holes
+			IndexType filler = new IndexType(functionIndex(row.targets().get(0).owner(), row.targets().get(0).method()));
+			for (IndexType function : functions) entries.add(function != null ? function : filler);
+		}
+		module.createTable(entries.size(), HeapType.AbstractHeapType.FUNC.asRef());
+		module.initFunctionTable(0, entries);
+	}
+	ClassHierarchy getHierarchy() {
+		return hierarchy;
+	}
+	EnumSwitchMaps getEnumSwitches() {
+		return enumSwitches;
+	}
+	StaticConstants getStaticConstants() {
+		return staticConstants;
+	}
+	// What transpile() left out of the module as unreachable, and why
+	public String treeShakingReport() {
+		return hierarchy.report();
+	}
+	// Encoded bodies of cls's methods in declaration order, from the cache if cls hasn't changed
+	private Map<ClassHandler.ConstantNameAndTypeInfo, RelocatableFunction> translate(ClassHandler cls) {
+		String key = null;
+		if (methodCache != null) {
+			key = methodCache.key(cls);
+			var cached = methodCache.load(key);
+			// Stored for the methods reachable then, which may be fewer
+			if (cached != null && cls.methods.stream().noneMatch(method -> isTranslated(cls, method)
+					&& !cached.containsKey(method.getNameAndType()))) return cached;
+		}
+		Map<ClassHandler.ConstantNameAndTypeInfo, RelocatableFunction> result = new LinkedHashMap<>();
+		boolean cacheable = true;
+		for (var entry : cls.prepareFunctions(module, this, method -> isTranslated(cls, method)).entrySet()) {
+			result.put(entry.getKey(), entry.getValue().encode());
+			cacheable &= entry.getValue().isCacheable();
+		}
+		if (key != null && cacheable) methodCache.store(key, result);
+		return result;
+	}
+	private void addStaticGlobals(ClassHandler cls) {
+		Map<ClassHandler.ConstantNameAndTypeInfo, Integer> fieldIds = new HashMap<>();
+		for (ClassHandler.FieldInfo field : cls.fields) {
+			if ((field.access_flags & ClassHandler.FieldInfo.ACC_STATIC) == 0
+					|| !hierarchy.isReachableStatic(cls.this_class, field.getNameAndType())) continue;
+			var value = field.attributes.getConstantValue();
+			// A final set by <clinit> has no ConstantValue, and is still written once
+			boolean constant = (field.access_flags & ClassHandler.FieldInfo.ACC_FINAL) != 0 && value != null;
+			// Create global for static
+			switch (field.descriptor.substring(0, 1)) {
+				case "I", "Z", "B", "C", "S" -> // Integer, or narrower
+					fieldIds.put(field.getNameAndType(),
+						module.addGlobal(
+							value == null ? 0 : ((ClassHandler.ConstantIntegerInfo) value.value).value(),
+							!constant));
+				case "F" -> // Float
+					fieldIds.put(field.getNameAndType(),
+						module.addGlobal(
+							value == null ? 0F : ((ClassHandler.ConstantFloatInfo) value.value).value(),
+							!constant));
+				case "J" -> // Long
+					fieldIds.put(field.getNameAndType(),
+						module.addGlobal(
+							value == null ? 0L : ((ClassHandler.ConstantLongInfo) value.value).value(),
+							!constant));
+				case "D" -> // Double
+					fieldIds.put(field.getNameAndType(),
+						module.addGlobal(
+							value == null ? 0D : ((ClassHandler.ConstantDoubleInfo) value.value).value(),
+							!constant));
+				case "L", "[" -> // Reference, null until set. A string ConstantValue isn't applied, javac inlines its reads anyway
+					fieldIds.put(field.getNameAndType(), module.addGlobal(Operation.REFERENCE, true));
+				default -> throw new RuntimeException("Not Implemented :(");
+			}
+		}
+		staticFieldIndices.put(cls.this_class, fieldIds);
+	}
 
 	public int getFunctionIndex(ClassHandler.ConstantMethodRefInfo method) {
-		return methodIds.get(method.getCls()).get(method.getSignature());
+		return functionIndex(method.getCls(), method.getSignature());
+	}
+
+	private int functionIndex(ClassHandler.ConstantClassInfo owner, ClassHandler.ConstantNameAndTypeInfo method) {
+		var target = hierarchy.directOwner(owner, method);
+		var indices = target == null ? null : methodIds.get(target);
+		Integer index = indices == null ? null : indices.get(method);
+		if (index == null) throw new RuntimeException("Unresolved reference to " + owner.name() + "." + method.name()
+				+ ":" + method.descriptor());
+		return module.importedFunctionCount() + index;
+	}
+
+	/**
+	 * The method declared in owner a call from caller runs, for the inliner. Only classes held in memory are
+	 * looked in, which in streaming mode is just caller.
+	 * @return null if it isn't found, isn't static (or instance) as expected, or has no code of its own to inline
+	 */
+	@Nullable ClassHandler.MethodInfo findMethod(ClassHandler caller, ClassHandler.ConstantClassInfo owner,
+	                                             ClassHandler.ConstantNameAndTypeInfo signature, boolean isStatic) {
+		ClassHandler cls = owner == caller.this_class ? caller : classes.get(owner);
+		if (cls == null) return null;
+		for (ClassHandler.MethodInfo candidate : cls.methods) {
+			if (candidate.getNameAndType() != signature) continue;
+			boolean synchronised = (candidate.access_flags & ClassHandler.MethodInfo.ACC_SYNCHRONIZED) != 0;
+			return candidate.isStatic() == isStatic && !synchronised && candidate.attributes.getCode() != null
+					? candidate : null;
+		}
+		return null;
 	}
 
 	public int getGlobal(ClassHandler.ConstantFieldRefInfo field) {
-		return staticFieldIndices.get(field.getCls()).get(field.getSignature());
+		var declared = hierarchy.declaredStatic(field.getCls(), field.getSignature());
+		return staticFieldIndices.get(declared == null ? field.getCls() : declared.owner()).get(field.getSignature());
+	}
+
+	private int resolve(Relocation relocation) {
+		var owner = SymbolTable.classInfo(relocation.owner());
+		var member = SymbolTable.nameAndType(relocation.name(), relocation.descriptor());
+		Integer index = switch (relocation.kind()) {
+			case FUNCTION -> {
+				// Named through a subclass, maybe, but the function is the body the call runs
+				var target = hierarchy.directOwner(owner, member);
+				var indices = target == null ? null : methodIds.get(target);
+				Integer found = indices == null ? null : indices.get(member);
+				yield found == null ? null : module.importedFunctionCount() + found;
+			}
+			case GLOBAL -> {
+				// Named through a subclass, maybe, but the global is its declaring class's
+				var declared = hierarchy.declaredStatic(owner, member);
+				var indices = declared == null ? null : staticFieldIndices.get(declared.owner());
+				yield indices == null ? null : indices.get(member);
+			}
+			case HOST -> (relocation.owner().equals(STRING_MODULE) ? stringConstants : hostFunctions).get(relocation.name());
+			case CLASS_ID -> hierarchy.classId(owner);
+			case FIELD_ID -> hierarchy.fieldId(owner, member);
+		};
+		if (index == null) throw new RuntimeException("Unresolved reference to " + relocation);
+		return index;
 	}
 }
@@ -0,0 +1,124 @@
+package wntiv.class_parser;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Which entry of a library jar holds each class, cached on disk so later runs only read the index instead of
+ * parsing the jar. A class is only parsed once something being translated references it, and everything else
+ * about it is read from the class file then, so just names & entries are kept.
+ * <p>
+ * Index files are named by a hash of the jar's central directory and the format version, so an older index
+ * is rebuilt rather than misread, and are big endian like class files:
+ * <pre>
+ * u4 magic ('J2WI')
+ * u2 version
+ * u4 class_count
+ * { u2 length; u1 utf8[length]; u4 entry_index (into the jar's central directory) }[class_count]
+ * </pre>
+ */
+public final class LibraryIndex {
+	private static final int MAGIC = 0x4A325749;
+	private static final short VERSION = 2;
+
+	private final MappedJarReader jar;
+	private final Map<String, Integer> entryIndices = new HashMap<>();
+
+	private LibraryIndex(MappedJarReader jar, ByteBuffer data) {
+		this.jar = jar;
+		if (data.getInt() != MAGIC || data.getShort() != VERSION)
+			throw new RuntimeException("Invalid library index");
+		int class_count = data.getInt();
+		for (int i = 0; i < class_count; i++) {
+			byte[] utf8 = new byte[ClassHandler.readUnsignedShort(data)];
+			data.get(utf8);
+			entryIndices.put(SymbolTable.intern(new String(utf8, StandardCharsets.UTF_8)), data.getInt());
+		}
+	}
+
+	/**
+	 * Reads the index for jar from cacheDir, building (and saving) it first if there isn't one yet.
+	 * @param pool used to parse the jar when building the index
+	 */
+	public static LibraryIndex open(MappedJarReader jar, Path cacheDir, ForkJoinPool pool) throws IOException {
+		Path indexFile = cacheDir.resolve(key(jar) + ".v" + VERSION + ".idx");
+		if (!Files.exists(indexFile)) {
+			Files.createDirectories(cacheDir);
+			// Written to the side then moved, so a crashed or concurrent run never leaves half an index
+			Path temp = Files.createTempFile(cacheDir, "index", ".tmp");
+			Files.write(temp, build(jar, pool));
+			Files.move(temp, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		return new LibraryIndex(jar, ByteBuffer.wrap(Files.readAllBytes(indexFile)));
+	}
+
+	// A hash of the central directory rather than of the whole jar's content: it holds every entry's name,
+	// sizes & CRC-32, so any changed class changes it (barring a CRC-32 collision) for a fraction of the
+	// reading
+	private static String key(MappedJarReader jar) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			digest.update(jar.centralDirectory());
+			return HexFormat.of().formatHex(digest.digest());
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static byte[] build(MappedJarReader jar, ForkJoinPool pool) throws IOException {
+		List<Integer> classEntries = new ArrayList<>();
+		for (int i = 0; i < jar.entries().size(); i++) {
+			if (jar.entries().get(i).name().endsWith(".class")) classEntries.add(i);
+		}
+		List<ClassHandler> parsed;
+		try {
+			parsed = pool.submit(() -> classEntries.parallelStream().map(i -> {
+				try {
+					return new ClassHandler(jar.read(jar.entries().get(i)));
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}).toList()).join();
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+
+		ByteArrayOutputStream result = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(result);
+		out.writeInt(MAGIC);
+		out.writeShort(VERSION);
+		out.writeInt(parsed.size());
+		for (int i = 0; i < parsed.size(); i++) {
+			byte[] utf8 = parsed.get(i).this_class.name().getBytes(StandardCharsets.UTF_8);
+			out.writeShort(utf8.length);
+			out.write(utf8);
+			out.writeInt(classEntries.get(i));
+		}
+		return result.toByteArray();
+	}
+
+	public boolean contains(String name) {
+		return entryIndices.containsKey(name);
+	}
+
+	public MappedJarReader.Entry entry(String name) {
+		Integer index = entryIndices.get(name);
+		if (index == null) throw new IllegalArgumentException(name + " is not in this library");
+		return jar.entries().get(index);
+	}
+
+	public MappedJarReader jar() {
+		return jar;
+	}
+}
@@ -0,0 +1,166 @@
+package wntiv.class_parser;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+// Reads a jar by memory mapping it and walking the central directory ourselves.
+// Stored entries are handed out as slices of the mapping (zero copy), deflated ones are
+// inflated straight into a buffer of exactly the entry's size.
+// https://pkware.cachefly.net/webdocs/casestudies/APPNOTE.TXT
+public class MappedJarReader implements Closeable {
+	private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+	private static final int LOCAL_HEADER_SIZE = 30;
+	private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+	private static final int CENTRAL_HEADER_SIZE = 46;
+	private static final int END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06054b50;
+	private static final int END_OF_CENTRAL_DIRECTORY_SIZE = 22;
+	public static final int STORED = 0;
+	public static final int DEFLATED = 8;
+
+	private static final ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(() -> new Inflater(true));
+
+	private final FileChannel channel;
+	private final MappedByteBuffer mapping;
+	private final List<Entry> entries;
+	private int directoryOffset;
+
+	// dosTime is the raw (date << 16 | time) pair, kept as-is for anyone copying the entry out
+	public record Entry(String name, int flags, int method, int dosTime, int crc,
+	                    int compressedSize, int size, int localHeaderOffset) {
+		public boolean isDirectory() {
+			return name.endsWith("/");
+		}
+	}
+
+	public MappedJarReader(Path path) throws IOException {
+		channel = FileChannel.open(path, StandardOpenOption.READ);
+		if (channel.size() > Integer.MAX_VALUE)
+			throw new IOException("Jar too large to map: " + path);
+		mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		mapping.order(ByteOrder.LITTLE_ENDIAN);
+		entries = Collections.unmodifiableList(readCentralDirectory());
+	}
+
+	private List<Entry> readCentralDirectory() throws ZipException {
+		// EOCD sits at the end, possibly followed by a comment of up to 0xFFFF bytes
+		int eocd = mapping.limit() - END_OF_CENTRAL_DIRECTORY_SIZE;
+		int lowest = Math.max(0, eocd - 0xFFFF);
+		while (eocd >= lowest && mapping.getInt(eocd) != END_OF_CENTRAL_DIRECTORY_SIGNATURE) eocd--;
+		if (eocd < lowest) throw new ZipException("End of central directory not found");
+		int count = Short.toUnsignedInt(mapping.getShort(eocd + 10));
+		long directoryOffset = Integer.toUnsignedLong(mapping.getInt(eocd + 16));
+		if (count == 0xFFFF || directoryOffset == 0xFFFFFFFFL)
+			throw new ZipException("Zip64 jars are not supported");
+
+		List<Entry> result = new ArrayList<>(count);
+		int pos = this.directoryOffset = (int) directoryOffset;
+		while (count --> 0) {
+			if (mapping.getInt(pos) != CENTRAL_HEADER_SIGNATURE)
+				throw new ZipException("Invalid central directory header @" + pos);
+			int nameLength = Short.toUnsignedInt(mapping.getShort(pos + 28));
+			int extraLength = Short.toUnsignedInt(mapping.getShort(pos + 30));
+			int commentLength = Short.toUnsignedInt(mapping.getShort(pos + 32));
+			byte[] name = new byte[nameLength];
+			mapping.get(pos + CENTRAL_HEADER_SIZE, name);
+			result.add(new Entry(
+					new String(name, StandardCharsets.UTF_8),
+					Short.toUnsignedInt(mapping.getShort(pos + 8)),
+					Short.toUnsignedInt(mapping.getShort(pos + 10)),
+					mapping.getInt(pos + 12),
+					mapping.getInt(pos + 16),
+					mapping.getInt(pos + 20),
+					mapping.getInt(pos + 24),
+					mapping.getInt(pos + 42)));
+			pos += CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+		}
+		return result;
+	}
+
+	public List<Entry> entries() {
+		return entries;
+	}
+
+	// Central directory through to the end of the file. Holds every entry's name, sizes & CRC-32, so
+	// makes a cheap stand-in for hashing the whole jar
+	public ByteBuffer centralDirectory() {
+		return mapping.slice(directoryOffset, mapping.limit() - directoryOffset);
+	}
+
+	// Entry's bytes exactly as stored in the jar (still compressed if method is DEFLATED)
+	public ByteBuffer rawData(Entry entry) throws ZipException {
+		int header = entry.localHeaderOffset();
+		if (mapping.getInt(header) != LOCAL_HEADER_SIGNATURE)
+			throw new ZipException("Invalid local header for " + entry.name());
+		// Local extra field can differ from the central directory's, so must be re-read here
+		int nameLength = Short.toUnsignedInt(mapping.getShort(header + 26));
+		int extraLength = Short.toUnsignedInt(mapping.getShort(header + 28));
+		int start = header + LOCAL_HEADER_SIZE + nameLength + extraLength;
+		return mapping.slice(start, entry.compressedSize()).order(ByteOrder.BIG_ENDIAN);
+	}
+
+	/**
+	 * Uncompressed contents of entry.
+	 * Stored entries are a view straight into the mapping. Deflated entries get their own buffer, as
+	 * ClassHandler's constant pool keeps hold of the class bytes to decode from later.
+	 */
+	public ByteBuffer read(Entry entry) throws IOException {
+		ByteBuffer raw = rawData(entry);
+		return switch (entry.method()) {
+			case STORED -> raw;
+			case DEFLATED -> inflate(raw, entry);
+			default -> throw new ZipException("Unsupported compression method " + entry.method()
+					+ " for " + entry.name());
+		};
+	}
+
+	public @Nullable Manifest manifest() throws IOException {
+		for (Entry entry : entries) {
+			if (!entry.name().equalsIgnoreCase(JarFile.MANIFEST_NAME)) continue;
+			ByteBuffer data = read(entry);
+			byte[] bytes = new byte[data.remaining()];
+			data.get(bytes);
+			return new Manifest(new ByteArrayInputStream(bytes));
+		}
+		return null;
+	}
+
+	private static ByteBuffer inflate(ByteBuffer raw, Entry entry) throws ZipException {
+		// Size is known up front from the central directory, so this never needs to grow
+		ByteBuffer result = ByteBuffer.allocate(entry.size());
+		Inflater inflater = inflaters.get();
+		inflater.reset();
+		inflater.setInput(raw);
+		try {
+			while (result.hasRemaining() && !inflater.finished()) {
+				if (inflater.inflate(result) == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+					throw new ZipException("Truncated entry " + entry.name());
+			}
+		} catch (DataFormatException e) {
+			throw new ZipException("Corrupt entry " + entry.name() + ": " + e.getMessage());
+		}
+		return result.flip();
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+}
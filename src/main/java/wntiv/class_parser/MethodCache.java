@@ -0,0 +1,108 @@
+package wntiv.class_parser;
+
+import org.jetbrains.annotations.Nullable;
+import wntiv.wasm_output.Relocation;
+import wntiv.wasm_output.RelocatableFunction;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * Translated method bodies, cached on disk per class. Entries are keyed by the class file's hash plus
+ * {@link #CODEGEN_VERSION} and the options the bodies were translated with, so they never need
+ * invalidating: a changed class (or transpiler) just misses. Bodies are stored unlinked, which keeps them
+ * valid however function & global indices get assigned around them.
+ */
+public final class MethodCache {
+	// Bump whenever the code emitted for a method changes, so bodies from older builds are never reused
+	public static final int CODEGEN_VERSION = 16;
+	private static final int MAGIC = 0x4A32574D;
+
+	private final Path directory;
+	private final String options;
+
+	/**
+	 * @param options anything that changes the code emitted, e.g. optimisation settings
+	 */
+	public MethodCache(Path directory, String options) {
+		this.directory = directory;
+		this.options = options;
+	}
+
+	public String key(ClassHandler cls) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			digest.update(cls.getClassFile());
+			digest.update((CODEGEN_VERSION + "\0" + options).getBytes(StandardCharsets.UTF_8));
+			return HexFormat.of().formatHex(digest.digest());
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	// Methods in declaration order, or null on a miss
+	public @Nullable Map<ClassHandler.ConstantNameAndTypeInfo, RelocatableFunction> load(String key) {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+				Files.newInputStream(directory.resolve(key + ".bin"))))) {
+			if (in.readInt() != MAGIC) throw new IOException("Bad magic");
+			Map<ClassHandler.ConstantNameAndTypeInfo, RelocatableFunction> result = new LinkedHashMap<>();
+			int methods_count = in.readInt();
+			while (methods_count --> 0) {
+				var nameAndType = SymbolTable.nameAndType(in.readUTF(), in.readUTF());
+				byte[] body = in.readNBytes(in.readInt());
+				int relocations_count = in.readInt();
+				List<Relocation> relocations = new ArrayList<>(relocations_count);
+				while (relocations_count --> 0) {
+					relocations.add(new Relocation(in.readInt(), Relocation.Kind.values()[in.readUnsignedByte()],
+							in.readUTF(), in.readUTF(), in.readUTF()));
+				}
+				result.put(nameAndType, new RelocatableFunction(body, relocations));
+			}
+			return result;
+		} catch (NoSuchFileException e) {
+			return null;
+		} catch (IOException e) {
+			// Truncated or from some other tool, just translate again (and overwrite it)
+			System.out.println("Ignoring unreadable cache entry " + key + ": " + e.getMessage());
+			return null;
+		}
+	}
+
+	public void store(String key, Map<ClassHandler.ConstantNameAndTypeInfo, RelocatableFunction> functions) {
+		try {
+			Files.createDirectories(directory);
+			// Written to the side then moved, so a crashed or concurrent run never leaves half an entry
+			Path temp = Files.createTempFile(directory, key, ".tmp");
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+				out.writeInt(MAGIC);
+				out.writeInt(functions.size());
+				for (var entry : functions.entrySet()) {
+					out.writeUTF(entry.getKey().name());
+					out.writeUTF(entry.getKey().descriptor());
+					RelocatableFunction function = entry.getValue();
+					out.writeInt(function.body().length);
+					out.write(function.body());
+					out.writeInt(function.relocations().size());
+					for (Relocation relocation : function.relocations()) {
+						out.writeInt(relocation.offset());
+						out.writeByte(relocation.kind().ordinal());
+						out.writeUTF(relocation.owner());
+						out.writeUTF(relocation.name());
+						out.writeUTF(relocation.descriptor());
+					}
+				}
+			}
+			Files.move(temp, directory.resolve(key + ".bin"), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+}
@@ -0,0 +1,64 @@
+package wntiv.class_parser;
+
+import org.jetbrains.annotations.Nullable;
+import wntiv.wasm_output.types.FunctionType;
+import wntiv.wasm_output.types.NumericType;
+import wntiv.wasm_output.types.ResultType;
+import wntiv.wasm_output.types.ValueType;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A method descriptor, e.g. {@code (IJLjava/lang/String;[D)V}, as wasm value types.
+ * https://docs.oracle.com/javase/specs/jvms/se21/html/jvms-4.html#jvms-4.3.3
+ */
+public record MethodDescriptor(List<ValueType> parameters, @Nullable ValueType result) {
+	public static MethodDescriptor parse(String descriptor) {
+		if (descriptor.isEmpty() || descriptor.charAt(0) != '(')
+			throw new RuntimeException("Invalid method descriptor " + descriptor);
+		List<ValueType> parameters = new ArrayList<>();
+		int i = 1;
+		while (descriptor.charAt(i) != ')') {
+			char first = descriptor.charAt(i);
+			while (descriptor.charAt(i) == '[') i++;
+			if (descriptor.charAt(i) == 'L') {
+				i = descriptor.indexOf(';', i);
+				if (i < 0) throw new RuntimeException("Invalid method descriptor " + descriptor);
+			}
+			parameters.add(fieldType(first));
+			i++;
+		}
+		char result = descriptor.charAt(i + 1);
+		return new MethodDescriptor(List.copyOf(parameters), result == 'V' ? null : fieldType(result));
+	}
+
+	// Type of a value whose field descriptor starts with c
+	public static ValueType fieldType(char c) {
+		return switch (c) {
+			case 'B', 'C', 'I', 'S', 'Z' -> NumericType.I32;
+			case 'J' -> NumericType.I64;
+			case 'F' -> NumericType.F32;
+			case 'D' -> NumericType.F64;
+			case 'L', '[' -> Operation.REFERENCE;
+			default -> throw new RuntimeException("Invalid field descriptor " + c);
+		};
+	}
+
+	// Number of JVM local (or stack) slots a value of type takes
+	public static int slotSize(ValueType type) {
+		return type == NumericType.I64 || type == NumericType.F64 ? 2 : 1;
+	}
+
+	/**
+	 * Wasm signature of the method, instance methods take {@code this} first.
+	 */
+	public FunctionType functionType(boolean isStatic) {
+		ResultType arguments = new ResultType();
+		if (!isStatic) arguments.add(Operation.REFERENCE);
+		arguments.addAll(parameters);
+		ResultType results = new ResultType();
+		if (result != null) results.add(result);
+		return new FunctionType(arguments, results);
+	}
+}
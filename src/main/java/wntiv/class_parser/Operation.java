@@ -1,7 +1,9 @@
 package wntiv.class_parser;
 
 import jdk.jfr.Unsigned;
+import org.jetbrains.annotations.Nullable;
 import wntiv.Pair;
+import wntiv.ir.SwitchLowering;
 import wntiv.wasm_output.Util;
 import wntiv.wasm_output.WasmModule;
 import wntiv.wasm_output.types.*;
@@ -18,6 +20,9 @@ import static wntiv.wasm_output.types.NumericType.*;
 
 public interface Operation {
 	String[] ARRAY_TYPES = new String[]{"BOOLEAN", "CHAR", "FLOAT", "DOUBLE", "BYTE", "SHORT", "INT", "LONG"};
+	// Every Java reference (objects, arrays, null) as one wasm type, so locals & spilled stack slots holding
+	// any of them always agree
+	ReferenceType REFERENCE = HeapType.AbstractHeapType.EXTERN.asRef();
 	enum Type {
 		INT,
 		LONG,
@@ -51,8 +56,8 @@ public interface Operation {
 			case 0x0d /* fconst_2 */ -> new PushConst(F32, 2F);
 			case 0x0e /* dconst_0 */ -> new PushConst(NumericType.F64, 0D);
 			case 0x0f /* dconst_1 */ -> new PushConst(NumericType.F64, 1D);
-			case 0x10 /* bipush */ -> new PushConst(I32, input.readByte());
-			case 0x11 /* sipush */ -> new PushConst(I32, input.readShort());
+			case 0x10 /* bipush */ -> new PushConst(I32, (int) input.readByte());
+			case 0x11 /* sipush */ -> new PushConst(I32, (int) input.readShort());
 			case 0x12 /* ldc */, 0x13 /* ldc_w */ -> {
 				ClassHandler.ConstantPoolItem constValue = pool.get(opcode == 0x12 ? input.readUnsignedByte()
 				                                                                   : input.readUnsignedShort());
@@ -60,10 +65,15 @@ public interface Operation {
 					yield new PushConst(I32, intValue.value());
 				else if (constValue instanceof ClassHandler.ConstantFloatInfo floatValue)
 					yield new PushConst(F32, floatValue.value());
-				else if (constValue instanceof ClassHandler.ConstantStringInfo stringValue)
-					yield new PushConst(HeapType.AbstractHeapType.ARRAY.asRef(), stringValue.value()); // TODO: Make value in data section??
-				else if (constValue instanceof ClassHandler.ConstantClassInfo object)
-					yield new PushConst(HeapType.AbstractHeapType.STRUCT.asRef(), object);
+				else if (constValue instanceof ClassHandler.ConstantStringInfo stringValue) {
+					if (!ClassHierarchy.importable(stringValue.value()))
+						throw new RuntimeException("String constant with unpaired surrogates can't be imported");
+					yield new StringConstant(stringValue.value());
+				}
+				else if (constValue instanceof ClassHandler.ConstantClassInfo cls) {
+					method.bindings.getHierarchy().classId(cls); // Fails early if it can't be
+					yield new ClassConstant(cls);
+				}
 				else throw new RuntimeException("Unexpected const value");
 			}
 			case 0x14 /* ldc2_w */ -> {
@@ -74,42 +84,40 @@ public interface Operation {
 					yield new PushConst(NumericType.F64, doubleValue.value());
 				else throw new RuntimeException("Unexpected const value");
 			}
-			case 0x15 /* iload */ -> new PushLocal(input.readUnsignedByte());
-			case 0x16 /* lload */ -> new PushLocal(input.readUnsignedByte());
-			case 0x17 /* fload */ -> new PushLocal(input.readUnsignedByte());
-			case 0x18 /* dload */ -> new PushLocal(input.readUnsignedByte());
-			case 0x19 /* aload */ -> new PushLocal(input.readUnsignedByte());
-			case 0x1a, 0x1b, 0x1c, 0x1d /* iload_<n> */ -> new PushLocal(opcode - 0x1a);
-			case 0x1e, 0x1f, 0x20, 0x21 /* lload_<n> */ -> new PushLocal(opcode - 0x1e);
-			case 0x22, 0x23, 0x24, 0x25 /* fload_<n> */ -> new PushLocal(opcode - 0x22);
-			case 0x26, 0x27, 0x28, 0x29 /* dload_<n> */ -> new PushLocal(opcode - 0x26);
-			case 0x2a, 0x2b, 0x2c, 0x2d /* aload_<n> */ -> new PushLocal(opcode - 0x2a);
-			case 0x2e /* iaload */ -> new PushArray(I32);
-			case 0x2f /* laload */ -> new PushArray(I64);
-			case 0x30 /* faload */ -> new PushArray(F32);
-			case 0x31 /* daload */ -> new PushArray(F64);
-			case 0x32 /* aaload */ -> new PushArray(HeapType.AbstractHeapType.ARRAY.asRef());
-			case 0x33 /* baload */ -> new PushArray(PackedType.I8);
-			case 0x34 /* caload */ -> new PushArray(PackedType.I16);
-			case 0x35 /* saload */ -> new PushArray(PackedType.I16);
-			case 0x36 /* istore */ -> new PopLocal(input.readUnsignedByte());
-			case 0x37 /* lstore */ -> new PopLocal(input.readUnsignedByte());
-			case 0x38 /* fstore */ -> new PopLocal(input.readUnsignedByte());
-			case 0x39 /* dstore */ -> new PopLocal(input.readUnsignedByte());
-			case 0x3a /* astore */ -> new PopLocal(input.readUnsignedByte());
-			case 0x3b, 0x3c, 0x3d, 0x3e /* istore_<n> */ -> new PopLocal(opcode - 0x3b);
-			case 0x3f, 0x40, 0x41, 0x42 /* lstore_<n> */ -> new PopLocal(opcode - 0x3f);
-			case 0x43, 0x44, 0x45, 0x46 /* fstore_<n> */ -> new PopLocal(opcode - 0x43);
-			case 0x47, 0x48, 0x49, 0x4a /* dstore_<n> */ -> new PopLocal(opcode - 0x47);
-			case 0x4b, 0x4c, 0x4d, 0x4e /* astore_<n> */ -> new PopLocal(opcode - 0x4b);
-			case 0x4f /* iastore */ -> new PopArray(Type.INT);
-			case 0x50 /* lastore */ -> new PopArray(Type.LONG);
-			case 0x51 /* fastore */ -> new PopArray(Type.FLOAT);
-			case 0x52 /* dastore */ -> new PopArray(Type.DOUBLE);
-			case 0x53 /* aastore */ -> new PopArray(Type.ARRAY);
-			case 0x54 /* bastore */ -> new PopArray(Type.BYTE);
-			case 0x55 /* castore */ -> new PopArray(Type.CHAR);
-			case 0x56 /* sastore */ -> new PopArray(Type.SHORT);
+			case 0x15 /* iload */ -> new PushLocal(input.readUnsignedByte(), I32);
+			case 0x16 /* lload */ -> new PushLocal(input.readUnsignedByte(), I64);
+			case 0x17 /* fload */ -> new PushLocal(input.readUnsignedByte(), F32);
+			case 0x18 /* dload */ -> new PushLocal(input.readUnsignedByte(), F64);
+			case 0x19 /* aload */ -> new PushLocal(input.readUnsignedByte(), REFERENCE);
+			case 0x1a, 0x1b, 0x1c, 0x1d /* iload_<n> */ -> new PushLocal(opcode - 0x1a, I32);
+			case 0x1e, 0x1f, 0x20, 0x21 /* lload_<n> */ -> new PushLocal(opcode - 0x1e, I64);
+			case 0x22, 0x23, 0x24, 0x25 /* fload_<n> */ -> new PushLocal(opcode - 0x22, F32);
+			case 0x26, 0x27, 0x28, 0x29 /* dload_<n> */ -> new PushLocal(opcode - 0x26, F64);
+			case 0x2a, 0x2b, 0x2c, 0x2d /* aload_<n> */ -> new PushLocal(opcode - 0x2a, REFERENCE);
+			case 0x2e /* iaload */ -> PushArray.of(I32, method);
+			case 0x2f /* laload */ -> PushArray.of(I64, method);
+			case 0x30 /* faload */ -> PushArray.of(F32, method);
+			case 0x31 /* daload */ -> PushArray.of(F64, method);
+			case 0x32 /* aaload */ -> PushArray.of(REFERENCE, method);
+			// The host's boolean, byte, char & short arrays give their elements already extended to ints
+			case 0x33 /* baload */, 0x34 /* caload */, 0x35 /* saload */ -> PushArray.of(I32, method);
+			case 0x36 /* istore */ -> new PopLocal(input.readUnsignedByte(), I32);
+			case 0x37 /* lstore */ -> new PopLocal(input.readUnsignedByte(), I64);
+			case 0x38 /* fstore */ -> new PopLocal(input.readUnsignedByte(), F32);
+			case 0x39 /* dstore */ -> new PopLocal(input.readUnsignedByte(), F64);
+			case 0x3a /* astore */ -> new PopLocal(input.readUnsignedByte(), REFERENCE);
+			case 0x3b, 0x3c, 0x3d, 0x3e /* istore_<n> */ -> new PopLocal(opcode - 0x3b, I32);
+			case 0x3f, 0x40, 0x41, 0x42 /* lstore_<n> */ -> new PopLocal(opcode - 0x3f, I64);
+			case 0x43, 0x44, 0x45, 0x46 /* fstore_<n> */ -> new PopLocal(opcode - 0x43, F32);
+			case 0x47, 0x48, 0x49, 0x4a /* dstore_<n> */ -> new PopLocal(opcode - 0x47, F64);
+			case 0x4b, 0x4c, 0x4d, 0x4e /* astore_<n> */ -> new PopLocal(opcode - 0x4b, REFERENCE);
+			case 0x4f /* iastore */ -> PopArray.of(I32, method);
+			case 0x50 /* lastore */ -> PopArray.of(I64, method);
+			case 0x51 /* fastore */ -> PopArray.of(F32, method);
+			case 0x52 /* dastore */ -> PopArray.of(F64, method);
+			case 0x53 /* aastore */ -> PopArray.of(REFERENCE, method);
+			// And truncate ints stored in them
+			case 0x54 /* bastore */, 0x55 /* castore */, 0x56 /* sastore */ -> PopArray.of(I32, method);
 			case 0x57 /* pop */ -> new DirectTranslation(0x1A);
 			case 0x58 /* pop2 */ -> new DirectTranslation(0x1A); // TODO: maybe drops two values (depends on type)
 			case 0x59 /* dup */ -> new Dup(1, -1);
@@ -171,11 +179,12 @@ public interface Operation {
 			case 0x91 /* i2b */ -> new TrimInt(1, false);
 			case 0x92 /* i2c */ -> new TrimInt(2, true);
 			case 0x93 /* i2s */ -> new TrimInt(2, false);
-			case 0x94 /* lcmp */ -> new Compare(I64, false); // TODO: Java uses cmp then if_<cond>,
-			case 0x95 /* fcmpl */ -> new Compare(F32, false); // whereas WASM uses cmp_<cond> then if...
-			case 0x96 /* fcmpg */ -> new Compare(F32, true); // We need to translate
-			case 0x97 /* dcmpl */ -> new Compare(NumericType.F64, false);
-			case 0x98 /* dcmpg */ -> new Compare(NumericType.F64, true);
+			// Java uses cmp then if<cond>, whereas wasm has cmp_<cond>. The optimiser fuses the pair (CompareFusion)
+			case 0x94 /* lcmp */ -> Compare.of(I64, false, method);
+			case 0x95 /* fcmpl */ -> Compare.of(F32, false, method);
+			case 0x96 /* fcmpg */ -> Compare.of(F32, true, method);
+			case 0x97 /* dcmpl */ -> Compare.of(NumericType.F64, false, method);
+			case 0x98 /* dcmpg */ -> Compare.of(NumericType.F64, true, method);
 			case 0x99 /* ifeq */ -> new ComparisonConditional(0x46, input.readShort());
 			case 0x9a /* ifne */ -> new ComparisonConditional(0x47, input.readShort());
 			case 0x9b /* iflt */ -> new ComparisonConditional(0x48, input.readShort());
@@ -202,7 +211,7 @@ public interface Operation {
 				int numPairs = high - low + 1;
 				List<Integer> mappings = new ArrayList<>(numPairs);
 				while (numPairs-- > 0) {
-					mappings.add(high - numPairs, input.readInt());
+					mappings.add(input.readInt());
 				}
 				yield new JumpTable(defaultValue, low, mappings);
 			}
@@ -215,70 +224,107 @@ public interface Operation {
 				while (numPairs-- > 0) {
 					mapping.put(input.readInt(), input.readInt());
 				}
-				yield new LookupTable(mapping, defaultValue, method.getModule());
+				yield new LookupTable(mapping, defaultValue, method.allocateScratchLocal(I32));
 			}
-			case 0xac /* ireturn */ -> throw new RuntimeException("IRETURN");
-			case 0xad /* lreturn */ -> throw new RuntimeException("LRETURN");
-			case 0xae /* freturn */ -> throw new RuntimeException("FRETURN");
-			case 0xaf /* dreturn */ -> throw new RuntimeException("DRETURN");
-			case 0xb0 /* areturn */ -> throw new RuntimeException("ARETURN");
-			case 0xb1 /* return */ -> new DirectTranslation(0x0F);
+			case 0xac /* ireturn */, 0xad /* lreturn */, 0xae /* freturn */, 0xaf /* dreturn */,
+			     0xb0 /* areturn */, 0xb1 /* return */ -> new Return();
 			case 0xb2 /* getstatic */ -> {
 				if (!(pool.get(input.readUnsignedShort()) instanceof ClassHandler.ConstantFieldRefInfo field))
 					throw new RuntimeException("Not a field");
-				yield new GetStatic(field, method.bindings);
+				Object constant = staticConstant(method, field);
+				if (constant == null) yield new GetStatic(field);
+				yield new PushConst(MethodDescriptor.fieldType(field.getSignature().descriptor().charAt(0)), constant);
 			}
 			case 0xb3 /* putstatic */ -> {
 				if (!(pool.get(input.readUnsignedShort()) instanceof ClassHandler.ConstantFieldRefInfo field))
 					throw new RuntimeException("Not a field");
-				yield new PutStatic(field, method.bindings);
+				if (staticConstant(method, field) == null) yield new PutStatic(field);
+				// The one store of a constant field, which every read already is, so it has no global
+				yield new DirectTranslation(0x1A); // drop
+			}
+			case 0xb4 /* getfield */, 0xb5 /* putfield */ -> {
+				if (!(pool.get(input.readUnsignedShort()) instanceof ClassHandler.ConstantFieldRefInfo field))
+					throw new RuntimeException("Not a field");
+				method.bindings.getHierarchy().resolveField(field.getCls(), field.getSignature()); // Fails early if it can't be
+				ValueType type = MethodDescriptor.fieldType(field.getSignature().descriptor().charAt(0));
+				yield opcode == 0xb4 ? new GetField(field, type) : new PutField(field, type);
+			}
+			case 0xb6 /* invokevirtual */, 0xb9 /* invokeinterface */ -> {
+				if (!(pool.get(input.readUnsignedShort()) instanceof ClassHandler.ConstantMemberRefInfo func)
+						|| func instanceof ClassHandler.ConstantFieldRefInfo)
+					throw new RuntimeException("Not a method");
+				if (opcode == 0xb9) input.skipNBytes(2); // Argument count & a zero, the descriptor says as much
+				// Other classes' changes can add or remove targets
+				method.markUncacheable();
+				ClassHierarchy.HostFunction host = method.bindings.getHierarchy().hostMethod(func);
+				if (host != null) yield new HostMethod(func, host.name(), false);
+				yield InvokeInstance.of(func, method.bindings.getHierarchy().dispatch(func), method);
+			}
+			case 0xb7 /* invokespecial */ -> {
+				if (!(pool.get(input.readUnsignedShort()) instanceof ClassHandler.ConstantMemberRefInfo func)
+						|| func instanceof ClassHandler.ConstantFieldRefInfo)
+					throw new RuntimeException("Not a method");
+				ClassHierarchy.HostFunction host = method.bindings.getHierarchy().hostMethod(func);
+				if (host != null) yield new HostMethod(func, host.name(), false);
+				ClassHierarchy.Dispatch dispatch = method.bindings.getHierarchy().special(func);
+				if (dispatch == null) {
+					// Object's constructor (or any other that isn't loaded but does nothing) just drops the receiver
+					if (func.getSignature().name().equals("<init>") && func.getSignature().descriptor().equals("()V"))
+						yield new DirectTranslation(0x1A); // drop
+					throw new RuntimeException("INVOKE_SPECIAL " + func + ", body isn't loaded");
+				}
+				if (dispatch.targets().get(0).owner() != method.getInfo().ownerClass.this_class) method.markUncacheable();
+				yield InvokeInstance.of(func, dispatch, method);
 			}
-			case 0xb4 /* getfield */ -> throw new RuntimeException("GETFIELD " + pool.get(input.readUnsignedShort()));
-			case 0xb5 /* putfield */ -> throw new RuntimeException("PUT_FIELD " + pool.get(input.readUnsignedShort()));
-			case 0xb6 /* invokevirtual */ -> throw new RuntimeException("INVOKE_VIRTUAL " + pool.get(input.readUnsignedShort()));
-			case 0xb7 /* invokespecial */ -> throw new RuntimeException("INVOKE_SPECIAL " + pool.get(input.readUnsignedShort()));
 			case 0xb8 /* invokestatic */ -> {
 				if (!(pool.get(input.readUnsignedShort()) instanceof ClassHandler.ConstantMethodRefInfo func))
 					throw new RuntimeException("Not a method");
+				ClassHierarchy.HostFunction host = method.bindings.getHierarchy().hostMethod(func);
+				if (host != null) yield new HostMethod(func, host.name(), true);
 				yield new InvokeMethod(func);
 			}
-			case 0xb9 /* invokeinterface */ -> { // TODO: we need to consider class vtable access
-				result.append("INVOKE_INTERFACE ").append(pool.get(input.readUnsignedShort()))
-						.append(" ").append(input.readUnsignedByte());
-				assert input.readByte() == 0;
-				yield null;
+			case 0xba /* invokedynamic */ -> throw new RuntimeException("INVOKE_DYNAMIC " + pool.get(input.readUnsignedShort()));
+			case 0xbb /* new */ -> {
+				if (!(pool.get(input.readUnsignedShort()) instanceof ClassHandler.ConstantClassInfo cls))
+					throw new RuntimeException("Not a class");
+				method.bindings.getHierarchy().classId(cls); // Fails early if it can't be
+				yield new NewObject(cls);
 			}
-			case 0xba /* invokedynamic */ -> {
-				throw new RuntimeException("INVOKE_DYNAMIC " + pool.get(input.readUnsignedShort()));
-				assert input.readShort() == 0;
-				yield null;
+			case 0xbc /* newarray */ -> {
+				int kind = input.readUnsignedByte();
+				if (kind < 4 || kind > 11) throw new RuntimeException("Bad array type " + kind);
+				yield new NewArray(kind);
 			}
-			case 0xbb /* new */ -> throw new RuntimeException("NEW " + pool.get(input.readUnsignedShort()));
-			case 0xbc /* newarray */ -> throw new RuntimeException("NEW_ARRAY " + ARRAY_TYPES[input.readByte() - 4]);
-			case 0xbd /* anewarray */ -> throw new RuntimeException("ANEWARRAY " + pool.get(input.readUnsignedShort()));
-			case 0xbe /* arraylength */ -> throw new RuntimeException("ARRAYLENGTH");
+			case 0xbd /* anewarray */ -> {
+				input.readUnsignedShort(); // any class, the host's reference arrays hold anything
+				yield new NewArray(NewArray.REFERENCES);
+			}
+			case 0xbe /* arraylength */ -> new ArrayLength();
 			case 0xbf /* athrow*/ -> throw new RuntimeException("ATHROW");
-			case 0xc0 /* checkcast */ -> throw new RuntimeException("CHECKCAST " + pool.get(input.readUnsignedShort()));
+			case 0xc0 /* checkcast */ -> {
+				// Not checked: the host's references carry no type to test here, and there's no throwing yet
+				input.readUnsignedShort();
+				yield new DirectTranslation(0x01); // nop
+			}
 			case 0xc1 /* instanceof */ -> throw new RuntimeException("INSTANCEOF " + pool.get(input.readUnsignedShort()));
 			case 0xc2 /* monitorenter */ -> throw new RuntimeException("MONITORENTER");
 			case 0xc3 /* monitorexit */ -> throw new RuntimeException("MONITOREXIT");
-			case 0xc5 /* multianewarray */ -> result.append("MULTIANEWARRAY ").append(pool.get(input.readUnsignedShort()))
-					.append(" ").append(input.readUnsignedByte());
+			case 0xc5 /* multianewarray */ -> throw new RuntimeException("MULTIANEWARRAY " + pool.get(input.readUnsignedShort()));
 			case 0xc6 /* ifnull */ -> new NullCheck(false, input.readShort());
 			case 0xc7 /* ifnonnull */ -> new NullCheck(true, input.readShort());
-			case 0xc8 /* goto_w */ -> throw new RuntimeException("GOTO_W " + input.readInt());
+			case 0xc8 /* goto_w */ -> new GoTo(input.readInt());
 			case 0xc9 /* jsr_w */ -> throw new RuntimeException("JSR_W " + input.readInt());
 			case 0xc4 /* wide */ -> switch (opcode = input.readUnsignedByte()) {
-				case 0x15 /* iload */ -> new PushLocal(input.readUnsignedShort());
-				case 0x16 /* lload */ -> new PushLocal(input.readUnsignedShort());
-				case 0x17 /* fload */ -> new PushLocal(input.readUnsignedShort());
-				case 0x18 /* dload */ -> new PushLocal(input.readUnsignedShort());
-				case 0x19 /* aload */ -> new PushLocal(input.readUnsignedShort());
-				case 0x36 /* istore */ -> new PopLocal(input.readUnsignedShort());
-				case 0x37 /* lstore */ -> new PopLocal(input.readUnsignedShort());
-				case 0x38 /* fstore */ -> new PopLocal(input.readUnsignedShort());
-				case 0x39 /* dstore */ -> new PopLocal(input.readUnsignedShort());
-				case 0x3a /* astore */ -> new PopLocal(input.readUnsignedShort());
+				case 0x15 /* iload */ -> new PushLocal(input.readUnsignedShort(), I32);
+				case 0x16 /* lload */ -> new PushLocal(input.readUnsignedShort(), I64);
+				case 0x17 /* fload */ -> new PushLocal(input.readUnsignedShort(), F32);
+				case 0x18 /* dload */ -> new PushLocal(input.readUnsignedShort(), F64);
+				case 0x19 /* aload */ -> new PushLocal(input.readUnsignedShort(), REFERENCE);
+				case 0x36 /* istore */ -> new PopLocal(input.readUnsignedShort(), I32);
+				case 0x37 /* lstore */ -> new PopLocal(input.readUnsignedShort(), I64);
+				case 0x38 /* fstore */ -> new PopLocal(input.readUnsignedShort(), F32);
+				case 0x39 /* dstore */ -> new PopLocal(input.readUnsignedShort(), F64);
+				case 0x3a /* astore */ -> new PopLocal(input.readUnsignedShort(), REFERENCE);
 				case 0x84 /* iinc */ -> new IncrementLocal(input.readUnsignedShort(), input.readShort());
 				case 0xa9 /* ret */ -> throw new RuntimeException("RET " + input.readUnsignedShort());
 				default -> throw new RuntimeException("UNKNOWN");
@@ -305,58 +351,143 @@ public interface Operation {
 			}
 		}
 	}
-	record PushLocal(int index) implements Operation {
+	// Reads or writes a JVM local slot. The opcode gives its type, each (slot, type) pair is a wasm local
+	interface LocalAccess extends Operation {
+		int index();
+		ValueType type();
+	}
+	record PushLocal(int index, ValueType type) implements LocalAccess {
 		@Override
 		public void writeWasm(int index, IntermediaryMethod context, DataOutputStream out) throws IOException {
-			out.writeByte(0x20);
-			Util.writeVarUInt(out, this.index); // TODO: remapping from java locals to wasm locals
+			out.writeByte(0x20); // local.get
+			Util.writeVarUInt(out, context.getLocal(this.index, type));
+		}
+	}
+	/**
+	 * A checked array load: arrays are the host's, like objects, but whether an index is in bounds is checked
+	 * here, where it's a compare & branch and can often be proven away (see BoundsCheckElimination), not left
+	 * to the host. The IR splits it into {@link ArrayLength}, {@link BoundsCheck} & {@link ArrayGet}. Written
+	 * straight from bytecode, the array & index are set aside in scratch locals to be used twice.
+	 */
+	record PushArray(ValueType type, int arraySlot, int indexSlot) implements Operation {
+		static PushArray of(ValueType type, IntermediaryMethod context) {
+			return new PushArray(type, context.allocateScratchLocal(REFERENCE), context.allocateScratchLocal(I32));
+		}
+
+		@Override
+		public void writeWasm(int index, IntermediaryMethod context, DataOutputStream out) throws IOException {
+			writeLocal(0x21, context.getLocal(indexSlot, I32), out); // local.set
+			writeLocal(0x21, context.getLocal(arraySlot, REFERENCE), out);
+			writeCheckedAccess(context, arraySlot, indexSlot, out);
+			new ArrayGet(type).writeWasm(index, context, out);
 		}
 	}
-	record PushArray(StorageType type) implements Operation {
-		// TODO: https://webassembly.github.io/gc/core/bikeshed/index.html#heap-types%E2%91%A6
+	record PopLocal(int index, ValueType type) implements LocalAccess {
+		@Override
+		public void writeWasm(int index, IntermediaryMethod context, DataOutputStream out) throws IOException {
+			out.writeByte(0x21); // local.set
+			Util.writeVarUInt(out, context.getLocal(this.index, type));
+		}
 	}
-	record PopLocal(int index) implements Operation {
+	// A checked array store, as PushArray
+	record PopArray(ValueType type, int arraySlot, int indexSlot, int valueSlot) implements Operation {
+		static PopArray of(ValueType type, IntermediaryMethod context) {
+			return new PopArray(type, context.allocateScratchLocal(REFERENCE), context.allocateScratchLocal(I32),
+					context.allocateScratchLocal(type));
+		}
+
 		@Override
 		public void writeWasm(int index, IntermediaryMethod context, DataOutputStream out) throws IOException {
-			out.writeByte(0x21);
-			Util.writeVarUInt(out, this.index); // TODO: remapping from java locals to wasm locals
+			writeLocal(0x21, context.getLocal(valueSlot, type), out); // local.set
+			writeLocal(0x21, context.getLocal(indexSlot, I32), out);
+			writeLocal(0x21, context.getLocal(arraySlot, REFERENCE), out);
+			writeCheckedAccess(context, arraySlot, indexSlot, out);
+			writeLocal(0x20, context.getLocal(valueSlot, type), out); // local.get
+			new ArraySet(type).writeWasm(index, context, out);
+		}
+	}
+	// The value field always has, if it's known at build time, see StaticConstants. Whether it is can depend on
+	// what other classes write, & a cached global.get of a field that's since been folded has no global to get
+	private static @Nullable Object staticConstant(IntermediaryMethod method, ClassHandler.ConstantFieldRefInfo field) {
+		var declared = method.bindings.getHierarchy().declaredStatic(field.getCls(), field.getSignature());
+		if (declared == null) return null;
+		if (!method.bindings.getStaticConstants().settledBy(declared, method.getInfo().ownerClass.this_class)) {
+			method.markUncacheable();
+		}
+		return method.bindings.getStaticConstants().value(declared);
+	}
+	// Checks index against array's length, then pushes both for the access
+	private static void writeCheckedAccess(IntermediaryMethod context, int arraySlot, int indexSlot, DataOutputStream out)
+			throws IOException {
+		writeLocal(0x20, context.getLocal(indexSlot, I32), out); // local.get
+		writeLocal(0x20, context.getLocal(arraySlot, REFERENCE), out);
+		new ArrayLength().writeWasm(-1, context, out);
+		new BoundsCheck().writeWasm(-1, context, out);
+		writeLocal(0x20, context.getLocal(arraySlot, REFERENCE), out);
+		writeLocal(0x20, context.getLocal(indexSlot, I32), out);
+	}
+	private static void writeLocal(int opcode, int local, DataOutputStream out) throws IOException {
+		out.writeByte(opcode);
+		Util.writeVarUInt(out, local);
+	}
+	// Only the SSA path handles these so far, which tracks what's on the stack. Written as they are (at -O0,
+	// or where SsaBuilder gives up), there's no knowing the types for the scratch locals they'd need
+	record Dup(int numValues, int offset) implements Operation {
+		@Override
+		public void writeWasm(int index, IntermediaryMethod context, DataOutputStream out) {
+			throw new RuntimeException("Not implemented without optimisation: " + this);
+		}
+	}
+	record Swap() implements Operation {
+		@Override
+		public void writeWasm(int index, IntermediaryMethod context, DataOutputStream out) {
+			throw new RuntimeException("Not implemented without optimisation: " + this);
 		}
 	}
-	record PopArray(Type type) implements Operation {}
-	record Dup(int numValues, int offset) implements Operation {}
-	record Swap() implements Operation {}
 	record FloatRem(ValueType floatType) implements Operation {
 		public FloatRem {
-			if (!ValueType.isFloatingPointType(floatType))
+			if (floatType != F32 && floatType != F64)
 				throw new RuntimeException("Invalid float type");
 		}
+
+		@Override
+		public void writeWasm(int index, IntermediaryMethod context, DataOutputStream out) {
+			// Wasm has no remainder for floats, and x - trunc(x / y) * y isn't exact like Java's
+			throw new RuntimeException("FREM");
+		}
 	}
 	record IntegerNeg(ValueType intType) implements Operation {
 		public IntegerNeg {
-			if (!ValueType.isIntegralType(intType))
+			if (!NumericType.isIntegralType(intType))
 				throw new RuntimeException("Invalid integer type");
 		}
 
 		@Override
 		public void writeWasm(int index, IntermediaryMethod context, DataOutputStream out) throws IOException {
 			// TODO: better way than multiply??
-			out.writeByte(intType == ValueType.I32 ? 0x41 :
+			out.writeByte(intType == I32 ? 0x41 :
 			           /* intType == ValueType.I64 ? */ 0x42); // Load const int
 			Util.writeVarInt(out, -1);
-			out.writeByte(intType == ValueType.I32 ? 0x6C :
+			out.writeByte(intType == I32 ? 0x6C :
 					/* intType == ValueType.I64 ? */ 0x7E); // Multiply
 		}
 	}
-	record IncrementLocal(int index, short shift) implements Operation {
+	record IncrementLocal(int index, short shift) implements LocalAccess {
+		@Override
+		public ValueType type() {
+			return I32;
+		}
+
 		@Override
 		public void writeWasm(int index, IntermediaryMethod context, DataOutputStream out) throws IOException {
+			int local = context.getLocal(this.index, I32);
 			out.writeByte(0x20); // local.get
-			Util.writeVarUInt(out, this.index); // TODO: translate locals
+			Util.writeVarUInt(out, local);
 			out.writeByte(0x41); // i32.const
 			Util.writeVarInt(out, shift);
 			out.writeByte(0x6A); // i32.add
 			out.writeByte(0x21); // local.set
-			Util.writeVarUInt(out, this.index); // TODO: translate locals
+			Util.writeVarUInt(out, local);
 		}
 	}
 	record TrimInt(int size, boolean unsigned) implements Operation {
@@ -373,92 +504,300 @@ public interface Operation {
 			if (!unsigned) out.writeByte(size == 1 ? 0xC0 : 0xC1); // i32.extend<size>_s
 		}
 	}
-	record Compare(ValueType types, boolean nanResultGreater) implements Operation {
+	// -1, 0 or 1 the way CompareFusion.threeWay builds it, from two comparisons. Both operands are read twice,
+	// so they're kept in scratch locals
+	record Compare(ValueType types, boolean nanResultGreater, int leftSlot, int rightSlot) implements Operation {
 		public Compare {
-			if (!ValueType.isNumericType(types))
+			if (!NumericType.isNumericType(types))
 				throw new RuntimeException("Cannot compare types");
 		}
 
+		static Compare of(ValueType types, boolean nanResultGreater, IntermediaryMethod method) {
+			return new Compare(types, nanResultGreater, method.allocateScratchLocal(types),
+					method.allocateScratchLocal(types));
+		}
+
 		@Override
 		public void writeWasm(int index, IntermediaryMethod context, DataOutputStream out) throws IOException {
-			new Dup(1, 1).writeWasm(index, context, out);
-			out.writeByte(switch (types) {case I32 -> 0x4A;
-			                              case F32 -> 0x5E;
-			                              case I64 -> 0x55;
-			                              case F64 -> 0x64;
-				default -> throw new IllegalStateException("Unexpected value: " + types);
-			}); // gt_s
-			out.writeByte(0x04); // if
-			{
-				out.writeByte(0x1A); // drop
-				out.writeByte(0x41); // i32.const
-				Util.writeVarInt(out, 1);
+			int left = context.getLocal(leftSlot, types);
+			int right = context.getLocal(rightSlot, types);
+			out.writeByte(0x21); // local.set
+			Util.writeVarUInt(out, right);
+			out.writeByte(0x21); // local.set
+			Util.writeVarUInt(out, left);
+			// lt, gt, le, ge
+			int[] opcodes = types == I64 ? new int[]{0x53, 0x55, 0x57, 0x59}
+					: types == F32 ? new int[]{0x5D, 0x5E, 0x5F, 0x60}
+					: new int[]{0x63, 0x64, 0x65, 0x66};
+			if (types == I64 || nanResultGreater) {
+				// (a > b) - (a < b), or !(a <= b) - (a < b) so NaN gives 1
+				writeComparison(left, right, types == I64 ? opcodes[1] : opcodes[2], types != I64, out);
+				writeComparison(left, right, opcodes[0], false, out);
+			} else {
+				// (a > b) - !(a >= b), NaN gives -1
+				writeComparison(left, right, opcodes[1], false, out);
+				writeComparison(left, right, opcodes[3], true, out);
 			}
-			out.writeByte(0x05); // else
-			{
-				out.writeByte(switch (types) {case I32 -> 0x48;
-					                          case F32 -> 0x5D;
-					                          case I64 -> 0x53;
-					                          case F64 -> 0x63;
-					default -> throw new IllegalStateException("Unexpected value: " + types);
-				}); // lt_s
+			out.writeByte(0x6B); // i32.sub
+		}
+
+		private static void writeComparison(int left, int right, int opcode, boolean negate, DataOutputStream out)
+				throws IOException {
+			out.writeByte(0x20); // local.get
+			Util.writeVarUInt(out, left);
+			out.writeByte(0x20); // local.get
+			Util.writeVarUInt(out, right);
+			out.writeByte(opcode);
+			if (negate) out.writeByte(0x45); // i32.eqz
+		}
+	}
+	record InvokeMethod(ClassHandler.ConstantMethodRefInfo method) implements Operation {
+		@Override
+		public void writeWasm(int index, IntermediaryMethod context, DataOutputStream out) throws IOException {
+			out.writeByte(0x10); // call
+			context.writeFunctionIndex(out, method);
+		}
+	}
+	/**
+	 * invokevirtual, invokeinterface & invokespecial, going wherever {@link ClassHierarchy.Dispatch} says. Picking
+	 * between targets needs the receiver's class id first and then the receiver & arguments again, so unless
+	 * there's only one target the operands are set aside in scratch locals.
+	 */
+	record InvokeInstance(ClassHandler.ConstantMemberRefInfo method, ClassHierarchy.Dispatch dispatch,
+	                      List<ValueType> operandTypes, int[] operandSlots, int classIdSlot) implements Operation {
+		// Where writeDispatch gets the operands (receiver first) from, as often as it needs them
+		interface Operands {
+			void push(int operand, DataOutputStream out) throws IOException;
+			// A free i32 local for the receiver's class id
+			int classIdLocal();
+		}
+
+		static InvokeInstance of(ClassHandler.ConstantMemberRefInfo method, ClassHierarchy.Dispatch dispatch,
+		                         IntermediaryMethod context) {
+			List<ValueType> types = new ArrayList<>();
+			types.add(REFERENCE);
+			types.addAll(MethodDescriptor.parse(method.getSignature().descriptor()).parameters());
+			if (!dispatch.needsClassId()) return new InvokeInstance(method, dispatch, List.copyOf(types), new int[0], -1);
+			int[] slots = new int[types.size()];
+			for (int i = 0; i < slots.length; i++) slots[i] = context.allocateScratchLocal(types.get(i));
+			return new InvokeInstance(method, dispatch, List.copyOf(types), slots, context.allocateScratchLocal(I32));
+		}
+
+		@Override
+		public void writeWasm(int index, IntermediaryMethod context, DataOutputStream out) throws IOException {
+			if (!dispatch.needsClassId()) {
+				writeDispatch(context, null, out);
+				return;
+			}
+			for (int i = operandSlots.length - 1; i >= 0; i--) {
+				out.writeByte(0x21); // local.set
+				Util.writeVarUInt(out, context.getLocal(operandSlots[i], operandTypes.get(i)));
+			}
+			writeDispatch(context, new Operands() {
+				@Override
+				public void push(int operand, DataOutputStream to) throws IOException {
+					to.writeByte(0x20); // local.get
+					Util.writeVarUInt(to, context.getLocal(operandSlots[operand], operandTypes.get(operand)));
+				}
+
+				@Override
+				public int classIdLocal() {
+					return context.getLocal(classIdSlot, I32);
+				}
+			}, out);
+		}
+
+		// operands is only used (and so may be null) with several targets, else they're already on the stack
+		void writeDispatch(IntermediaryMethod context, @Nullable Operands operands, DataOutputStream out) throws IOException {
+			List<ClassHierarchy.Target> targets = dispatch.targets();
+			if (targets.isEmpty()) {
+				out.writeByte(0x00); // unreachable, nothing of a class with this method is ever created
+				return;
+			}
+			if (!dispatch.needsClassId()) {
+				writeCall(targets.get(0), context, out);
+				return;
+			}
+			operands.push(0, out);
+			context.writeHostCall(out, ClassHierarchy.CLASS_ID);
+			out.writeByte(0x21); // local.set
+			Util.writeVarUInt(out, operands.classIdLocal());
+			if (dispatch.tableOffset() >= 0) {
+				for (int i = 0; i < operandTypes.size(); i++) operands.push(i, out);
+				out.writeByte(0x20); // local.get
+				Util.writeVarUInt(out, operands.classIdLocal());
+				if (dispatch.tableOffset() != 0) {
+					out.writeByte(0x41); // i32.const
+					Util.writeVarInt(out, dispatch.tableOffset());
+					out.writeByte(0x6A); // i32.add
+				}
+				out.writeByte(0x11); // call_indirect
+				Util.writeVarUInt(out, context.getModule().addType(
+						MethodDescriptor.parse(method.getSignature().descriptor()).functionType(false)));
+				out.writeByte(0x00); // table 0
+				return;
+			}
+			// Type tests, the last target is left when all else fails
+			ValueType result = MethodDescriptor.parse(method.getSignature().descriptor()).result();
+			for (int t = 0; t < targets.size() - 1; t++) {
+				int[] classIds = targets.get(t).classIds();
+				for (int i = 0; i < classIds.length; i++) {
+					out.writeByte(0x20); // local.get
+					Util.writeVarUInt(out, operands.classIdLocal());
+					out.writeByte(0x41); // i32.const
+					Util.writeVarInt(out, classIds[i]);
+					out.writeByte(0x46); // i32.eq
+					if (i > 0) out.writeByte(0x72); // i32.or
+				}
 				out.writeByte(0x04); // if
-				out.writeByte(0x41); // i32.const
-				Util.writeVarInt(out, -1);
+				if (result == null) out.writeByte(0x40);
+				else result.write(out);
+				for (int i = 0; i < operandTypes.size(); i++) operands.push(i, out);
+				writeCall(targets.get(t), context, out);
 				out.writeByte(0x05); // else
-				out.writeByte(0x41); // i32.const
-				Util.writeVarInt(out, 0);
-				out.writeByte(0x0B); // end
 			}
-			out.writeByte(0x0B); // end
+			for (int i = 0; i < operandTypes.size(); i++) operands.push(i, out);
+			writeCall(targets.get(targets.size() - 1), context, out);
+			for (int t = 0; t < targets.size() - 1; t++) out.writeByte(0x0B); // end
+		}
+
+		private static void writeCall(ClassHierarchy.Target target, IntermediaryMethod context, DataOutputStream out)
+				throws IOException {
+			out.writeByte(0x10); // call
+			context.writeFunctionIndex(out, target.owner(), target.method());
 		}
 	}
-	record InvokeMethod(ClassHandler.ConstantMethodRefInfo method) implements Operation {
+	// Strings are the host's, see ClassHierarchy. Each constant is imported as a function returning it
+	record StringConstant(String value) implements Operation {
 		@Override
 		public void writeWasm(int index, IntermediaryMethod context, DataOutputStream out) throws IOException {
-			out.writeByte(0x10); // call
-			Util.writeVarUInt(out, context.bindings.getFunctionIndex(method));
+			context.writeStringConstant(out, value);
 		}
 	}
-	class PutStatic implements Operation {
-		public final int globalIndex;
-		public PutStatic(ClassHandler.ConstantFieldRefInfo field, JarHandler binder) {
-			globalIndex = binder.getGlobal(field);
+	// A class constant, the host's object for the class of that id
+	record ClassConstant(ClassHandler.ConstantClassInfo cls) implements Operation {
+		@Override
+		public void writeWasm(int index, IntermediaryMethod context, DataOutputStream out) throws IOException {
+			context.writeClassId(out, cls);
+			context.writeHostCall(out, ClassHierarchy.CLASS);
 		}
+	}
+	// A call to a method the host stands in for (see ClassHierarchy.hostMethod), operands already on the stack
+	record HostMethod(ClassHandler.ConstantMemberRefInfo method, String hostFunction, boolean isStatic) implements Operation {
 		@Override
 		public void writeWasm(int index, IntermediaryMethod context, DataOutputStream out) throws IOException {
-			out.writeByte(0x24); // global.set
-			Util.writeVarUInt(out, globalIndex);
+			context.writeHostCall(out, hostFunction);
+		}
+	}
+	// Objects are made & their fields accessed by the host, see ClassHierarchy. Ids are resolved at link time
+	record NewObject(ClassHandler.ConstantClassInfo cls) implements Operation {
+		@Override
+		public void writeWasm(int index, IntermediaryMethod context, DataOutputStream out) throws IOException {
+			context.writeClassId(out, cls);
+			context.writeHostCall(out, ClassHierarchy.NEW);
 		}
 	}
-	class GetStatic implements Operation {
-		public final int globalIndex;
-		public GetStatic(ClassHandler.ConstantFieldRefInfo field, JarHandler binder) {
-			globalIndex = binder.getGlobal(field);
+	record GetField(ClassHandler.ConstantFieldRefInfo field, ValueType type) implements Operation {
+		@Override
+		public void writeWasm(int index, IntermediaryMethod context, DataOutputStream out) throws IOException {
+			context.writeFieldId(out, field);
+			context.writeHostCall(out, ClassHierarchy.getter(type));
+		}
+	}
+	// The host's setter takes the field id last, so it can be pushed after the value
+	record PutField(ClassHandler.ConstantFieldRefInfo field, ValueType type) implements Operation {
+		@Override
+		public void writeWasm(int index, IntermediaryMethod context, DataOutputStream out) throws IOException {
+			context.writeFieldId(out, field);
+			context.writeHostCall(out, ClassHierarchy.setter(type));
 		}
+	}
+	// Kind is newarray's element type code (4 for boolean to 11 for long), or REFERENCES. The host takes it after
+	// the length, so it can be pushed last
+	record NewArray(int kind) implements Operation {
+		static final int REFERENCES = 0;
 
 		@Override
 		public void writeWasm(int index, IntermediaryMethod context, DataOutputStream out) throws IOException {
-			out.writeByte(0x23); // global.set
-			Util.writeVarUInt(out, globalIndex);
+			out.writeByte(0x41); // i32.const
+			Util.writeVarInt(out, kind);
+			context.writeHostCall(out, ClassHierarchy.NEW_ARRAY);
+		}
+	}
+	record ArrayLength() implements Operation {
+		@Override
+		public void writeWasm(int index, IntermediaryMethod context, DataOutputStream out) throws IOException {
+			context.writeHostCall(out, ClassHierarchy.ARRAY_LENGTH);
+		}
+	}
+	// Takes an index & a length, and has the host throw unless 0 <= index < length. Negative indices are
+	// caught by comparing unsigned
+	record BoundsCheck() implements Operation {
+		@Override
+		public void writeWasm(int index, IntermediaryMethod context, DataOutputStream out) throws IOException {
+			out.writeByte(0x4F); // i32.ge_u
+			out.writeByte(0x04); // if
+			out.writeByte(0x40); // no result
+			context.writeHostCall(out, ClassHierarchy.INDEX_OUT_OF_BOUNDS);
+			out.writeByte(0x00); // unreachable, the host threw
+			out.writeByte(0x0B); // end
+		}
+	}
+	// Unchecked element accesses, for after a BoundsCheck
+	record ArrayGet(ValueType type) implements Operation {
+		@Override
+		public void writeWasm(int index, IntermediaryMethod context, DataOutputStream out) throws IOException {
+			context.writeHostCall(out, ClassHierarchy.arrayGetter(type));
+		}
+	}
+	record ArraySet(ValueType type) implements Operation {
+		@Override
+		public void writeWasm(int index, IntermediaryMethod context, DataOutputStream out) throws IOException {
+			context.writeHostCall(out, ClassHierarchy.arraySetter(type));
+		}
+	}
+	// Global index is only resolved at link time, the field's class may not have been assigned globals yet
+	record PutStatic(ClassHandler.ConstantFieldRefInfo field) implements Operation {
+		@Override
+		public void writeWasm(int index, IntermediaryMethod context, DataOutputStream out) throws IOException {
+			out.writeByte(0x24); // global.set
+			context.writeGlobalIndex(out, field);
 		}
 	}
-	interface Conditional extends Operation {
+	record GetStatic(ClassHandler.ConstantFieldRefInfo field) implements Operation {
+		@Override
+		public void writeWasm(int index, IntermediaryMethod context, DataOutputStream out) throws IOException {
+			out.writeByte(0x23); // global.get
+			context.writeGlobalIndex(out, field);
+		}
+	}
+	// Ends a basic block. writeWasm only leaves what the jump depends on (condition, switch index) on the
+	// stack, the jumps themselves are written by the Stackifier, which knows the blocks around them
+	interface Branch extends Operation {
+		// Absolute offsets jumped to, not counting falling through to the next instruction
+		int[] targets(int index);
+		boolean fallsThrough();
+	}
+	// Jumps to its target if the i32 it leaves is non-zero, else falls through
+	interface Conditional extends Branch {
 		int jumpTarget();
 		@Override
-		default void writeWasm(int index, IntermediaryMethod context, DataOutputStream out) throws IOException {
-			if (jumpTarget() < 0) {
-				out.writeByte(0x03); // loop
-			} else out.writeByte(0x04); // if
-			context.getOpsInRange(index + jumpTarget(), index).forEachOrdered(pair -> {
-				try {
-					pair.second().writeWasm(pair.first(), context, out);
-				} catch (IOException e) {
-					throw new UncheckedIOException(e);
-				}
-			});
-			out.writeByte(0x05); // else
-			// TODO: Handle re-join of branches
+		default int[] targets(int index) {
+			return new int[]{index + jumpTarget()};
+		}
+		@Override
+		default boolean fallsThrough() {
+			return true;
+		}
+	}
+	// br_table on the i32 it leaves, targets() are in slot order with the default last
+	interface Switch extends Branch {
+		// The key each slot but the default is for, for the IR to lower as it sees fit
+		int[] keys();
+
+		@Override
+		default boolean fallsThrough() {
+			return false;
 		}
 	}
 	record NullCheck(boolean invert, int jumpTarget) implements Conditional {
@@ -470,7 +809,6 @@ public interface Operation {
 				Util.writeVarInt(out, 1);
 				out.writeByte(0x73); // i32.xor
 			}
-			Conditional.super.writeWasm(index, context, out);
 		}
 	}
 	record ComparisonConditional(int compareCode, int jumpTarget) implements Conditional {
@@ -479,124 +817,140 @@ public interface Operation {
 			out.writeByte(0x41); // i32.const
 			Util.writeVarUInt(out, 0);
 			out.writeByte(compareCode);
-			Conditional.super.writeWasm(index, context, out);
 		}
 	}
 	record FullComparisonConditional(int compareCode, int jumpTarget) implements Conditional {
 		@Override
 		public void writeWasm(int index, IntermediaryMethod context, DataOutputStream out) throws IOException {
 			out.writeByte(compareCode);
-			Conditional.super.writeWasm(index, context, out);
 		}
 	}
-	record GoTo(int jumpTarget) implements Operation {}
-	record JumpTable(int defaultIndex, int firstMatch, List<Integer> jumpIndices) implements Operation {
+	record GoTo(int jumpTarget) implements Branch {
+		@Override
+		public void writeWasm(int index, IntermediaryMethod context, DataOutputStream out) {}
+		@Override
+		public int[] targets(int index) {
+			return new int[]{index + jumpTarget};
+		}
+		@Override
+		public boolean fallsThrough() {
+			return false;
+		}
+	}
+	record Return() implements Branch {
+		@Override
+		public void writeWasm(int index, IntermediaryMethod context, DataOutputStream out) throws IOException {
+			out.writeByte(0x0F); // return, with whatever value is on the stack
+		}
+		@Override
+		public int[] targets(int index) {
+			return new int[0];
+		}
+		@Override
+		public boolean fallsThrough() {
+			return false;
+		}
+	}
+	record JumpTable(int defaultIndex, int firstMatch, List<Integer> jumpIndices) implements Switch {
 		@Override
 		public void writeWasm(int index, IntermediaryMethod context, DataOutputStream out) throws IOException {
-			// valueIndex -> [jumpIndex]
-			var indicesByValue = IntStream.range(0, jumpIndices.size() + 1)
-							.mapToObj(i -> new Pair<>(i, i >= jumpIndices.size() ? defaultIndex : jumpIndices.get(i)))
-							.sorted(Comparator.comparingInt(Pair::second)).toList();
-			// placementIndex[jumpIndex]
-			var valueOrder = IntStream.range(0, jumpIndices.size() + 1)
-							.mapToObj(i -> new Pair<>(i, indicesByValue.get(i).first()))
-							.sorted(Comparator.comparingInt(Pair::second))
-							.map(Pair::first).toList();
 			out.writeByte(0x41); // i32.const
 			Util.writeVarInt(out, firstMatch);
 			out.writeByte(0x6B); // i32.sub (now firstIndex is at 0)
-			// block entries
-			for (int i = 0; i <= jumpIndices.size(); i++) {
-				out.writeByte(0x02); // block
-				out.writeByte(0x40); // no result (TODO: should this be this way?)
-			}
-			out.writeByte(0x0E); // br_table
-			// curious asymmetry between lookup table and jump table in wasm
-			// jump tables can be completely inlined in the bytecode whereas
-			// lookup tables require a wasm table structure
-			Util.writeVarUInt(out, jumpIndices.size());
-			valueOrder.forEach(idx -> { // write block ordering
-				try {
-					Util.writeVarUInt(out, idx);
-				} catch (IOException e) {
-					throw new RuntimeException(e);
-				}
-			});
-			// block closures
-			for (int i = 0; i < indicesByValue.size(); i++) {
-				context.getBlockAt(index + indicesByValue.get(i).second()).forEachOrdered(pair -> {
-					try {
-						pair.second().writeWasm(pair.first(), context, out);
-					} catch (IOException e) {
-						throw new UncheckedIOException(e);
-					}
-				});
-				try {
-					if (indicesByValue.size() - i > 1) {
-						out.writeByte(0x0C); // br: break out of switch (TODO: continuations)
-						Util.writeVarInt(out, indicesByValue.size() - i);
-					}
-					out.writeByte(0x0B); // end
-				} catch (IOException e) {
-					throw new RuntimeException(e);
-				}
-			}
+			// anything out of range, including below firstMatch (wrapped to a large unsigned), hits the default
+		}
+
+		@Override
+		public int[] targets(int index) {
+			int[] result = new int[jumpIndices.size() + 1];
+			for (int i = 0; i < jumpIndices.size(); i++) result[i] = index + jumpIndices.get(i);
+			result[jumpIndices.size()] = index + defaultIndex;
+			return result;
+		}
+
+		@Override
+		public int[] keys() {
+			return IntStream.range(0, jumpIndices.size()).map(i -> firstMatch + i).toArray();
 		}
 	}
-	class LookupTable implements Operation {
+	class LookupTable implements Switch {
 		public final Map<Integer, Integer> mappings;
 		public final int defaultValue;
-		private final @Unsigned int tableIndex;
-		private final int start;
-		private final int size;
+		private final int[] keys; // ascending
+		private final boolean dense;
+		private final int scratchLocal;
 
-		LookupTable(Map<Integer, Integer> mappings, int defaultValue, WasmModule module) {
+		LookupTable(Map<Integer, Integer> mappings, int defaultValue, int scratchLocal) {
 			this.mappings = mappings;
 			this.defaultValue = defaultValue;
-			int min = -Integer.MAX_VALUE, max = Integer.MIN_VALUE;
-			for (int index : mappings.keySet()) {
-				min = Integer.min(min, index);
-				max = Integer.max(max, index);
-			}
-			start = min;
-			size = max - min;
-			tableIndex = module.createTable(size, ValueType.I32);
-			int[] lookups = new int[size];
-			for (int i = 0; i < size; i++) {
-				lookups[i] =  mappings.getOrDefault(i, defaultValue);
-			}
-			module.initTable(tableIndex, lookups);
+			this.scratchLocal = scratchLocal;
+			keys = mappings.keySet().stream().mapToInt(Integer::intValue).sorted().toArray();
+			dense = keys.length > 0 && SwitchLowering.dense(keys.length, (long) keys[keys.length - 1] - keys[0] + 1);
 		}
 
-		// Implementation: we probably want to vary depending on what distribution of values we see
-		// We definately cant represent all 4billion possible values
-		// Fortunately java is under same limitation - their tables cannot be too large due to the
-		// table being inlined in the bytecode. Unfortunately their implementation can allow for widely
-		// distributed values, which we cannot represent with a table.
+		// Java's keys can be spread over the whole int range, so they're mapped to br_table slots first: key - min
+		// if they're dense enough (a slot for each key in between, the gaps going to the default), else a binary
+		// search to key i's slot i. The IR lowers it better, with SwitchLowering
 		@Override
 		public void writeWasm(int index, IntermediaryMethod context, DataOutputStream out) throws IOException {
-			// Naive implementation: // TODO: maybe make better
-			out.writeByte(0x41); // i32.const
-			Util.writeVarInt(out, start);
-			out.writeByte(0x6B); // i32.sub
-			new Dup(1, 1).writeWasm(index, context, out);
-			out.writeByte(0x41); // i32.const
-			Util.writeVarInt(out, size);
-			out.writeByte(0x4B); // i32.gt_u
-			// by using unsigned version, we get lower bound (always 0) also checked for free
-			out.writeByte(0x04); // if
-			{
-				out.writeByte(0x1A); // drop
-				out.writeByte(0x41); // i32.load
-				Util.writeVarInt(out, defaultValue);
+			if (dense) {
+				out.writeByte(0x41); // i32.const
+				Util.writeVarInt(out, keys[0]);
+				out.writeByte(0x6B); // i32.sub
+				return;
 			}
-			out.writeByte(0x05); // else
-			{
-				out.writeByte(0x25); // table.get
-				Util.writeVarUInt(out, tableIndex);
+			int scratch = context.getLocal(scratchLocal, I32);
+			out.writeByte(0x21); // local.set
+			Util.writeVarUInt(out, scratch);
+			if (keys.length == 0) {
+				out.writeByte(0x41); // i32.const
+				Util.writeVarInt(out, 0);
+				return;
 			}
-			out.writeByte(0x0B);
-			// TODO: is branchless possible?
+			writeSearch(scratch, 0, keys.length, out);
+		}
+
+		// The slot of the key in scratch, among keys [from, to), or keys.length for none of them
+		private void writeSearch(int scratch, int from, int to, DataOutputStream out) throws IOException {
+			if (to - from == 1) {
+				out.writeByte(0x41); // i32.const
+				Util.writeVarInt(out, from);
+				out.writeByte(0x41); // i32.const
+				Util.writeVarInt(out, keys.length);
+				writeCompare(scratch, keys[from], 0x46, out); // i32.eq
+				out.writeByte(0x1B); // select
+				return;
+			}
+			int middle = (from + to) >>> 1;
+			writeCompare(scratch, keys[middle], 0x48, out); // i32.lt_s
+			out.writeByte(0x04); // if
+			I32.write(out);
+			writeSearch(scratch, from, middle, out);
+			out.writeByte(0x05); // else
+			writeSearch(scratch, middle, to, out);
+			out.writeByte(0x0B); // end
+		}
+
+		private static void writeCompare(int scratch, int key, int opcode, DataOutputStream out) throws IOException {
+			out.writeByte(0x20); // local.get
+			Util.writeVarUInt(out, scratch);
+			out.writeByte(0x41); // i32.const
+			Util.writeVarInt(out, key);
+			out.writeByte(opcode);
+		}
+
+		@Override
+		public int[] targets(int index) {
+			int[] slotKeys = keys();
+			int[] result = new int[slotKeys.length + 1];
+			for (int i = 0; i < slotKeys.length; i++) result[i] = index + mappings.getOrDefault(slotKeys[i], defaultValue);
+			result[slotKeys.length] = index + defaultValue;
+			return result;
+		}
+
+		@Override
+		public int[] keys() {
+			return dense ? IntStream.rangeClosed(keys[0], keys[keys.length - 1]).toArray() : keys.clone();
 		}
 	}
 }
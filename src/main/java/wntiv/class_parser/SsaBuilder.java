@@ -0,0 +1,368 @@
+package wntiv.class_parser;
+
+import org.jetbrains.annotations.Nullable;
+import wntiv.ir.*;
+import wntiv.wasm_output.types.NumericType;
+import wntiv.wasm_output.types.ValueType;
+
+import java.util.*;
+
+/**
+ * Builds a method's {@link IrFunction} from its {@link ControlFlowGraph}, following Braun et al., "Simple and
+ * Efficient Construction of Static Single Assignment Form" (CC 2013). JVM locals, and operand stack values
+ * carried from one block into the next, are variables, written & read as blocks are filled in reverse
+ * postorder. A read with no definition in its own block looks through the predecessors, placing a phi where
+ * several meet. A loop header's phis are only completed once all its back edges' blocks are filled.
+ * <p>
+ * Switches are threaded by {@link SwitchThreading} & lowered to branches by {@link SwitchLowering} once every
+ * block is in. Trivial phis are left for {@link CopyPropagation}. Methods using anything the IR can't express
+ * yet come back null, to be written op by op instead.
+ */
+final class SsaBuilder {
+	// A JVM local slot holding type, or the value at depth on the operand stack between blocks
+	private record Variable(boolean stack, int index, ValueType type) {}
+	// What an Opaque writes
+	record Source(int offset, Operation op) {
+		@Override
+		public String toString() {
+			return op.toString();
+		}
+	}
+	private static final class Unsupported extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		Unsupported(String message) {
+			super(message, null, false, false);
+		}
+	}
+
+	private final ControlFlowGraph cfg;
+	private final InstructionStore code;
+	private final MethodDescriptor descriptor;
+	private final List<IrBlock> blocks = new ArrayList<>(); // start block, then the cfg's in order
+	private final List<Map<Variable, Value>> definitions = new ArrayList<>();
+	private final List<Map<Variable, Phi>> incompletePhis = new ArrayList<>();
+	private final boolean[] filled, sealed;
+	// Blocks ending in a switch, with the key each successor but the last is for
+	private final Map<IrBlock, int[]> switches = new LinkedHashMap<>();
+
+	private SsaBuilder(ControlFlowGraph cfg, MethodDescriptor descriptor) {
+		this.cfg = cfg;
+		this.code = cfg.code();
+		this.descriptor = descriptor;
+		int count = cfg.blocks().size() + 1;
+		for (int i = 0; i < count; i++) {
+			blocks.add(new IrBlock(i));
+			definitions.add(new HashMap<>());
+			incompletePhis.add(new HashMap<>());
+		}
+		filled = new boolean[count];
+		sealed = new boolean[count];
+	}
+
+	/**
+	 * @return null if the method uses something the IR doesn't cover yet
+	 */
+	static @Nullable IrFunction build(ControlFlowGraph cfg, MethodDescriptor descriptor, boolean isStatic, String name) {
+		try {
+			return new SsaBuilder(cfg, descriptor).build(isStatic, name);
+		} catch (Unsupported e) {
+			return null;
+		}
+	}
+
+	private IrFunction build(boolean isStatic, String name) {
+		IrBlock start = blocks.get(0);
+		IrBlock entry = irBlock(cfg.entry());
+		IrBlock.link(start, entry);
+		for (ControlFlowGraph.Block block : cfg.blocks()) {
+			for (ControlFlowGraph.Block successor : block.successors) IrBlock.link(irBlock(block), irBlock(successor));
+		}
+
+		List<Parameter> parameters = new ArrayList<>();
+		int slot = 0;
+		if (!isStatic) {
+			parameters.add(new Parameter(0, Operation.REFERENCE));
+			write(new Variable(false, slot++, Operation.REFERENCE), start, parameters.get(0));
+		}
+		for (ValueType type : descriptor.parameters()) {
+			Parameter parameter = new Parameter(parameters.size(), type);
+			parameters.add(parameter);
+			write(new Variable(false, slot, type), start, parameter);
+			slot += MethodDescriptor.slotSize(type);
+		}
+		filled[0] = sealed[0] = true;
+
+		for (ControlFlowGraph.Block block : cfg.blocks()) {
+			IrBlock irBlock = irBlock(block);
+			if (predecessorsFilled(irBlock)) seal(irBlock);
+			fill(block, irBlock);
+			filled[irBlock.id] = true;
+			for (IrBlock successor : irBlock.successors) {
+				if (!sealed[successor.id] && predecessorsFilled(successor)) seal(successor);
+			}
+		}
+		List<IrBlock> all = new ArrayList<>(blocks);
+		// A switch on a number picked by the code before it, as javac's on strings are, goes straight to its targets
+		for (var keyed : switches.entrySet()) SwitchThreading.thread(keyed.getKey(), keyed.getValue(), all);
+		for (var keyed : switches.entrySet()) {
+			if (!keyed.getKey().predecessors.isEmpty()) SwitchLowering.lower(keyed.getKey(), keyed.getValue(), all);
+		}
+		return new IrFunction(name, List.copyOf(parameters), descriptor.result(), all);
+	}
+
+	private IrBlock irBlock(ControlFlowGraph.Block block) {
+		return blocks.get(block.order + 1);
+	}
+
+	private boolean predecessorsFilled(IrBlock block) {
+		for (IrBlock predecessor : block.predecessors) if (!filled[predecessor.id]) return false;
+		return true;
+	}
+
+	private void fill(ControlFlowGraph.Block block, IrBlock irBlock) {
+		List<Value> stack = new ArrayList<>();
+		for (int depth = 0; depth < block.entryStack.size(); depth++) {
+			stack.add(read(new Variable(true, depth, block.entryStack.get(depth)), irBlock));
+		}
+		for (int i = block.start; i < block.end; i++) translate(i, stack, irBlock);
+		// Whatever a return leaves behind is just dropped
+		if (irBlock.successors.isEmpty()) return;
+		if (stack.size() != block.exitStack.size())
+			throw new Unsupported("Values left on the stack with no stack map entry at " + block);
+		for (int depth = 0; depth < stack.size(); depth++) {
+			write(new Variable(true, depth, block.exitStack.get(depth)), irBlock, stack.get(depth));
+		}
+	}
+
+	private void translate(int i, List<Value> stack, IrBlock block) {
+		Operation op = code.op(i);
+		if (op instanceof Operation.DirectTranslation direct) {
+			translateDirect(direct.opcode(), code.opcode(i), stack, block);
+		} else if (op instanceof Operation.PushConst push) {
+			if (push.value() == null) stack.add(Constant.zero(Operation.REFERENCE));
+			else if (push.type() instanceof NumericType) stack.add(new Constant(push.type(), push.value()));
+			else throw new Unsupported("Constant " + push.value());
+		} else if (op instanceof Operation.PushLocal local) {
+			stack.add(read(new Variable(false, local.index(), local.type()), block));
+		} else if (op instanceof Operation.PopLocal local) {
+			write(new Variable(false, local.index(), local.type()), block, pop(stack));
+		} else if (op instanceof Operation.IncrementLocal increment) {
+			Variable variable = new Variable(false, increment.index(), NumericType.I32);
+			write(variable, block, block.append(new WasmOp(0x6A, read(variable, block),
+					new Constant(NumericType.I32, (int) increment.shift()))));
+		} else if (op instanceof Operation.Dup) {
+			int opcode = code.opcode(i);
+			int words = opcode <= 0x5b ? 1 : 2; // dup, dup_x1, dup_x2 copy one word, the dup2s two
+			int skipped = switch (opcode) {
+				case 0x59, 0x5c -> 0;
+				case 0x5a, 0x5d -> 1;
+				default -> 2;
+			};
+			List<Value> copied = popWords(stack, words);
+			List<Value> under = popWords(stack, skipped);
+			stack.addAll(copied);
+			stack.addAll(under);
+			stack.addAll(copied);
+		} else if (op instanceof Operation.Swap) {
+			Value top = pop(stack);
+			Value under = pop(stack);
+			stack.add(top);
+			stack.add(under);
+		} else if (op instanceof Operation.TrimInt trim) {
+			Value value = pop(stack);
+			stack.add(block.append(trim.unsigned()
+					? new WasmOp(0x71, value, new Constant(NumericType.I32, trim.size() == 1 ? 0xFF : 0xFFFF)) // i32.and
+					: new WasmOp(trim.size() == 1 ? 0xC0 : 0xC1, value))); // i32.extend<size>_s
+		} else if (op instanceof Operation.IntegerNeg neg) {
+			Value value = pop(stack);
+			stack.add(block.append(new WasmOp(neg.intType() == NumericType.I64 ? 0x7D : 0x6B, // sub
+					Constant.zero(neg.intType()), value)));
+		} else if (op instanceof Operation.Compare compare) {
+			Value right = pop(stack);
+			Value left = pop(stack);
+			stack.add(CompareFusion.threeWay(block, compare.types(), compare.nanResultGreater(), left, right));
+		} else if (op instanceof Operation.InvokeMethod invoke) {
+			MethodDescriptor callee = MethodDescriptor.parse(invoke.method().getSignature().descriptor());
+			Opaque call = block.append(new Opaque(new Source(code.offset(i), op), callee.result(),
+					popOperands(stack, callee.parameters().size())));
+			if (callee.result() != null) stack.add(call);
+		} else if (op instanceof Operation.InvokeInstance invoke) {
+			ValueType result = MethodDescriptor.parse(invoke.method().getSignature().descriptor()).result();
+			Opaque call = block.append(new Opaque(new Source(code.offset(i), op), result,
+					popOperands(stack, invoke.operandTypes().size())));
+			if (result != null) stack.add(call);
+		} else if (op instanceof Operation.HostMethod call) {
+			MethodDescriptor callee = MethodDescriptor.parse(call.method().getSignature().descriptor());
+			Opaque host = block.append(new Opaque(new Source(code.offset(i), op), callee.result(),
+					popOperands(stack, (call.isStatic() ? 0 : 1) + callee.parameters().size())));
+			if (callee.result() != null) stack.add(host);
+		} else if (op instanceof Operation.StringConstant || op instanceof Operation.ClassConstant) {
+			stack.add(block.append(new Opaque(new Source(code.offset(i), op), Operation.REFERENCE)));
+		} else if (op instanceof Operation.GetStatic get) {
+			ValueType type = MethodDescriptor.fieldType(get.field().getSignature().descriptor().charAt(0));
+			stack.add(block.append(new Opaque(new Source(code.offset(i), op), type)));
+		} else if (op instanceof Operation.NewObject) {
+			stack.add(block.append(new Opaque(new Source(code.offset(i), op), Operation.REFERENCE)));
+		} else if (op instanceof Operation.GetField get) {
+			stack.add(block.append(new Opaque(new Source(code.offset(i), op), get.type(), pop(stack))));
+		} else if (op instanceof Operation.PutField) {
+			Value value = pop(stack);
+			block.append(new Opaque(new Source(code.offset(i), op), null, pop(stack), value));
+		} else if (op instanceof Operation.PushArray load) {
+			Value index = pop(stack);
+			Value array = pop(stack);
+			checkBounds(code.offset(i), array, index, block);
+			stack.add(block.append(new Opaque(new Source(code.offset(i), new Operation.ArrayGet(load.type())), load.type(),
+					array, index)));
+		} else if (op instanceof Operation.PopArray store) {
+			Value value = pop(stack);
+			Value index = pop(stack);
+			Value array = pop(stack);
+			checkBounds(code.offset(i), array, index, block);
+			block.append(new Opaque(new Source(code.offset(i), new Operation.ArraySet(store.type())), null,
+					array, index, value));
+		} else if (op instanceof Operation.ArrayLength) {
+			stack.add(block.append(new Opaque(new Source(code.offset(i), op), NumericType.I32, pop(stack))));
+		} else if (op instanceof Operation.NewArray) {
+			stack.add(block.append(new Opaque(new Source(code.offset(i), op), Operation.REFERENCE, pop(stack))));
+		} else if (op instanceof Operation.PutStatic) {
+			block.append(new Opaque(new Source(code.offset(i), op), null, pop(stack)));
+		} else if (op instanceof Operation.Branch) {
+			translateBranch(op, stack, block);
+		} else {
+			throw new Unsupported(String.valueOf(op));
+		}
+	}
+
+	// The length read & check an array access is split into, so they can be proven unneeded apart from it
+	private static void checkBounds(int offset, Value array, Value index, IrBlock block) {
+		Value length = block.append(new Opaque(new Source(offset, new Operation.ArrayLength()), NumericType.I32, array));
+		block.append(new Opaque(new Source(offset, new Operation.BoundsCheck()), null, index, length));
+	}
+
+	private void translateDirect(int opcode, int javaOpcode, List<Value> stack, IrBlock block) {
+		if (opcode == 0x01) return; // nop
+		if (opcode == 0x1A) { // drop
+			Value top = pop(stack);
+			if (javaOpcode == 0x58 /* pop2 */ && MethodDescriptor.slotSize(top.type()) == 1) pop(stack);
+			return;
+		}
+		// Java's casts to integers saturate, where wasm's plain truncations trap
+		opcode = switch (opcode) {
+			case 0xA8 -> 0xFC00; // i32.trunc_sat_f32_s
+			case 0xAA -> 0xFC02; // i32.trunc_sat_f64_s
+			case 0xAE -> 0xFC04; // i64.trunc_sat_f32_s
+			case 0xB0 -> 0xFC06; // i64.trunc_sat_f64_s
+			default -> opcode;
+		};
+		if (!WasmOps.isKnown(opcode)) throw new Unsupported("Opcode 0x" + Integer.toHexString(opcode));
+		Value[] operands = popOperands(stack, WasmOps.arity(opcode));
+		for (int i = 0; i < operands.length; i++) {
+			// Shift counts are ints, even for longs
+			if (WasmOps.operandType(opcode, i) == NumericType.I64 && operands[i].type() == NumericType.I32) {
+				operands[i] = block.append(new WasmOp(0xAD, operands[i])); // i64.extend_i32_u
+			}
+		}
+		stack.add(block.append(new WasmOp(opcode, operands)));
+	}
+
+	private void translateBranch(Operation op, List<Value> stack, IrBlock block) {
+		if (op instanceof Operation.ComparisonConditional compare) {
+			Value value = pop(stack);
+			setExit(block, IrBlock.Exit.IF, block.append(new WasmOp(compare.compareCode(), value,
+					Constant.zero(value.type()))));
+		} else if (op instanceof Operation.FullComparisonConditional compare) {
+			if (!WasmOps.isKnown(compare.compareCode()))
+				throw new Unsupported("Comparison 0x" + Integer.toHexString(compare.compareCode()));
+			Value right = pop(stack);
+			Value left = pop(stack);
+			setExit(block, IrBlock.Exit.IF, block.append(new WasmOp(compare.compareCode(), left, right)));
+		} else if (op instanceof Operation.NullCheck check) {
+			Value isNull = block.append(new WasmOp(0xD1, pop(stack))); // ref.is_null
+			setExit(block, IrBlock.Exit.IF, check.invert() ? block.append(new WasmOp(0x45, isNull)) : isNull);
+		} else if (op instanceof Operation.GoTo) {
+			setExit(block, IrBlock.Exit.JUMP, null);
+		} else if (op instanceof Operation.Return) {
+			setExit(block, IrBlock.Exit.RETURN, descriptor.result() == null ? null : pop(stack));
+		} else if (op instanceof Operation.Switch table) {
+			// On the key itself, for SwitchLowering once every block is in
+			setExit(block, IrBlock.Exit.SWITCH, pop(stack));
+			switches.put(block, table.keys());
+		} else {
+			throw new Unsupported(String.valueOf(op));
+		}
+	}
+
+	private static void setExit(IrBlock block, IrBlock.Exit exit, @Nullable Value value) {
+		block.exit = exit;
+		block.exitValue = value;
+	}
+
+	private static Value pop(List<Value> stack) {
+		if (stack.isEmpty()) throw new Unsupported("Operand stack underflow");
+		return stack.remove(stack.size() - 1);
+	}
+
+	// The top count values, bottom first
+	private static Value[] popOperands(List<Value> stack, int count) {
+		Value[] operands = new Value[count];
+		for (int i = count - 1; i >= 0; i--) operands[i] = pop(stack);
+		return operands;
+	}
+
+	// Values making up the top words stack slots (longs & doubles take two), bottom first
+	private static List<Value> popWords(List<Value> stack, int words) {
+		List<Value> values = new ArrayList<>();
+		while (words > 0) {
+			Value value = pop(stack);
+			words -= MethodDescriptor.slotSize(value.type());
+			values.add(0, value);
+		}
+		if (words < 0) throw new Unsupported("Splitting a long or double on the stack");
+		return values;
+	}
+
+	private void write(Variable variable, IrBlock block, Value value) {
+		definitions.get(block.id).put(variable, value);
+	}
+
+	private Value read(Variable variable, IrBlock block) {
+		Value value = definitions.get(block.id).get(variable);
+		return value != null ? value : readFromPredecessors(variable, block);
+	}
+
+	private Value readFromPredecessors(Variable variable, IrBlock block) {
+		Value value;
+		if (!sealed[block.id]) {
+			// Not all predecessors are known yet, filled in by seal()
+			Phi phi = block.addPhi(new Phi(variable.type(), block));
+			incompletePhis.get(block.id).put(variable, phi);
+			value = phi;
+		} else if (block.predecessors.isEmpty()) {
+			// Only the start block, for a slot read before anything is stored to it
+			value = Constant.zero(variable.type());
+		} else if (block.predecessors.size() == 1) {
+			value = read(variable, block.predecessors.get(0));
+		} else {
+			Phi phi = block.addPhi(new Phi(variable.type(), block));
+			// Defined before its operands are read, which ends the search round loops
+			write(variable, block, phi);
+			addOperands(variable, phi, block);
+			value = phi;
+		}
+		write(variable, block, value);
+		return value;
+	}
+
+	private void addOperands(Variable variable, Phi phi, IrBlock block) {
+		for (int i = 0; i < block.predecessors.size(); i++) phi.setOperand(i, read(variable, block.predecessors.get(i)));
+	}
+
+	private void seal(IrBlock block) {
+		for (var incomplete : incompletePhis.get(block.id).entrySet()) {
+			addOperands(incomplete.getKey(), incomplete.getValue(), block);
+		}
+		sealed[block.id] = true;
+	}
+}
@@ -0,0 +1,220 @@
+package wntiv.class_parser;
+
+import org.jetbrains.annotations.Nullable;
+import wntiv.ir.*;
+import wntiv.wasm_output.Util;
+import wntiv.wasm_output.types.NumericType;
+import wntiv.wasm_output.types.ReferenceType;
+import wntiv.wasm_output.types.ValueType;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Writes an {@link IrFunction} back out as wasm, laid out by the {@link Stackifier} over its own graph (which
+ * the inliner may have reshaped). Pure ops used once, later in their own block, are written right where they're used, so
+ * expressions stay on the stack. Every other value that's used lives in a local of its own, constants are
+ * written again at each use.
+ * <p>
+ * A phi's local is set on each edge into its block, all at once: the incoming values are pushed, then
+ * popped into the phis' locals, so phis reading each other (a swap in a loop) don't see half the update.
+ */
+final class SsaWriter implements Stackifier.BlockWriter {
+	private final IrFunction function;
+	private final IntermediaryMethod context;
+	private final Map<Value, Integer> locals = new HashMap<>();
+	private final Map<ValueType, Integer> declaredLocals = new LinkedHashMap<>();
+	// Written where they're used rather than where they're defined
+	private final Set<Instruction> inlined = new HashSet<>();
+	// Not a parameter, just what the local calls picking between targets keep the receiver's class id in is
+	// keyed by
+	private final Value classId = new Parameter(-1, NumericType.I32);
+
+	SsaWriter(IrFunction function, IntermediaryMethod context) {
+		this.function = function;
+		this.context = context;
+		assignLocals();
+	}
+
+	private void assignLocals() {
+		Map<Value, Integer> uses = new HashMap<>();
+		Map<Value, IrBlock> usedIn = new HashMap<>();
+		Set<Value> usedByPhis = new HashSet<>();
+		boolean needsClassId = false;
+		for (IrBlock block : function.blocks) {
+			for (Phi phi : block.phis) {
+				for (int i = 0; i < phi.operandCount(); i++) usedByPhis.add(phi.operand(i));
+			}
+			for (Instruction instruction : block.body) {
+				// Operands of a call that picks between targets are pushed once for each, so can't be inlined
+				int useCount = 1;
+				if (dispatch(instruction) != null) {
+					useCount = 2;
+					needsClassId = true;
+				}
+				for (int i = 0; i < instruction.operandCount(); i++) {
+					uses.merge(instruction.operand(i), useCount, Integer::sum);
+					usedIn.put(instruction.operand(i), block);
+				}
+			}
+			if (block.exitValue != null) {
+				uses.merge(block.exitValue, 1, Integer::sum);
+				usedIn.put(block.exitValue, block);
+			}
+		}
+		Map<ValueType, List<Value>> byType = new LinkedHashMap<>();
+		for (IrBlock block : function.blocks) {
+			for (Phi phi : block.phis) byType.computeIfAbsent(phi.type(), x -> new ArrayList<>()).add(phi);
+			for (Instruction instruction : block.body) {
+				int useCount = uses.getOrDefault(instruction, 0);
+				if (instruction.type() == null || (useCount == 0 && !usedByPhis.contains(instruction))) continue;
+				if (instruction instanceof WasmOp && !instruction.hasSideEffects() && useCount == 1
+						&& !usedByPhis.contains(instruction) && usedIn.get(instruction) == block) {
+					inlined.add(instruction);
+				} else byType.computeIfAbsent(instruction.type(), x -> new ArrayList<>()).add(instruction);
+			}
+		}
+		if (needsClassId) byType.computeIfAbsent(NumericType.I32, x -> new ArrayList<>()).add(classId);
+		int next = function.parameters.size();
+		for (var entry : byType.entrySet()) {
+			for (Value value : entry.getValue()) locals.put(value, next++);
+			declaredLocals.put(entry.getKey(), entry.getValue().size());
+		}
+	}
+
+	public Map<ValueType, Integer> getLocals() {
+		return Collections.unmodifiableMap(declaredLocals);
+	}
+
+	public void write(DataOutputStream out) throws IOException {
+		Stackifier.write(new ControlFlowGraph(function), this, out);
+	}
+
+	private static IrBlock irBlock(ControlFlowGraph.Block block) {
+		return Objects.requireNonNull(block.ir);
+	}
+
+	@Override
+	public void writeBlock(ControlFlowGraph.Block block, DataOutputStream out) throws IOException {
+		IrBlock irBlock = irBlock(block);
+		writeBody(irBlock, out);
+		switch (irBlock.exit) {
+			case IF, SWITCH -> writeValue(Objects.requireNonNull(irBlock.exitValue), out);
+			case RETURN -> {
+				if (irBlock.exitValue != null) writeValue(irBlock.exitValue, out);
+				out.writeByte(0x0F); // return
+			}
+			case JUMP -> {}
+		}
+	}
+
+	private void writeBody(IrBlock block, DataOutputStream out) throws IOException {
+		for (Instruction instruction : block.body) {
+			Integer local = locals.get(instruction);
+			// Unused & pure, or written later where it's used
+			if (local == null && (inlined.contains(instruction) || !instruction.hasSideEffects())) continue;
+			writeInstruction(instruction, out);
+			if (local != null) {
+				out.writeByte(0x21); // local.set
+				Util.writeVarUInt(out, local);
+			} else if (instruction.type() != null) {
+				out.writeByte(0x1A); // drop
+			}
+		}
+	}
+
+	@Override
+	public boolean hasEdgeCode(ControlFlowGraph.Block from, ControlFlowGraph.Block to) {
+		return !copies(irBlock(from), irBlock(to)).isEmpty();
+	}
+
+	@Override
+	public void writeEdge(ControlFlowGraph.Block from, ControlFlowGraph.Block to, DataOutputStream out)
+			throws IOException {
+		writeCopies(irBlock(from), irBlock(to), out);
+	}
+
+	// Phis of to that take a value other than their own coming from from
+	private List<Phi> copies(IrBlock from, IrBlock to) {
+		int predecessor = to.predecessors.indexOf(from);
+		List<Phi> result = new ArrayList<>();
+		for (Phi phi : to.phis) if (phi.operand(predecessor) != phi) result.add(phi);
+		return result;
+	}
+
+	private void writeCopies(IrBlock from, IrBlock to, DataOutputStream out) throws IOException {
+		int predecessor = to.predecessors.indexOf(from);
+		List<Phi> copies = copies(from, to);
+		for (Phi phi : copies) writeValue(phi.operand(predecessor), out);
+		for (int i = copies.size() - 1; i >= 0; i--) {
+			out.writeByte(0x21); // local.set
+			Util.writeVarUInt(out, locals.get(copies.get(i)));
+		}
+	}
+
+	private void writeValue(Value value, DataOutputStream out) throws IOException {
+		if (value instanceof Constant constant) {
+			writeConstant(constant, out);
+		} else if (value instanceof Parameter parameter) {
+			out.writeByte(0x20); // local.get
+			Util.writeVarUInt(out, parameter.index);
+		} else if (locals.containsKey(value)) {
+			out.writeByte(0x20); // local.get
+			Util.writeVarUInt(out, locals.get(value));
+		} else {
+			writeInstruction((Instruction) value, out);
+		}
+	}
+
+	// The instance call behind instruction, if it has to pick between targets
+	private static Operation.@Nullable InvokeInstance dispatch(Instruction instruction) {
+		if (instruction instanceof Opaque opaque && opaque.payload instanceof SsaBuilder.Source source
+				&& source.op() instanceof Operation.InvokeInstance invoke && invoke.dispatch().needsClassId()) {
+			return invoke;
+		}
+		return null;
+	}
+
+	private void writeInstruction(Instruction instruction, DataOutputStream out) throws IOException {
+		Operation.InvokeInstance invoke = dispatch(instruction);
+		if (invoke != null) {
+			invoke.writeDispatch(context, new Operation.InvokeInstance.Operands() {
+				@Override
+				public void push(int operand, DataOutputStream to) throws IOException {
+					writeValue(instruction.operand(operand), to);
+				}
+
+				@Override
+				public int classIdLocal() {
+					return locals.get(classId);
+				}
+			}, out);
+			return;
+		}
+		for (int i = 0; i < instruction.operandCount(); i++) writeValue(instruction.operand(i), out);
+		if (instruction instanceof WasmOp op) {
+			WasmOps.write(op.opcode, out);
+		} else if (instruction instanceof Opaque opaque) {
+			SsaBuilder.Source source = (SsaBuilder.Source) opaque.payload;
+			source.op().writeWasm(source.offset(), context, out);
+		} else {
+			throw new IllegalStateException("Phi without a local in " + function.name);
+		}
+	}
+
+	private static void writeConstant(Constant constant, DataOutputStream out) throws IOException {
+		if (constant.value == null) {
+			out.writeByte(0xD0); // ref.null
+			((ReferenceType) Objects.requireNonNull(constant.type())).targetType().write(out);
+			return;
+		}
+		switch ((NumericType) Objects.requireNonNull(constant.type())) {
+			case I32 -> { out.writeByte(0x41); Util.writeVarInt(out, (int) constant.value); }
+			case I64 -> { out.writeByte(0x42); Util.writeVarInt(out, (long) constant.value); }
+			case F32 -> { out.writeByte(0x43); Util.writeFloat(out, (float) constant.value); }
+			case F64 -> { out.writeByte(0x44); Util.writeDouble(out, (double) constant.value); }
+			default -> throw new IllegalStateException("Unexpected constant " + constant);
+		}
+	}
+}
@@ -0,0 +1,191 @@
+package wntiv.class_parser;
+
+import org.jetbrains.annotations.Nullable;
+import wntiv.ir.IrBlock;
+import wntiv.wasm_output.Util;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * Lays a {@link ControlFlowGraph} out as structured wasm, writing every block exactly once.
+ * Follows Ramsey, "Beyond Relooper" (ICFP 2022): walking the dominator tree, each loop header gets a wasm
+ * loop around itself & everything it dominates, and each block with several forward edges in gets a wasm
+ * block closed right before it, opened in the block that dominates it. Every jump is then either a br to one
+ * of those labels or, when the target has no other way in, the target's code written in place.
+ * <p>
+ * Everything is written straight to out in order, so relocations recorded by the ops stay valid.
+ */
+final class Stackifier {
+	// Writes the code in & between blocks, the Stackifier only adds the control flow around it
+	interface BlockWriter {
+		// Leaves the block's condition or switch index, if it has one, on the stack
+		void writeBlock(ControlFlowGraph.Block block, DataOutputStream out) throws IOException;
+
+		// Whether going from -> to needs code of its own, which rules out a bare br_if for it
+		default boolean hasEdgeCode(ControlFlowGraph.Block from, ControlFlowGraph.Block to) {
+			return false;
+		}
+
+		// Written on the way from -> to, after any condition has been consumed
+		default void writeEdge(ControlFlowGraph.Block from, ControlFlowGraph.Block to, DataOutputStream out)
+				throws IOException {}
+	}
+
+	// An enclosing wasm label. target is what a br to it reaches, null for if/else & switch arms which are
+	// never branched to by name
+	private record Frame(@Nullable ControlFlowGraph.Block target, boolean loop) {}
+
+	private final BlockWriter writer;
+	private final DataOutputStream out;
+	private final List<Frame> frames = new ArrayList<>(); // innermost last
+
+	private Stackifier(BlockWriter writer, DataOutputStream out) {
+		this.writer = writer;
+		this.out = out;
+	}
+
+	// Each block's ops as they are, with values on the stack at jumps spilled to locals
+	public static void write(ControlFlowGraph cfg, IntermediaryMethod context, DataOutputStream out) throws IOException {
+		write(cfg, (block, blockOut) -> writeOps(cfg.code(), block, context, blockOut), out);
+	}
+
+	public static void write(ControlFlowGraph cfg, BlockWriter writer, DataOutputStream out) throws IOException {
+		new Stackifier(writer, out).doTree(cfg.entry());
+	}
+
+	private static void writeOps(InstructionStore code, ControlFlowGraph.Block block, IntermediaryMethod context,
+	                             DataOutputStream out) throws IOException {
+		context.writeReload(block.entryStack, out);
+		for (int i = block.start; i < block.end; i++) code.op(i).writeWasm(code.offset(i), context, out);
+		if (!block.exitStack.isEmpty()) {
+			context.writeSpill(block.exitStack, block.exit == IrBlock.Exit.IF || block.exit == IrBlock.Exit.SWITCH, out);
+		}
+	}
+
+	private void doTree(ControlFlowGraph.Block block) throws IOException {
+		// Placed after block in order, so the latest one is the outermost wasm block
+		List<ControlFlowGraph.Block> merges = new ArrayList<>();
+		for (ControlFlowGraph.Block child : block.dominated) if (child.mergeNode) merges.add(child);
+		merges.sort(Comparator.comparingInt((ControlFlowGraph.Block child) -> child.order).reversed());
+		if (block.loopHeader) {
+			out.writeByte(0x03); // loop
+			out.writeByte(0x40);
+			enter(block, true);
+			nodeWithin(block, merges, 0);
+			exit();
+		} else nodeWithin(block, merges, 0);
+	}
+
+	private void nodeWithin(ControlFlowGraph.Block block, List<ControlFlowGraph.Block> merges, int next)
+			throws IOException {
+		if (next < merges.size()) {
+			ControlFlowGraph.Block merge = merges.get(next);
+			out.writeByte(0x02); // block
+			out.writeByte(0x40);
+			enter(merge, false);
+			nodeWithin(block, merges, next + 1);
+			exit();
+			doTree(merge);
+			return;
+		}
+		if (block.exit == IrBlock.Exit.SWITCH) {
+			writeSwitch(block);
+			return;
+		}
+		writer.writeBlock(block, out);
+		if (block.exit == IrBlock.Exit.IF) {
+			writeConditional(block, block.successors.get(0), block.successors.get(1));
+		} else if (!block.successors.isEmpty()) {
+			doBranch(block, block.successors.get(0));
+		}
+	}
+
+	// Condition is on the stack, true jumps to taken
+	private void writeConditional(ControlFlowGraph.Block block, ControlFlowGraph.Block taken,
+	                              ControlFlowGraph.Block notTaken) throws IOException {
+		int takenLabel = writer.hasEdgeCode(block, taken) ? -1 : labelFor(block, taken);
+		if (takenLabel >= 0) {
+			out.writeByte(0x0D); // br_if
+			Util.writeVarUInt(out, takenLabel);
+			doBranch(block, notTaken);
+			return;
+		}
+		int notTakenLabel = writer.hasEdgeCode(block, notTaken) ? -1 : labelFor(block, notTaken);
+		if (notTakenLabel >= 0) {
+			out.writeByte(0x45); // i32.eqz
+			out.writeByte(0x0D); // br_if
+			Util.writeVarUInt(out, notTakenLabel);
+			doBranch(block, taken);
+			return;
+		}
+		out.writeByte(0x04); // if
+		out.writeByte(0x40);
+		enter(null, false);
+		doBranch(block, taken);
+		out.writeByte(0x05); // else
+		doBranch(block, notTaken);
+		exit();
+	}
+
+	// Targets only reachable from here, or needing edge code, are reached through arms after the br_table,
+	// the rest are jumped to directly. The arms' blocks have to be open before the index is computed, as it
+	// can't be passed in
+	private void writeSwitch(ControlFlowGraph.Block block) throws IOException {
+		LinkedHashSet<ControlFlowGraph.Block> inlined = new LinkedHashSet<>();
+		for (ControlFlowGraph.Block target : block.successors) {
+			if (writer.hasEdgeCode(block, target) || labelFor(block, target) < 0) inlined.add(target);
+		}
+		List<ControlFlowGraph.Block> arms = new ArrayList<>(inlined);
+		// First arm is innermost
+		for (int i = arms.size() - 1; i >= 0; i--) {
+			out.writeByte(0x02); // block
+			out.writeByte(0x40);
+			enter(null, false);
+		}
+		writer.writeBlock(block, out);
+		out.writeByte(0x0E); // br_table
+		Util.writeVarUInt(out, block.successors.size() - 1); // default is last
+		for (ControlFlowGraph.Block target : block.successors) {
+			int arm = arms.indexOf(target);
+			Util.writeVarUInt(out, arm >= 0 ? arm : labelFor(block, target));
+		}
+		for (ControlFlowGraph.Block arm : arms) {
+			exit();
+			doBranch(block, arm);
+		}
+	}
+
+	private void doBranch(ControlFlowGraph.Block from, ControlFlowGraph.Block to) throws IOException {
+		writer.writeEdge(from, to, out);
+		int label = labelFor(from, to);
+		if (label >= 0) {
+			out.writeByte(0x0C); // br
+			Util.writeVarUInt(out, label);
+		} else doTree(to);
+	}
+
+	// Depth of the label a jump from -> to should br to, -1 if to's code is to be written in place
+	private int labelFor(ControlFlowGraph.Block from, ControlFlowGraph.Block to) {
+		boolean backward = to.order <= from.order;
+		if (!backward && !to.mergeNode) return -1;
+		for (int i = frames.size() - 1; i >= 0; i--) {
+			Frame frame = frames.get(i);
+			if (frame.target() == to && frame.loop() == backward) return frames.size() - 1 - i;
+		}
+		throw new IllegalStateException("No enclosing label for " + from + " -> " + to);
+	}
+
+	private void enter(@Nullable ControlFlowGraph.Block target, boolean loop) {
+		frames.add(new Frame(target, loop));
+	}
+
+	private void exit() throws IOException {
+		frames.remove(frames.size() - 1);
+		out.writeByte(0x0B); // end
+	}
+}
@@ -0,0 +1,157 @@
+package wntiv.class_parser;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+
+/**
+ * Numeric static fields whose value is known at build time, so reading one is a constant and it needn't be a
+ * global at all: ones nothing writes (their ConstantValue, else zero), and ones only written by their class's
+ * {@code <clinit>} storing a constant before it does anything else, which is before anything can read them (a
+ * class is initialised before any of its statics are used). javac already inlines reads of its own
+ * compile-time constants, but not of finals given a value it can't see as one, or of fields that aren't
+ * final but are never changed.
+ * <p>
+ * Every class is added before any is translated, as for {@link ClassHierarchy}.
+ */
+final class StaticConstants {
+	// Each numeric static field's type (the first character of its descriptor), & whether it's final
+	private final Map<ClassHierarchy.Field, Character> types = new HashMap<>();
+	private final Set<ClassHierarchy.Field> finals = new HashSet<>();
+	private final Map<ClassHierarchy.Field, Object> constantValues = new HashMap<>();
+	// What <clinit> stores first, where it's a constant
+	private final Map<ClassHierarchy.Field, Object> initialStores = new HashMap<>();
+	// putstatics of each field as code names it, maybe through a subclass, until seal() resolves them
+	private final Map<ClassHierarchy.Field, Integer> writes = new HashMap<>();
+	// Filled in by seal(), read only after
+	private final Map<ClassHierarchy.Field, Object> values = new HashMap<>();
+
+	void add(ClassHandler cls) {
+		for (ClassHandler.FieldInfo field : cls.fields) {
+			char type = field.descriptor.charAt(0);
+			if ((field.access_flags & ClassHandler.FieldInfo.ACC_STATIC) == 0 || "IZBCSJFD".indexOf(type) < 0) continue;
+			ClassHierarchy.Field key = new ClassHierarchy.Field(cls.this_class, field.getNameAndType());
+			types.put(key, type);
+			if ((field.access_flags & ClassHandler.FieldInfo.ACC_FINAL) != 0) finals.add(key);
+			var value = field.attributes.getConstantValue();
+			Object constant = value == null ? null : constant(value.value);
+			if (constant != null) constantValues.put(key, constant);
+		}
+		for (ClassHandler.MethodInfo method : cls.methods) {
+			var code = method.attributes.getCode();
+			if (code == null) continue;
+			if (method.name.equals("<clinit>")) scanInitialStores(cls.this_class, code.code, cls.constant_pool);
+			for (int i = 0; i < code.code.length; i += ClassHierarchy.instructionLength(code.code, i)) {
+				if (code.code[i] != (byte) 0xb3 /* putstatic */) continue;
+				writes.merge(field(code.code, i, cls.constant_pool), 1, Integer::sum);
+			}
+		}
+	}
+
+	/**
+	 * Once all classes are in: a field written once is constant if that's the store scanInitialStores() found.
+	 * @param hierarchy for the field a putstatic through a subclass writes, with every class added
+	 */
+	void seal(ClassHierarchy hierarchy) {
+		Map<ClassHierarchy.Field, Integer> declaredWrites = new HashMap<>();
+		// Written through a class that isn't loaded, so it could be any field of that signature
+		Set<ClassHandler.ConstantNameAndTypeInfo> unresolved = new HashSet<>();
+		for (var entry : writes.entrySet()) {
+			ClassHierarchy.Field written = entry.getKey();
+			ClassHierarchy.Field declared = hierarchy.declaredStatic(written.owner(), written.field());
+			if (declared == null) unresolved.add(written.field());
+			else declaredWrites.merge(declared, entry.getValue(), Integer::sum);
+		}
+		for (var entry : types.entrySet()) {
+			ClassHierarchy.Field field = entry.getKey();
+			if (unresolved.contains(field.field())) continue;
+			int count = declaredWrites.getOrDefault(field, 0);
+			Object value = count == 0 ? constantValues.getOrDefault(field, zero(entry.getValue()))
+					: count == 1 ? initialStores.get(field) : null;
+			if (value != null) value = narrow(value, entry.getValue());
+			if (value != null) values.put(field, value);
+		}
+	}
+
+	/**
+	 * The value a getstatic of field reads, an Integer, Long, Float or Double as for {@link Operation.PushConst}.
+	 * @param field as declared, see {@link ClassHierarchy#declaredStatic}
+	 * @return null if it isn't known
+	 */
+	@Nullable Object value(ClassHierarchy.Field field) {
+		return values.get(field);
+	}
+
+	/**
+	 * Whether cls's own class file settles if field is folded: it does for cls's own finals, which only its
+	 * {@code <clinit>} can write, and for fields that aren't numeric, which never are. Any class could write others.
+	 */
+	boolean settledBy(ClassHierarchy.Field field, ClassHandler.ConstantClassInfo cls) {
+		return !types.containsKey(field) || finals.contains(field) && field.owner() == cls;
+	}
+
+	// The leading run of constant & putstatic pairs, storing to cls's own fields
+	private void scanInitialStores(ClassHandler.ConstantClassInfo cls, byte[] code, ClassHandler.ConstantPool pool) {
+		for (int i = 0; i < code.length; ) {
+			Object value = pushedConstant(code, i, pool);
+			if (value == null) return;
+			i += ClassHierarchy.instructionLength(code, i);
+			if (i >= code.length || code[i] != (byte) 0xb3 /* putstatic */) return;
+			ClassHierarchy.Field field = field(code, i, pool);
+			if (field.owner() != cls || !types.containsKey(field)) return;
+			initialStores.putIfAbsent(field, value);
+			i += ClassHierarchy.instructionLength(code, i);
+		}
+	}
+
+	private static ClassHierarchy.Field field(byte[] code, int at, ClassHandler.ConstantPool pool) {
+		var field = (ClassHandler.ConstantFieldRefInfo) pool.get(ClassHierarchy.u2(code, at + 1));
+		return new ClassHierarchy.Field(field.getCls(), field.getSignature());
+	}
+
+	private static @Nullable Object pushedConstant(byte[] code, int at, ClassHandler.ConstantPool pool) {
+		int opcode = Byte.toUnsignedInt(code[at]);
+		return switch (opcode) {
+			case 0x02, 0x03, 0x04, 0x05, 0x06, 0x07, 0x08 -> opcode - 0x03; // iconst_<i>
+			case 0x09, 0x0a -> (long) (opcode - 0x09); // lconst_<l>
+			case 0x0b, 0x0c, 0x0d -> (float) (opcode - 0x0b); // fconst_<f>
+			case 0x0e, 0x0f -> (double) (opcode - 0x0e); // dconst_<d>
+			case 0x10 /* bipush */ -> (int) code[at + 1];
+			case 0x11 /* sipush */ -> (int) (short) ClassHierarchy.u2(code, at + 1);
+			case 0x12 /* ldc */ -> constant(pool.get(Byte.toUnsignedInt(code[at + 1])));
+			case 0x13 /* ldc_w */, 0x14 /* ldc2_w */ -> constant(pool.get(ClassHierarchy.u2(code, at + 1)));
+			default -> null;
+		};
+	}
+
+	private static @Nullable Object constant(ClassHandler.ConstantPoolItem item) {
+		if (item instanceof ClassHandler.ConstantIntegerInfo value) return value.value();
+		if (item instanceof ClassHandler.ConstantLongInfo value) return value.value();
+		if (item instanceof ClassHandler.ConstantFloatInfo value) return value.value();
+		if (item instanceof ClassHandler.ConstantDoubleInfo value) return value.value();
+		return null;
+	}
+
+	private static Object zero(char type) {
+		return switch (type) {
+			case 'J' -> 0L;
+			case 'F' -> 0F;
+			case 'D' -> 0D;
+			default -> 0;
+		};
+	}
+
+	// As the field holds it, or null if it's a constant of another type
+	private static @Nullable Object narrow(Object value, char type) {
+		return switch (type) {
+			case 'Z' -> value instanceof Integer i ? i & 1 : null;
+			case 'B' -> value instanceof Integer i ? (int) (byte) (int) i : null;
+			case 'C' -> value instanceof Integer i ? (int) (char) (int) i : null;
+			case 'S' -> value instanceof Integer i ? (int) (short) (int) i : null;
+			case 'I' -> value instanceof Integer ? value : null;
+			case 'J' -> value instanceof Long ? value : null;
+			case 'F' -> value instanceof Float ? value : null;
+			default -> value instanceof Double ? value : null;
+		};
+	}
+}
@@ -0,0 +1,49 @@
+package wntiv.class_parser;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Process wide table of canonical class & name-and-type symbols, shared by every class parsed (on any
+// thread). Each distinct symbol exists exactly once, so they compare by identity and hash by a small
+// integer id instead of rehashing their strings; the strings themselves are shared across classes too.
+public final class SymbolTable {
+	private SymbolTable() {}
+
+	private static final Map<String, String> strings = new ConcurrentHashMap<>();
+	private static final Map<String, ClassHandler.ConstantClassInfo> classes = new ConcurrentHashMap<>();
+	private static final Map<String, Map<String, ClassHandler.ConstantNameAndTypeInfo>> nameAndTypes
+			= new ConcurrentHashMap<>();
+	private static final AtomicInteger nextClassId = new AtomicInteger();
+	private static final AtomicInteger nextNameAndTypeId = new AtomicInteger();
+
+	public static String intern(String value) {
+		String existing = strings.putIfAbsent(value, value);
+		return existing == null ? value : existing;
+	}
+
+	public static ClassHandler.ConstantClassInfo classInfo(String name) {
+		ClassHandler.ConstantClassInfo existing = classes.get(name);
+		if (existing != null) return existing;
+		return classes.computeIfAbsent(intern(name),
+				x -> new ClassHandler.ConstantClassInfo(x, nextClassId.getAndIncrement()));
+	}
+
+	public static ClassHandler.ConstantNameAndTypeInfo nameAndType(String name, String descriptor) {
+		Map<String, ClassHandler.ConstantNameAndTypeInfo> byDescriptor
+				= nameAndTypes.computeIfAbsent(intern(name), x -> new ConcurrentHashMap<>());
+		ClassHandler.ConstantNameAndTypeInfo existing = byDescriptor.get(descriptor);
+		if (existing != null) return existing;
+		return byDescriptor.computeIfAbsent(intern(descriptor), x -> new ClassHandler.ConstantNameAndTypeInfo(
+				intern(name), x, nextNameAndTypeId.getAndIncrement()));
+	}
+
+	// Ids are dense from 0, so these double as sizes for arrays indexed by id
+	public static int classCount() {
+		return nextClassId.get();
+	}
+
+	public static int nameAndTypeCount() {
+		return nextNameAndTypeId.get();
+	}
+}
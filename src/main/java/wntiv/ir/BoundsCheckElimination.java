@@ -0,0 +1,390 @@
+package wntiv.ir;
+
+import org.jetbrains.annotations.Nullable;
+import wntiv.wasm_output.types.NumericType;
+
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Range analysis over array indices. Every access is checked against its array's length first (by an Opaque
+ * the front end's {@link ArrayModel} points out), which in a loop over an array is a compare & branch per
+ * element for nothing, the loop's own condition already keeping the index in range. A check goes when
+ * {@code 0 <= index < length} can be proven where it stands, from:
+ * <ul>
+ *     <li>the conditions of the branches taken to get there, and the checks passed on the way,</li>
+ *     <li>constants, lengths (never negative), and adding constants to values that can't wrap,</li>
+ *     <li>induction variables: a loop header phi that its back edges only ever add a non-negative constant
+ *     to (without wrapping) never goes below its initial values, one they only subtract from never above.</li>
+ * </ul>
+ * So the canonical counted loop, {@code for (int i = 0; i < a.length; i++) ... a[i] ...}, counting down or
+ * reading a[i - 1] & a[i + 1] with the bound adjusted to match, keeps no checks on a. Checks are only
+ * removed, never hoisted: checking {@code n <= a.length} once ahead of {@code for (i = 0; i < n; i++)} would
+ * throw before iterations the JVM runs first, which may have had effects.
+ * <p>
+ * Reads of one array's length are merged first (lengths never change), and those left unused by the
+ * removed checks are dropped.
+ */
+public final class BoundsCheckElimination implements Pass {
+	// What the front end's Opaques do with arrays
+	public interface ArrayModel {
+		// Traps unless 0 <= operand 0 < operand 1, and does nothing else
+		boolean checksBounds(Opaque instruction);
+
+		// The array whose length the instruction reads, or null if it isn't a length read. One whose result
+		// isn't used can go: it only fails for a null array, which the access it was read for does too
+		@Nullable Value lengthOf(Opaque instruction);
+	}
+
+	private static final int I32_EQZ = 0x45;
+	private static final int I32_ADD = 0x6A;
+	private static final int I32_SUB = 0x6B;
+	private static final int I32_AND = 0x71;
+	private static final int I32_SHR_U = 0x76;
+	// How far a proof follows operands
+	private static final int MAX_DEPTH = 8;
+
+	// Inclusive, long so adding to the ends can't wrap
+	private record Range(long low, long high) {
+		static final Range FULL = new Range(Integer.MIN_VALUE, Integer.MAX_VALUE);
+		static final Range LENGTH = new Range(0, Integer.MAX_VALUE);
+	}
+	// less < greater, or <= if not strict. Unsigned facts are only kept strict
+	private record Fact(Value less, Value greater, boolean strict, boolean unsigned) {}
+	// Before the position'th instruction of block, phis being at 0
+	private record Point(IrBlock block, int position) {}
+	private record Query(Value value, Point at) {}
+
+	private final LongAdder checks = new LongAdder();
+	private final LongAdder removed = new LongAdder();
+
+	@Override
+	public String name() {
+		return "bounds-check-elimination";
+	}
+
+	@Override
+	public boolean run(IrFunction function) {
+		ArrayModel arrays = function.arrays;
+		if (arrays == null) return false;
+		boolean changed = mergeLengths(function, arrays);
+		List<Opaque> found = new ArrayList<>();
+		for (IrBlock block : function.blocks) {
+			for (Instruction instruction : block.body) {
+				if (instruction instanceof Opaque opaque && arrays.checksBounds(opaque)) found.add(opaque);
+			}
+		}
+		if (found.isEmpty()) return changed;
+		checks.add(found.size());
+		// Decided before any are removed, as a removed check is still a fact for the ones after it
+		Prover prover = new Prover(arrays);
+		Set<Instruction> proven = new HashSet<>();
+		for (Opaque check : found) {
+			Point at = Prover.pointOf(check);
+			if (prover.range(check.operand(0), at, 0).low() >= 0 && prover.below(check.operand(0), check.operand(1), 0, at, 0)) {
+				proven.add(check);
+			}
+		}
+		if (proven.isEmpty()) return changed;
+		removed.add(proven.size());
+		for (IrBlock block : function.blocks) block.body.removeAll(proven);
+		removeUnusedLengths(function, arrays);
+		return true;
+	}
+
+	// Replaces a length read dominated by another of the same array with that one
+	private static boolean mergeLengths(IrFunction function, ArrayModel arrays) {
+		Map<Value, Value> replacements = new HashMap<>();
+		Map<Value, Opaque> available = new HashMap<>();
+		function.walkDominatorTree(block -> {
+			List<Value> added = new ArrayList<>();
+			for (Instruction instruction : block.body) {
+				if (!(instruction instanceof Opaque opaque)) continue;
+				Value array = arrays.lengthOf(opaque);
+				if (array == null || array instanceof Constant) continue;
+				array = IrFunction.resolve(array, replacements);
+				Opaque existing = available.get(array);
+				if (existing != null) {
+					replacements.put(opaque, existing);
+				} else {
+					available.put(array, opaque);
+					added.add(array);
+				}
+			}
+			return added;
+		}, added -> added.forEach(available::remove));
+		return function.replaceUses(replacements);
+	}
+
+	private static void removeUnusedLengths(IrFunction function, ArrayModel arrays) {
+		Set<Value> used = new HashSet<>();
+		for (IrBlock block : function.blocks) {
+			for (Phi phi : block.phis) {
+				for (int i = 0; i < phi.operandCount(); i++) used.add(phi.operand(i));
+			}
+			for (Instruction instruction : block.body) {
+				for (int i = 0; i < instruction.operandCount(); i++) used.add(instruction.operand(i));
+			}
+			if (block.exitValue != null) used.add(block.exitValue);
+		}
+		for (IrBlock block : function.blocks) {
+			block.body.removeIf(instruction -> instruction instanceof Opaque opaque && !used.contains(opaque)
+					&& arrays.lengthOf(opaque) != null);
+		}
+	}
+
+	private static final class Prover {
+		final ArrayModel arrays;
+		final Map<Point, List<Fact>> facts = new HashMap<>();
+		// Ranges found with no phi open (which would have cut them short), for the checks after
+		final Map<Query, Range> ranges = new HashMap<>();
+		// Phis being looked through further up, met again only as a loop back to them
+		final Set<Phi> open = new HashSet<>();
+
+		Prover(ArrayModel arrays) {
+			this.arrays = arrays;
+		}
+
+		static Point pointOf(Instruction instruction) {
+			IrBlock block = Objects.requireNonNull(instruction.block());
+			return new Point(block, instruction instanceof Phi ? 0 : block.body.indexOf(instruction));
+		}
+
+		// What value can be at, an i32
+		Range range(Value value, Point at, int depth) {
+			if (value instanceof Constant constant) {
+				return constant.value instanceof Integer n ? new Range(n, n) : Range.FULL;
+			}
+			if (depth > MAX_DEPTH || value.type() != NumericType.I32) return Range.FULL;
+			Query query = new Query(value, at);
+			Range known = ranges.get(query);
+			if (known != null) return known;
+			Range result = Range.FULL;
+			if (value instanceof Opaque opaque && arrays.lengthOf(opaque) != null) {
+				result = Range.LENGTH;
+			} else if (value instanceof WasmOp op) {
+				result = rangeOf(op, at, depth);
+			} else if (value instanceof Phi phi && open.add(phi)) {
+				try {
+					result = rangeOf(phi, at, depth);
+				} finally {
+					open.remove(phi);
+				}
+			}
+			long low = result.low();
+			long high = result.high();
+			for (Fact fact : facts(at)) {
+				if (fact.less() == value) {
+					Range bound = range(fact.greater(), at, depth + 1);
+					if (fact.unsigned()) {
+						// Only says anything when the bound isn't negative, and then that value isn't either
+						if (bound.low() < 0) continue;
+						low = Math.max(low, 0);
+					}
+					high = Math.min(high, bound.high() - (fact.strict() ? 1 : 0));
+				} else if (fact.greater() == value && !fact.unsigned()) {
+					low = Math.max(low, range(fact.less(), at, depth + 1).low() + (fact.strict() ? 1 : 0));
+				}
+			}
+			result = new Range(low, high);
+			if (open.isEmpty()) ranges.put(query, result);
+			return result;
+		}
+
+		private Range rangeOf(WasmOp op, Point at, int depth) {
+			Value added = addend(op);
+			if (added != null) {
+				long constant = constantAddend(op);
+				Range range = range(added, at, depth + 1);
+				return wraps(range, constant) ? Range.FULL : new Range(range.low() + constant, range.high() + constant);
+			}
+			if (op.operandCount() != 2) return Range.FULL;
+			if (op.opcode == I32_AND) {
+				for (int i = 0; i < 2; i++) {
+					if (op.operand(i) instanceof Constant constant && constant.value instanceof Integer mask && mask >= 0) {
+						return new Range(0, mask);
+					}
+				}
+			} else if (op.opcode == I32_SHR_U && op.operand(1) instanceof Constant constant
+					&& constant.value instanceof Integer shift && (shift & 31) != 0) {
+				return new Range(0, 0xFFFFFFFFL >>> (shift & 31));
+			}
+			return Range.FULL;
+		}
+
+		// Every value it can start with, then widened in the direction(s) back edges step it
+		private Range rangeOf(Phi phi, Point at, int depth) {
+			IrBlock header = Objects.requireNonNull(phi.block());
+			long low = Long.MAX_VALUE;
+			long high = Long.MIN_VALUE;
+			boolean rises = false;
+			boolean falls = false;
+			for (int i = 0; i < phi.operandCount(); i++) {
+				Value value = phi.operand(i);
+				if (value == phi) continue;
+				if (dominates(header, header.predecessors.get(i))) {
+					Long step = step(value, phi);
+					if (step == null || wraps(range(phi, pointOf((Instruction) value), depth + 1), step)) return Range.FULL;
+					rises |= step > 0;
+					falls |= step < 0;
+				} else {
+					Range range = range(value, at, depth + 1);
+					low = Math.min(low, range.low());
+					high = Math.max(high, range.high());
+				}
+			}
+			if (low > high) return Range.FULL; // no way in that isn't a back edge, so unreachable
+			return new Range(falls ? Integer.MIN_VALUE : low, rises ? Integer.MAX_VALUE : high);
+		}
+
+		// Whether value + k < length at, for a length read
+		boolean below(Value value, Value length, long k, Point at, int depth) {
+			if (depth > MAX_DEPTH) return false;
+			Long offset = lengthOffset(value, length);
+			if (offset != null && k < offset) return true;
+			for (Fact fact : facts(at)) {
+				Long bound = lengthOffset(fact.greater(), length);
+				if (bound == null || (fact.unsigned() && bound != 0)) continue;
+				// less + slack < length
+				long slack = fact.strict() ? bound : bound - 1;
+				if (fact.less() == value ? k <= slack
+						: range(value, at, depth + 1).high() + k <= range(fact.less(), at, depth + 1).low() + slack) {
+					return true;
+				}
+			}
+			if (value instanceof WasmOp op) {
+				Value added = addend(op);
+				if (added == null) return false;
+				long constant = constantAddend(op);
+				return !wraps(range(added, at, depth + 1), constant) && below(added, length, k + constant, at, depth + 1);
+			}
+			if (!(value instanceof Phi phi) || !open.add(phi)) return false;
+			try {
+				// Below for every value it starts with, and never rises
+				IrBlock header = Objects.requireNonNull(phi.block());
+				for (int i = 0; i < phi.operandCount(); i++) {
+					Value operand = phi.operand(i);
+					if (operand == phi) continue;
+					if (dominates(header, header.predecessors.get(i))) {
+						Long step = step(operand, phi);
+						if (step == null || step > 0 || wraps(range(phi, pointOf((Instruction) operand), depth + 1), step)) {
+							return false;
+						}
+					} else if (!below(operand, length, k, at, depth + 1)) {
+						return false;
+					}
+				}
+				return true;
+			} finally {
+				open.remove(phi);
+			}
+		}
+
+		// d where value is length - d, d >= 0, else null
+		private @Nullable Long lengthOffset(Value value, Value length) {
+			if (sameLength(value, length)) return 0L;
+			if (!(value instanceof WasmOp op)) return null;
+			Value added = addend(op);
+			if (added == null || !sameLength(added, length)) return null;
+			long constant = constantAddend(op);
+			return constant <= 0 ? -constant : null;
+		}
+
+		private boolean sameLength(Value value, Value length) {
+			if (value == length) return true;
+			if (!(value instanceof Opaque opaque) || !(length instanceof Opaque lengthRead)) return false;
+			Value array = arrays.lengthOf(opaque);
+			return array != null && array == arrays.lengthOf(lengthRead);
+		}
+
+		// What's known at a point: conditions of the branches taken to it & checks passed, in dominating blocks
+		private List<Fact> facts(Point at) {
+			List<Fact> result = facts.get(at);
+			if (result != null) return result;
+			result = new ArrayList<>();
+			int limit = at.position();
+			for (IrBlock block = at.block(); block != null; block = block.dominator, limit = Integer.MAX_VALUE) {
+				for (int i = 0; i < Math.min(limit, block.body.size()); i++) {
+					if (block.body.get(i) instanceof Opaque check && arrays.checksBounds(check)) {
+						result.add(new Fact(check.operand(0), check.operand(1), true, true));
+					}
+				}
+				if (block.predecessors.size() != 1) continue;
+				IrBlock from = block.predecessors.get(0);
+				if (from.exit == IrBlock.Exit.IF && from.successors.get(0) != from.successors.get(1)) {
+					addCondition(Objects.requireNonNull(from.exitValue), from.successors.get(0) == block, result);
+				}
+			}
+			facts.put(at, result);
+			return result;
+		}
+
+		private static void addCondition(Value condition, boolean holds, List<Fact> to) {
+			while (condition instanceof WasmOp op && op.opcode == I32_EQZ) {
+				condition = op.operand(0);
+				holds = !holds;
+			}
+			if (!(condition instanceof WasmOp op) || op.operandCount() != 2 || op.operand(0).type() != NumericType.I32) return;
+			Value a = op.operand(0);
+			Value b = op.operand(1);
+			switch (op.opcode) {
+				case 0x46, 0x47 -> { // i32.eq, i32.ne
+					if (holds == (op.opcode == 0x46)) {
+						to.add(new Fact(a, b, false, false));
+						to.add(new Fact(b, a, false, false));
+					}
+				}
+				case 0x48 -> to.add(holds ? new Fact(a, b, true, false) : new Fact(b, a, false, false)); // i32.lt_s
+				case 0x4A -> to.add(holds ? new Fact(b, a, true, false) : new Fact(a, b, false, false)); // i32.gt_s
+				case 0x4C -> to.add(holds ? new Fact(a, b, false, false) : new Fact(b, a, true, false)); // i32.le_s
+				case 0x4E -> to.add(holds ? new Fact(b, a, false, false) : new Fact(a, b, true, false)); // i32.ge_s
+				case 0x49 -> { if (holds) to.add(new Fact(a, b, true, true)); } // i32.lt_u
+				case 0x4B -> { if (holds) to.add(new Fact(b, a, true, true)); } // i32.gt_u
+				case 0x4D -> { if (!holds) to.add(new Fact(b, a, true, true)); } // i32.le_u
+				case 0x4F -> { if (!holds) to.add(new Fact(a, b, true, true)); } // i32.ge_u
+				default -> {}
+			}
+		}
+
+		// x for x + constant or x - constant, else null
+		private static @Nullable Value addend(WasmOp op) {
+			if (op.operandCount() != 2 || op.type() != NumericType.I32) return null;
+			if (op.opcode == I32_ADD && op.operand(0) instanceof Constant constant && constant.value instanceof Integer) {
+				return op.operand(1);
+			}
+			if ((op.opcode == I32_ADD || op.opcode == I32_SUB) && op.operand(1) instanceof Constant constant
+					&& constant.value instanceof Integer) return op.operand(0);
+			return null;
+		}
+
+		// What addend(op) has added to it
+		private static long constantAddend(WasmOp op) {
+			int index = op.operand(0) instanceof Constant ? 0 : 1;
+			long constant = (Integer) ((Constant) op.operand(index)).value;
+			return op.opcode == I32_SUB ? -constant : constant;
+		}
+
+		// What value adds to phi each time round, if it's phi plus a constant
+		private static @Nullable Long step(Value value, Phi phi) {
+			if (!(value instanceof WasmOp op) || addend(op) != phi) return null;
+			return constantAddend(op);
+		}
+
+		private static boolean wraps(Range range, long constant) {
+			return range.low() + constant < Integer.MIN_VALUE || range.high() + constant > Integer.MAX_VALUE;
+		}
+
+		private static boolean dominates(IrBlock dominator, IrBlock block) {
+			for (IrBlock current = block; current != null; current = current.dominator) {
+				if (current == dominator) return true;
+			}
+			return false;
+		}
+	}
+
+	@Override
+	public @Nullable String report() {
+		if (checks.sum() == 0) return null;
+		return String.format("Bounds check elimination: %d of %d checks removed%n", removed.sum(), checks.sum());
+	}
+}
@@ -0,0 +1,158 @@
+package wntiv.ir;
+
+import org.jetbrains.annotations.Nullable;
+import wntiv.wasm_output.types.NumericType;
+import wntiv.wasm_output.types.ValueType;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Java compares longs, floats & doubles with lcmp / fcmp&lt;l|g&gt; / dcmp&lt;l|g&gt;, giving -1, 0 or 1, then branches
+ * on how that compares to 0. Wasm compares directly, so each pair becomes the one comparison (or its
+ * negation) that's true for exactly the same outcomes, NaNs included: fcmpl gives -1 when either side is
+ * NaN, fcmpg 1, so e.g. fcmpg; ifge is !(a < b), true for NaN.
+ * <p>
+ * The three-way result is built by {@link #threeWay} out of two comparisons, and recognised from that shape,
+ * so nothing needs to remember where it came from.
+ */
+public final class CompareFusion implements Pass {
+	private enum Relation { EQ, NE, LT, GT, LE, GE }
+	private enum Outcome { LESS, EQUAL, GREATER, UNORDERED }
+	// A comparison of a & b, negated by i32.eqz or not
+	private record Term(Relation relation, boolean negated, Value a, Value b, ValueType type) {
+		int valueFor(Outcome outcome) {
+			return holds(relation, outcome) != negated ? 1 : 0;
+		}
+	}
+	// i32 comparisons of the three-way result against 0, as if<cond> leaves them
+	private static final Map<Integer, Relation> AGAINST_ZERO = Map.of(0x46, Relation.EQ, 0x47, Relation.NE,
+			0x48, Relation.LT, 0x4A, Relation.GT, 0x4C, Relation.LE, 0x4E, Relation.GE);
+
+	@Override
+	public String name() {
+		return "compare-fusion";
+	}
+
+	/**
+	 * -1, 0 or 1 as a is less than, equal to or greater than b, for an unordered (NaN) pair 1 if nanGreater
+	 * else -1: (a &gt; b) - (a &lt; b) for longs, !(a &lt;= b) - (a &lt; b) for fcmpg, (a &gt; b) - !(a &gt;= b) for fcmpl.
+	 */
+	public static Value threeWay(IrBlock block, ValueType type, boolean nanGreater, Value a, Value b) {
+		Value greater, less;
+		if (type == NumericType.I64 || nanGreater) {
+			greater = type == NumericType.I64 ? compare(block, type, Relation.GT, a, b)
+					: block.append(new WasmOp(0x45, compare(block, type, Relation.LE, a, b))); // i32.eqz
+			less = compare(block, type, Relation.LT, a, b);
+		} else {
+			greater = compare(block, type, Relation.GT, a, b);
+			less = block.append(new WasmOp(0x45, compare(block, type, Relation.GE, a, b))); // i32.eqz
+		}
+		return block.append(new WasmOp(0x6B, greater, less)); // i32.sub
+	}
+
+	private static WasmOp compare(IrBlock block, ValueType type, Relation relation, Value a, Value b) {
+		return block.append(new WasmOp(opcode(type, relation), a, b));
+	}
+
+	@Override
+	public boolean run(IrFunction function) {
+		Map<Value, Value> replacements = new HashMap<>();
+		for (IrBlock block : function.blocks) {
+			for (int i = 0; i < block.body.size(); i++) {
+				// Fused ones go in before the test, which is then seen again
+				if (!(block.body.get(i) instanceof WasmOp test) || replacements.containsKey(test)) continue;
+				Relation relation = AGAINST_ZERO.get(test.opcode);
+				if (relation == null || !(test.operand(1) instanceof Constant zero) || !Integer.valueOf(0).equals(zero.value))
+					continue;
+				Term greater, less;
+				if (!(test.operand(0) instanceof WasmOp sub) || sub.opcode != 0x6B
+						|| (greater = term(sub.operand(0))) == null || (less = term(sub.operand(1))) == null
+						|| greater.a() != less.a() || greater.b() != less.b()) continue;
+				Value fused = fuse(relation, greater, less, block, i);
+				if (fused != null) replacements.put(test, fused);
+			}
+		}
+		return function.replaceUses(replacements);
+	}
+
+	// The comparison of a & b that agrees with test on every outcome, inserted before index
+	private static @Nullable Value fuse(Relation test, Term greater, Term less, IrBlock block, int index) {
+		// Longs have no unordered outcome, so anything goes there
+		int outcomes = greater.type() == NumericType.I64 ? 3 : 4;
+		boolean[] wanted = new boolean[outcomes];
+		for (int o = 0; o < outcomes; o++) {
+			Outcome outcome = Outcome.values()[o];
+			wanted[o] = holds(test, Integer.compare(greater.valueFor(outcome) - less.valueFor(outcome), 0));
+		}
+		for (boolean negated : new boolean[]{false, true}) {
+			for (Relation relation : Relation.values()) {
+				boolean matches = true;
+				for (int o = 0; matches && o < outcomes; o++) {
+					matches = holds(relation, Outcome.values()[o]) != negated == wanted[o];
+				}
+				if (!matches) continue;
+				WasmOp result = new WasmOp(opcode(greater.type(), relation), greater.a(), greater.b());
+				insert(block, index, result);
+				if (!negated) return result;
+				WasmOp not = new WasmOp(0x45, result); // i32.eqz
+				insert(block, index + 1, not);
+				return not;
+			}
+		}
+		return null;
+	}
+
+	private static void insert(IrBlock block, int index, Instruction instruction) {
+		instruction.block = block;
+		block.body.add(index, instruction);
+	}
+
+	private static @Nullable Term term(Value value) {
+		boolean negated = false;
+		if (value instanceof WasmOp op && op.opcode == 0x45) { // i32.eqz
+			negated = true;
+			value = op.operand(0);
+		}
+		if (!(value instanceof WasmOp op) || op.operandCount() != 2) return null;
+		ValueType type = op.operand(0).type();
+		if (!(type instanceof NumericType) || type == NumericType.I32) return null;
+		for (Relation relation : Relation.values()) {
+			if (opcode(type, relation) == op.opcode) return new Term(relation, negated, op.operand(0), op.operand(1), type);
+		}
+		return null;
+	}
+
+	// Signed for longs
+	private static int opcode(ValueType type, Relation relation) {
+		if (type == NumericType.I64) return switch (relation) {
+			case EQ -> 0x51;
+			case NE -> 0x52;
+			case LT -> 0x53;
+			case GT -> 0x55;
+			case LE -> 0x57;
+			case GE -> 0x59;
+		};
+		if (type == NumericType.F32) return 0x5B + relation.ordinal();
+		if (type == NumericType.F64) return 0x61 + relation.ordinal();
+		throw new IllegalArgumentException("No three-way compare of " + type);
+	}
+
+	// Any comparison with NaN is false, except !=
+	private static boolean holds(Relation relation, Outcome outcome) {
+		if (outcome == Outcome.UNORDERED) return relation == Relation.NE;
+		return holds(relation, outcome.ordinal() - 1);
+	}
+
+	// How sign (-1, 0, 1) compares to 0
+	private static boolean holds(Relation relation, int sign) {
+		return switch (relation) {
+			case EQ -> sign == 0;
+			case NE -> sign != 0;
+			case LT -> sign < 0;
+			case GT -> sign > 0;
+			case LE -> sign <= 0;
+			case GE -> sign >= 0;
+		};
+	}
+}
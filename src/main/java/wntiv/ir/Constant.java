@@ -0,0 +1,45 @@
+package wntiv.ir;
+
+import org.jetbrains.annotations.Nullable;
+import wntiv.wasm_output.types.NumericType;
+import wntiv.wasm_output.types.ValueType;
+
+import java.util.List;
+
+public final class Constant extends Value {
+	// Integer, Long, Float or Double as type says, null for a null reference
+	public final @Nullable Object value;
+
+	public Constant(ValueType type, @Nullable Object value) {
+		super(type);
+		this.value = value;
+	}
+
+	// What an unassigned value of type reads as
+	public static Constant zero(ValueType type) {
+		if (!(type instanceof NumericType numType)) return new Constant(type, null);
+		return new Constant(type, switch (numType) {
+			case I32 -> 0;
+			case I64 -> 0L;
+			case F32 -> 0F;
+			case F64 -> 0D;
+			case VECTOR -> throw new RuntimeException("No vector constants");
+		});
+	}
+
+	// Floats compare by their bits, so NaNs and -0 don't get merged with anything else
+	public Object key() {
+		Object bits = value instanceof Float f ? (Object) Float.floatToRawIntBits(f)
+				: value instanceof Double d ? (Object) Double.doubleToRawLongBits(d) : value;
+		return bits == null ? List.of(type()) : List.of(type(), bits);
+	}
+
+	public boolean sameAs(Value other) {
+		return other instanceof Constant constant && key().equals(constant.key());
+	}
+
+	@Override
+	public String toString() {
+		return String.valueOf(value);
+	}
+}
@@ -0,0 +1,99 @@
+package wntiv.ir;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Evaluates ops whose operands are all constants, and drops integer ops that don't change their operand
+ * (x + 0, x * 1, x & -1, ...). Commutative integer ops get their constant moved second, so those only need
+ * matching one way round and value numbering sees a + 1 and 1 + a as the same.
+ * <p>
+ * Blocks go in reverse postorder, so anything folded is seen folded by its uses, except around loops.
+ */
+public final class ConstantFolding implements Pass {
+	// add, mul, and, or, xor, eq, ne for i32 then i64
+	private static final Set<Integer> COMMUTATIVE = Set.of(0x6A, 0x6C, 0x71, 0x72, 0x73, 0x46, 0x47,
+			0x7C, 0x7E, 0x83, 0x84, 0x85, 0x51, 0x52);
+
+	@Override
+	public String name() {
+		return "constant-folding";
+	}
+
+	@Override
+	public boolean run(IrFunction function) {
+		Map<Value, Value> replacements = new HashMap<>();
+		boolean changed = false;
+		for (IrBlock block : function.blocks) {
+			for (Phi phi : block.phis) {
+				Value first = IrFunction.resolve(phi.operand(0), replacements);
+				boolean same = first instanceof Constant;
+				for (int i = 1; same && i < phi.operandCount(); i++) {
+					same = ((Constant) first).sameAs(IrFunction.resolve(phi.operand(i), replacements));
+				}
+				if (same) replacements.put(phi, first);
+			}
+			for (Instruction instruction : block.body) {
+				if (!(instruction instanceof WasmOp op)) continue;
+				boolean constant = true;
+				for (int i = 0; i < op.operandCount(); i++) {
+					op.setOperand(i, IrFunction.resolve(op.operand(i), replacements));
+					constant &= op.operand(i) instanceof Constant;
+				}
+				if (COMMUTATIVE.contains(op.opcode) && op.operand(0) instanceof Constant
+						&& !(op.operand(1) instanceof Constant)) {
+					Value first = op.operand(0);
+					op.setOperand(0, op.operand(1));
+					op.setOperand(1, first);
+					changed = true;
+				}
+				Value result = constant ? fold(op) : simplify(op);
+				if (result != null) replacements.put(op, result);
+			}
+		}
+		return function.replaceUses(replacements) | changed;
+	}
+
+	private static @Nullable Value fold(WasmOp op) {
+		if (op.opcode == 0x1B) return select(op);
+		Constant[] operands = new Constant[op.operandCount()];
+		for (int i = 0; i < operands.length; i++) operands[i] = (Constant) op.operand(i);
+		return WasmOps.fold(op.opcode, operands);
+	}
+
+	private static @Nullable Value select(WasmOp op) {
+		if (op.operand(2) instanceof Constant condition && condition.value != null) {
+			return (int) condition.value != 0 ? op.operand(0) : op.operand(1);
+		}
+		if (op.operand(0) == op.operand(1)) return op.operand(0);
+		if (op.operand(0) instanceof Constant first && first.sameAs(op.operand(1))) return first;
+		return null;
+	}
+
+	// A simpler value op is equal to, or null if none
+	private static @Nullable Value simplify(WasmOp op) {
+		if (op.opcode == 0x1B) return select(op);
+		if (op.operandCount() != 2 || !(op.operand(1) instanceof Constant constant)) return null;
+		if (!(constant.value instanceof Integer || constant.value instanceof Long)) return null;
+		long value = ((Number) constant.value).longValue();
+		// Shift counts are taken modulo the width
+		long shift = value & (constant.value instanceof Integer ? 31 : 63);
+		Value x = op.operand(0);
+		return switch (op.opcode) {
+			// add, sub, or, xor
+			case 0x6A, 0x6B, 0x72, 0x73, 0x7C, 0x7D, 0x84, 0x85 -> value == 0 ? x : null;
+			// shl, shr_s, shr_u, rotl, rotr
+			case 0x74, 0x75, 0x76, 0x77, 0x78, 0x86, 0x87, 0x88, 0x89, 0x8A -> shift == 0 ? x : null;
+			// mul
+			case 0x6C, 0x7E -> value == 1 ? x : value == 0 ? constant : null;
+			// div_s, div_u
+			case 0x6D, 0x6E, 0x7F, 0x80 -> value == 1 ? x : null;
+			// and
+			case 0x71, 0x83 -> value == -1 ? x : value == 0 ? constant : null;
+			default -> null;
+		};
+	}
+}
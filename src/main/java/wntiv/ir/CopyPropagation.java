@@ -0,0 +1,51 @@
+package wntiv.ir;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * In SSA the only copies left are phis that merge a single value (besides themselves), which the builder
+ * leaves wherever a local is read across a loop or merge without being changed. Each is replaced by that
+ * value, repeated until none are left, as removing one can make others trivial.
+ */
+public final class CopyPropagation implements Pass {
+	@Override
+	public String name() {
+		return "copy-propagation";
+	}
+
+	@Override
+	public boolean run(IrFunction function) {
+		Map<Value, Value> replacements = new HashMap<>();
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (IrBlock block : function.blocks) {
+				for (Phi phi : block.phis) {
+					if (replacements.containsKey(phi)) continue;
+					Value only = onlyValue(phi, replacements);
+					if (only != null) {
+						replacements.put(phi, only);
+						changed = true;
+					}
+				}
+			}
+		}
+		return function.replaceUses(replacements);
+	}
+
+	// The single value phi merges, or null if it merges several
+	private static @Nullable Value onlyValue(Phi phi, Map<Value, Value> replacements) {
+		Value only = null;
+		for (int i = 0; i < phi.operandCount(); i++) {
+			Value operand = IrFunction.resolve(phi.operand(i), replacements);
+			if (operand == phi || operand == only) continue;
+			if (only instanceof Constant constant && constant.sameAs(operand)) continue;
+			if (only != null) return null;
+			only = operand;
+		}
+		return only;
+	}
+}
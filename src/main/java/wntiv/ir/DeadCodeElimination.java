@@ -0,0 +1,43 @@
+package wntiv.ir;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Removes instructions whose results are never needed. Marks from what has to stay (side effects & block
+ * exits) back through operands, so dead cycles of phis go as well.
+ */
+public final class DeadCodeElimination implements Pass {
+	@Override
+	public String name() {
+		return "dead-code-elimination";
+	}
+
+	@Override
+	public boolean run(IrFunction function) {
+		Set<Instruction> live = new HashSet<>();
+		Deque<Instruction> work = new ArrayDeque<>();
+		for (IrBlock block : function.blocks) {
+			for (Instruction instruction : block.body) {
+				if (instruction.hasSideEffects()) markLive(instruction, live, work);
+			}
+			if (block.exitValue != null) markLive(block.exitValue, live, work);
+		}
+		while (!work.isEmpty()) {
+			Instruction instruction = work.pop();
+			for (int i = 0; i < instruction.operandCount(); i++) markLive(instruction.operand(i), live, work);
+		}
+		boolean changed = false;
+		for (IrBlock block : function.blocks) {
+			changed |= block.phis.removeIf(phi -> !live.contains(phi));
+			changed |= block.body.removeIf(instruction -> !live.contains(instruction));
+		}
+		return changed;
+	}
+
+	private static void markLive(Value value, Set<Instruction> live, Deque<Instruction> work) {
+		if (value instanceof Instruction instruction && live.add(instruction)) work.push(instruction);
+	}
+}
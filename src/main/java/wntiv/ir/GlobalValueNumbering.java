@@ -0,0 +1,52 @@
+package wntiv.ir;
+
+import java.util.*;
+
+/**
+ * Dominator based value numbering: walking the dominator tree, a pure op computing the same thing as one
+ * in a dominating block (same opcode & operands) is replaced by it. Phis are matched within their block.
+ * Ops that may trap, and anything opaque, are left alone.
+ */
+public final class GlobalValueNumbering implements Pass {
+	// Operands are values, or Constant.key() so equal constants match
+	private record Key(Object op, List<Object> operands) {}
+
+	@Override
+	public String name() {
+		return "global-value-numbering";
+	}
+
+	@Override
+	public boolean run(IrFunction function) {
+		Map<Key, Value> available = new HashMap<>();
+		Map<Value, Value> replacements = new HashMap<>();
+		function.walkDominatorTree(block -> {
+			List<Key> added = new ArrayList<>();
+			for (Phi phi : block.phis) number(phi, block, available, replacements, added);
+			for (Instruction instruction : block.body) {
+				if (instruction instanceof WasmOp op && !op.hasSideEffects()) {
+					number(op, op.opcode, available, replacements, added);
+				}
+			}
+			return added;
+		}, added -> added.forEach(available::remove));
+		return function.replaceUses(replacements);
+	}
+
+	private static void number(Instruction instruction, Object op, Map<Key, Value> available,
+	                           Map<Value, Value> replacements, List<Key> added) {
+		List<Object> operands = new ArrayList<>(instruction.operandCount());
+		for (int i = 0; i < instruction.operandCount(); i++) {
+			Value operand = IrFunction.resolve(instruction.operand(i), replacements);
+			operands.add(operand instanceof Constant constant ? constant.key() : operand);
+		}
+		Key key = new Key(op, operands);
+		Value existing = available.get(key);
+		if (existing != null) {
+			replacements.put(instruction, existing);
+		} else {
+			available.put(key, instruction);
+			added.add(key);
+		}
+	}
+}
@@ -0,0 +1,180 @@
+package wntiv.ir;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Replaces calls the front end can bind to one body with a copy of that body. The call's block is split
+ * after it: the callee's blocks go in between, its parameters become the call's operands, and its returns
+ * jump to the rest of the block, merging their values in a phi if there's more than one. The passes after
+ * clean up what that exposes (constant arguments, unused results, ...).
+ * <p>
+ * Cost model: a callee is measured by its instruction count once trivial phis & dead code are gone. Ones no
+ * bigger than a call's own overhead ({@link #ALWAYS_SIZE}) are always inlined, up to {@link #MAX_SIZE} only
+ * while the caller stays within its growth budget. Calls in inlined code are considered too, up to
+ * {@link #MAX_DEPTH} deep, but never one back into a method already being inlined (or the caller itself).
+ */
+public final class Inliner implements Pass {
+	static final int ALWAYS_SIZE = 8;
+	static final int MAX_SIZE = 48;
+	static final int MAX_DEPTH = 3;
+	// A caller may grow by its own size, or this much if that's more
+	static final int MIN_GROWTH = 96;
+
+	// What a call resolves to
+	public interface Callee {
+		// In IrFunction.name's form, which is how recursion is spotted
+		String name();
+
+		// A fresh copy of the body to splice in, parameters in the call's operand order. null if there's no
+		// body, or the IR can't express it
+		@Nullable IrFunction instantiate();
+	}
+
+	public interface CallResolver {
+		// null for anything that isn't a call bound to a single body
+		@Nullable Callee resolve(Opaque call);
+	}
+
+	private enum Outcome {
+		INLINED, TOO_BIG, OVER_BUDGET, RECURSIVE, TOO_DEEP, UNAVAILABLE
+	}
+	private record Decision(String callee, Outcome outcome, int size) {}
+	// A call to consider. chain is the callees it came in through, outermost first
+	private record Site(Opaque call, Callee callee, List<String> chain) {}
+
+	// Over every function so far, for report()
+	private final Map<Decision, LongAdder> decisions = new ConcurrentHashMap<>();
+	// Callees' sizes, so ones known to be too big aren't built again. -1 for no body
+	private final Map<String, Integer> sizes = new ConcurrentHashMap<>();
+
+	@Override
+	public String name() {
+		return "inline";
+	}
+
+	@Override
+	public boolean run(IrFunction function) {
+		CallResolver calls = function.calls;
+		if (calls == null) return false;
+		Deque<Site> sites = new ArrayDeque<>();
+		findSites(function.blocks, calls, List.of(function.name), sites);
+		int size = function.instructionCount();
+		int budget = size + Math.max(size, MIN_GROWTH);
+		Map<Value, Value> results = new HashMap<>();
+		while (!sites.isEmpty()) {
+			Site site = sites.removeFirst();
+			String name = site.callee().name();
+			Integer knownSize = sizes.get(name);
+			IrFunction body = null;
+			Outcome outcome;
+			if (site.chain().contains(name)) {
+				outcome = Outcome.RECURSIVE;
+			} else if (site.chain().size() > MAX_DEPTH) {
+				outcome = Outcome.TOO_DEEP;
+			} else if (knownSize != null && (knownSize < 0 || knownSize > MAX_SIZE)) {
+				outcome = knownSize < 0 ? Outcome.UNAVAILABLE : Outcome.TOO_BIG;
+			} else {
+				body = site.callee().instantiate();
+				if (body != null) {
+					new CopyPropagation().run(body);
+					new DeadCodeElimination().run(body);
+				}
+				knownSize = body == null ? -1 : body.instructionCount();
+				sizes.put(name, knownSize);
+				if (body == null) outcome = Outcome.UNAVAILABLE;
+				else if (knownSize > MAX_SIZE) outcome = Outcome.TOO_BIG;
+				else if (knownSize > ALWAYS_SIZE && size + knownSize > budget) outcome = Outcome.OVER_BUDGET;
+				else outcome = Outcome.INLINED;
+			}
+			decisions.computeIfAbsent(new Decision(name, outcome, knownSize == null ? -1 : knownSize),
+					x -> new LongAdder()).increment();
+			if (outcome != Outcome.INLINED) continue;
+
+			List<String> chain = new ArrayList<>(site.chain());
+			chain.add(name);
+			findSites(body.blocks, calls, List.copyOf(chain), sites);
+			splice(function, site.call(), body, results);
+			function.inlined.add(site.callee());
+			size += knownSize;
+		}
+		if (function.inlined.isEmpty()) return false;
+		function.replaceUses(results);
+		function.updateGraph();
+		return true;
+	}
+
+	private static void findSites(List<IrBlock> blocks, CallResolver calls, List<String> chain, Deque<Site> to) {
+		for (IrBlock block : blocks) {
+			for (Instruction instruction : block.body) {
+				if (!(instruction instanceof Opaque call)) continue;
+				Callee callee = calls.resolve(call);
+				if (callee != null) to.add(new Site(call, callee, chain));
+			}
+		}
+	}
+
+	// Puts body in place of call, recording the value standing for its result in results
+	private static void splice(IrFunction function, Opaque call, IrFunction body, Map<Value, Value> results) {
+		IrBlock block = Objects.requireNonNull(call.block);
+		int index = block.body.indexOf(call);
+		// Everything after the call moves to a new block, which takes over block's exit
+		IrBlock after = new IrBlock(-1);
+		for (Instruction instruction : block.body.subList(index + 1, block.body.size())) after.append(instruction);
+		block.body.subList(index, block.body.size()).clear();
+		after.exit = block.exit;
+		after.exitValue = block.exitValue;
+		for (IrBlock successor : block.successors) {
+			after.successors.add(successor);
+			Collections.replaceAll(successor.predecessors, block, after);
+		}
+		block.successors.clear();
+		block.exit = IrBlock.Exit.JUMP;
+		block.exitValue = null;
+
+		Map<Value, Value> arguments = new HashMap<>();
+		for (int i = 0; i < body.parameters.size(); i++) arguments.put(body.parameters.get(i), call.operand(i));
+		body.replaceUses(arguments);
+		IrBlock.link(block, body.start());
+		List<Value> returned = new ArrayList<>();
+		for (IrBlock calleeBlock : body.blocks) {
+			if (calleeBlock.exit != IrBlock.Exit.RETURN) continue;
+			if (calleeBlock.exitValue != null) returned.add(calleeBlock.exitValue);
+			calleeBlock.exit = IrBlock.Exit.JUMP;
+			calleeBlock.exitValue = null;
+			IrBlock.link(calleeBlock, after);
+		}
+		function.blocks.addAll(body.blocks);
+		function.blocks.add(after);
+
+		if (call.type() == null) return;
+		if (returned.size() == 1) {
+			results.put(call, returned.get(0));
+		} else if (returned.isEmpty()) {
+			// Never returns, so whatever used the result is about to be dropped as unreachable
+			results.put(call, Constant.zero(call.type()));
+		} else {
+			Phi phi = after.addPhi(new Phi(call.type(), after));
+			for (int i = 0; i < returned.size(); i++) phi.setOperand(i, returned.get(i));
+			results.put(call, phi);
+		}
+	}
+
+	@Override
+	public @Nullable String report() {
+		if (decisions.isEmpty()) return null;
+		List<Map.Entry<Decision, LongAdder>> entries = new ArrayList<>(decisions.entrySet());
+		entries.sort(Comparator.comparing((Map.Entry<Decision, LongAdder> entry) -> entry.getKey().outcome())
+				.thenComparing(entry -> -entry.getValue().sum()));
+		StringBuilder result = new StringBuilder("Inlining decisions (call sites, callee size):\n");
+		for (var entry : entries) {
+			Decision decision = entry.getKey();
+			result.append(String.format("  %-12s %6d  %4s  %s%n", decision.outcome().name().toLowerCase(),
+					entry.getValue().sum(), decision.size() < 0 ? "-" : decision.size(), decision.callee()));
+		}
+		return result.toString();
+	}
+}
@@ -0,0 +1,33 @@
+package wntiv.ir;
+
+import org.jetbrains.annotations.Nullable;
+import wntiv.wasm_output.types.ValueType;
+
+public abstract sealed class Instruction extends Value permits WasmOp, Phi, Opaque {
+	protected Value[] operands;
+	@Nullable IrBlock block;
+
+	Instruction(@Nullable ValueType type, Value[] operands) {
+		super(type);
+		this.operands = operands;
+	}
+
+	public int operandCount() {
+		return operands.length;
+	}
+
+	public Value operand(int index) {
+		return operands[index];
+	}
+
+	public void setOperand(int index, Value value) {
+		operands[index] = value;
+	}
+
+	public @Nullable IrBlock block() {
+		return block;
+	}
+
+	// Whether it has to stay where it is even if nothing uses its result: writes state, or may trap
+	public abstract boolean hasSideEffects();
+}
@@ -0,0 +1,56 @@
+package wntiv.ir;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A basic block: phis, then straight line code, then one exit. Passes that change edges (the inliner) have
+ * to call {@link IrFunction#updateGraph()} after.
+ */
+public final class IrBlock {
+	public enum Exit {
+		JUMP, // to its only successor
+		IF, // exitValue != 0 goes to successor 0, else successor 1
+		SWITCH, // br_table on exitValue over the successors, default last
+		RETURN // exitValue, if any
+	}
+
+	// Index in IrFunction.blocks
+	public int id;
+	// May hold the same block twice, e.g. a switch with two keys to one target. Phi operands follow this
+	public final List<IrBlock> predecessors = new ArrayList<>();
+	public final List<IrBlock> successors = new ArrayList<>();
+	public @Nullable IrBlock dominator; // null for the start block
+	public final List<IrBlock> dominated = new ArrayList<>();
+	public final List<Phi> phis = new ArrayList<>();
+	public final List<Instruction> body = new ArrayList<>();
+	public Exit exit = Exit.JUMP;
+	public @Nullable Value exitValue;
+
+	public IrBlock(int id) {
+		this.id = id;
+	}
+
+	public static void link(IrBlock from, IrBlock to) {
+		from.successors.add(to);
+		to.predecessors.add(from);
+	}
+
+	public <T extends Instruction> T append(T instruction) {
+		instruction.block = this;
+		body.add(instruction);
+		return instruction;
+	}
+
+	public Phi addPhi(Phi phi) {
+		phis.add(phi);
+		return phi;
+	}
+
+	@Override
+	public String toString() {
+		return "b" + id;
+	}
+}
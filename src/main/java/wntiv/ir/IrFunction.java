@@ -0,0 +1,210 @@
+package wntiv.ir;
+
+import org.jetbrains.annotations.Nullable;
+import wntiv.wasm_output.types.ValueType;
+
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * A method in SSA form. blocks are in reverse postorder, so every block comes after its dominator (see
+ * {@link #updateGraph()}). The
+ * first is an empty start block jumping to the code's entry, which gives the parameters a definition
+ * even when the entry is a loop header.
+ */
+public final class IrFunction {
+	// Leaving once block's dominator subtree is done, with what entering it returned
+	private record Visit<T>(IrBlock block, boolean leaving, @Nullable T entered) {}
+
+	public final String name;
+	public final List<Parameter> parameters;
+	public final @Nullable ValueType result;
+	public final List<IrBlock> blocks;
+	// Where the inliner finds callees' bodies, null to leave calls alone
+	public @Nullable Inliner.CallResolver calls;
+	// What the front end's Opaques do with objects, null to leave them alone
+	public @Nullable ScalarReplacement.ObjectModel objects;
+	// Which of the front end's Opaques check array bounds & read lengths, null to leave them alone
+	public @Nullable BoundsCheckElimination.ArrayModel arrays;
+	// Everything inlined into this, for the front end to track what the code now depends on
+	public final Set<Inliner.Callee> inlined = new HashSet<>();
+
+	public IrFunction(String name, List<Parameter> parameters, @Nullable ValueType result, List<IrBlock> blocks) {
+		this.name = name;
+		this.parameters = parameters;
+		this.result = result;
+		this.blocks = new ArrayList<>(blocks);
+		updateGraph();
+	}
+
+	public IrBlock start() {
+		return blocks.get(0);
+	}
+
+	/**
+	 * Points every use of a key at its value (following chains), then drops the replaced instructions.
+	 * @return whether anything was replaced
+	 */
+	public boolean replaceUses(Map<? extends Value, ? extends Value> replacements) {
+		return replaceUses(blocks, replacements);
+	}
+
+	// Likewise for blocks not yet made into a function
+	public static boolean replaceUses(List<IrBlock> blocks, Map<? extends Value, ? extends Value> replacements) {
+		if (replacements.isEmpty()) return false;
+		for (IrBlock block : blocks) {
+			for (Instruction instruction : block.phis) resolveOperands(instruction, replacements);
+			for (Instruction instruction : block.body) resolveOperands(instruction, replacements);
+			if (block.exitValue != null) block.exitValue = resolve(block.exitValue, replacements);
+			block.phis.removeIf(replacements::containsKey);
+			block.body.removeIf(replacements::containsKey);
+		}
+		return true;
+	}
+
+	public static Value resolve(Value value, Map<? extends Value, ? extends Value> replacements) {
+		Value replacement;
+		while ((replacement = replacements.get(value)) != null) value = replacement;
+		return value;
+	}
+
+	private static void resolveOperands(Instruction instruction, Map<? extends Value, ? extends Value> replacements) {
+		for (int i = 0; i < instruction.operandCount(); i++) {
+			instruction.setOperand(i, resolve(instruction.operand(i), replacements));
+		}
+	}
+
+	/**
+	 * Puts the blocks back in reverse postorder (renumbering them), drops any that can't be reached any more
+	 * and recomputes the dominator tree.
+	 */
+	public void updateGraph() {
+		List<IrBlock> order = reversePostorder(start());
+		Set<IrBlock> reachable = new HashSet<>(order);
+		for (IrBlock block : order) {
+			for (int i = block.predecessors.size() - 1; i >= 0; i--) {
+				if (reachable.contains(block.predecessors.get(i))) continue;
+				block.predecessors.remove(i);
+				for (Phi phi : block.phis) phi.removeOperand(i);
+			}
+		}
+		blocks.clear();
+		blocks.addAll(order);
+		for (int i = 0; i < blocks.size(); i++) {
+			IrBlock block = blocks.get(i);
+			block.id = i;
+			block.dominator = null;
+			block.dominated.clear();
+		}
+		// Cooper, Harvey & Kennedy, as in ControlFlowGraph. Only the start has no dominator once done
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (int i = 1; i < blocks.size(); i++) {
+				IrBlock block = blocks.get(i);
+				IrBlock dominator = null;
+				for (IrBlock predecessor : block.predecessors) {
+					if (predecessor.id != 0 && predecessor.dominator == null) continue; // not processed yet
+					dominator = dominator == null ? predecessor : intersect(predecessor, dominator);
+				}
+				if (dominator != block.dominator) {
+					block.dominator = dominator;
+					changed = true;
+				}
+			}
+		}
+		for (int i = 1; i < blocks.size(); i++) blocks.get(i).dominator.dominated.add(blocks.get(i));
+	}
+
+	// Iterative, a recursive walk would overflow on long methods
+	private static List<IrBlock> reversePostorder(IrBlock start) {
+		List<IrBlock> postorder = new ArrayList<>();
+		Set<IrBlock> visited = new HashSet<>();
+		Deque<IrBlock> path = new ArrayDeque<>();
+		Deque<Integer> nextSuccessor = new ArrayDeque<>();
+		visited.add(start);
+		path.push(start);
+		nextSuccessor.push(0);
+		while (!path.isEmpty()) {
+			IrBlock block = path.peek();
+			int next = nextSuccessor.pop();
+			if (next < block.successors.size()) {
+				nextSuccessor.push(next + 1);
+				IrBlock successor = block.successors.get(next);
+				if (visited.add(successor)) {
+					path.push(successor);
+					nextSuccessor.push(0);
+				}
+			} else {
+				postorder.add(path.pop());
+			}
+		}
+		Collections.reverse(postorder);
+		return postorder;
+	}
+
+	private static IrBlock intersect(IrBlock a, IrBlock b) {
+		while (a != b) {
+			while (a.id > b.id) a = a.dominator;
+			while (b.id > a.id) b = b.dominator;
+		}
+		return a;
+	}
+
+	/**
+	 * Walks the dominator tree depth first, so a block is entered after its dominator and left once every block
+	 * it dominates has been, for passes that keep what's available in dominating blocks. Iterative, a deep
+	 * dominator tree would overflow a recursive walk.
+	 * @param enter visits a block, returning what it made available
+	 * @param leave given that back once the block's subtree is done, to forget it
+	 */
+	public <T> void walkDominatorTree(Function<IrBlock, T> enter, Consumer<T> leave) {
+		Deque<Visit<T>> work = new ArrayDeque<>();
+		work.push(new Visit<>(start(), false, null));
+		while (!work.isEmpty()) {
+			Visit<T> visit = work.pop();
+			if (visit.leaving()) {
+				leave.accept(visit.entered());
+				continue;
+			}
+			work.push(new Visit<>(visit.block(), true, enter.apply(visit.block())));
+			List<IrBlock> children = visit.block().dominated;
+			for (int i = children.size() - 1; i >= 0; i--) work.push(new Visit<>(children.get(i), false, null));
+		}
+	}
+
+	public int instructionCount() {
+		int count = 0;
+		for (IrBlock block : blocks) count += block.phis.size() + block.body.size();
+		return count;
+	}
+
+	@Override
+	public String toString() {
+		Map<Value, String> names = new HashMap<>();
+		StringBuilder result = new StringBuilder(name).append(" {\n");
+		for (IrBlock block : blocks) {
+			result.append(block).append(" <- ").append(block.predecessors).append(":\n");
+			for (Instruction instruction : block.phis) describe(instruction, names, result);
+			for (Instruction instruction : block.body) describe(instruction, names, result);
+			result.append("  ").append(block.exit.name().toLowerCase());
+			if (block.exitValue != null) result.append(' ').append(name(block.exitValue, names));
+			result.append(" -> ").append(block.successors).append('\n');
+		}
+		return result.append('}').toString();
+	}
+
+	private static void describe(Instruction instruction, Map<Value, String> names, StringBuilder to) {
+		to.append("  ");
+		if (instruction.type() != null) to.append(name(instruction, names)).append(" = ");
+		to.append(instruction);
+		for (int i = 0; i < instruction.operandCount(); i++) to.append(' ').append(name(instruction.operand(i), names));
+		to.append('\n');
+	}
+
+	private static String name(@Nullable Value value, Map<Value, String> names) {
+		if (!(value instanceof Instruction)) return String.valueOf(value);
+		return names.computeIfAbsent(value, x -> "v" + names.size());
+	}
+}
@@ -0,0 +1,28 @@
+package wntiv.ir;
+
+import org.jetbrains.annotations.Nullable;
+import wntiv.wasm_output.types.ValueType;
+
+/**
+ * Something only the front end knows how to write (calls, globals, ...), given its operands on the stack.
+ * Passes know nothing of what it does beyond what the front end tells them (see
+ * {@link ScalarReplacement.ObjectModel}), so otherwise it's never removed, merged or moved.
+ */
+public final class Opaque extends Instruction {
+	public final Object payload;
+
+	public Opaque(Object payload, @Nullable ValueType type, Value... operands) {
+		super(type, operands);
+		this.payload = payload;
+	}
+
+	@Override
+	public boolean hasSideEffects() {
+		return true;
+	}
+
+	@Override
+	public String toString() {
+		return payload.toString();
+	}
+}
@@ -0,0 +1,18 @@
+package wntiv.ir;
+
+import wntiv.wasm_output.types.ValueType;
+
+// The index-th wasm parameter of the function
+public final class Parameter extends Value {
+	public final int index;
+
+	public Parameter(int index, ValueType type) {
+		super(type);
+		this.index = index;
+	}
+
+	@Override
+	public String toString() {
+		return "p" + index;
+	}
+}
@@ -0,0 +1,16 @@
+package wntiv.ir;
+
+import org.jetbrains.annotations.Nullable;
+
+public interface Pass {
+	// Used to switch it on & off, and in timing reports
+	String name();
+
+	// @return whether the function changed
+	boolean run(IrFunction function);
+
+	// What it did over every function so far, beyond timings. null if there's nothing to say
+	default @Nullable String report() {
+		return null;
+	}
+}
@@ -0,0 +1,99 @@
+package wntiv.ir;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs a pipeline of passes over each function. Passes can be switched off by name to trade code quality
+ * for translation time, and the time each one takes (over every function so far) is kept for
+ * {@link #report()}. Safe to share between threads translating different functions.
+ */
+public final class PassManager {
+	private record Stats(LongAdder nanos, LongAdder runs, LongAdder changes) {
+		Stats() {
+			this(new LongAdder(), new LongAdder(), new LongAdder());
+		}
+	}
+
+	private final List<Pass> pipeline;
+	private final Set<String> disabled = ConcurrentHashMap.newKeySet();
+	private final Map<String, Stats> stats = new ConcurrentHashMap<>();
+
+	public PassManager(List<Pass> pipeline) {
+		this.pipeline = List.copyOf(pipeline);
+	}
+
+	// Inlining goes first so the rest see through calls, and objects that don't escape what's been inlined are
+	// taken apart once copies are gone. Copies are cleaned up again after folding & numbering, which expose
+	// more, before anything is removed. Bounds checks are left until then, when indices & bounds computed
+	// the same way are the same values
+	public static PassManager standard() {
+		return new PassManager(List.of(new Inliner(), new CopyPropagation(), new ScalarReplacement(), new ConstantFolding(),
+				new CompareFusion(), new GlobalValueNumbering(), new CopyPropagation(), new BoundsCheckElimination(),
+				new DeadCodeElimination()));
+	}
+
+	public Set<String> passNames() {
+		Set<String> names = new LinkedHashSet<>();
+		for (Pass pass : pipeline) names.add(pass.name());
+		return names;
+	}
+
+	// Applies to every place the pass appears in the pipeline
+	public void setEnabled(String name, boolean enabled) {
+		if (!passNames().contains(name)) throw new RuntimeException("Unknown pass " + name + ", expected one of "
+				+ passNames());
+		if (enabled) disabled.remove(name);
+		else disabled.add(name);
+	}
+
+	public void run(IrFunction function) {
+		for (Pass pass : pipeline) {
+			if (disabled.contains(pass.name())) continue;
+			long start = System.nanoTime();
+			boolean changed = pass.run(function);
+			Stats passStats = stats.computeIfAbsent(pass.name(), x -> new Stats());
+			passStats.nanos().add(System.nanoTime() - start);
+			passStats.runs().increment();
+			if (changed) passStats.changes().increment();
+		}
+	}
+
+	/**
+	 * The enabled pipeline, as part of a cache key: changes whenever the code it produces could.
+	 */
+	public String describe() {
+		StringJoiner result = new StringJoiner(",", "passes=", "");
+		for (Pass pass : pipeline) if (!disabled.contains(pass.name())) result.add(pass.name());
+		return result.toString();
+	}
+
+	public String report() {
+		StringBuilder result = new StringBuilder("Pass timings:\n");
+		long total = 0;
+		for (String name : passNames()) {
+			Stats passStats = stats.get(name);
+			if (passStats == null) {
+				result.append(String.format("  %-24s %s%n", name, disabled.contains(name) ? "disabled" : "not run"));
+				continue;
+			}
+			long nanos = passStats.nanos().sum();
+			total += nanos;
+			result.append(String.format("  %-24s %9.3f ms  %6d runs  %6d changed%n", name, nanos / 1e6,
+					passStats.runs().sum(), passStats.changes().sum()));
+		}
+		return result.append(String.format("  %-24s %9.3f ms%n", "total", total / 1e6)).toString();
+	}
+
+	// Each pass's own report, once per pass even if it runs more than once
+	public String passReports() {
+		StringBuilder result = new StringBuilder();
+		Set<Pass> seen = new HashSet<>();
+		for (Pass pass : pipeline) {
+			String report = pass.report();
+			if (report != null && seen.add(pass)) result.append(report);
+		}
+		return result.toString();
+	}
+}
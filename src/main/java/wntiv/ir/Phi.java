@@ -0,0 +1,36 @@
+package wntiv.ir;
+
+import wntiv.wasm_output.types.ValueType;
+
+import java.util.Arrays;
+
+// Operand i is the value coming in from the block's predecessor i
+public final class Phi extends Instruction {
+	public Phi(ValueType type, IrBlock block) {
+		super(type, new Value[block.predecessors.size()]);
+		this.block = block;
+	}
+
+	// For when the block gains a predecessor, at the end
+	void addOperand(Value value) {
+		operands = Arrays.copyOf(operands, operands.length + 1);
+		operands[operands.length - 1] = value;
+	}
+
+	// For when the block loses predecessor index
+	void removeOperand(int index) {
+		Value[] remaining = Arrays.copyOf(operands, operands.length - 1);
+		System.arraycopy(operands, index + 1, remaining, index, operands.length - index - 1);
+		operands = remaining;
+	}
+
+	@Override
+	public boolean hasSideEffects() {
+		return false;
+	}
+
+	@Override
+	public String toString() {
+		return "phi";
+	}
+}
@@ -0,0 +1,214 @@
+package wntiv.ir;
+
+import org.jetbrains.annotations.Nullable;
+import wntiv.wasm_output.types.NumericType;
+import wntiv.wasm_output.types.ValueType;
+
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Escape analysis & scalar replacement: an object that never leaves the function (only ever has its fields
+ * read & written, or is tested for null) needn't exist. Its allocation goes, and each of its fields becomes
+ * plain SSA values, built the same way as for locals: a read takes the last value written on the way to it,
+ * merged by phis where paths meet. Runs after inlining, which is what usually leaves objects (temporaries
+ * passed to small methods, their constructors) local, and copy propagation, as an object held in a local
+ * across a loop or branch is used by the trivial phis the builder leaves. Replacing one object can stop another escaping (one
+ * stored in its fields), so it goes until none are left.
+ */
+public final class ScalarReplacement implements Pass {
+	// What the front end's Opaques do with objects
+	public interface ObjectModel {
+		// Makes a new object, every field zero
+		boolean allocates(Opaque instruction);
+
+		// The field the instruction reads from the object in operand 0, or null if it isn't a field read. Equal
+		// keys for every way of naming the same field
+		@Nullable Object loadedField(Opaque instruction);
+
+		// Likewise for writes, the value being operand 1
+		@Nullable Object storedField(Opaque instruction);
+	}
+
+	private static final int REF_IS_NULL = 0xD1;
+
+	private final LongAdder allocations = new LongAdder();
+	private final LongAdder replaced = new LongAdder();
+
+	@Override
+	public String name() {
+		return "scalar-replacement";
+	}
+
+	@Override
+	public boolean run(IrFunction function) {
+		ObjectModel objects = function.objects;
+		if (objects == null) return false;
+		boolean changed = false;
+		boolean first = true;
+		while (true) {
+			Map<Opaque, List<Instruction>> candidates = findCandidates(function, objects);
+			if (first) {
+				allocations.add(candidates.size());
+				first = false;
+			}
+			boolean progress = false;
+			// What was stored in a replaced object is now used wherever it was read back, so its uses have to be
+			// found again next time round
+			Set<Value> stale = new HashSet<>();
+			for (var entry : candidates.entrySet()) {
+				if (entry.getValue() == null || stale.contains(entry.getKey())) continue;
+				Map<Object, ValueType> fields = fieldsIfLocal(entry.getKey(), entry.getValue(), objects);
+				if (fields == null) continue;
+				for (Instruction use : entry.getValue()) {
+					if (use.operandCount() > 1) stale.add(use.operand(1));
+				}
+				new Replacement(entry.getKey(), fields, objects).run(function);
+				replaced.increment();
+				progress = true;
+			}
+			if (!progress) return changed;
+			changed = true;
+		}
+	}
+
+	// Every allocation, with the instructions using it. null for ones used by a phi or block exit, which escape
+	private static Map<Opaque, List<Instruction>> findCandidates(IrFunction function, ObjectModel objects) {
+		Map<Opaque, List<Instruction>> candidates = new LinkedHashMap<>();
+		for (IrBlock block : function.blocks) {
+			for (Instruction instruction : block.body) {
+				if (instruction instanceof Opaque opaque && objects.allocates(opaque)) candidates.put(opaque, new ArrayList<>());
+			}
+		}
+		if (candidates.isEmpty()) return candidates;
+		Set<Opaque> escaped = new HashSet<>();
+		for (IrBlock block : function.blocks) {
+			for (Phi phi : block.phis) {
+				for (int i = 0; i < phi.operandCount(); i++) {
+					if (phi.operand(i) instanceof Opaque opaque) escaped.add(opaque);
+				}
+			}
+			for (Instruction instruction : block.body) {
+				for (int i = 0; i < instruction.operandCount(); i++) {
+					List<Instruction> uses = instruction.operand(i) instanceof Opaque opaque ? candidates.get(opaque) : null;
+					if (uses != null) uses.add(instruction);
+				}
+			}
+			if (block.exitValue instanceof Opaque opaque) escaped.add(opaque);
+		}
+		candidates.replaceAll((allocation, uses) -> escaped.contains(allocation) ? null : uses);
+		return candidates;
+	}
+
+	// The types of allocation's fields that are used, or null if it escapes
+	private static @Nullable Map<Object, ValueType> fieldsIfLocal(Opaque allocation, List<Instruction> uses,
+	                                                              ObjectModel objects) {
+		Map<Object, ValueType> fields = new HashMap<>();
+		for (Instruction use : uses) {
+			if (use instanceof WasmOp op && op.opcode == REF_IS_NULL) continue;
+			if (!(use instanceof Opaque opaque) || use.operand(0) != allocation) return null;
+			Object field = objects.loadedField(opaque);
+			if (field != null) {
+				fields.put(field, Objects.requireNonNull(use.type()));
+				continue;
+			}
+			field = objects.storedField(opaque);
+			// Storing it into itself is storing it somewhere
+			if (field == null || use.operand(1) == allocation) return null;
+			fields.put(field, Objects.requireNonNull(use.operand(1).type()));
+		}
+		return fields;
+	}
+
+	// One allocation's fields, as SSA values
+	private static final class Replacement {
+		final Opaque allocation;
+		final Map<Object, ValueType> fields;
+		final ObjectModel objects;
+		// The last value each block gives each field it (or the allocation) sets
+		final Map<IrBlock, Map<Object, Value>> written = new HashMap<>();
+		final Map<IrBlock, Map<Object, Value>> entries = new HashMap<>();
+
+		Replacement(Opaque allocation, Map<Object, ValueType> fields, ObjectModel objects) {
+			this.allocation = allocation;
+			this.fields = fields;
+			this.objects = objects;
+		}
+
+		void run(IrFunction function) {
+			for (IrBlock block : function.blocks) {
+				Map<Object, Value> values = new HashMap<>();
+				for (Instruction instruction : block.body) {
+					if (instruction == allocation) {
+						for (var field : fields.entrySet()) values.put(field.getKey(), Constant.zero(field.getValue()));
+					} else if (isStore(instruction)) {
+						values.put(objects.storedField((Opaque) instruction), instruction.operand(1));
+					}
+				}
+				if (!values.isEmpty()) written.put(block, values);
+			}
+			Map<Value, Value> replacements = new HashMap<>();
+			Set<Instruction> removed = new HashSet<>();
+			for (IrBlock block : function.blocks) {
+				Map<Object, Value> values = new HashMap<>();
+				for (Instruction instruction : block.body) {
+					if (instruction == allocation) {
+						for (var field : fields.entrySet()) values.put(field.getKey(), Constant.zero(field.getValue()));
+						removed.add(instruction);
+					} else if (isStore(instruction)) {
+						values.put(objects.storedField((Opaque) instruction), instruction.operand(1));
+						removed.add(instruction);
+					} else if (instruction.operandCount() > 0 && instruction.operand(0) == allocation) {
+						if (instruction instanceof WasmOp) {
+							replacements.put(instruction, new Constant(NumericType.I32, 0)); // ref.is_null
+						} else {
+							Object field = Objects.requireNonNull(objects.loadedField((Opaque) instruction));
+							Value value = values.get(field);
+							if (value == null) values.put(field, value = entry(block, field));
+							replacements.put(instruction, value);
+						}
+					}
+				}
+			}
+			for (IrBlock block : function.blocks) block.body.removeAll(removed);
+			function.replaceUses(replacements);
+		}
+
+		private boolean isStore(Instruction instruction) {
+			return instruction instanceof Opaque opaque && instruction.operandCount() > 1
+					&& instruction.operand(0) == allocation && objects.storedField(opaque) != null;
+		}
+
+		// field's value on entry to block. Paths from before the allocation never reach a read, so give zero
+		private Value entry(IrBlock block, Object field) {
+			Map<Object, Value> blockEntries = entries.computeIfAbsent(block, x -> new HashMap<>());
+			Value value = blockEntries.get(field);
+			if (value != null) return value;
+			if (block.predecessors.isEmpty()) {
+				value = Constant.zero(fields.get(field));
+			} else if (block.predecessors.size() == 1) {
+				value = exit(block.predecessors.get(0), field);
+			} else {
+				// Placed before its operands are found, so loops back here end at it
+				Phi phi = block.addPhi(new Phi(fields.get(field), block));
+				blockEntries.put(field, phi);
+				for (int i = 0; i < block.predecessors.size(); i++) phi.setOperand(i, exit(block.predecessors.get(i), field));
+				return phi;
+			}
+			blockEntries.put(field, value);
+			return value;
+		}
+
+		private Value exit(IrBlock block, Object field) {
+			Map<Object, Value> values = written.get(block);
+			Value value = values == null ? null : values.get(field);
+			return value != null ? value : entry(block, field);
+		}
+	}
+
+	@Override
+	public @Nullable String report() {
+		if (allocations.sum() == 0) return null;
+		return String.format("Scalar replacement: %d of %d allocations removed%n", replaced.sum(), allocations.sum());
+	}
+}
@@ -0,0 +1,294 @@
+package wntiv.ir;
+
+import org.jetbrains.annotations.Nullable;
+import wntiv.wasm_output.types.NumericType;
+
+import java.util.*;
+
+/**
+ * Lowers a switch on a key (lookupswitch or tableswitch) to branches, picking by the keys' spread. Cases
+ * going where the default does are dropped, and the rest are split into clusters, as in LLVM's switch
+ * lowering: runs dense enough for a br_table on {@code key - first} over their span (gaps going to the
+ * default), and single keys. Then the cheapest of
+ * <ul>
+ *     <li>a balanced binary search over the clusters ({@code key < first key of the middle one}), with a
+ *     compare for a single key & a br_table for a dense run (or a range check, if it all goes one place) at
+ *     the leaves, and a chain of those for three or fewer,</li>
+ *     <li>for many sparse keys, a perfect hash: a br_table on {@code (key * multiplier) >>> shift}, each key
+ *     getting a slot of its own where one compare confirms it, if a multiplier can be found that way</li>
+ * </ul>
+ * is used, by expected cost per dispatch (a compare & branch costing 1, weighted by the cases each path
+ * serves). So dense switches stay one br_table, and sparse ones dispatch in O(log n), or O(1) hashed,
+ * where they were a compare per key.
+ */
+public final class SwitchLowering {
+	// Fewest cases worth a table of their own, and how full its span has to be (LLVM's defaults)
+	static final int MIN_TABLE_CASES = 4;
+	static final double MIN_TABLE_DENSITY = 0.4;
+	// Biggest br_table made, in entries
+	static final int MAX_TABLE_SPAN = 1 << 12;
+	// Relative to a compare & branch: a br_table is an indirect jump after a subtraction, a hash a multiply &
+	// shift before one, and a compare after. Timed in V8 (node 20) on 8 to 48 spread out keys, hashing lost
+	// or tied below 24, and from there won by 4-10ns a dispatch on random keys but lost by 3-4ns on keys in
+	// order (where the search's branches predict well), so it's costed as a search of about 24 keys.
+	// SwitchLoweringTest pins what that picks
+	static final double TABLE_COST = 2;
+	static final double HASH_COST = 5;
+	static final int MIN_HASH_CASES = 8;
+	// Multipliers tried per table size, from the smallest holding every case to 4 times that
+	private static final int HASH_TRIES = 64;
+	private static final int HASH_GROWTH = 2;
+	private static final int LINEAR_CLUSTERS = 3;
+
+	private static final int I32_EQ = 0x46;
+	private static final int I32_LT_S = 0x48;
+	private static final int I32_LT_U = 0x49;
+	private static final int I32_SUB = 0x6B;
+	private static final int I32_MUL = 0x6C;
+	private static final int I32_SHR_U = 0x76;
+
+	private record Case(int key, IrBlock target) {}
+	// Cases [from, to) of the sorted list, a table if more than one
+	private record Cluster(int from, int to) {
+		int size() {
+			return to - from;
+		}
+	}
+	private record Hash(int multiplier, int bits) {
+		int slot(int key) {
+			return (key * multiplier) >>> (32 - bits);
+		}
+	}
+
+	private final Value key;
+	private final List<Case> cases;
+	private final IrBlock fallback;
+	private final List<IrBlock> created;
+	// The values each target's phis took from the switch's block, in phi order
+	private final Map<IrBlock, List<Value>> incoming = new HashMap<>();
+
+	private SwitchLowering(Value key, List<Case> cases, IrBlock fallback, List<IrBlock> created) {
+		this.key = key;
+		this.cases = cases;
+		this.fallback = fallback;
+		this.created = created;
+	}
+
+	/**
+	 * Whether a table is worth it for this many cases over span keys, for writing a whole switch as one.
+	 */
+	public static boolean dense(int cases, long span) {
+		return span <= MAX_TABLE_SPAN && cases >= span * MIN_TABLE_DENSITY;
+	}
+
+	/**
+	 * Replaces block's SWITCH on its exitValue as a key, successor i taken for keys[i] and the last for
+	 * anything else, with branches on it. Blocks made for that are added to to.
+	 */
+	public static void lower(IrBlock block, int[] keys, List<IrBlock> to) {
+		Value key = Objects.requireNonNull(block.exitValue);
+		IrBlock fallback = block.successors.get(block.successors.size() - 1);
+		List<Case> cases = new ArrayList<>();
+		for (int i = 0; i < keys.length; i++) {
+			if (block.successors.get(i) != fallback) cases.add(new Case(keys[i], block.successors.get(i)));
+		}
+		cases.sort(Comparator.comparingInt(Case::key));
+		SwitchLowering lowering = new SwitchLowering(key, cases, fallback, to);
+		lowering.detach(block);
+		lowering.dispatch(block);
+	}
+
+	// Takes block's edges out of its targets, keeping what their phis got along them for the new edges
+	private void detach(IrBlock block) {
+		for (IrBlock target : new LinkedHashSet<>(block.successors)) {
+			List<Value> values = new ArrayList<>();
+			int first = target.predecessors.indexOf(block);
+			for (Phi phi : target.phis) values.add(phi.operand(first));
+			incoming.put(target, values);
+			for (int i = target.predecessors.size() - 1; i >= 0; i--) {
+				if (target.predecessors.get(i) != block) continue;
+				target.predecessors.remove(i);
+				for (Phi phi : target.phis) phi.removeOperand(i);
+			}
+		}
+		block.successors.clear();
+		block.exitValue = null;
+	}
+
+	private void dispatch(IrBlock block) {
+		if (cases.isEmpty()) {
+			jump(block, fallback);
+			return;
+		}
+		long span = (long) cases.get(cases.size() - 1).key() - cases.get(0).key() + 1;
+		if (dense(cases.size(), span)) {
+			table(block, new Cluster(0, cases.size()), fallback);
+			return;
+		}
+		List<Cluster> clusters = cluster();
+		Hash hash = cases.size() >= MIN_HASH_CASES ? perfectHash() : null;
+		if (hash != null && HASH_COST < searchCost(clusters, 0, clusters.size()) / cases.size()) {
+			hashed(block, hash);
+		} else {
+			search(block, clusters, 0, clusters.size());
+		}
+	}
+
+	// Fewest clusters, each a single case or a table, by dynamic programming over the sorted cases
+	private List<Cluster> cluster() {
+		int count = cases.size();
+		int[] fewest = new int[count + 1];
+		int[] start = new int[count + 1];
+		for (int end = 1; end <= count; end++) {
+			fewest[end] = fewest[end - 1] + 1;
+			start[end] = end - 1;
+			// A table holds at most MAX_TABLE_SPAN cases
+			for (int from = Math.max(0, end - MAX_TABLE_SPAN); from <= end - MIN_TABLE_CASES; from++) {
+				long span = (long) cases.get(end - 1).key() - cases.get(from).key() + 1;
+				if (fewest[from] + 1 < fewest[end] && dense(end - from, span)) {
+					fewest[end] = fewest[from] + 1;
+					start[end] = from;
+				}
+			}
+		}
+		List<Cluster> clusters = new ArrayList<>();
+		for (int end = count; end > 0; end = start[end]) clusters.add(new Cluster(start[end], end));
+		Collections.reverse(clusters);
+		return clusters;
+	}
+
+	// Summed over the cases in clusters [from, to), the cost of reaching each through search()
+	private double searchCost(List<Cluster> clusters, int from, int to) {
+		double cost = 0;
+		if (to - from <= LINEAR_CLUSTERS) {
+			for (int i = from; i < to; i++) {
+				Cluster cluster = clusters.get(i);
+				cost += cluster.size() * ((i - from) + (cluster.size() > 1 ? TABLE_COST : 1));
+			}
+			return cost;
+		}
+		int middle = (from + to) >>> 1;
+		for (int i = from; i < to; i++) cost += clusters.get(i).size();
+		return cost + searchCost(clusters, from, middle) + searchCost(clusters, middle, to);
+	}
+
+	private void search(IrBlock block, List<Cluster> clusters, int from, int to) {
+		if (to - from <= LINEAR_CLUSTERS) {
+			// Each leaf falls through to the next
+			IrBlock current = block;
+			for (int i = from; i < to; i++) {
+				IrBlock next = i == to - 1 ? fallback : newBlock();
+				Cluster cluster = clusters.get(i);
+				if (cluster.size() > 1) {
+					table(current, cluster, next);
+				} else {
+					Case only = cases.get(cluster.from());
+					branch(current, new WasmOp(I32_EQ, key, constant(only.key())), only.target(), next);
+				}
+				current = next;
+			}
+			return;
+		}
+		int middle = (from + to) >>> 1;
+		IrBlock below = newBlock();
+		IrBlock above = newBlock();
+		branch(block, new WasmOp(I32_LT_S, key, constant(cases.get(clusters.get(middle).from()).key())), below, above);
+		search(below, clusters, from, middle);
+		search(above, clusters, middle, to);
+	}
+
+	// br_table over cluster's span, anything outside it or in a gap going to otherwise. Just a range check if
+	// it's a run of keys all going to one place
+	private void table(IrBlock block, Cluster cluster, IrBlock otherwise) {
+		int first = cases.get(cluster.from()).key();
+		int last = cases.get(cluster.to() - 1).key();
+		Value offset = block.append(new WasmOp(I32_SUB, key, constant(first)));
+		IrBlock target = cases.get(cluster.from()).target();
+		boolean run = (long) last - first + 1 == cluster.size();
+		for (int i = cluster.from(); i < cluster.to() && run; i++) run = cases.get(i).target() == target;
+		if (run) {
+			branch(block, new WasmOp(I32_LT_U, offset, constant(cluster.size())), target, otherwise);
+			return;
+		}
+		block.exitValue = offset;
+		block.exit = IrBlock.Exit.SWITCH;
+		int next = cluster.from();
+		for (long value = first; value <= last; value++) {
+			if (cases.get(next).key() == value) link(block, cases.get(next++).target());
+			else link(block, otherwise);
+		}
+		link(block, otherwise);
+	}
+
+	private void hashed(IrBlock block, Hash hash) {
+		Case[] slots = new Case[1 << hash.bits()];
+		for (Case c : cases) slots[hash.slot(c.key())] = c;
+		Value product = block.append(new WasmOp(I32_MUL, key, constant(hash.multiplier())));
+		block.exitValue = block.append(new WasmOp(I32_SHR_U, product, constant(32 - hash.bits())));
+		block.exit = IrBlock.Exit.SWITCH;
+		for (Case c : slots) {
+			if (c == null) {
+				link(block, fallback);
+				continue;
+			}
+			IrBlock check = newBlock();
+			link(block, check);
+			branch(check, new WasmOp(I32_EQ, key, constant(c.key())), c.target(), fallback);
+		}
+		link(block, fallback); // the default, never taken
+	}
+
+	// A multiplier taking every key to a different slot of a table of 2^bits, trying the smallest tables first
+	private @Nullable Hash perfectHash() {
+		int minBits = 32 - Integer.numberOfLeadingZeros(cases.size() - 1);
+		for (int bits = minBits; bits <= minBits + HASH_GROWTH && (1 << bits) <= MAX_TABLE_SPAN; bits++) {
+			// Fixed sequence of odd multipliers, so the code comes out the same every time
+			int multiplier = 0x9E3779B9;
+			for (int attempt = 0; attempt < HASH_TRIES; attempt++, multiplier = multiplier * 0x2C1B3C6D + 0x297A2D39 | 1) {
+				Hash hash = new Hash(multiplier, bits);
+				BitSet used = new BitSet(1 << bits);
+				boolean perfect = true;
+				for (Case c : cases) {
+					int slot = hash.slot(c.key());
+					if (used.get(slot)) {
+						perfect = false;
+						break;
+					}
+					used.set(slot);
+				}
+				if (perfect) return hash;
+			}
+		}
+		return null;
+	}
+
+	private void branch(IrBlock block, WasmOp condition, IrBlock taken, IrBlock notTaken) {
+		block.exitValue = block.append(condition);
+		block.exit = IrBlock.Exit.IF;
+		link(block, taken);
+		link(block, notTaken);
+	}
+
+	private void jump(IrBlock block, IrBlock target) {
+		block.exit = IrBlock.Exit.JUMP;
+		link(block, target);
+	}
+
+	// Giving target's phis what they got from the switch's block
+	private void link(IrBlock from, IrBlock target) {
+		IrBlock.link(from, target);
+		List<Value> values = incoming.get(target);
+		if (values == null) return;
+		for (int i = 0; i < values.size(); i++) target.phis.get(i).addOperand(values.get(i));
+	}
+
+	private IrBlock newBlock() {
+		IrBlock block = new IrBlock(-1);
+		created.add(block);
+		return block;
+	}
+
+	private static Constant constant(int value) {
+		return new Constant(NumericType.I32, value);
+	}
+}
@@ -0,0 +1,118 @@
+package wntiv.ir;
+
+import java.util.*;
+
+/**
+ * Jump threading for a switch on a phi: along each edge where the phi is a constant, the switch's target is
+ * already known, so the edge can go straight there. javac writes a switch on strings as two (a lookupswitch
+ * on {@code hashCode()} whose cases confirm the match with {@code equals} and set an index, then a
+ * tableswitch on that index, -1 for no match), and threading the second into the first leaves one dispatch
+ * on the hash code, which {@link SwitchLowering} then lowers like any other (to a perfect hash over the case
+ * literals' hash codes, if there are enough), each slot confirmed by one {@code equals} going straight to
+ * its case.
+ */
+public final class SwitchThreading {
+	private SwitchThreading() {}
+
+	/**
+	 * Threads the edges into block, a SWITCH on a phi of its own keyed as for {@link SwitchLowering#lower},
+	 * along which the phi is a constant. Only done if block has nothing else to do, as the code is then
+	 * skipped, and its phis are only used by it & along its edges to its successors' phis, or have a single
+	 * value, as otherwise they may no longer be defined where they're used.
+	 * @param blocks every block, for replacing uses of the phis with a single value
+	 * @return whether every edge was threaded, leaving block unreachable
+	 */
+	public static boolean thread(IrBlock block, int[] keys, List<IrBlock> blocks) {
+		if (!(block.exitValue instanceof Phi key) || key.block() != block || !block.body.isEmpty()) return false;
+		Map<Phi, Value> trivial = trivialPhis(block);
+		if (!usedOnlyAlongEdges(block, trivial, blocks)) return false;
+
+		// Which of its predecessor's successors each edge is, worked out before any are changed
+		int[] slots = new int[block.predecessors.size()];
+		Map<IrBlock, Integer> seen = new HashMap<>();
+		for (int i = 0; i < slots.length; i++) {
+			IrBlock predecessor = block.predecessors.get(i);
+			int occurrence = seen.merge(predecessor, 1, Integer::sum);
+			int slot = -1;
+			while (occurrence > 0) if (predecessor.successors.get(++slot) == block) occurrence--;
+			slots[i] = slot;
+		}
+		List<Integer> threaded = new ArrayList<>();
+		for (int i = 0; i < slots.length; i++) {
+			if (!(IrFunction.resolve(key.operand(i), trivial) instanceof Constant constant)) continue;
+			IrBlock target = target(block, keys, (int) constant.value);
+			if (target == block) continue;
+			IrBlock predecessor = block.predecessors.get(i);
+			// What the target's phis got from block, with block's own phis as they were along this edge
+			int edge = target.predecessors.indexOf(block);
+			List<Value> values = new ArrayList<>();
+			for (Phi phi : target.phis) {
+				Value value = phi.operand(edge);
+				if (value instanceof Phi own && own.block() == block) value = own.operand(i);
+				values.add(IrFunction.resolve(value, trivial));
+			}
+			predecessor.successors.set(slots[i], target);
+			target.predecessors.add(predecessor);
+			for (int p = 0; p < values.size(); p++) target.phis.get(p).addOperand(values.get(p));
+			threaded.add(i);
+		}
+		if (threaded.isEmpty()) return false;
+		for (int t = threaded.size() - 1; t >= 0; t--) {
+			int index = threaded.get(t);
+			block.predecessors.remove(index);
+			for (Phi phi : block.phis) phi.removeOperand(index);
+		}
+		// Uses past block no longer have it on the way to them, but the value it always had dominates them
+		IrFunction.replaceUses(blocks, trivial);
+		return block.predecessors.isEmpty();
+	}
+
+	private static IrBlock target(IrBlock block, int[] keys, int value) {
+		for (int k = 0; k < keys.length; k++) if (keys[k] == value) return block.successors.get(k);
+		return block.successors.get(block.successors.size() - 1);
+	}
+
+	// block's phis with one value (bar themselves & each other), which isn't another of its phis
+	private static Map<Phi, Value> trivialPhis(IrBlock block) {
+		Map<Phi, Value> trivial = new HashMap<>();
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (Phi phi : block.phis) {
+				if (trivial.containsKey(phi)) continue;
+				Value only = null;
+				for (int i = 0; i < phi.operandCount() && only != phi; i++) {
+					Value value = IrFunction.resolve(phi.operand(i), trivial);
+					if (value == phi || value == only) continue;
+					only = only == null ? value : phi; // phi standing for "more than one"
+				}
+				if (only == null || only == phi || only instanceof Phi other && other.block() == block) continue;
+				trivial.put(phi, only);
+				changed = true;
+			}
+		}
+		return trivial;
+	}
+
+	// Whether block's phis with more than one value are only used by its exit & along its edges
+	private static boolean usedOnlyAlongEdges(IrBlock block, Map<Phi, Value> trivial, List<IrBlock> blocks) {
+		for (IrBlock user : blocks) {
+			for (Phi phi : user.phis) {
+				for (int i = 0; i < phi.operandCount(); i++) {
+					if (user.predecessors.get(i) != block && isOwnPhi(phi.operand(i), block, trivial)) return false;
+				}
+			}
+			for (Instruction instruction : user.body) {
+				for (int i = 0; i < instruction.operandCount(); i++) {
+					if (isOwnPhi(instruction.operand(i), block, trivial)) return false;
+				}
+			}
+			if (user != block && user.exitValue != null && isOwnPhi(user.exitValue, block, trivial)) return false;
+		}
+		return true;
+	}
+
+	private static boolean isOwnPhi(Value value, IrBlock block, Map<Phi, Value> trivial) {
+		return value instanceof Phi phi && phi.block() == block && !trivial.containsKey(phi);
+	}
+}
@@ -0,0 +1,21 @@
+package wntiv.ir;
+
+import org.jetbrains.annotations.Nullable;
+import wntiv.wasm_output.types.ValueType;
+
+/**
+ * Anything an instruction can take as an operand. Every value is defined exactly once, values are
+ * compared by identity (except {@link Constant#sameAs}).
+ */
+public abstract sealed class Value permits Constant, Parameter, Instruction {
+	private final @Nullable ValueType type;
+
+	Value(@Nullable ValueType type) {
+		this.type = type;
+	}
+
+	// null for instructions that produce nothing
+	public @Nullable ValueType type() {
+		return type;
+	}
+}
@@ -0,0 +1,24 @@
+package wntiv.ir;
+
+/**
+ * A single wasm instruction taking its operands off the stack and pushing at most one result, see
+ * {@link WasmOps} for the ones understood.
+ */
+public final class WasmOp extends Instruction {
+	public final int opcode;
+
+	public WasmOp(int opcode, Value... operands) {
+		super(WasmOps.resultType(opcode, operands), operands);
+		this.opcode = opcode;
+	}
+
+	@Override
+	public boolean hasSideEffects() {
+		return WasmOps.mayTrap(opcode);
+	}
+
+	@Override
+	public String toString() {
+		return WasmOps.name(opcode);
+	}
+}
@@ -0,0 +1,285 @@
+package wntiv.ir;
+
+import org.jetbrains.annotations.Nullable;
+import wntiv.wasm_output.Util;
+import wntiv.wasm_output.types.ValueType;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static wntiv.wasm_output.types.NumericType.*;
+
+/**
+ * The plain wasm instructions {@link WasmOp} can be: numeric ops & conversions, select and ref.is_null.
+ * 0xFC prefixed ones are numbered 0xFC00 | their sub-opcode.
+ * https://webassembly.github.io/spec/core/binary/instructions.html#numeric-instructions
+ */
+public final class WasmOps {
+	// A null operand type takes anything (select's values, ref.is_null's reference)
+	private record Signature(String name, @Nullable ValueType result, boolean mayTrap, ValueType... operands) {}
+	private static final Map<Integer, Signature> SIGNATURES = new HashMap<>();
+
+	private static final String[] INTEGER_COMPARISONS = {"eq", "ne", "lt_s", "lt_u", "gt_s", "gt_u", "le_s", "le_u",
+			"ge_s", "ge_u"};
+	private static final String[] FLOAT_COMPARISONS = {"eq", "ne", "lt", "gt", "le", "ge"};
+	private static final String[] INTEGER_UNARY = {"clz", "ctz", "popcnt"};
+	private static final String[] INTEGER_BINARY = {"add", "sub", "mul", "div_s", "div_u", "rem_s", "rem_u", "and",
+			"or", "xor", "shl", "shr_s", "shr_u", "rotl", "rotr"};
+	private static final String[] FLOAT_UNARY = {"abs", "neg", "ceil", "floor", "trunc", "nearest", "sqrt"};
+	private static final String[] FLOAT_BINARY = {"add", "sub", "mul", "div", "min", "max", "copysign"};
+
+	static {
+		define(0x1B, "select", null, false, null, null, I32);
+		define(0xD1, "ref.is_null", I32, false, (ValueType) null);
+		define(0x45, "i32.eqz", I32, false, I32);
+		define(0x50, "i64.eqz", I32, false, I64);
+		family(0x46, "i32.", INTEGER_COMPARISONS, I32, I32, 2);
+		family(0x51, "i64.", INTEGER_COMPARISONS, I32, I64, 2);
+		family(0x5B, "f32.", FLOAT_COMPARISONS, I32, F32, 2);
+		family(0x61, "f64.", FLOAT_COMPARISONS, I32, F64, 2);
+		family(0x67, "i32.", INTEGER_UNARY, I32, I32, 1);
+		family(0x6A, "i32.", INTEGER_BINARY, I32, I32, 2);
+		family(0x79, "i64.", INTEGER_UNARY, I64, I64, 1);
+		family(0x7C, "i64.", INTEGER_BINARY, I64, I64, 2);
+		family(0x8B, "f32.", FLOAT_UNARY, F32, F32, 1);
+		family(0x92, "f32.", FLOAT_BINARY, F32, F32, 2);
+		family(0x99, "f64.", FLOAT_UNARY, F64, F64, 1);
+		family(0xA0, "f64.", FLOAT_BINARY, F64, F64, 2);
+		// Division by zero (and MIN_VALUE / -1) traps
+		for (int opcode : new int[]{0x6D, 0x6E, 0x6F, 0x70, 0x7F, 0x80, 0x81, 0x82}) {
+			Signature signature = SIGNATURES.get(opcode);
+			define(opcode, signature.name(), signature.result(), true, signature.operands());
+		}
+		define(0xA7, "i32.wrap_i64", I32, false, I64);
+		// Trap on NaN & overflow, the trunc_sat ones below saturate like Java's casts
+		define(0xA8, "i32.trunc_f32_s", I32, true, F32);
+		define(0xA9, "i32.trunc_f32_u", I32, true, F32);
+		define(0xAA, "i32.trunc_f64_s", I32, true, F64);
+		define(0xAB, "i32.trunc_f64_u", I32, true, F64);
+		define(0xAC, "i64.extend_i32_s", I64, false, I32);
+		define(0xAD, "i64.extend_i32_u", I64, false, I32);
+		define(0xAE, "i64.trunc_f32_s", I64, true, F32);
+		define(0xAF, "i64.trunc_f32_u", I64, true, F32);
+		define(0xB0, "i64.trunc_f64_s", I64, true, F64);
+		define(0xB1, "i64.trunc_f64_u", I64, true, F64);
+		define(0xB2, "f32.convert_i32_s", F32, false, I32);
+		define(0xB3, "f32.convert_i32_u", F32, false, I32);
+		define(0xB4, "f32.convert_i64_s", F32, false, I64);
+		define(0xB5, "f32.convert_i64_u", F32, false, I64);
+		define(0xB6, "f32.demote_f64", F32, false, F64);
+		define(0xB7, "f64.convert_i32_s", F64, false, I32);
+		define(0xB8, "f64.convert_i32_u", F64, false, I32);
+		define(0xB9, "f64.convert_i64_s", F64, false, I64);
+		define(0xBA, "f64.convert_i64_u", F64, false, I64);
+		define(0xBB, "f64.promote_f32", F64, false, F32);
+		define(0xBC, "i32.reinterpret_f32", I32, false, F32);
+		define(0xBD, "i64.reinterpret_f64", I64, false, F64);
+		define(0xBE, "f32.reinterpret_i32", F32, false, I32);
+		define(0xBF, "f64.reinterpret_i64", F64, false, I64);
+		define(0xC0, "i32.extend8_s", I32, false, I32);
+		define(0xC1, "i32.extend16_s", I32, false, I32);
+		define(0xC2, "i64.extend8_s", I64, false, I64);
+		define(0xC3, "i64.extend16_s", I64, false, I64);
+		define(0xC4, "i64.extend32_s", I64, false, I64);
+		define(0xFC00, "i32.trunc_sat_f32_s", I32, false, F32);
+		define(0xFC01, "i32.trunc_sat_f32_u", I32, false, F32);
+		define(0xFC02, "i32.trunc_sat_f64_s", I32, false, F64);
+		define(0xFC03, "i32.trunc_sat_f64_u", I32, false, F64);
+		define(0xFC04, "i64.trunc_sat_f32_s", I64, false, F32);
+		define(0xFC05, "i64.trunc_sat_f32_u", I64, false, F32);
+		define(0xFC06, "i64.trunc_sat_f64_s", I64, false, F64);
+		define(0xFC07, "i64.trunc_sat_f64_u", I64, false, F64);
+	}
+
+	private WasmOps() {}
+
+	private static void define(int opcode, String name, @Nullable ValueType result, boolean mayTrap,
+	                           ValueType... operands) {
+		SIGNATURES.put(opcode, new Signature(name, result, mayTrap, operands));
+	}
+
+	// Consecutive opcodes with the same operand & result types
+	private static void family(int first, String prefix, String[] names, ValueType result, ValueType operand,
+	                           int arity) {
+		for (int i = 0; i < names.length; i++) {
+			ValueType[] operands = new ValueType[arity];
+			Arrays.fill(operands, operand);
+			define(first + i, prefix + names[i], result, false, operands);
+		}
+	}
+
+	private static Signature signature(int opcode) {
+		Signature signature = SIGNATURES.get(opcode);
+		if (signature == null) throw new IllegalArgumentException("Not a plain wasm op: 0x" + Integer.toHexString(opcode));
+		return signature;
+	}
+
+	public static boolean isKnown(int opcode) {
+		return SIGNATURES.containsKey(opcode);
+	}
+
+	public static int arity(int opcode) {
+		return signature(opcode).operands().length;
+	}
+
+	// null if it takes any type
+	public static @Nullable ValueType operandType(int opcode, int index) {
+		return signature(opcode).operands()[index];
+	}
+
+	public static boolean mayTrap(int opcode) {
+		return signature(opcode).mayTrap();
+	}
+
+	public static String name(int opcode) {
+		return signature(opcode).name();
+	}
+
+	static ValueType resultType(int opcode, Value[] operands) {
+		Signature signature = signature(opcode);
+		if (operands.length != signature.operands().length)
+			throw new IllegalArgumentException(signature.name() + " takes " + signature.operands().length + " operands");
+		if (signature.result() != null) return signature.result();
+		return operands[0].type(); // select
+	}
+
+	public static void write(int opcode, DataOutputStream out) throws IOException {
+		if (opcode > 0xFF) {
+			out.writeByte(opcode >>> 8);
+			Util.writeVarUInt(out, opcode & 0xFF);
+		} else out.writeByte(opcode);
+	}
+
+	/**
+	 * Result of opcode on constant operands, or null if it can't be worked out here (it would trap, or isn't
+	 * worth it). Java's arithmetic matches wasm's wherever this does fold.
+	 */
+	public static @Nullable Constant fold(int opcode, Constant... operands) {
+		Signature signature = signature(opcode);
+		if (signature.result() == null) return null;
+		Object[] values = new Object[operands.length];
+		for (int i = 0; i < operands.length; i++) {
+			if ((values[i] = operands[i].value) == null) return null;
+		}
+		Object result = compute(opcode, values);
+		return result == null ? null : new Constant(signature.result(), result);
+	}
+
+	private static @Nullable Object compute(int opcode, Object[] v) {
+		if (opcode == 0x45) return bool((int) v[0] == 0);
+		if (opcode == 0x50) return bool((long) v[0] == 0);
+		if (opcode >= 0x46 && opcode <= 0x4F) {
+			int a = (int) v[0], b = (int) v[1];
+			return bool(compareIntegers(opcode - 0x46, Integer.compare(a, b), Integer.compareUnsigned(a, b)));
+		}
+		if (opcode >= 0x51 && opcode <= 0x5A) {
+			long a = (long) v[0], b = (long) v[1];
+			return bool(compareIntegers(opcode - 0x51, Long.compare(a, b), Long.compareUnsigned(a, b)));
+		}
+		if (opcode >= 0x5B && opcode <= 0x60) return bool(compareFloats(opcode - 0x5B, (float) v[0], (float) v[1]));
+		if (opcode >= 0x61 && opcode <= 0x66) return bool(compareFloats(opcode - 0x61, (double) v[0], (double) v[1]));
+		if (opcode >= 0x6A && opcode <= 0x78) {
+			int a = (int) v[0], b = (int) v[1];
+			return switch (opcode) {
+				case 0x6A -> a + b;
+				case 0x6B -> a - b;
+				case 0x6C -> a * b;
+				case 0x6D -> b == 0 || (a == Integer.MIN_VALUE && b == -1) ? null : a / b;
+				case 0x6E -> b == 0 ? null : Integer.divideUnsigned(a, b);
+				case 0x6F -> b == 0 ? null : a % b;
+				case 0x70 -> b == 0 ? null : Integer.remainderUnsigned(a, b);
+				case 0x71 -> a & b;
+				case 0x72 -> a | b;
+				case 0x73 -> a ^ b;
+				case 0x74 -> a << b;
+				case 0x75 -> a >> b;
+				case 0x76 -> a >>> b;
+				case 0x77 -> Integer.rotateLeft(a, b);
+				default -> Integer.rotateRight(a, b);
+			};
+		}
+		if (opcode >= 0x7C && opcode <= 0x8A) {
+			long a = (long) v[0], b = (long) v[1];
+			return switch (opcode) {
+				case 0x7C -> a + b;
+				case 0x7D -> a - b;
+				case 0x7E -> a * b;
+				case 0x7F -> b == 0 || (a == Long.MIN_VALUE && b == -1) ? null : a / b;
+				case 0x80 -> b == 0 ? null : Long.divideUnsigned(a, b);
+				case 0x81 -> b == 0 ? null : a % b;
+				case 0x82 -> b == 0 ? null : Long.remainderUnsigned(a, b);
+				case 0x83 -> a & b;
+				case 0x84 -> a | b;
+				case 0x85 -> a ^ b;
+				case 0x86 -> a << b;
+				case 0x87 -> a >> b;
+				case 0x88 -> a >>> b;
+				case 0x89 -> Long.rotateLeft(a, (int) b);
+				default -> Long.rotateRight(a, (int) b);
+			};
+		}
+		return switch (opcode) {
+			case 0x8C -> -(float) v[0];
+			case 0x92 -> (float) v[0] + (float) v[1];
+			case 0x93 -> (float) v[0] - (float) v[1];
+			case 0x94 -> (float) v[0] * (float) v[1];
+			case 0x95 -> (float) v[0] / (float) v[1];
+			case 0x9A -> -(double) v[0];
+			case 0xA0 -> (double) v[0] + (double) v[1];
+			case 0xA1 -> (double) v[0] - (double) v[1];
+			case 0xA2 -> (double) v[0] * (double) v[1];
+			case 0xA3 -> (double) v[0] / (double) v[1];
+			case 0xA7 -> (int) (long) v[0];
+			case 0xAC -> (long) (int) v[0];
+			case 0xAD -> Integer.toUnsignedLong((int) v[0]);
+			case 0xB2 -> (float) (int) v[0];
+			case 0xB4 -> (float) (long) v[0];
+			case 0xB6 -> (float) (double) v[0];
+			case 0xB7 -> (double) (int) v[0];
+			case 0xB9 -> (double) (long) v[0];
+			case 0xBB -> (double) (float) v[0];
+			case 0xC0 -> (int) (byte) (int) v[0];
+			case 0xC1 -> (int) (short) (int) v[0];
+			case 0xC2 -> (long) (byte) (long) v[0];
+			case 0xC3 -> (long) (short) (long) v[0];
+			case 0xC4 -> (long) (int) (long) v[0];
+			case 0xFC00 -> (int) (float) v[0];
+			case 0xFC02 -> (int) (double) v[0];
+			case 0xFC04 -> (long) (float) v[0];
+			case 0xFC06 -> (long) (double) v[0];
+			default -> null;
+		};
+	}
+
+	// eq, ne, lt_s, lt_u, gt_s, gt_u, le_s, le_u, ge_s, ge_u
+	private static boolean compareIntegers(int which, int signed, int unsigned) {
+		int order = which < 2 || which % 2 == 0 ? signed : unsigned;
+		return switch (which) {
+			case 0 -> order == 0;
+			case 1 -> order != 0;
+			case 2, 3 -> order < 0;
+			case 4, 5 -> order > 0;
+			case 6, 7 -> order <= 0;
+			default -> order >= 0;
+		};
+	}
+
+	// eq, ne, lt, gt, le, ge, any comparison with NaN but ne is false (Java's operators agree)
+	private static boolean compareFloats(int which, double a, double b) {
+		return switch (which) {
+			case 0 -> a == b;
+			case 1 -> a != b;
+			case 2 -> a < b;
+			case 3 -> a > b;
+			case 4 -> a <= b;
+			default -> a >= b;
+		};
+	}
+
+	private static int bool(boolean value) {
+		return value ? 1 : 0;
+	}
+}
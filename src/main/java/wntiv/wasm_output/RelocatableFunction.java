@@ -0,0 +1,51 @@
+package wntiv.wasm_output;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.List;
+import java.util.function.ToIntFunction;
+
+/**
+ * A fully encoded function body (local declarations then expression, as in the code section minus the
+ * size prefix), with its references to other functions & globals left as padded placeholders.
+ * Independent of where anything else ends up in the module, so it can be cached and reused, then
+ * {@link #link}ed once indices are known.
+ */
+public record RelocatableFunction(byte[] body, List<Relocation> relocations) implements Writable {
+	public static RelocatableFunction encode(WasmFunction function, List<Relocation> codeRelocations) {
+		try {
+			ByteArrayOutputStream buf = new ByteArrayOutputStream();
+			DataOutputStream bufView = new DataOutputStream(buf);
+			function.writeLocals(bufView);
+			int codeStart = bufView.size();
+			function.getCode().write(bufView);
+			// Relocations were recorded against the expression alone
+			return new RelocatableFunction(buf.toByteArray(), codeRelocations.stream()
+					.map(relocation -> relocation.withOffset(codeStart + relocation.offset())).toList());
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	public boolean isLinked() {
+		return relocations.isEmpty();
+	}
+
+	public RelocatableFunction link(ToIntFunction<Relocation> resolver) {
+		if (isLinked()) return this;
+		byte[] linked = body.clone();
+		for (Relocation relocation : relocations) {
+			Util.patchPaddedVarUInt(linked, relocation.offset(), resolver.applyAsInt(relocation), Relocation.WIDTH);
+		}
+		return new RelocatableFunction(linked, List.of());
+	}
+
+	@Override
+	public void write(DataOutputStream target) throws IOException {
+		if (!isLinked()) throw new IllegalStateException("Writing function with unresolved " + relocations);
+		Util.writeVarUInt(target, body.length); // Prefix length
+		target.write(body);
+	}
+}
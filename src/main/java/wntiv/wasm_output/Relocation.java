@@ -0,0 +1,28 @@
+package wntiv.wasm_output;
+
+// A symbolic reference left in an encoded function body, patched to a real index when the function is
+// linked into a module. Symbols are plain strings so bodies can be cached across runs
+public record Relocation(int offset, Kind kind, String owner, String name, String descriptor) {
+	// LEB128 placeholders are always this wide, enough for any u32 index
+	public static final int WIDTH = 5;
+
+	public enum Kind {
+		FUNCTION,
+		GLOBAL,
+		// A function the host provides, by its import name (owner is the import module, descriptor unused)
+		HOST,
+		// Numbers the host knows classes & instance fields by, as i32.const operands (name & descriptor unused
+		// for classes)
+		CLASS_ID,
+		FIELD_ID
+	}
+
+	public Relocation withOffset(int offset) {
+		return new Relocation(offset, kind, owner, name, descriptor);
+	}
+
+	@Override
+	public String toString() {
+		return kind + " " + owner + "." + name + ":" + descriptor + " @" + offset;
+	}
+}
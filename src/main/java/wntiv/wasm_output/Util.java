@@ -8,10 +8,15 @@ public class Util {
 	private Util() {}
 
 	public static void writeVarInt(DataOutputStream to, long value) throws IOException {
-		// Using SLEB128
+		// Using SLEB128. Done once the rest is all sign bits *and* the sign bit of the last 7 written
+		// matches, otherwise e.g. 64 would read back as -64
+		boolean more;
 		do {
-			to.writeByte((int) (value & 0x7F) | ((value >>= 7) != 0 && value != -1 ? 0x80 : 0));
-		} while (value != 0 && value != -1);
+			int bits = (int) (value & 0x7F);
+			value >>= 7;
+			more = !(value == 0 && (bits & 0x40) == 0 || value == -1 && (bits & 0x40) != 0);
+			to.writeByte(bits | (more ? 0x80 : 0));
+		} while (more);
 	}
 	public static void writeVarUInt(DataOutputStream to, long value) throws IOException {
 		// Using ULEB128
@@ -19,6 +24,22 @@ public class Util {
 			to.writeByte((int) (value & 0x7F) | ((value >>>= 7) != 0 ? 0x80 : 0));
 		} while (value != 0);
 	}
+	// Always width bytes (continuation bits set on all but the last), so the value can be patched later
+	// without moving anything after it. 5 bytes fits any u32
+	public static void writePaddedVarUInt(DataOutputStream to, long value, int width) throws IOException {
+		for (int i = 1; i < width; i++) {
+			to.writeByte((int) (value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		to.writeByte((int) (value & 0x7F));
+	}
+	public static void patchPaddedVarUInt(byte[] target, int offset, long value, int width) {
+		for (int i = 1; i < width; i++) {
+			target[offset++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		target[offset] = (byte) (value & 0x7F);
+	}
 	public static void writeFloat(DataOutputStream to, float value) throws IOException {
 		to.writeInt(Integer.reverseBytes(Float.floatToRawIntBits(value)));
 	}
@@ -27,7 +48,9 @@ public class Util {
 	}
 	public static void writeName(DataOutputStream to, String value) throws IOException {
 		// https://webassembly.github.io/spec/core/binary/values.html#binary-name
-		writeVarUInt(to, value.length());
-		to.write(value.getBytes(StandardCharsets.UTF_8));
+		// Length in bytes, not chars
+		byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+		writeVarUInt(to, utf8.length);
+		to.write(utf8);
 	}
 }
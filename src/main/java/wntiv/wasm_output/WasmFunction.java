@@ -15,14 +15,19 @@ public interface WasmFunction extends Writable {
 
 	Map<ValueType, Integer> getLocals();
 
+	default void writeLocals(DataOutputStream target) throws IOException {
+		Util.writeVarUInt(target, getLocals().size());
+		for (var entry : getLocals().entrySet()) {
+			Util.writeVarUInt(target, entry.getValue() /* count */);
+			entry.getKey() /* type */.write(target);
+		}
+	}
+
 	@Override
 	default void write(DataOutputStream target) throws IOException {
 		ByteArrayOutputStream buf = new ByteArrayOutputStream();
 		DataOutputStream bufView = new DataOutputStream(buf);
-		for (var entry : getLocals().entrySet()) {
-			Util.writeVarUInt(bufView, entry.getValue() /* count */);
-			entry.getKey() /* type */.write(bufView);
-		}
+		writeLocals(bufView);
 		getCode().write(bufView);
 		Util.writeVarUInt(target, buf.size()); // Prefix length
 		buf.writeTo(target);
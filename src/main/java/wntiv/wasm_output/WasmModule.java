@@ -6,7 +6,9 @@ import wntiv.wasm_output.types.*;
 
 import java.io.*;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 public class WasmModule {
 	public static final byte[] WASM_MAGIC = {0x00, 'a', 's', 'm'};
@@ -22,11 +24,60 @@ public class WasmModule {
 	private final ElementSection elements = new ElementSection();
 	private final DataSection data = new DataSection();
 	private final CodeSection code = new CodeSection();
+	// Function types are structural, so each distinct one is only added once
+	private final Map<FunctionType, Integer> typeIndices = new HashMap<>();
+	// Imported functions come first in the function index space
+	private int importedFunctions = 0;
 
 	public IndexType addFunction(WasmFunction functionSpec) {
-		return new IndexType(code.add(functionSpec));
+		return new IndexType(importedFunctions + code.add(functionSpec));
+	}
+	public IndexType addFunction(RelocatableFunction function) {
+		if (!function.isLinked()) throw new IllegalArgumentException("Function must be linked first");
+		return new IndexType(importedFunctions + code.add(function));
+	}
+	// Typed function, with an entry in the function section as well as the code section
+	public IndexType addFunction(FunctionType type, RelocatableFunction function) {
+		function_types.add(new IndexType(addType(type)));
+		return addFunction(function);
+	}
+	// Must all come before any function is added, as they take the first indices
+	public IndexType importFunction(String moduleName, String name, FunctionType type) {
+		if (code.size() > 0) throw new IllegalStateException("Functions already defined, can't import " + name);
+		imports.add(new ImportSection.Import(moduleName, name,
+				new ImportSection.ImportDescriptor(new IndexType(addType(type)))));
+		return new IndexType(importedFunctions++);
+	}
+	public int importedFunctionCount() {
+		return importedFunctions;
+	}
+	public int addType(FunctionType type) {
+		return typeIndices.computeIfAbsent(type, types::add);
+	}
+	public int addMemory(Limits size) {
+		return memory.add(new MemoryType(size));
+	}
+	public int memoryCount() {
+		return memory.size();
+	}
+	// Passive segments are only copied into memory by memory.init, returns the segment's index
+	public int addPassiveData(byte[] bytes) {
+		DataSection.DataSegment segment = new DataSection.DataSegment();
+		try {
+			segment.data.write(bytes);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return data.add(segment);
+	}
+	public void exportFunction(String name, IndexType function) {
+		exports.add(new ExportSection.Export(name, new ExportSection.ExportDescriptor(
+				ExportSection.ExportDescriptor.FUNCTION_TYPE, function.index())));
+	}
+	public void exportMemory(String name, int memoryIndex) {
+		exports.add(new ExportSection.Export(name, new ExportSection.ExportDescriptor(
+				ExportSection.ExportDescriptor.MEMORY_TYPE, memoryIndex)));
 	}
-//	public void export(IndexType function) ...?
 
 	public void write(DataOutputStream target) throws IOException {
 		target.write(WASM_MAGIC);
@@ -75,7 +126,7 @@ public class WasmModule {
 			throw new UncheckedIOException(e);
 		}
 		return globals.add(new GlobalSection.Global(
-				new GlobalType(ValueType.I32, mutable),
+				new GlobalType(NumericType.I32, mutable),
 				initExpr));
 	}
 	public int addGlobal(float initialValue, boolean mutable) {
@@ -91,7 +142,7 @@ public class WasmModule {
 			throw new UncheckedIOException(e);
 		}
 		return globals.add(new GlobalSection.Global(
-				new GlobalType(ValueType.F32, mutable),
+				new GlobalType(NumericType.F32, mutable),
 				initExpr));
 	}
 	public int addGlobal(long initialValue, boolean mutable) {
@@ -107,7 +158,7 @@ public class WasmModule {
 			throw new UncheckedIOException(e);
 		}
 		return globals.add(new GlobalSection.Global(
-				new GlobalType(ValueType.I64, mutable),
+				new GlobalType(NumericType.I64, mutable),
 				initExpr));
 	}
 	public int addGlobal(double initialValue, boolean mutable) {
@@ -123,7 +174,24 @@ public class WasmModule {
 			throw new UncheckedIOException(e);
 		}
 		return globals.add(new GlobalSection.Global(
-				new GlobalType(ValueType.F64, mutable),
+				new GlobalType(NumericType.F64, mutable),
+				initExpr));
+	}
+	// Starts out null
+	public int addGlobal(ReferenceType type, boolean mutable) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream dataView = new DataOutputStream(bytes);
+		Expression initExpr;
+		try {
+			dataView.writeByte(0xD0); // ref.null
+			type.targetType().write(dataView);
+			initExpr = new Expression(bytes.toByteArray());
+			dataView.close();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return globals.add(new GlobalSection.Global(
+				new GlobalType(type, mutable),
 				initExpr));
 	}
 
@@ -131,26 +199,19 @@ public class WasmModule {
 		return tables.add(new TableType(new Limits(size, size), type));
 	}
 
-	public void initTable(int index, int[] values) {
-		WritableCollection<Expression> initExprs = new WritableCollection<>();
+	// Fills table 0 with functions, from offset on
+	public void initFunctionTable(int offset, List<IndexType> functions) {
+		WritableCollection<IndexType> init = new WritableCollection<>();
+		for (IndexType function : functions) init.add(function);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream dataView = new DataOutputStream(bytes);
 		try {
-			for (int value : values) {
-				ByteArrayOutputStream bytes = new ByteArrayOutputStream();
-				DataOutputStream dataView = new DataOutputStream(bytes);
-				dataView.writeByte(0x41); // i32.const
-				Util.writeVarInt(dataView, value);
-				initExprs.add(new Expression(bytes.toByteArray()));
-				dataView.close();
-			}
+			dataView.writeByte(0x41); // i32.const
+			Util.writeVarInt(dataView, offset);
 		} catch (IOException e) {
-			throw new RuntimeException(e);
+			throw new UncheckedIOException(e);
 		}
-		elements.add(ElementSection.ElementSegment.active(
-			new IndexType(index),
-			new Expression(new byte[]{0x41, 0x00}), // i32.const 0
-			ValueType.I32,
-			initExprs
-		));
+		elements.add(ElementSection.ElementSegment.active_init_function(new Expression(bytes.toByteArray()), init));
 	}
 
 	// https://webassembly.github.io/spec/core/binary/modules.html
@@ -187,30 +248,11 @@ public class WasmModule {
 			}
 		}
 	}
-	static class TypeSection extends WritableCollection<TypeSection.FunctionType> implements Section {
+	static class TypeSection extends WritableCollection<FunctionType> implements Section {
 		@Override
 		public byte sectionType() {
 			return TYPE_SECTION;
 		}
-		static class FunctionType implements Writable {
-			public static final @Unsigned byte I32_TYPE = 0x7F;
-			public static final @Unsigned byte I64_TYPE = 0x7E;
-			public static final @Unsigned byte F32_TYPE = 0x7D;
-			public static final @Unsigned byte F64_TYPE = 0x7C;
-			public static final @Unsigned byte VECTOR_TYPE = 0x7B;
-			public static final @Unsigned byte FUNCTION_REF_TYPE = 0x70;
-			public static final @Unsigned byte EXTERNAL_REF_TYPE = 0x6F;
-			private final List<Byte> arguments = new ArrayList<>();
-			private final List<Byte> results = new ArrayList<>();
-			@Override
-			public void write(DataOutputStream target) throws IOException {
-				target.writeByte(0x60); // Function type
-				Util.writeVarUInt(target, arguments.size());
-				for (byte arg_type : arguments) target.writeByte(arg_type);
-				Util.writeVarUInt(target, results.size());
-				for (byte result_type : results) target.writeByte(result_type);
-			}
-		}
 	}
 	static class ImportSection extends WritableCollection<ImportSection.Import> implements Section {
 		@Override
@@ -366,7 +408,7 @@ public class WasmModule {
 						| (declarative_table_offset ? 0b010 : 0)
 						| (expressions ? 0b100 : 0));
 				if (!passive_declarative) {
-					if (declarative_table_offset || (expressions && type != ValueType.FUNCTION_REF.asByte())
+					if (declarative_table_offset || (expressions && type != HeapType.AbstractHeapType.FUNC.asByte())
 							                     || (!expressions && type != 0x00)) {
 						// active_extended
 						tableIndex.write(target);
@@ -386,28 +428,25 @@ public class WasmModule {
 			public static ElementSegment passive(byte type, WritableCollection<IndexType> initFunctions) {
 				return new ElementSegment(new IndexType(0), null, type, true, initFunctions);
 			}
-			public static ElementSegment passive(ValueType refType, Expression initializer) {
-				assert ValueType.isReferenceType(refType);
+			public static ElementSegment passive(HeapType.AbstractHeapType refType, Expression initializer) {
 				return new ElementSegment(new IndexType(0), null, refType.asByte(), false, initializer);
 			}
 			public static ElementSegment declarative(byte elementKind, WritableCollection<IndexType> initFunctions) {
 				return new ElementSegment(new IndexType(1), null, elementKind, true, initFunctions);
 			}
-			public static ElementSegment declarative(ValueType refType, WritableCollection<Expression> initializer) {
-				assert ValueType.isReferenceType(refType);
+			public static ElementSegment declarative(HeapType.AbstractHeapType refType, WritableCollection<Expression> initializer) {
 				return new ElementSegment(new IndexType(1), null, refType.asByte(), false, initializer);
 			}
 			public static ElementSegment active_init_function(Expression tableOffset, WritableCollection<IndexType> initFunctions) {
 				return new ElementSegment(new IndexType(0), tableOffset, (byte) 0x00, true, initFunctions);
 			}
 			public static ElementSegment active(Expression tableOffset, WritableCollection<Expression> initializer) {
-				return new ElementSegment(new IndexType(0), tableOffset, ValueType.FUNCTION_REF.asByte(), false, initializer);
+				return new ElementSegment(new IndexType(0), tableOffset, HeapType.AbstractHeapType.FUNC.asByte(), false, initializer);
 			}
 			public static ElementSegment active(IndexType tableIndex, Expression tableOffset, byte elementKind, WritableCollection<IndexType> initFunctions) {
 				return new ElementSegment(tableIndex, tableOffset, elementKind, true, initFunctions);
 			}
-			public static ElementSegment active(IndexType tableIndex, Expression tableOffset, ValueType refType, WritableCollection<Expression> initializer) {
-				assert ValueType.isReferenceType(refType);
+			public static ElementSegment active(IndexType tableIndex, Expression tableOffset, HeapType.AbstractHeapType refType, WritableCollection<Expression> initializer) {
 				return new ElementSegment(tableIndex, tableOffset, refType.asByte(), false, initializer);
 			}
 		}
@@ -456,7 +495,8 @@ public class WasmModule {
 			}
 		}
 	}
-	static class CodeSection extends WritableCollection<WasmFunction> implements Section {
+	// Either WasmFunctions or pre-encoded RelocatableFunctions
+	static class CodeSection extends WritableCollection<Writable> implements Section {
 		@Override
 		public byte sectionType() {
 			return CODE_SECTION;
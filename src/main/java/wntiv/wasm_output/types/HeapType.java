@@ -23,6 +23,11 @@ public interface HeapType extends Writable {
 			value = (byte) b;
 		}
 
+		// Its nullable reference type's short form
+		public byte asByte() {
+			return value;
+		}
+
 		@Override
 		public void write(DataOutputStream target) throws IOException {
 			target.writeByte(value);
@@ -28,6 +28,6 @@ public class Limits implements Writable {
 	public void write(DataOutputStream target) throws IOException {
 		target.writeBoolean(hasUpperBound);
 		Util.writeVarUInt(target, lowerBound);
-		if (hasUpperBound) Util.writeVarUInt(target, lowerBound);
+		if (hasUpperBound) Util.writeVarUInt(target, upperBound);
 	}
 }
@@ -12,7 +12,7 @@ public record TableType(Limits size, ValueType refType) implements Writable {
 	}
 	@Override
 	public void write(DataOutputStream target) throws IOException {
-		size.write(target);
 		refType.write(target);
+		size.write(target);
 	}
 }
@@ -0,0 +1,112 @@
+package wntiv.ir;
+
+import org.junit.jupiter.api.Test;
+import wntiv.wasm_output.types.NumericType;
+
+import java.util.*;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Pins the strategy SwitchLowering's cost model picks for representative key sets, and checks each lowering
+ * still sends every key (and a few that aren't keys) where the switch did.
+ */
+class SwitchLoweringTest {
+	enum Strategy { TABLE, RANGE, SEARCH, HASH }
+
+	private static final int I32_LT_U = 0x49;
+	private static final int I32_MUL = 0x6C;
+
+	@Test
+	void denseKeysAreOneTable() {
+		assertEquals(Strategy.TABLE, lower(0, 1, 2, 3, 5, 6));
+		assertEquals(Strategy.TABLE, lower(IntStream.rangeClosed('a', 'z').toArray()));
+		// 4 of 10 is still dense enough
+		assertEquals(Strategy.TABLE, lower(0, 3, 6, 9));
+	}
+
+	@Test
+	void runToOneTargetIsARangeCheck() {
+		assertEquals(Strategy.RANGE, lowerTo(new int[] {10, 11, 12, 13, 14}, new int[] {0, 0, 0, 0, 0}));
+	}
+
+	@Test
+	void fewSparseKeysAreSearched() {
+		assertEquals(Strategy.SEARCH, lower(100, -7));
+		assertEquals(Strategy.SEARCH, lower(3, 97, 1000, -40000, 77777, 123456789, Integer.MIN_VALUE));
+		// Two dense runs and some strays: a search with tables at its leaves
+		assertEquals(Strategy.SEARCH, lower(1, 2, 3, 4, 5, 1000, 1001, 1002, 1003, 1004, 50000, -300, 9999, 123));
+	}
+
+	@Test
+	void spreadKeysAreHashedFromAbove24() {
+		for (int count : new int[] {8, 12, 16, 24}) assertEquals(Strategy.SEARCH, lower(spread(count)), count + " keys");
+		for (int count : new int[] {25, 32, 40, 48}) assertEquals(Strategy.HASH, lower(spread(count)), count + " keys");
+		// No multiplier tried spreads these without a collision, so they're searched
+		for (int count : new int[] {64, 128}) assertEquals(Strategy.SEARCH, lower(spread(count)), count + " keys");
+	}
+
+	// The same keys as the timings behind SwitchLowering.HASH_COST
+	private static int[] spread(int count) {
+		return IntStream.range(0, count).map(i -> i * i * 7919 + i * 104729 - 500000).toArray();
+	}
+
+	private static Strategy lower(int... keys) {
+		return lowerTo(keys, IntStream.range(0, keys.length).toArray());
+	}
+
+	// A switch on a parameter, keys[i] going to the targets[i]th block, lowered & then run on every key and
+	// its neighbours
+	private static Strategy lowerTo(int[] keys, int[] targets) {
+		Parameter key = new Parameter(0, NumericType.I32);
+		IrBlock block = new IrBlock(0);
+		List<IrBlock> blocks = new ArrayList<>();
+		for (int i = 0; i <= Arrays.stream(targets).max().orElse(-1); i++) blocks.add(new IrBlock(i + 1));
+		IrBlock fallback = new IrBlock(-2);
+		for (int target : targets) IrBlock.link(block, blocks.get(target));
+		IrBlock.link(block, fallback);
+		block.exitValue = key;
+		block.exit = IrBlock.Exit.SWITCH;
+		SwitchLowering.lower(block, keys, new ArrayList<>());
+
+		Map<Integer, IrBlock> expected = new HashMap<>();
+		for (int i = 0; i < keys.length; i++) expected.put(keys[i], blocks.get(targets[i]));
+		for (int k : keys) {
+			for (int probe : new int[] {k - 1, k, k + 1}) {
+				assertEquals(expected.getOrDefault(probe, fallback), run(block, key, probe), "key " + probe);
+			}
+		}
+		if (block.exit == IrBlock.Exit.SWITCH) {
+			boolean hashed = block.body.stream().anyMatch(op -> op instanceof WasmOp w && w.opcode == I32_MUL);
+			return hashed ? Strategy.HASH : Strategy.TABLE;
+		}
+		boolean range = block.exitValue instanceof WasmOp w && w.opcode == I32_LT_U;
+		return range ? Strategy.RANGE : Strategy.SEARCH;
+	}
+
+	// Follows the branches made from block for key = value, to the first block that isn't one of them
+	private static IrBlock run(IrBlock block, Parameter key, int value) {
+		Map<Value, Constant> values = new HashMap<>(Map.of(key, new Constant(NumericType.I32, value)));
+		while (block.exit == IrBlock.Exit.IF || block.exit == IrBlock.Exit.SWITCH) {
+			for (Instruction instruction : block.body) {
+				WasmOp op = (WasmOp) instruction;
+				Constant[] operands = new Constant[op.operandCount()];
+				for (int i = 0; i < operands.length; i++) {
+					Value operand = op.operand(i);
+					operands[i] = operand instanceof Constant constant ? constant : values.get(operand);
+				}
+				values.put(op, Objects.requireNonNull(WasmOps.fold(op.opcode, operands)));
+			}
+			Value exit = Objects.requireNonNull(block.exitValue);
+			int taken = (Integer) (exit instanceof Constant constant ? constant : values.get(exit)).value;
+			if (block.exit == IrBlock.Exit.IF) {
+				block = block.successors.get(taken != 0 ? 0 : 1);
+			} else {
+				block = block.successors.get(Integer.compareUnsigned(taken, block.successors.size() - 1) < 0
+						? taken : block.successors.size() - 1);
+			}
+		}
+		return block;
+	}
+}